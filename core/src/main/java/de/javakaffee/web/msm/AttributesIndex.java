@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.TranscoderService.encodeNum;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Writes and reads session attributes in the indexed format (see {@link TranscoderService#VERSION_4}):
+ * each attribute is serialized separately by the {@link SessionAttributesTranscoder} (as a map containing
+ * only this attribute, see {@link TranscoderService#serializeAttribute(MemcachedBackupSession, String, Object)}),
+ * so that a single attribute can be deserialized without deserializing the other attributes.
+ * <p>
+ * The serialized attributes are preceded by an index with the name, offset and length of each attribute:
+ * <pre>
+ * number of attributes (4 bytes)
+ * for each attribute: name length (2 bytes), name (UTF-8), offset (4 bytes), length (4 bytes)
+ * serialized attributes
+ * </pre>
+ * The offset is relative to the beginning of the serialized attributes.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class AttributesIndex {
+
+    private AttributesIndex() {
+    }
+
+    /**
+     * Writes the index and the given serialized attributes to the given stream.
+     *
+     * @param serializedAttributes the serialized attributes by attribute name.
+     * @param out the stream to write to.
+     */
+    static void write( @Nonnull final Map<String, ByteBuffer> serializedAttributes, @Nonnull final OutputStream out ) throws IOException {
+        final byte[] num = new byte[4];
+        encodeNum( serializedAttributes.size(), num, 0, 4 );
+        out.write( num );
+        int offset = 0;
+        for ( final Map.Entry<String, ByteBuffer> attribute : serializedAttributes.entrySet() ) {
+            final byte[] name = toBytes( attribute.getKey() );
+            encodeNum( name.length, num, 0, 2 );
+            out.write( num, 0, 2 );
+            out.write( name );
+            encodeNum( offset, num, 0, 4 );
+            out.write( num );
+            final int length = attribute.getValue().remaining();
+            encodeNum( length, num, 0, 4 );
+            out.write( num );
+            offset += length;
+        }
+        for ( final ByteBuffer data : serializedAttributes.values() ) {
+            out.write( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+        }
+    }
+
+    /**
+     * Reads the index of the given attributes data (written with {@link #write(Map, OutputStream)}).
+     *
+     * @param data the attributes data, the buffer's position is not changed.
+     * @return the serialized attributes by attribute name, each buffer is backed by the given data.
+     */
+    @Nonnull
+    static Map<String, ByteBuffer> read( @Nonnull final ByteBuffer data ) {
+        final ByteBuffer index = data.duplicate();
+        final int size = index.getInt();
+        final String[] names = new String[size];
+        final int[] offsets = new int[size];
+        final int[] lengths = new int[size];
+        for ( int i = 0; i < size; i++ ) {
+            final byte[] name = new byte[index.getShort() & 0xffff];
+            index.get( name );
+            names[i] = toString( name );
+            offsets[i] = index.getInt();
+            lengths[i] = index.getInt();
+        }
+        final int attributesStart = index.position();
+        final Map<String, ByteBuffer> result = new LinkedHashMap<String, ByteBuffer>( size * 4 / 3 + 1 );
+        for ( int i = 0; i < size; i++ ) {
+            final ByteBuffer attribute = data.duplicate();
+            attribute.position( attributesStart + offsets[i] );
+            attribute.limit( attributesStart + offsets[i] + lengths[i] );
+            result.put( names[i], attribute.slice() );
+        }
+        return result;
+    }
+
+    private static byte[] toBytes( final String s ) {
+        try {
+            return s.getBytes( "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private static String toString( final byte[] data ) {
+        try {
+            return new String( data, "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+}
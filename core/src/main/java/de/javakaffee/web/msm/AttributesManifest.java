@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.TranscoderService.decodeNum;
+import static de.javakaffee.web.msm.TranscoderService.encodeNum;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Describes the session attributes of a session that are stored separately in memcached
+ * (each attribute under its own key, see {@link SessionIdFormat#createAttributeKey(String, int)}).
+ * <p>
+ * For each attribute the manifest holds the slot (that's part of the attribute key),
+ * the hash code of the serialized attribute (to determine if the attribute was modified)
+ * and the time when the attribute will expire in memcached (to determine if the attribute
+ * must be stored again, even if it was not modified).
+ * </p>
+ * <p>
+ * The manifest is stored together with the session fields under the session id
+ * (see {@link TranscoderService#serialize(MemcachedBackupSession, AttributesManifest)}).
+ * Instances are not modified once they are assigned to a session, for each backup
+ * a new manifest is created.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class AttributesManifest {
+
+    private final Map<String, Entry> _entries;
+
+    /**
+     * Creates a new, empty manifest.
+     */
+    public AttributesManifest() {
+        _entries = new LinkedHashMap<String, Entry>();
+    }
+
+    /**
+     * Adds the given attribute to this manifest.
+     *
+     * @param name the attribute name
+     * @param slot the slot used for the attribute key
+     * @param hashCode the hash code of the serialized attribute
+     * @param expiresAt the time in millis when the attribute expires in memcached, <code>0</code> if it does not expire.
+     */
+    public void put( @Nonnull final String name, final int slot, final int hashCode, final long expiresAt ) {
+        _entries.put( name, new Entry( slot, hashCode, expiresAt ) );
+    }
+
+    /**
+     * Returns the entry for the given attribute name.
+     */
+    @CheckForNull
+    public Entry get( @Nonnull final String name ) {
+        return _entries.get( name );
+    }
+
+    /**
+     * The names of all attributes in this manifest.
+     */
+    @Nonnull
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet( _entries.keySet() );
+    }
+
+    /**
+     * The slots of all attributes in this manifest.
+     */
+    @Nonnull
+    public List<Integer> getSlots() {
+        final List<Integer> result = new ArrayList<Integer>( _entries.size() );
+        for ( final Entry entry : _entries.values() ) {
+            result.add( entry.getSlot() );
+        }
+        return result;
+    }
+
+    /**
+     * The number of attributes in this manifest.
+     */
+    public int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Determines the slot to use for a new attribute: the lowest slot that is neither used by this
+     * manifest nor by the given previous manifest (so that the key of an attribute that is removed
+     * with this backup is not reused).
+     */
+    int nextFreeSlot( @CheckForNull final AttributesManifest previous ) {
+        final BitSet used = new BitSet();
+        for ( final Entry entry : _entries.values() ) {
+            used.set( entry.getSlot() );
+        }
+        if ( previous != null ) {
+            for ( final Entry entry : previous._entries.values() ) {
+                used.set( entry.getSlot() );
+            }
+        }
+        return used.nextClearBit( 0 );
+    }
+
+    /**
+     * Serializes this manifest so that it can be read with {@link #decode(byte[], int)}.
+     */
+    @Nonnull
+    public byte[] encode() {
+        final List<byte[]> names = new ArrayList<byte[]>( _entries.size() );
+        int length = 2; // short value for the number of entries
+        for ( final String name : _entries.keySet() ) {
+            final byte[] nameData = toBytes( name );
+            names.add( nameData );
+            length += 2 // short value for the slot
+                    + 4 // int value for the hash code
+                    + 8 // long value for expiresAt
+                    + 2 // short value for the name length
+                    + nameData.length;
+        }
+
+        final byte[] data = new byte[length];
+        int idx = encodeNum( _entries.size(), data, 0, 2 );
+        int i = 0;
+        for ( final Entry entry : _entries.values() ) {
+            idx = encodeNum( entry.getSlot(), data, idx, 2 );
+            idx = encodeNum( entry.getHashCode(), data, idx, 4 );
+            idx = encodeNum( entry.getExpiresAt(), data, idx, 8 );
+            final byte[] nameData = names.get( i++ );
+            idx = encodeNum( nameData.length, data, idx, 2 );
+            idx = TranscoderService.copy( nameData, data, idx );
+        }
+        return data;
+    }
+
+    /**
+     * Deserializes a manifest that was serialized with {@link #encode()}.
+     *
+     * @param data the byte array containing the serialized manifest.
+     * @param beginIndex the index in data where the serialized manifest starts.
+     */
+    @Nonnull
+    public static AttributesManifest decode( @Nonnull final byte[] data, final int beginIndex ) {
+        final AttributesManifest result = new AttributesManifest();
+        final int size = (int) decodeNum( data, beginIndex, 2 );
+        int idx = beginIndex + 2;
+        for ( int i = 0; i < size; i++ ) {
+            final int slot = (int) decodeNum( data, idx, 2 );
+            final int hashCode = (int) decodeNum( data, idx + 2, 4 );
+            final long expiresAt = decodeNum( data, idx + 6, 8 );
+            final int nameLength = (int) decodeNum( data, idx + 14, 2 );
+            final String name = toString( data, idx + 16, nameLength );
+            result.put( name, slot, hashCode, expiresAt );
+            idx += 16 + nameLength;
+        }
+        return result;
+    }
+
+    private static byte[] toBytes( final String s ) {
+        try {
+            return s.getBytes( "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private static String toString( final byte[] data, final int beginIndex, final int length ) {
+        try {
+            return new String( data, beginIndex, length, "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AttributesManifest [_entries=" + _entries + "]";
+    }
+
+    /**
+     * The manifest entry of a single attribute.
+     */
+    public static final class Entry {
+
+        private final int _slot;
+        private final int _hashCode;
+        private final long _expiresAt;
+
+        Entry( final int slot, final int hashCode, final long expiresAt ) {
+            _slot = slot;
+            _hashCode = hashCode;
+            _expiresAt = expiresAt;
+        }
+
+        /**
+         * The slot that is part of the attribute key.
+         */
+        public int getSlot() {
+            return _slot;
+        }
+
+        /**
+         * The hash code of the serialized attribute.
+         */
+        public int getHashCode() {
+            return _hashCode;
+        }
+
+        /**
+         * The time in millis when the attribute expires in memcached, <code>0</code> if it does not expire.
+         */
+        public long getExpiresAt() {
+            return _expiresAt;
+        }
+
+        /**
+         * Determines, if the attribute expires in memcached before the given time (a value of
+         * <code>0</code> means that there's no expiration).
+         */
+        boolean expiresBefore( final long time ) {
+            return _expiresAt != 0 && ( time == 0 || _expiresAt < time );
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [_slot=" + _slot + ", _hashCode=" + _hashCode + ", _expiresAt=" + _expiresAt + "]";
+        }
+
+    }
+
+}
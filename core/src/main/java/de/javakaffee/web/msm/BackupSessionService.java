@@ -16,22 +16,34 @@
  */
 package de.javakaffee.web.msm;
 
+import static de.javakaffee.web.msm.SessionValidityInfo.createValidityInfoKeyName;
+import static de.javakaffee.web.msm.SessionValidityInfo.encode;
 import static de.javakaffee.web.msm.Statistics.StatsType.EFFECTIVE_BACKUP;
-import static de.javakaffee.web.msm.Statistics.StatsType.RELEASE_LOCK;
+import static de.javakaffee.web.msm.Statistics.StatsType.MEMCACHED_UPDATE;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.spy.memcached.MemcachedClient;
 
@@ -40,6 +52,7 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.TouchSupport.TouchResult;
 
 /**
  * This service is responsible for storing sessions memcached. This includes
@@ -52,41 +65,62 @@ public class BackupSessionService {
 
     private static final Log _log = LogFactory.getLog( BackupSessionService.class );
 
+    private static final Object BACKUP_STARTED = new Object();
+
     private final TranscoderService _transcoderService;
     private final boolean _sessionBackupAsync;
     private final int _sessionBackupTimeout;
+    private final boolean _storeAttributesSeparately;
     private final MemcachedClient _memcached;
     private final MemcachedNodesManager _memcachedNodesManager;
+    private final CasConflictPolicy _casConflictPolicy;
     private final Statistics _statistics;
 
     private final ExecutorService _executorService;
+    private final BatchingBackupWriter _backupWriter;
+    private final TouchSupport _touchSupport;
+    private final ConcurrentMap<String, PendingBackup> _pendingBackups = new ConcurrentHashMap<String, PendingBackup>();
 
 
     /**
      * @param sessionBackupAsync
      * @param sessionBackupTimeout
      * @param backupThreadCount TODO
+     * @param storeAttributesSeparately specifies, if session attributes are stored separately, see {@link AttributesManifest}.
+     * @param backupBatchWindow the time in microseconds to collect writes before they're sent to memcached as a batch,
+     *  <code>0</code> disables batching, see {@link BatchingBackupWriter}.
+     * @param backupBatchQueueSize the max number of pending writes if backup batching is enabled.
      * @param memcached
      * @param memcachedNodesManager
+     * @param casConflictPolicy specifies how a conflict is handled if a session is stored with compare-and-set,
+     *  see {@link LockingStrategyCas}.
      * @param failoverNodeIds
      */
     public BackupSessionService( final TranscoderService transcoderService,
             final boolean sessionBackupAsync,
             final int sessionBackupTimeout,
             final int backupThreadCount,
+            final boolean storeAttributesSeparately,
+            final int backupBatchWindow,
+            final int backupBatchQueueSize,
             final MemcachedClient memcached,
             final MemcachedNodesManager memcachedNodesManager,
+            final CasConflictPolicy casConflictPolicy,
             final Statistics statistics ) {
         _transcoderService = transcoderService;
         _sessionBackupAsync = sessionBackupAsync;
         _sessionBackupTimeout = sessionBackupTimeout;
+        _storeAttributesSeparately = storeAttributesSeparately;
         _memcached = memcached;
         _memcachedNodesManager = memcachedNodesManager;
+        _casConflictPolicy = casConflictPolicy;
         _statistics = statistics;
 
         _executorService = sessionBackupAsync
             ? Executors.newFixedThreadPool( backupThreadCount, new NamedThreadFactory("msm-storage") )
             : new SynchronousExecutorService();
+        _backupWriter = new BatchingBackupWriter( memcached, backupBatchWindow, backupBatchQueueSize, statistics );
+        _touchSupport = new TouchSupport( memcached );
 
     }
 
@@ -95,6 +129,16 @@ public class BackupSessionService {
      */
     public void shutdown() {
         _executorService.shutdown();
+        _backupWriter.shutdown();
+    }
+
+    /**
+     * The writer that shall be used to store session data in memcached, so that
+     * writes are batched if configured.
+     */
+    @Nonnull
+    BatchingBackupWriter getBackupWriter() {
+        return _backupWriter;
     }
 
     /**
@@ -104,10 +148,12 @@ public class BackupSessionService {
      * seconds in memcached (whereas timeIdle is calculated as
      * <em>System.currentTimeMillis - session.thisAccessedTime</em>).
      * <p>
-     * <strong>IMPLEMENTATION NOTE</strong>: right now this performs a new backup of the session
-     * in memcached. Once the touch command is available in memcached
-     * (see <a href="http://code.google.com/p/memcached/issues/detail?id=110">issue #110</a> in memcached),
-     * we can consider to use this.
+     * If supported (see {@link TouchSupport}) the expiration of the session is updated with
+     * the memcached touch command, and the access times of the session (that are not updated
+     * in the stored session data) are stored as {@link SessionValidityInfo}. Otherwise (or if the
+     * session does not exist in memcached) this performs a new backup of the session in memcached.
+     * If session attributes are stored separately only the session fields and attributes that
+     * would expire before the session are stored.
      * </p>
      *
      * @param session the session for that the expiration shall be updated in memcached.
@@ -116,24 +162,133 @@ public class BackupSessionService {
      * @see MemcachedBackupSession#getThisAccessedTimeInternal()
      */
     public void updateExpiration( final MemcachedBackupSession session ) throws InterruptedException {
+        updateExpiration( session, null, _sessionBackupTimeout );
+    }
+
+    /**
+     * Update the expiration for the given sessions in memcached (see {@link #updateExpiration(MemcachedBackupSession)}).
+     * If touch is supported the touch commands for all sessions are sent at once, so that the memcached client
+     * can send them with a few writes, then the results are collected within the session backup timeout.
+     * Errors are logged per session.
+     *
+     * @param sessions the sessions for that the expiration shall be updated in memcached.
+     * @return the sessions whose expiration could not be updated, so that it can be retried.
+     */
+    @Nonnull
+    public List<MemcachedBackupSession> updateExpiration( @Nonnull final Collection<MemcachedBackupSession> sessions ) throws InterruptedException {
+        final Map<MemcachedBackupSession, Future<Boolean>> touches = new HashMap<MemcachedBackupSession, Future<Boolean>>();
+        if ( !_storeAttributesSeparately ) {
+            for ( final MemcachedBackupSession session : sessions ) {
+                if ( _memcachedNodesManager.getSessionIdFormat().isValid( session.getId() ) ) {
+                    final Future<Boolean> touch = _touchSupport.touchAsync( session.getId(), session.getMemcachedExpirationTimeToSet() );
+                    if ( touch == null ) {
+                        break;
+                    }
+                    touches.put( session, touch );
+                }
+            }
+        }
+        final long deadline = System.currentTimeMillis() + _sessionBackupTimeout;
+        final List<MemcachedBackupSession> failed = new ArrayList<MemcachedBackupSession>();
+        for ( final MemcachedBackupSession session : sessions ) {
+            try {
+                if ( !updateExpiration( session, touches.get( session ), Math.max( deadline - System.currentTimeMillis(), 0 ) ) ) {
+                    failed.add( session );
+                }
+            } catch ( final RuntimeException e ) {
+                _log.info( "Could not update expiration in memcached for session " + session.getId(), e );
+                failed.add( session );
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * @return <code>false</code> if the expiration could not be updated, the last backup time
+     *  of the session is then reverted (so that it's still considered as accessed since the last backup).
+     */
+    private boolean updateExpiration( final MemcachedBackupSession session, @Nullable final Future<Boolean> touch,
+            final long touchTimeoutMillis ) throws InterruptedException {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Updating expiration time for session " + session.getId() );
         }
 
         if ( !_memcachedNodesManager.getSessionIdFormat().isValid( session.getId() ) ) {
-            return;
+            return true;
         }
 
         session.setExpirationUpdateRunning( true );
+        final long previousBackupTime = session.getLastBackupTime();
         session.setLastBackupTime( System.currentTimeMillis() );
+        boolean updated = false;
         try {
-            final Map<String, Object> attributes = session.getAttributesFiltered();
-            final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
-            final byte[] data = _transcoderService.serialize( session, attributesData );
-            createBackupSessionTask( session, true ).doBackupSession( session, data, attributesData );
+            if ( _storeAttributesSeparately ) {
+                updated = createBackupSessionTask( session, false ).doBackupAttributesSeparately( session, true ).getStatus()
+                        != BackupResultStatus.FAILURE;
+            }
+            else if ( touchSession( session, touch, touchTimeoutMillis ) ) {
+                updated = true;
+            }
+            else {
+                final Map<String, ByteBuffer> serializedAttributes = new HashMap<String, ByteBuffer>();
+                final Map<String, Object> attributes = session.getAttributesFiltered( serializedAttributes );
+                final byte[] data = ( serializedAttributes.isEmpty()
+                    ? _transcoderService.serializeSession( session, attributes )
+                    : _transcoderService.serializeSession( session, attributes, serializedAttributes ) ).getData();
+                updated = createBackupSessionTask( session, true ).doBackupSession( session, data ).getStatus()
+                        != BackupResultStatus.FAILURE;
+            }
         } finally {
+            if ( !updated ) {
+                session.setLastBackupTime( previousBackupTime );
+            }
             session.setExpirationUpdateRunning( false );
         }
+        return updated;
+    }
+
+    /**
+     * Updates the expiration of the session in memcached with touch. As the session data is not
+     * stored again, the current access times are stored as {@link SessionValidityInfo} so that
+     * they can be applied when the session is loaded from memcached (see
+     * {@link MemcachedSessionService#loadFromMemcached(String)}).
+     *
+     * @param touch the touch already sent for the session, or <code>null</code>.
+     * @return <code>true</code> if the session was touched, otherwise it must be stored again.
+     */
+    private boolean touchSession( final MemcachedBackupSession session, @Nullable final Future<Boolean> touch,
+            final long timeoutMillis ) throws InterruptedException {
+        final int expirationTime = session.getMemcachedExpirationTimeToSet();
+        final Future<Boolean> future = touch != null ? touch : _touchSupport.touchAsync( session.getId(), expirationTime );
+        if ( future == null ) {
+            return false;
+        }
+        final long start = System.currentTimeMillis();
+        try {
+            final TouchResult result = _touchSupport.getResult( future, timeoutMillis );
+            if ( result != TouchResult.TOUCHED ) {
+                if ( result == TouchResult.NOT_FOUND ) {
+                    _log.info( "The session " + session.getId() + " should be touched in memcached, but it does not exist"
+                            + " therein. Will store in memcached again." );
+                }
+                return false;
+            }
+            final byte[] validityData = encode( session.getMaxInactiveInterval(), session.getLastAccessedTimeInternal(),
+                    session.getThisAccessedTimeInternal() );
+            _backupWriter.set( createValidityInfoKeyName( session.getId() ), expirationTime, validityData );
+            session.setLastMemcachedExpirationTime( expirationTime );
+            session.setLastBackupTime( System.currentTimeMillis() );
+            return true;
+        } catch ( final ExecutionException e ) {
+            _log.info( "Could not touch session " + session.getId() + " in memcached, will store it again.", e );
+            return false;
+        } catch ( final TimeoutException e ) {
+            _log.info( "Could not touch session " + session.getId() + " in memcached within " + timeoutMillis
+                    + " millis, will store it again." );
+            return false;
+        } finally {
+            _statistics.registerSince( MEMCACHED_UPDATE, start );
+        }
     }
 
     /**
@@ -202,7 +357,9 @@ public class BackupSessionService {
             }
 
             final BackupSessionTask task = createBackupSessionTask( session, force );
-            final Future<BackupResult> result = _executorService.submit( task );
+            final Future<BackupResult> result = _sessionBackupAsync
+                ? submitCoalescing( session.getIdInternal(), task, force )
+                : _executorService.submit( task );
 
             if ( !_sessionBackupAsync ) {
                 try {
@@ -222,14 +379,48 @@ public class BackupSessionService {
 
     }
 
+    /**
+     * Submits the given task, if there's still a backup pending (not yet started) for the same session
+     * the pending backup is dropped: as the session is serialized when the backup is executed, the newer
+     * backup stores the same (most recent) session data. The future of the dropped backup provides the
+     * result of the backup that superseded it.
+     * <p>
+     * A pending backup that was forced (because the session was relocated) is not superseded by
+     * a backup that's not forced.
+     * </p>
+     * <p>
+     * The returned future is a {@link ListenableFuture}, so that follow-up work can be chained on the
+     * completion of the backup.
+     * </p>
+     */
+    private Future<BackupResult> submitCoalescing( @Nonnull final String sessionId, @Nonnull final BackupSessionTask task,
+            final boolean force ) {
+        final PendingBackup backup = new PendingBackup( sessionId, task, force );
+        // the future is set before the backup can supersede another one, as listeners are then forwarded to it
+        final ListenableFutureTask<BackupResult> future = new ListenableFutureTask<BackupResult>( backup );
+        backup.setFuture( future );
+        final PendingBackup previous = _pendingBackups.put( sessionId, backup );
+        if ( previous != null && ( force || !previous.isForce() ) && previous.supersede( backup ) ) {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Dropping pending backup of session " + sessionId + " superseded by a newer backup." );
+            }
+            _statistics.backupCoalesced();
+        }
+        _executorService.execute( future );
+        return backup;
+    }
+
     private BackupSessionTask createBackupSessionTask( final MemcachedBackupSession session, final boolean force ) {
         return new BackupSessionTask( session,
                 force,
                 _transcoderService,
                 _sessionBackupAsync,
                 _sessionBackupTimeout,
+                _storeAttributesSeparately,
                 _memcached,
+                _backupWriter,
                 _memcachedNodesManager,
+                _casConflictPolicy,
                 _statistics );
     }
 
@@ -239,9 +430,8 @@ public class BackupSessionService {
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Releasing lock for session " + session.getIdInternal() );
                 }
-                final long start = System.currentTimeMillis();
-                _memcached.delete( _memcachedNodesManager.getSessionIdFormat().createLockName( session.getIdInternal() ) ).get();
-                _statistics.registerSince( RELEASE_LOCK, start );
+                // no session write is pending here, as the backup is skipped
+                _memcached.delete( _memcachedNodesManager.getSessionIdFormat().createLockName( session.getIdInternal() ) );
                 session.releaseLock();
             } catch( final Exception e ) {
                 _log.warn( "Caught exception when trying to release lock for session " + session.getIdInternal(), e );
@@ -249,6 +439,131 @@ public class BackupSessionService {
         }
     }
 
+    /**
+     * A backup that was submitted for async execution, it can be superseded by a newer backup
+     * of the same session as long as it was not started.
+     * The future of this backup provides the result of the backup task or, if this backup
+     * was superseded, the result of the superseding backup.
+     */
+    private final class PendingBackup implements Callable<BackupResult>, ListenableFuture<BackupResult> {
+
+        private final String _sessionId;
+        private final BackupSessionTask _task;
+        private final boolean _force;
+        /* null while pending, BACKUP_STARTED or the superseding backup */
+        private final AtomicReference<Object> _state = new AtomicReference<Object>();
+        private final CountDownLatch _submitted = new CountDownLatch( 1 );
+        private volatile ListenableFutureTask<BackupResult> _future;
+
+        PendingBackup( @Nonnull final String sessionId, @Nonnull final BackupSessionTask task, final boolean force ) {
+            _sessionId = sessionId;
+            _task = task;
+            _force = force;
+        }
+
+        boolean isForce() {
+            return _force;
+        }
+
+        /**
+         * Marks this backup as superseded by the given backup if it was not yet started.
+         * @return <code>true</code> if this backup won't be executed.
+         */
+        boolean supersede( @Nonnull final PendingBackup successor ) {
+            return _state.compareAndSet( null, successor );
+        }
+
+        @CheckForNull
+        private PendingBackup getSuccessor() {
+            final Object state = _state.get();
+            return state instanceof PendingBackup ? (PendingBackup) state : null;
+        }
+
+        void setFuture( @Nonnull final ListenableFutureTask<BackupResult> future ) {
+            _future = future;
+            _submitted.countDown();
+        }
+
+        @Override
+        public BackupResult call() throws Exception {
+            _pendingBackups.remove( _sessionId, this );
+            if ( !_state.compareAndSet( null, BACKUP_STARTED ) ) {
+                // superseded, the successor provides the result
+                return null;
+            }
+            return _task.call();
+        }
+
+        /**
+         * Registers the listener at the future of the backup task, if this backup is superseded the
+         * listener is forwarded to the superseding backup.
+         */
+        @Override
+        public void addListener( @Nonnull final Runnable listener, @Nonnull final Executor executor ) {
+            _future.addListener( new Runnable() {
+                @Override
+                public void run() {
+                    final PendingBackup successor = getSuccessor();
+                    if ( successor != null ) {
+                        successor.addListener( listener, executor );
+                    }
+                    else {
+                        executor.execute( listener );
+                    }
+                }
+            }, ListenableFutureTask.DIRECT_EXECUTOR );
+        }
+
+        @Override
+        public boolean cancel( final boolean mayInterruptIfRunning ) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            final PendingBackup successor = getSuccessor();
+            if ( successor != null ) {
+                return successor.isDone();
+            }
+            final Future<BackupResult> future = _future;
+            return future != null && future.isDone();
+        }
+
+        @Override
+        public BackupResult get() throws InterruptedException, ExecutionException {
+            final PendingBackup successor = getSuccessor();
+            if ( successor != null ) {
+                return successor.get();
+            }
+            _submitted.await();
+            final BackupResult result = _future.get();
+            return getSuccessor() != null ? getSuccessor().get() : result;
+        }
+
+        @Override
+        public BackupResult get( final long timeout, final TimeUnit unit ) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos( timeout );
+            final PendingBackup successor = getSuccessor();
+            if ( successor != null ) {
+                return successor.get( timeout, unit );
+            }
+            if ( !_submitted.await( timeout, unit ) ) {
+                throw new TimeoutException();
+            }
+            final BackupResult result = _future.get( Math.max( deadline - System.nanoTime(), 0 ), TimeUnit.NANOSECONDS );
+            return getSuccessor() != null
+                ? getSuccessor().get( Math.max( deadline - System.nanoTime(), 0 ), TimeUnit.NANOSECONDS )
+                : result;
+        }
+
+    }
+
     /**
      * An implementation of {@link ExecutorService} that executes submitted {@link Callable}s
      * and {@link Runnable}s in the caller thread.
@@ -391,7 +706,7 @@ public class BackupSessionService {
      *
      * @param <T> the result type
      */
-    static class SimpleFuture<T> implements Future<T> {
+    static class SimpleFuture<T> implements ListenableFuture<T> {
 
         private final T _result;
         private final ExecutionException _e;
@@ -458,6 +773,14 @@ public class BackupSessionService {
             return true;
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void addListener( final Runnable listener, final Executor executor ) {
+            executor.execute( listener );
+        }
+
     }
 
 }
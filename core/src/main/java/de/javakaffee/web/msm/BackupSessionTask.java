@@ -20,10 +20,16 @@ package de.javakaffee.web.msm;
 import static de.javakaffee.web.msm.Statistics.StatsType.ATTRIBUTES_SERIALIZATION;
 import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP;
 import static de.javakaffee.web.msm.Statistics.StatsType.MEMCACHED_UPDATE;
-import static de.javakaffee.web.msm.Statistics.StatsType.RELEASE_LOCK;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -34,12 +40,15 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.TranscoderService.SerializationResult;
 
 /**
  * Stores the provided session in memcached if the session was modified
@@ -51,26 +60,51 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
     private static final Log _log = LogFactory.getLog( BackupSessionTask.class );
 
+    /*
+     * Expiration times in memcached exceeding 30 days are interpreted as unix timestamps.
+     */
+    private static final int MAX_RELATIVE_EXPIRATION_TIME = 60 * 60 * 24 * 30;
+
+    /*
+     * The number of attempts to merge and store a session after a cas conflict.
+     */
+    static final int MAX_CAS_MERGE_ATTEMPTS = 3;
+
     private final MemcachedBackupSession _session;
     private final boolean _force;
     private final TranscoderService _transcoderService;
     private final boolean _sessionBackupAsync;
     private final int _sessionBackupTimeout;
+    private final boolean _storeAttributesSeparately;
     private final MemcachedClient _memcached;
+    private final BatchingBackupWriter _backupWriter;
     private final MemcachedNodesManager _memcachedNodesManager;
+    private final CasConflictPolicy _casConflictPolicy;
     private final Statistics _statistics;
 
+    /*
+     * The write of the session data, the lock must not be released before it's done
+     */
+    private Future<Boolean> _sessionWrite;
+
     /**
      * @param session
      *            the session to save
      * @param sessionBackupAsync
      * @param sessionBackupTimeout
+     * @param storeAttributesSeparately
+     *            specifies, if session attributes are stored separately, see {@link AttributesManifest}.
      * @param memcached
+     * @param backupWriter
+     *            used to store the session (and attributes) in memcached.
      * @param force
      *            specifies, if the session needs to be saved by all means, e.g.
      *            as it has to be relocated to another memcached
      *            node (the session id had been changed before in this case).
      * @param memcachedNodesManager
+     * @param casConflictPolicy
+     *            specifies how a conflict is handled if the session is stored with compare-and-set
+     *            (if it was loaded with its cas value, see {@link LockingStrategyCas}).
      * @param failoverNodeIds
      */
     public BackupSessionTask( final MemcachedBackupSession session,
@@ -78,16 +112,22 @@ public class BackupSessionTask implements Callable<BackupResult> {
             final TranscoderService transcoderService,
             final boolean sessionBackupAsync,
             final int sessionBackupTimeout,
+            final boolean storeAttributesSeparately,
             final MemcachedClient memcached,
+            final BatchingBackupWriter backupWriter,
             final MemcachedNodesManager memcachedNodesManager,
+            final CasConflictPolicy casConflictPolicy,
             final Statistics statistics ) {
         _session = session;
         _force = sessionIdChanged;
         _transcoderService = transcoderService;
         _sessionBackupAsync = sessionBackupAsync;
         _sessionBackupTimeout = sessionBackupTimeout;
+        _storeAttributesSeparately = storeAttributesSeparately;
         _memcached = memcached;
+        _backupWriter = backupWriter;
         _memcachedNodesManager = memcachedNodesManager;
+        _casConflictPolicy = casConflictPolicy;
         _statistics = statistics;
     }
 
@@ -105,23 +145,55 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
             final long startBackup = System.currentTimeMillis();
 
-            final Map<String, Object> attributes = _session.getAttributesFiltered();
-            final byte[] attributesData = serializeAttributes( _session, attributes );
-            final int hashCode = Arrays.hashCode( attributesData );
             final BackupResult result;
-            if ( _session.getDataHashCode() != hashCode
-                    || _force
-                    || _session.authenticationChanged() ) {
-
-                _session.setLastBackupTime( System.currentTimeMillis() );
-                final byte[] data = _transcoderService.serialize( _session, attributesData );
-
-                result = doBackupSession( _session, data, attributesData );
-                if ( result.isSuccess() ) {
-                    _session.setDataHashCode( hashCode );
+            if ( _storeAttributesSeparately ) {
+                result = doBackupAttributesSeparately( _session, false );
+            }
+            else {
+                final Map<String, Integer> attributeHashCodes = new HashMap<String, Integer>();
+                if ( !_force
+                        && !_session.authenticationChanged()
+                        && accessedAttributesUnmodified( _session, attributeHashCodes ) ) {
+                    result = new BackupResult( BackupResultStatus.SKIPPED );
+                }
+                else {
+                    final Map<String, ByteBuffer> serializedAttributes = new HashMap<String, ByteBuffer>();
+                    final Map<String, Object> attributes = _session.getAttributesFiltered( serializedAttributes );
+                    /* the session fields are serialized together with the attributes, so the
+                     * backup time must be set before and is reverted if the backup is skipped
+                     */
+                    final long previousBackupTime = _session.getLastBackupTime();
+                    _session.setLastBackupTime( System.currentTimeMillis() );
+                    final SerializationResult serialized = serializeSession( _session, attributes, serializedAttributes );
+                    final int hashCode = serialized.getAttributesHashCode();
+                    if ( _session.getDataHashCode() != hashCode
+                            || _force
+                            || _session.authenticationChanged() ) {
+
+                        result = doBackupSession( _session, serialized.getData() );
+                        if ( result.isSuccess() ) {
+                            _session.setDataHashCode( hashCode );
+                        }
+                    } else {
+                        _session.setLastBackupTime( previousBackupTime );
+                        result = new BackupResult( BackupResultStatus.SKIPPED );
+                    }
+                    if ( result.getStatus() == BackupResultStatus.SUCCESS ) {
+                        /* the check stops at the first modified attribute, other read attributes were
+                         * stored with their current value now, so their known hash codes are outdated
+                         */
+                        for ( final String name : _session.getAccessedAttributes() ) {
+                            if ( !attributeHashCodes.containsKey( name ) ) {
+                                _session.removeAttributeHashCode( name );
+                            }
+                        }
+                    }
+                    if ( result.getStatus() != BackupResultStatus.FAILURE ) {
+                        for ( final Map.Entry<String, Integer> entry : attributeHashCodes.entrySet() ) {
+                            _session.setAttributeHashCode( entry.getKey(), entry.getValue() );
+                        }
+                    }
                 }
-            } else {
-                result = new BackupResult( BackupResultStatus.SKIPPED );
             }
 
             switch ( result.getStatus() ) {
@@ -132,6 +204,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
                 case SKIPPED:
                     _statistics.requestWithoutSessionModification();
                     _session.storeThisAccessedTimeFromLastBackupCheck();
+                    _session.attributesChecked();
                     break;
                 case SUCCESS:
                     _statistics.registerSince( BACKUP, startBackup );
@@ -160,9 +233,8 @@ public class BackupSessionTask implements Callable<BackupResult> {
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Releasing lock for session " + _session.getIdInternal() );
                 }
-                final long start = System.currentTimeMillis();
-                _memcached.delete( _memcachedNodesManager.getSessionIdFormat().createLockName( _session.getIdInternal() ) ).get();
-                _statistics.registerSince( RELEASE_LOCK, start );
+                awaitSessionWrite();
+                _memcached.delete( _memcachedNodesManager.getSessionIdFormat().createLockName( _session.getIdInternal() ) );
                 _session.releaseLock();
             } catch( final Exception e ) {
                 _log.warn( "Caught exception when trying to release lock for session " + _session.getIdInternal(), e );
@@ -170,38 +242,210 @@ public class BackupSessionTask implements Callable<BackupResult> {
         }
     }
 
-    private byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+    /**
+     * Waits until the session write (that might still be queued by the {@link BatchingBackupWriter} or
+     * be in flight for async backup) is done, so that another tomcat that gets the lock reads the new session data.
+     * The lock and the session may be stored on different nodes, so the order of the operations is not
+     * determined by the connection.
+     */
+    private void awaitSessionWrite() {
+        if ( _sessionWrite == null || _sessionWrite.isDone() ) {
+            return;
+        }
+        try {
+            _sessionWrite.get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } catch ( final ExecutionException e ) {
+            _log.debug( "Session write failed before releasing the lock for session " + _session.getIdInternal(), e );
+        } catch ( final TimeoutException e ) {
+            _log.debug( "Session write timed out before releasing the lock for session " + _session.getIdInternal(), e );
+        }
+    }
+
+    /**
+     * Checks if the session attributes were not modified since the last backup, without serializing
+     * all attributes: this is the case if no attribute was set or removed and if each attribute
+     * with a mutable value that was read (see {@link MemcachedBackupSession#getAccessedAttributes()})
+     * still has the hash code it had at the last backup.
+     * This check is only done for sticky sessions, as only these keep the hash codes of
+     * single attributes across requests.
+     *
+     * @param session the session to check
+     * @param attributeHashCodes the map that's filled with the hash codes of the checked
+     *  attributes that are not known yet, these must be set on the session if it's backed up successfully.
+     * @return <code>true</code> if the attributes are known to be unmodified.
+     */
+    private boolean accessedAttributesUnmodified( final MemcachedBackupSession session,
+            final Map<String, Integer> attributeHashCodes ) {
+        if ( !session.isSticky()
+                || session.getDataHashCode() == 0
+                || !session.getModifiedAttributes().isEmpty() ) {
+            return false;
+        }
         final long start = System.currentTimeMillis();
-        final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
+        try {
+            for ( final String name : session.getAccessedAttributes() ) {
+                final Object value = session.getAttributeInternal( name );
+                if ( value == null ) {
+                    return false;
+                }
+                final int hashCode = Arrays.hashCode( _transcoderService.serializeAttribute( session, name, value ) );
+                final Integer previous = session.getAttributeHashCode( name );
+                if ( previous == null || previous.intValue() != hashCode ) {
+                    attributeHashCodes.put( name, hashCode );
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            _statistics.registerSince( ATTRIBUTES_SERIALIZATION, start );
+        }
+    }
+
+    private SerializationResult serializeSession( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+        return serializeSession( session, attributes, Collections.<String, ByteBuffer>emptyMap() );
+    }
+
+    private SerializationResult serializeSession( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final Map<String, ByteBuffer> serializedAttributes ) {
+        final long start = System.currentTimeMillis();
+        final SerializationResult result = serializedAttributes.isEmpty()
+            ? _transcoderService.serializeSession( session, attributes )
+            : _transcoderService.serializeSession( session, attributes, serializedAttributes );
         _statistics.registerSince( ATTRIBUTES_SERIALIZATION, start );
-        return attributesData;
+        return result;
     }
 
     /**
-     * Store the provided session in memcached.
+     * Store the provided session in memcached. If the session was loaded with its cas value
+     * (see {@link LockingStrategyCas}) it's stored with compare-and-set, a conflict is handled according
+     * to the {@link CasConflictPolicy}.
      * @param session the session to backup
      * @param data the serialized session data (session fields and session attributes).
-     * @param attributesData just the serialized session attributes.
      *
      * @return the {@link BackupResultStatus}
      */
-    BackupResult doBackupSession( final MemcachedBackupSession session, final byte[] data, final byte[] attributesData ) throws InterruptedException {
+    BackupResult doBackupSession( final MemcachedBackupSession session, final byte[] data ) throws InterruptedException {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Trying to store session in memcached: " + session.getId() );
         }
 
         try {
+            if ( session.getCasId() != 0 ) {
+                return storeSessionWithCas( session, data );
+            }
             storeSessionInMemcached( session, data );
-            return new BackupResult( BackupResultStatus.SUCCESS, data, attributesData );
+            return new BackupResult( BackupResultStatus.SUCCESS, data );
         } catch (final ExecutionException e) {
             handleException(session, e);
-            return new BackupResult(BackupResultStatus.FAILURE, data, null);
+            return new BackupResult(BackupResultStatus.FAILURE, data);
         } catch (final TimeoutException e) {
             handleException(session, e);
-            return new BackupResult(BackupResultStatus.FAILURE, data, null);
+            return new BackupResult(BackupResultStatus.FAILURE, data);
+        }
+    }
+
+    /**
+     * Store the provided session in memcached with its attributes stored separately (see {@link AttributesManifest}).
+     * Only attributes that were modified since the last backup (or that would expire in memcached before the session)
+     * are stored, attributes that were removed are deleted from memcached. Only attributes that were set or read
+     * (with a mutable value) since the last backup are serialized to check them for modifications. The session fields are stored together with
+     * the new manifest under the session id.
+     *
+     * @param session the session to backup
+     * @param storeSessionFields specifies, if the session fields shall be stored even if no attribute was modified
+     *  (e.g. to update the expiration time in memcached).
+     *
+     * @return the {@link BackupResult}, no data is set as there's no self-contained serialized session.
+     */
+    BackupResult doBackupAttributesSeparately( final MemcachedBackupSession session, final boolean storeSessionFields ) throws InterruptedException {
+        final long now = System.currentTimeMillis();
+        final int expirationTime = session.getMemcachedExpirationTimeToSet();
+        final long sessionExpiresAt = expirationTime == 0 ? 0 : now + expirationTime * 1000L;
+        final int attributeExpirationTime = getAttributeExpirationTime( expirationTime );
+        final long attributeExpiresAt = attributeExpirationTime == 0 ? 0 : now + attributeExpirationTime * 1000L;
+
+        final SessionIdFormat sessionIdFormat = _memcachedNodesManager.getSessionIdFormat();
+        final AttributesManifest previous = session.getAttributesManifest();
+        final AttributesManifest manifest = new AttributesManifest();
+        final Map<String, byte[]> modifiedAttributes = new HashMap<String, byte[]>();
+        for ( final Map.Entry<String, Object> attribute : session.getAttributesFiltered().entrySet() ) {
+            final String name = attribute.getKey();
+            final AttributesManifest.Entry previousEntry = previous != null ? previous.get( name ) : null;
+            if ( previousEntry != null && !_force
+                    && !session.getModifiedAttributes().contains( name )
+                    && !session.getAccessedAttributes().contains( name )
+                    && !previousEntry.expiresBefore( sessionExpiresAt ) ) {
+                // neither set nor read (or immutable) since the last backup, so it's not serialized at all
+                manifest.put( name, previousEntry.getSlot(), previousEntry.getHashCode(), previousEntry.getExpiresAt() );
+                continue;
+            }
+            final byte[] attributeData = _transcoderService.serializeAttribute( session, name, attribute.getValue() );
+            final int hashCode = Arrays.hashCode( attributeData );
+            final AttributesManifest.Entry entry = previous != null ? previous.get( name ) : null;
+            if ( entry != null && !_force && entry.getHashCode() == hashCode && !entry.expiresBefore( sessionExpiresAt ) ) {
+                manifest.put( name, entry.getSlot(), hashCode, entry.getExpiresAt() );
+            }
+            else {
+                final int slot = entry != null ? entry.getSlot() : manifest.nextFreeSlot( previous );
+                manifest.put( name, slot, hashCode, attributeExpiresAt );
+                modifiedAttributes.put( sessionIdFormat.createAttributeKey( session.getId(), slot ), attributeData );
+            }
+        }
+        _statistics.registerSince( ATTRIBUTES_SERIALIZATION, now );
+
+        final List<String> removedAttributes = new ArrayList<String>();
+        if ( previous != null ) {
+            for ( final String name : previous.getNames() ) {
+                if ( manifest.get( name ) == null ) {
+                    removedAttributes.add( sessionIdFormat.createAttributeKey( session.getId(), previous.get( name ).getSlot() ) );
+                }
+            }
+        }
+
+        if ( previous != null
+                && modifiedAttributes.isEmpty()
+                && removedAttributes.isEmpty()
+                && !storeSessionFields
+                && !_force
+                && !session.authenticationChanged() ) {
+            return new BackupResult( BackupResultStatus.SKIPPED );
+        }
+
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Trying to store session in memcached: " + session.getId() + ", with " + modifiedAttributes.size()
+                    + " of " + manifest.size() + " attributes (" + removedAttributes.size() + " removed)" );
+        }
+
+        session.setLastBackupTime( System.currentTimeMillis() );
+        final byte[] data = _transcoderService.serialize( session, manifest );
+        try {
+            storeAttributesSeparatelyInMemcached( session, data, expirationTime, modifiedAttributes, attributeExpirationTime,
+                    removedAttributes );
+            session.setAttributesManifest( manifest );
+            return new BackupResult( BackupResultStatus.SUCCESS );
+        } catch ( final ExecutionException e ) {
+            handleException( session, e );
+            return new BackupResult( BackupResultStatus.FAILURE );
+        } catch ( final TimeoutException e ) {
+            handleException( session, e );
+            return new BackupResult( BackupResultStatus.FAILURE );
         }
     }
 
+    /**
+     * Determines the expiration time for separately stored attributes: these are stored with
+     * a longer expiration than the session so that they don't have to be stored
+     * with each backup just to keep them alive.
+     */
+    static int getAttributeExpirationTime( final int sessionExpirationTime ) {
+        if ( sessionExpirationTime <= 0 ) {
+            return sessionExpirationTime;
+        }
+        return (int) Math.min( 2L * sessionExpirationTime, MAX_RELATIVE_EXPIRATION_TIME );
+    }
+
     private void handleException(final MemcachedBackupSession session, final Exception e) {
         //if ( _log.isWarnEnabled() ) {
             String msg = "Could not store session " + session.getId() + " in memcached.";
@@ -224,7 +468,8 @@ public class BackupSessionTask implements Callable<BackupResult> {
         final int expirationTime = session.getMemcachedExpirationTimeToSet();
         final long start = System.currentTimeMillis();
         try {
-            final Future<Boolean> future = _memcached.set( session.getId(), expirationTime, data );
+            final Future<Boolean> future = _backupWriter.set( session.getId(), expirationTime, data );
+            _sessionWrite = future;
             if ( !_sessionBackupAsync ) {
                 future.get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
                 session.setLastMemcachedExpirationTime( expirationTime );
@@ -241,6 +486,139 @@ public class BackupSessionTask implements Callable<BackupResult> {
         }
     }
 
+    private BackupResult storeSessionWithCas( final MemcachedBackupSession session, final byte[] data )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final CASResponse response = casSessionInMemcached( session, session.getCasId(), data );
+        if ( response == CASResponse.OK ) {
+            return new BackupResult( BackupResultStatus.SUCCESS, data );
+        }
+
+        _statistics.nonStickySessionsCasConflict();
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Could not store session " + session.getId() + " with cas, got " + response
+                    + ", handling conflict with policy " + _casConflictPolicy );
+        }
+        switch ( _casConflictPolicy ) {
+            case OVERWRITE:
+                storeSessionInMemcached( session, data );
+                return new BackupResult( BackupResultStatus.SUCCESS, data );
+            case MERGE:
+                if ( response == CASResponse.EXISTS ) {
+                    return mergeSessionInMemcached( session );
+                }
+                break;
+            default:
+                break;
+        }
+        _log.info( "Could not store session " + session.getId() + " as it was "
+                + ( response == CASResponse.EXISTS ? "modified concurrently" : "removed from memcached" )
+                + ", the modifications of this request are lost." );
+        return new BackupResult( BackupResultStatus.FAILURE, data );
+    }
+
+    /**
+     * Loads the current session from memcached, applies the attributes that were modified by
+     * this request and stores it with compare-and-set, this is retried
+     * if the session was modified concurrently again.
+     */
+    private BackupResult mergeSessionInMemcached( final MemcachedBackupSession session )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final Set<String> modifiedAttributes = new HashSet<String>( session.getModifiedAttributes() );
+        modifiedAttributes.addAll( session.getAccessedAttributes() );
+        for ( int i = 0; i < MAX_CAS_MERGE_ATTEMPTS; i++ ) {
+            final CASValue<Object> current = _memcached.gets( session.getId() );
+            if ( current == null || !( current.getValue() instanceof byte[] ) ) {
+                _log.info( "Could not merge session " + session.getId() + " as it was removed from memcached." );
+                return new BackupResult( BackupResultStatus.FAILURE );
+            }
+            final Map<String, Object> attributes = _transcoderService.deserializeSessionAttributes( (byte[]) current.getValue(),
+                    session.getIdInternal() );
+            if ( attributes == null ) {
+                _log.warn( "Could not merge session " + session.getId() + " as the attributes stored in memcached cannot be read." );
+                return new BackupResult( BackupResultStatus.FAILURE );
+            }
+
+            final Map<String, Object> localAttributes = session.getAttributesFiltered();
+            for ( final String name : modifiedAttributes ) {
+                final Object value = localAttributes.get( name );
+                if ( value != null ) {
+                    attributes.put( name, value );
+                }
+                else {
+                    attributes.remove( name );
+                }
+            }
+
+            final byte[] data = serializeSession( session, attributes ).getData();
+            final CASResponse response = casSessionInMemcached( session, current.getCas(), data );
+            if ( response == CASResponse.OK ) {
+                if ( _log.isDebugEnabled() ) {
+                    _log.debug( "Merged session " + session.getId() + " with " + modifiedAttributes.size() + " modified attributes." );
+                }
+                return new BackupResult( BackupResultStatus.SUCCESS, data );
+            }
+            if ( response != CASResponse.EXISTS ) {
+                _log.info( "Could not merge session " + session.getId() + " as it was removed from memcached." );
+                return new BackupResult( BackupResultStatus.FAILURE, data );
+            }
+            _statistics.nonStickySessionsCasConflict();
+        }
+        _log.warn( "Could not merge session " + session.getId() + " after " + MAX_CAS_MERGE_ATTEMPTS
+                + " attempts as it was modified concurrently, the modifications of this request are lost." );
+        return new BackupResult( BackupResultStatus.FAILURE );
+    }
+
+    /**
+     * Stores the session with compare-and-set, this always waits for the result (also for async session backup)
+     * as a conflict must be handled.
+     */
+    private CASResponse casSessionInMemcached( final MemcachedBackupSession session, final long casId, final byte[] data )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final int expirationTime = session.getMemcachedExpirationTimeToSet();
+        final long start = System.currentTimeMillis();
+        try {
+            final CASResponse response = _memcached.asyncCAS( session.getId(), casId, expirationTime, (Object) data,
+                    _memcached.getTranscoder() ).get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
+            if ( response == CASResponse.OK ) {
+                session.setLastMemcachedExpirationTime( expirationTime );
+                session.setLastBackupTime( System.currentTimeMillis() );
+            }
+            return response;
+        } finally {
+            _statistics.registerSince( MEMCACHED_UPDATE, start );
+        }
+    }
+
+    private void storeAttributesSeparatelyInMemcached( final MemcachedBackupSession session, final byte[] data,
+            final int expirationTime, final Map<String, byte[]> modifiedAttributes, final int attributeExpirationTime,
+            final List<String> removedAttributes ) throws InterruptedException, ExecutionException, TimeoutException {
+        final long start = System.currentTimeMillis();
+        try {
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>( modifiedAttributes.size() + 1 );
+            for ( final Map.Entry<String, byte[]> attribute : modifiedAttributes.entrySet() ) {
+                futures.add( _backupWriter.set( attribute.getKey(), attributeExpirationTime, attribute.getValue() ) );
+            }
+            for ( final String key : removedAttributes ) {
+                _backupWriter.delete( key );
+            }
+            // the session is stored last so that it does not reference attributes not yet stored
+            _sessionWrite = _backupWriter.set( session.getId(), expirationTime, data );
+            futures.add( _sessionWrite );
+            if ( !_sessionBackupAsync ) {
+                final long deadline = start + _sessionBackupTimeout;
+                for ( final Future<Boolean> future : futures ) {
+                    future.get( Math.max( deadline - System.currentTimeMillis(), 0 ), TimeUnit.MILLISECONDS );
+                }
+            }
+            /* in async mode, we asume the session was stored successfully
+             */
+            session.setLastMemcachedExpirationTime( expirationTime );
+            session.setLastBackupTime( System.currentTimeMillis() );
+        } finally {
+            _statistics.registerSince( MEMCACHED_UPDATE, start );
+        }
+    }
+
     static final class BackupResult {
 
         public static final BackupResult SKIPPED = new BackupResult( BackupResultStatus.SKIPPED );
@@ -248,14 +626,12 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
         private final BackupResultStatus _status;
         private final byte[] _data;
-        private final byte[] _attributesData;
         public BackupResult( @Nonnull final BackupResultStatus status ) {
-            this( status, null, null );
+            this( status, null );
         }
-        public BackupResult( @Nonnull final BackupResultStatus status, @Nullable final byte[] data, @Nullable final byte[] attributesData ) {
+        public BackupResult( @Nonnull final BackupResultStatus status, @Nullable final byte[] data ) {
             _status = status;
             _data = data;
-            _attributesData = attributesData;
         }
         /**
          * The status/result of the backup operation.
@@ -267,7 +643,8 @@ public class BackupSessionTask implements Callable<BackupResult> {
         }
         /**
          * The serialized session data (session fields and session attributes).
-         * This can be <code>null</code> (if {@link #getStatus()} is {@link BackupResultStatus#SKIPPED}).
+         * This can be <code>null</code> (if {@link #getStatus()} is {@link BackupResultStatus#SKIPPED}
+         * or if session attributes are stored separately, see {@link AttributesManifest}).
          *
          * @return the session data
          */
@@ -275,17 +652,6 @@ public class BackupSessionTask implements Callable<BackupResult> {
         byte[] getData() {
             return _data;
         }
-        /**
-         * The serialized attributes that were actually stored in memcached with the
-         * full serialized session data. This can be <code>null</code>, e.g. if
-         * {@link #getStatus()} is {@link BackupResultStatus#FAILURE} or {@link BackupResultStatus#SKIPPED}.
-         *
-         * @return the attributesData
-         */
-        @CheckForNull
-        byte[] getAttributesData() {
-            return _attributesData;
-        }
         /**
          * Specifies if the backup was performed successfully.
          *
@@ -298,8 +664,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
 		@Override
 		public String toString() {
 			return "BackupResult [_status=" + _status + ", _data="
-					+ (_data != null ? "byte[" + _data.length + "]" : "null") + ", _attributesData="
-					+ (_attributesData != null ? "byte[" + _attributesData.length + "]" : "null") + "]";
+					+ (_data != null ? "byte[" + _data.length + "]" : "null") + "]";
 		}
     }
 
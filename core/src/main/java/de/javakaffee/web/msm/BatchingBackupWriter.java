@@ -0,0 +1,356 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP_BATCH_FLUSH;
+import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP_BATCH_SIZE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Writes session data (sessions, validity info, secondary backups) to memcached and deletes it
+ * from memcached. If a batch
+ * window is configured, writes are not sent to memcached immediately but are collected for the
+ * duration of the window (starting with the first pending write) and then are handed to the
+ * {@link MemcachedClient} at once. The memcached client queues operations per node and writes all
+ * operations available for a node with a single write, so that a batch of sets is sent to
+ * memcached in one (pipelined) round trip instead of many small ones.
+ * <p>
+ * Pending writes are collected in a bounded queue. If the queue is full (memcached cannot keep
+ * up with the write rate) the calling thread waits until the queue has room again, so that the
+ * caller is slowed down instead of accumulating an unbounded number of pending writes. The write
+ * is not sent directly in this case, as it would overtake older writes for the same key that are
+ * still queued.
+ * </p>
+ * <p>
+ * Deletes are queued like sets, so that a delete is not overtaken by a write of the same key
+ * that is still queued (which would bring back e.g. an invalidated session).
+ * </p>
+ * <p>
+ * If the batch window is <code>0</code> batching is disabled and all writes are
+ * performed directly.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class BatchingBackupWriter {
+
+    private static final Log _log = LogFactory.getLog( BatchingBackupWriter.class );
+
+    private final MemcachedClient _memcached;
+    private final long _batchWindowNanos;
+    private final int _maxBatchSize;
+    private final Statistics _statistics;
+
+    private final BlockingQueue<PendingWrite> _queue;
+    private final ExecutorService _flusher;
+    private volatile boolean _shutdown;
+
+    /**
+     * @param memcached the client used to write to memcached.
+     * @param batchWindow the time in microseconds to collect writes before they're sent to memcached,
+     *  <code>0</code> disables batching.
+     * @param queueSize the max number of pending writes, which is also the max size of a batch.
+     * @param statistics the statistics to register batch sizes and flush latencies.
+     */
+    public BatchingBackupWriter( @Nonnull final MemcachedClient memcached,
+            final int batchWindow,
+            final int queueSize,
+            @Nonnull final Statistics statistics ) {
+        if ( batchWindow > 0 && queueSize < 1 ) {
+            throw new IllegalArgumentException( "The queue size must be positive, but was " + queueSize );
+        }
+        _memcached = memcached;
+        _batchWindowNanos = TimeUnit.MICROSECONDS.toNanos( batchWindow );
+        _maxBatchSize = queueSize;
+        _statistics = statistics;
+        if ( batchWindow > 0 ) {
+            _queue = new ArrayBlockingQueue<PendingWrite>( queueSize );
+            _flusher = Executors.newSingleThreadExecutor( new NamedThreadFactory( "msm-backup-writer" ) );
+            _flusher.submit( new Flusher() );
+        }
+        else {
+            _queue = null;
+            _flusher = null;
+        }
+    }
+
+    /**
+     * Determines, if writes are batched.
+     */
+    public boolean isBatching() {
+        return _flusher != null;
+    }
+
+    /**
+     * Stores the given data in memcached, if batching is enabled the data is sent with the next batch.
+     *
+     * @param key the key to store the data under.
+     * @param expiration the expiration time in seconds (as expected by memcached).
+     * @param data the data to store.
+     * @return the future of the write, it's done when memcached has answered.
+     */
+    @Nonnull
+    public Future<Boolean> set( @Nonnull final String key, final int expiration, @Nonnull final Object data ) {
+        if ( _flusher == null || _shutdown ) {
+            return _memcached.set( key, expiration, data );
+        }
+        return enqueue( new PendingWrite( key, expiration, data ) );
+    }
+
+    /**
+     * Deletes the given key from memcached, if batching is enabled the delete is sent with the next batch
+     * (after writes of the same key that are still queued).
+     *
+     * @param key the key to delete.
+     * @return the future of the delete, it's done when memcached has answered.
+     */
+    @Nonnull
+    public Future<Boolean> delete( @Nonnull final String key ) {
+        if ( _flusher == null || _shutdown ) {
+            return _memcached.delete( key );
+        }
+        return enqueue( new PendingWrite( key, 0, null ) );
+    }
+
+    @Nonnull
+    private Future<Boolean> enqueue( @Nonnull final PendingWrite write ) {
+        final String key = write.getKey();
+        if ( !_queue.offer( write ) ) {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Backup batch queue is full, waiting to queue " + key + "." );
+            }
+            _statistics.backupBatchQueueFull();
+            try {
+                _queue.put( write );
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                write.getFuture().setFailure( new IllegalStateException( "Interrupted while waiting to queue " + key ) );
+                return write.getFuture();
+            }
+        }
+        if ( _shutdown ) {
+            // the flusher might have been stopped already
+            flushPending();
+        }
+        return write.getFuture();
+    }
+
+    /**
+     * Stops batching: pending writes are sent to memcached, subsequent writes are
+     * performed directly.
+     */
+    public void shutdown() {
+        if ( _flusher != null ) {
+            _shutdown = true;
+            _flusher.shutdownNow();
+            flushPending();
+        }
+    }
+
+    private void flushPending() {
+        final List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        _queue.drainTo( batch );
+        flush( batch );
+    }
+
+    private void flush( @Nonnull final List<PendingWrite> batch ) {
+        if ( batch.isEmpty() ) {
+            return;
+        }
+        final List<Object> results = new ArrayList<Object>( batch.size() );
+        for ( final PendingWrite write : batch ) {
+            try {
+                results.add( write.isDelete()
+                    ? _memcached.delete( write.getKey() )
+                    : _memcached.set( write.getKey(), write.getExpiration(), write.getData() ) );
+            } catch ( final RuntimeException e ) {
+                results.add( e );
+            }
+        }
+        _statistics.register( BACKUP_BATCH_SIZE, batch.size() );
+        _statistics.register( BACKUP_BATCH_FLUSH,
+                TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - batch.get( 0 ).getCreated() ) );
+
+        for ( int i = 0; i < batch.size(); i++ ) {
+            final Object result = results.get( i );
+            if ( result instanceof RuntimeException ) {
+                batch.get( i ).getFuture().setFailure( (RuntimeException) result );
+            }
+            else {
+                @SuppressWarnings( "unchecked" )
+                final Future<Boolean> future = (Future<Boolean>) result;
+                batch.get( i ).getFuture().setDelegate( future );
+            }
+        }
+    }
+
+    private final class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            final List<PendingWrite> batch = new ArrayList<PendingWrite>();
+            while ( !_shutdown ) {
+                try {
+                    final PendingWrite first = _queue.take();
+                    batch.add( first );
+                    final long deadline = first.getCreated() + _batchWindowNanos;
+                    long remaining;
+                    while ( batch.size() < _maxBatchSize && ( remaining = deadline - System.nanoTime() ) > 0 ) {
+                        final PendingWrite next = _queue.poll( remaining, TimeUnit.NANOSECONDS );
+                        if ( next == null ) {
+                            break;
+                        }
+                        batch.add( next );
+                    }
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    _queue.drainTo( batch );
+                    return;
+                } finally {
+                    flush( batch );
+                    batch.clear();
+                }
+            }
+        }
+
+    }
+
+    private static final class PendingWrite {
+
+        private final String _key;
+        private final int _expiration;
+        private final Object _data;
+        private final long _created;
+        private final BatchedFuture _future;
+
+        /**
+         * @param data the data to store, <code>null</code> for a delete.
+         */
+        private PendingWrite( final String key, final int expiration, final Object data ) {
+            _key = key;
+            _expiration = expiration;
+            _data = data;
+            _created = System.nanoTime();
+            _future = new BatchedFuture();
+        }
+
+        String getKey() {
+            return _key;
+        }
+
+        int getExpiration() {
+            return _expiration;
+        }
+
+        Object getData() {
+            return _data;
+        }
+
+        boolean isDelete() {
+            return _data == null;
+        }
+
+        long getCreated() {
+            return _created;
+        }
+
+        BatchedFuture getFuture() {
+            return _future;
+        }
+
+    }
+
+    /**
+     * The future of a batched write, it delegates to the future returned by the {@link MemcachedClient}
+     * once the write was sent to memcached.
+     */
+    static final class BatchedFuture implements Future<Boolean> {
+
+        private final CountDownLatch _sent = new CountDownLatch( 1 );
+        private volatile Future<Boolean> _delegate;
+        private volatile RuntimeException _failure;
+
+        void setDelegate( @Nonnull final Future<Boolean> delegate ) {
+            _delegate = delegate;
+            _sent.countDown();
+        }
+
+        void setFailure( @Nonnull final RuntimeException failure ) {
+            _failure = failure;
+            _sent.countDown();
+        }
+
+        @Override
+        public boolean cancel( final boolean mayInterruptIfRunning ) {
+            final Future<Boolean> delegate = _delegate;
+            return delegate != null && delegate.cancel( mayInterruptIfRunning );
+        }
+
+        @Override
+        public boolean isCancelled() {
+            final Future<Boolean> delegate = _delegate;
+            return delegate != null && delegate.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            final Future<Boolean> delegate = _delegate;
+            return _failure != null || delegate != null && delegate.isDone();
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            _sent.await();
+            if ( _failure != null ) {
+                throw new ExecutionException( _failure );
+            }
+            return _delegate.get();
+        }
+
+        @Override
+        public Boolean get( final long timeout, final TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.nanoTime() + unit.toNanos( timeout );
+            if ( !_sent.await( timeout, unit ) ) {
+                throw new TimeoutException( "The write was not sent to memcached within " + timeout + " " + unit );
+            }
+            if ( _failure != null ) {
+                throw new ExecutionException( _failure );
+            }
+            return _delegate.get( Math.max( deadline - System.nanoTime(), 0 ), TimeUnit.NANOSECONDS );
+        }
+
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Provides reusable buffers for serialization, so that serializing a session does not
+ * allocate (and grow) a new buffer each time.
+ * <p>
+ * A buffer is acquired via {@link #acquire()} and must be returned via {@link #release(PooledOutputStream)}.
+ * The pool keeps at most the configured number of buffers, if no buffer is available a new one
+ * is created. A buffer that has grown beyond the max retained size is not kept when it's released
+ * (a later acquire returns a buffer with the initial size), so that a single big session does not
+ * make the pool hold a huge buffer forever.
+ * </p>
+ * <p>
+ * The buffers are not bound to threads (e.g. via {@link ThreadLocal}), as the container threads
+ * outlive the webapp: a pool is owned by the {@link TranscoderService} of the session manager
+ * and is garbage collected with it.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_INITIAL_SIZE = 4 * 1024;
+    public static final int DEFAULT_MAX_RETAINED_SIZE = 128 * 1024;
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = Math.max( 4, 2 * Runtime.getRuntime().availableProcessors() );
+
+    private final int _initialSize;
+    private final int _maxRetainedSize;
+    private final BlockingDeque<PooledOutputStream> _buffers;
+
+    /**
+     * Creates a new pool with the default initial size, max retained size and max number of pooled buffers.
+     */
+    public BufferPool() {
+        this( DEFAULT_INITIAL_SIZE, DEFAULT_MAX_RETAINED_SIZE );
+    }
+
+    /**
+     * @param initialSize the initial size of a buffer in bytes.
+     * @param maxRetainedSize the max size in bytes of a buffer that's kept for reuse.
+     */
+    public BufferPool( final int initialSize, final int maxRetainedSize ) {
+        this( initialSize, maxRetainedSize, DEFAULT_MAX_POOLED_BUFFERS );
+    }
+
+    /**
+     * @param initialSize the initial size of a buffer in bytes.
+     * @param maxRetainedSize the max size in bytes of a buffer that's kept for reuse.
+     * @param maxPooledBuffers the max number of buffers that are kept for reuse.
+     */
+    public BufferPool( final int initialSize, final int maxRetainedSize, final int maxPooledBuffers ) {
+        if ( initialSize < 1 || maxRetainedSize < initialSize ) {
+            throw new IllegalArgumentException( "Invalid sizes: initialSize " + initialSize + ", maxRetainedSize " + maxRetainedSize );
+        }
+        if ( maxPooledBuffers < 1 ) {
+            throw new IllegalArgumentException( "The max number of pooled buffers must be positive, but was " + maxPooledBuffers );
+        }
+        _initialSize = initialSize;
+        _maxRetainedSize = maxRetainedSize;
+        _buffers = new LinkedBlockingDeque<PooledOutputStream>( maxPooledBuffers );
+    }
+
+    /**
+     * The max size in bytes of a buffer that's kept for reuse.
+     */
+    public int getMaxRetainedSize() {
+        return _maxRetainedSize;
+    }
+
+    /**
+     * Returns an empty buffer, the most recently released one if available.
+     */
+    @Nonnull
+    public PooledOutputStream acquire() {
+        final PooledOutputStream result = _buffers.pollFirst();
+        return result != null ? result : new PooledOutputStream( _initialSize );
+    }
+
+    /**
+     * Returns the given buffer to the pool, the buffer must not be used afterwards.
+     */
+    public void release( @Nonnull final PooledOutputStream buffer ) {
+        if ( buffer.capacity() <= _maxRetainedSize ) {
+            buffer.reset();
+            _buffers.offerFirst( buffer );
+        }
+    }
+
+    /**
+     * Drops all pooled buffers.
+     */
+    public void clear() {
+        _buffers.clear();
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} that provides access to its internal buffer,
+     * so that the written data can be used without copying it.
+     */
+    public static final class PooledOutputStream extends ByteArrayOutputStream {
+
+        PooledOutputStream( final int size ) {
+            super( size );
+        }
+
+        /**
+         * The internal buffer, only the first {@link #size()} bytes are valid.
+         */
+        @Nonnull
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Can be implemented by a {@link SessionAttributesTranscoder} that wants to use the
+ * {@link BufferPool} of the {@link TranscoderService} for serialization, the pool is
+ * set when the {@link TranscoderService} is created.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface BufferPoolAware {
+
+    /**
+     * Sets the pool that shall be used for serialization buffers.
+     *
+     * @param bufferPool the buffer pool.
+     */
+    void setBufferPool( @Nonnull BufferPool bufferPool );
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+
+/**
+ * An {@link InputStream} that reads the remaining bytes of a {@link ByteBuffer}, the position
+ * of the given buffer is not changed.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer _buffer;
+
+    /**
+     * @param buffer the buffer to read, from its position to its limit.
+     */
+    public ByteBufferInputStream( @Nonnull final ByteBuffer buffer ) {
+        _buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+        return _buffer.hasRemaining() ? _buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read( final byte[] b, final int off, final int len ) {
+        if ( len == 0 ) {
+            return 0;
+        }
+        if ( !_buffer.hasRemaining() ) {
+            return -1;
+        }
+        final int n = Math.min( len, _buffer.remaining() );
+        _buffer.get( b, off, n );
+        return n;
+    }
+
+    @Override
+    public long skip( final long n ) {
+        final int skipped = (int) Math.max( 0, Math.min( n, _buffer.remaining() ) );
+        _buffer.position( _buffer.position() + skipped );
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return _buffer.remaining();
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+/**
+ * Specifies how a conflict is handled if a session is stored with compare-and-set
+ * (see {@link LockingStrategy.LockingMode#CAS}) and the session was modified in memcached by another
+ * request since it was loaded.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public enum CasConflictPolicy {
+
+    /**
+     * The session is loaded again from memcached, the attributes that were set, removed or read (with a
+     * mutable value) by the current request are applied to the loaded session and it's stored again with
+     * compare-and-set. This is retried a few times if there's still a conflict, if it does not succeed the
+     * backup fails.
+     */
+    MERGE,
+
+    /**
+     * The backup fails, so that the modifications of the current request are lost.
+     */
+    FAIL,
+
+    /**
+     * The session is stored nevertheless, so that the modifications of the other request are lost
+     * (this is the same as without locking).
+     */
+    OVERWRITE
+
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Provides the shared dictionary for session data compression (see {@link DictionaryCompressor}).
+ * <p>
+ * Serialized session attributes are collected as samples until the configured number of samples
+ * is reached, then a dictionary is built from the samples: they're concatenated (the most
+ * recent samples last, as they're most likely to match) up to the max dictionary size. The dictionary
+ * is stored in memcached on each memcached node, under a key containing the dictionary id (the adler32 checksum
+ * of the dictionary), so that sessions compressed with it can be read by all tomcats. As the dictionary
+ * might get lost in memcached (e.g. if a memcached node is restarted) it's stored again regularly.
+ * </p>
+ * <p>
+ * Dictionaries referenced by loaded sessions are loaded from memcached (from the memcached
+ * node of the session first) and cached locally. If a dictionary is not found its id is remembered
+ * for a short time, so that loading other sessions compressed with it does not query all memcached nodes again.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> dictionaries are stored without expiration, but memcached might still evict them (e.g.
+ * under memory pressure). If a dictionary is lost in memcached, sessions compressed with it cannot be read by
+ * tomcats that don't have the dictionary cached locally - these sessions are lost for them.
+ * </p>
+ * <p>
+ * The memcached client and nodes manager are obtained from a {@link MemcachedProvider} on each use, as they're
+ * replaced if the memcached nodes are reconfigured at runtime. The current dictionary is then stored on the
+ * new memcached nodes with the next compression.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CompressionDictionaryService {
+
+    private static final Log _log = LogFactory.getLog( CompressionDictionaryService.class );
+
+    /**
+     * The max size of a dictionary, this is the window size of deflate.
+     */
+    public static final int DEFAULT_DICTIONARY_SIZE = 32 * 1024;
+
+    static final String KEY_PREFIX = "msmdict:";
+
+    private static final long STORE_INTERVAL = TimeUnit.MINUTES.toMillis( 1 );
+
+    /**
+     * The time that a dictionary that was not found in memcached is not looked up again.
+     */
+    static final long MISSING_DICTIONARY_TTL = TimeUnit.SECONDS.toMillis( 10 );
+
+    private final MemcachedProvider _memcachedProvider;
+    private final int _numSamples;
+    private final int _dictionarySize;
+
+    private final List<byte[]> _samples = new ArrayList<byte[]>();
+    private final ConcurrentMap<Integer, CompressionDictionary> _dictionaries = new ConcurrentHashMap<Integer, CompressionDictionary>();
+    private final ConcurrentLRUCache<Integer, Boolean> _missingDictionaries = new ConcurrentLRUCache<Integer, Boolean>( 100, MISSING_DICTIONARY_TTL );
+    private final AtomicLong _lastStored = new AtomicLong();
+    private volatile CompressionDictionary _current;
+    private volatile MemcachedNodesManager _storedWith;
+
+    /**
+     * Provides the memcached client and the memcached nodes manager that are currently used.
+     */
+    public static interface MemcachedProvider {
+
+        /**
+         * The memcached client to store/load dictionaries.
+         */
+        @Nonnull
+        MemcachedClient getMemcached();
+
+        /**
+         * Provides the memcached node ids.
+         */
+        @Nonnull
+        MemcachedNodesManager getMemcachedNodesManager();
+
+    }
+
+    /**
+     * Creates a dictionary service that always uses the given memcached client and nodes manager.
+     *
+     * @param memcached the memcached client to store/load dictionaries.
+     * @param memcachedNodesManager provides the memcached node ids.
+     * @param numSamples the number of serialized session attributes the dictionary is built from.
+     * @param dictionarySize the max size of the dictionary in bytes.
+     */
+    public CompressionDictionaryService( @Nonnull final MemcachedClient memcached,
+            @Nonnull final MemcachedNodesManager memcachedNodesManager,
+            final int numSamples,
+            final int dictionarySize ) {
+        this( new MemcachedProvider() {
+            @Override
+            public MemcachedClient getMemcached() {
+                return memcached;
+            }
+            @Override
+            public MemcachedNodesManager getMemcachedNodesManager() {
+                return memcachedNodesManager;
+            }
+        }, numSamples, dictionarySize );
+    }
+
+    /**
+     * @param memcachedProvider provides the memcached client and nodes manager to store/load dictionaries.
+     * @param numSamples the number of serialized session attributes the dictionary is built from.
+     * @param dictionarySize the max size of the dictionary in bytes.
+     */
+    public CompressionDictionaryService( @Nonnull final MemcachedProvider memcachedProvider,
+            final int numSamples,
+            final int dictionarySize ) {
+        if ( numSamples < 1 ) {
+            throw new IllegalArgumentException( "The number of samples must be positive, but was " + numSamples );
+        }
+        _memcachedProvider = memcachedProvider;
+        _numSamples = numSamples;
+        _dictionarySize = dictionarySize;
+    }
+
+    /**
+     * Returns the dictionary that shall be used for compression, or <code>null</code>
+     * if there's none yet (samples should be provided via {@link #addSample(byte[], int, int)} then).
+     */
+    @CheckForNull
+    public CompressionDictionary getCurrentDictionary() {
+        final CompressionDictionary result = _current;
+        if ( result != null ) {
+            final long lastStored = _lastStored.get();
+            if ( ( System.currentTimeMillis() - lastStored > STORE_INTERVAL
+                        || _storedWith != _memcachedProvider.getMemcachedNodesManager() )
+                    && _lastStored.compareAndSet( lastStored, System.currentTimeMillis() ) ) {
+                store( result );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds serialized session data as sample for the dictionary, if the dictionary
+     * was not yet built.
+     *
+     * @param data the data containing the sample.
+     * @param offset the index of the sample in the data.
+     * @param length the length of the sample.
+     */
+    public void addSample( @Nonnull final byte[] data, final int offset, final int length ) {
+        if ( _current != null ) {
+            return;
+        }
+        final byte[] sample = Arrays.copyOfRange( data, offset, offset + Math.min( length, _dictionarySize ) );
+        final List<byte[]> samples;
+        synchronized ( _samples ) {
+            if ( _current != null ) {
+                return;
+            }
+            _samples.add( sample );
+            if ( _samples.size() < _numSamples ) {
+                return;
+            }
+            samples = new ArrayList<byte[]>( _samples );
+            _samples.clear();
+            final CompressionDictionary dictionary = createDictionary( samples );
+            _dictionaries.put( dictionary.getId(), dictionary );
+            _current = dictionary;
+        }
+        _lastStored.set( System.currentTimeMillis() );
+        store( _current );
+    }
+
+    /**
+     * Returns the dictionary with the given id, which is loaded from memcached if it's not known yet.
+     *
+     * @param id the dictionary id.
+     * @param sessionId the id of the session that was compressed with the dictionary.
+     * @return the dictionary or <code>null</code> if it's not available.
+     */
+    @CheckForNull
+    public CompressionDictionary getDictionary( final int id, @Nonnull final String sessionId ) {
+        CompressionDictionary result = _dictionaries.get( id );
+        if ( result == null && !_missingDictionaries.containsKey( id ) ) {
+            result = loadDictionary( id, sessionId );
+            if ( result != null ) {
+                _dictionaries.putIfAbsent( id, result );
+            }
+            else {
+                _missingDictionaries.put( id, Boolean.TRUE );
+            }
+        }
+        return result;
+    }
+
+    @CheckForNull
+    private CompressionDictionary loadDictionary( final int id, final String sessionId ) {
+        final MemcachedClient memcached = _memcachedProvider.getMemcached();
+        for ( final String nodeId : getNodeIds( _memcachedProvider.getMemcachedNodesManager(), sessionId ) ) {
+            final String key = createKey( id, nodeId );
+            try {
+                final Object data = memcached.get( key );
+                if ( data instanceof byte[] && checksum( (byte[]) data ) == id ) {
+                    if ( _log.isDebugEnabled() ) {
+                        _log.debug( "Loaded compression dictionary " + key );
+                    }
+                    return new CompressionDictionary( id, (byte[]) data );
+                }
+            } catch ( final RuntimeException e ) {
+                _log.info( "Could not load compression dictionary " + key + ": " + e );
+            }
+        }
+        _log.warn( "Compression dictionary " + Integer.toHexString( id ) + " not found in memcached." );
+        return null;
+    }
+
+    /**
+     * The node ids to load a dictionary from, starting with the node of the session.
+     */
+    private static Set<String> getNodeIds( @Nonnull final MemcachedNodesManager memcachedNodesManager,
+            @CheckForNull final String sessionId ) {
+        final Set<String> result = new LinkedHashSet<String>();
+        if ( memcachedNodesManager.isEncodeNodeIdInSessionId() ) {
+            if ( sessionId != null ) {
+                final String nodeId = memcachedNodesManager.getSessionIdFormat().extractMemcachedId( sessionId );
+                if ( nodeId != null ) {
+                    result.add( nodeId );
+                }
+            }
+            result.addAll( memcachedNodesManager.getPrimaryNodeIds() );
+            result.addAll( memcachedNodesManager.getFailoverNodeIds() );
+        }
+        else {
+            result.add( null );
+        }
+        return result;
+    }
+
+    private void store( final CompressionDictionary dictionary ) {
+        final MemcachedClient memcached = _memcachedProvider.getMemcached();
+        final MemcachedNodesManager memcachedNodesManager = _memcachedProvider.getMemcachedNodesManager();
+        _storedWith = memcachedNodesManager;
+        for ( final String nodeId : getNodeIds( memcachedNodesManager, null ) ) {
+            final String key = createKey( dictionary.getId(), nodeId );
+            try {
+                memcached.set( key, 0, dictionary.getData() );
+            } catch ( final RuntimeException e ) {
+                _log.info( "Could not store compression dictionary " + key + ": " + e );
+            }
+        }
+    }
+
+    /**
+     * Creates the key for the dictionary, it contains the node id so that it's stored on the
+     * given memcached node (if node ids are encoded in session ids).
+     */
+    @Nonnull
+    static String createKey( final int id, @CheckForNull final String nodeId ) {
+        return KEY_PREFIX + Integer.toHexString( id ) + ( nodeId != null ? "-" + nodeId : "" );
+    }
+
+    @Nonnull
+    CompressionDictionary createDictionary( @Nonnull final List<byte[]> samples ) {
+        final byte[] data = new byte[_dictionarySize];
+        int start = data.length;
+        /* the most recent samples are put at the end of the dictionary, as they're
+         * most likely to match (and matches near the end are encoded with shorter distances)
+         */
+        for ( int i = samples.size() - 1; i >= 0 && start > 0; i-- ) {
+            final byte[] sample = samples.get( i );
+            final int length = Math.min( sample.length, start );
+            start -= length;
+            System.arraycopy( sample, sample.length - length, data, start, length );
+        }
+        final byte[] dictionary = Arrays.copyOfRange( data, start, data.length );
+        return new CompressionDictionary( checksum( dictionary ), dictionary );
+    }
+
+    private static int checksum( final byte[] data ) {
+        final Adler32 adler32 = new Adler32();
+        adler32.update( data );
+        return (int) adler32.getValue();
+    }
+
+    /**
+     * A dictionary for session data compression.
+     */
+    public static final class CompressionDictionary {
+
+        private final int _id;
+        private final byte[] _data;
+
+        CompressionDictionary( final int id, @Nonnull final byte[] data ) {
+            _id = id;
+            _data = data;
+        }
+
+        /**
+         * The id of the dictionary, which is stored with the compressed session data.
+         */
+        public int getId() {
+            return _id;
+        }
+
+        /**
+         * The dictionary data.
+         */
+        @Nonnull
+        public byte[] getData() {
+            return _data;
+        }
+
+    }
+
+}
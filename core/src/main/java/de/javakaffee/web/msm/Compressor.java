@@ -0,0 +1,58 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Compresses/decompresses serialized session data (see {@link TranscoderService}).
+ * Implementations must be thread safe and need a default/no-args constructor.
+ * <p>
+ * The compressor is not stored with the session data, so if the compressor is changed
+ * sessions that were stored compressed with the previous one cannot be read anymore.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface Compressor {
+
+    /**
+     * Compresses the given range of the data and writes the compressed data to the given stream.
+     *
+     * @param data the data to compress.
+     * @param offset the index of the first byte to compress.
+     * @param length the number of bytes to compress.
+     * @param out the stream to write the compressed data to, it must not be closed.
+     * @throws IOException if the data could not be written.
+     */
+    void compress( @Nonnull byte[] data, int offset, int length, @Nonnull OutputStream out ) throws IOException;
+
+    /**
+     * Decompresses the given range of the data into the given array.
+     *
+     * @param data the compressed data.
+     * @param offset the index of the first byte of the compressed data.
+     * @param length the number of bytes of the compressed data.
+     * @param target the array to write the decompressed data to, it has exactly the size of the decompressed data.
+     * @throws IOException if the data could not be decompressed.
+     */
+    void decompress( @Nonnull byte[] data, int offset, int length, @Nonnull byte[] target ) throws IOException;
+
+}
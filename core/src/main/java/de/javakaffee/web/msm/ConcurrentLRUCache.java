@@ -0,0 +1,391 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A cache that supports a maximum number of cache entries and a time to live for them,
+ * like the {@link LRUCache}, but without a global lock for reads and writes: entries are
+ * stored in a {@link ConcurrentHashMap}, the access order is maintained by replaying
+ * buffered reads and writes under a lock that's only tried (never awaited) by readers
+ * and writers.
+ * <p>
+ * Reads are recorded in a small lossy ring buffer that's drained when it's full, so
+ * the recency of an entry might be lost under high contention. Writes are never lost,
+ * they are drained after each write. Therefore the cache might temporarily hold a few
+ * more entries than the maximum size.
+ * </p>
+ * <p>
+ * The TTL is measured from insertion time to access time, expired entries are removed
+ * when they're accessed or when writes are drained (the latter in constant time per expired
+ * entry, as entries are also linked in insertion order).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ * @param <K>
+ *            the type of the key
+ * @param <V>
+ *            the type of the value
+ */
+public class ConcurrentLRUCache<K, V> {
+
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private final int _size;
+    private final long _ttl;
+    private final ConcurrentHashMap<K, Node<K, V>> _map;
+
+    private final AtomicReferenceArray<Node<K, V>> _readBuffer = new AtomicReferenceArray<Node<K, V>>( READ_BUFFER_SIZE );
+    private final AtomicLong _reads = new AtomicLong();
+    private final Queue<Node<K, V>> _writeBuffer = new ConcurrentLinkedQueue<Node<K, V>>();
+
+    private final ReentrantLock _evictionLock = new ReentrantLock();
+    /* the sentinels of the access order and insertion order lists, guarded by _evictionLock */
+    private final Node<K, V> _accessOrder = new Node<K, V>( null, null, 0 );
+    private final Node<K, V> _insertionOrder = new Node<K, V>( null, null, 0 );
+    private int _linked;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * Creates a new instance with the given maximum size.
+     *
+     * @param size
+     *            the number of items to keep at max
+     */
+    public ConcurrentLRUCache( final int size ) {
+        this( size, -1 );
+    }
+
+    /**
+     * Create a new ConcurrentLRUCache with a maximum number of cache entries and a
+     * specified time to live for cache entries. The TTL is measured from
+     * insertion time to access time.
+     *
+     * @param size
+     *            the maximum number of cached items
+     * @param ttlInMillis
+     *            the time to live in milli seconds. Specify -1 for no limit
+     */
+    public ConcurrentLRUCache( final int size, final long ttlInMillis ) {
+        if ( size < 1 ) {
+            throw new IllegalArgumentException( "The size must be positive, but was " + size );
+        }
+        _size = size;
+        _ttl = ttlInMillis;
+        _map = new ConcurrentHashMap<K, Node<K, V>>( Math.min( size, 1024 ) );
+        _accessOrder._accessPrev = _accessOrder._accessNext = _accessOrder;
+        _insertionOrder._insertionPrev = _insertionOrder._insertionNext = _insertionOrder;
+    }
+
+    /**
+     * Put the key and value.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @return the previously associated value or <code>null</code>.
+     */
+    @CheckForNull
+    public V put( @Nonnull final K key, final V value ) {
+        final Node<K, V> node = new Node<K, V>( key, value, System.currentTimeMillis() );
+        final Node<K, V> previous = _map.put( key, node );
+        if ( previous != null ) {
+            previous._alive = false;
+            _writeBuffer.add( previous );
+        }
+        _writeBuffer.add( node );
+        tryDrain();
+        return previous != null ? previous._value : null;
+    }
+
+    /**
+     * Removes the mapping for the specified key from this cache if present.
+     *
+     * @param key
+     *            key whose mapping is to be removed from the cache
+     * @return the previous value associated with <tt>key</tt>, or
+     *         <tt>null</tt> if there was no mapping for <tt>key</tt>.
+     */
+    @CheckForNull
+    public V remove( @Nonnull final K key ) {
+        final Node<K, V> removed = _map.remove( key );
+        if ( removed == null ) {
+            return null;
+        }
+        removed._alive = false;
+        _writeBuffer.add( removed );
+        tryDrain();
+        return removed._value;
+    }
+
+    /**
+     * Returns the value that was stored to the given key.
+     *
+     * @param key
+     *            the key
+     * @return the stored value or <code>null</code>
+     */
+    @CheckForNull
+    public V get( @Nonnull final K key ) {
+        final Node<K, V> node = _map.get( key );
+        if ( node == null ) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        if ( isExpired( node, System.currentTimeMillis() ) ) {
+            if ( _map.remove( key, node ) ) {
+                node._alive = false;
+                _evictions.incrementAndGet();
+                _writeBuffer.add( node );
+                tryDrain();
+            }
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        recordRead( node );
+        return node._value;
+    }
+
+    /**
+     * Determines if the given key is cached (and not expired) without "touching" this key.
+     *
+     * @param key
+     *            the key
+     * @return <code>true</code> if the given key is present in the underlying map, otherwise <code>false</code>.
+     */
+    public boolean containsKey( @Nonnull final K key ) {
+        final Node<K, V> node = _map.get( key );
+        return node != null && !isExpired( node, System.currentTimeMillis() );
+    }
+
+    /**
+     * The list of all keys, whose order is the order in which its entries were last accessed,
+     * from least-recently accessed to most-recently.
+     *
+     * @return a new list.
+     */
+    @Nonnull
+    public List<K> getKeys() {
+        _evictionLock.lock();
+        try {
+            drain();
+            final List<K> result = new ArrayList<K>( _linked );
+            for ( Node<K, V> node = _accessOrder._accessNext; node != _accessOrder; node = node._accessNext ) {
+                result.add( node._key );
+            }
+            return result;
+        } finally {
+            _evictionLock.unlock();
+        }
+    }
+
+    /**
+     * The keys sorted by the given value comparator.
+     *
+     * @return a new list.
+     */
+    @Nonnull
+    public List<K> getKeysSortedByValue( @Nonnull final Comparator<V> comparator ) {
+        final List<Node<K, V>> nodes = new ArrayList<Node<K, V>>( _map.values() );
+        Collections.sort( nodes, new Comparator<Node<K, V>>() {
+
+            @Override
+            public int compare( final Node<K, V> o1, final Node<K, V> o2 ) {
+                return comparator.compare( o1._value, o2._value );
+            }
+
+        } );
+        final List<K> result = new ArrayList<K>( nodes.size() );
+        for ( final Node<K, V> node : nodes ) {
+            result.add( node._key );
+        }
+        return result;
+    }
+
+    /**
+     * The number of cached entries, which may include expired entries that were not yet removed.
+     */
+    public int size() {
+        return _map.size();
+    }
+
+    /**
+     * The number of {@link #get(Object)} invocations that returned a value.
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * The number of {@link #get(Object)} invocations that did not return a value.
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * The number of entries that were removed because the cache was full or because they were expired.
+     */
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    private boolean isExpired( final Node<K, V> node, final long now ) {
+        return _ttl > -1 && now - node._insertionTime > _ttl;
+    }
+
+    private void recordRead( final Node<K, V> node ) {
+        final long index = _reads.getAndIncrement();
+        _readBuffer.lazySet( (int) ( index & READ_BUFFER_MASK ), node );
+        if ( ( index & READ_BUFFER_MASK ) == READ_BUFFER_MASK ) {
+            tryDrain();
+        }
+    }
+
+    /**
+     * Drains the buffers if the lock is available. If another thread holds the lock it
+     * will see the writes added before and drain them after it released the lock.
+     */
+    private void tryDrain() {
+        do {
+            if ( !_evictionLock.tryLock() ) {
+                return;
+            }
+            try {
+                drain();
+            } finally {
+                _evictionLock.unlock();
+            }
+        } while ( !_writeBuffer.isEmpty() );
+    }
+
+    /**
+     * Replays the buffered reads and writes, then removes expired entries and
+     * least recently used entries if the cache holds more than the maximum size.
+     * Must be invoked while holding the eviction lock.
+     */
+    private void drain() {
+        Node<K, V> node;
+        // reads first, as they mostly happened before the pending writes
+        for ( int i = 0; i < READ_BUFFER_SIZE; i++ ) {
+            node = _readBuffer.getAndSet( i, null );
+            if ( node != null && node._linked ) {
+                unlinkAccessOrder( node );
+                linkAccessOrder( node );
+            }
+        }
+        while ( ( node = _writeBuffer.poll() ) != null ) {
+            if ( node._alive && !node._linked ) {
+                link( node );
+            }
+            else if ( !node._alive && node._linked ) {
+                unlink( node );
+            }
+        }
+        if ( _ttl > -1 ) {
+            final long now = System.currentTimeMillis();
+            while ( _insertionOrder._insertionNext != _insertionOrder && isExpired( _insertionOrder._insertionNext, now ) ) {
+                evict( _insertionOrder._insertionNext );
+            }
+        }
+        while ( _linked > _size ) {
+            evict( _accessOrder._accessNext );
+        }
+    }
+
+    private void evict( final Node<K, V> node ) {
+        unlink( node );
+        if ( _map.remove( node._key, node ) ) {
+            node._alive = false;
+            _evictions.incrementAndGet();
+        }
+    }
+
+    private void link( final Node<K, V> node ) {
+        linkAccessOrder( node );
+        node._insertionPrev = _insertionOrder._insertionPrev;
+        node._insertionNext = _insertionOrder;
+        _insertionOrder._insertionPrev._insertionNext = node;
+        _insertionOrder._insertionPrev = node;
+        node._linked = true;
+        _linked++;
+    }
+
+    private void unlink( final Node<K, V> node ) {
+        unlinkAccessOrder( node );
+        node._insertionPrev._insertionNext = node._insertionNext;
+        node._insertionNext._insertionPrev = node._insertionPrev;
+        node._insertionPrev = node._insertionNext = null;
+        node._linked = false;
+        _linked--;
+    }
+
+    private void linkAccessOrder( final Node<K, V> node ) {
+        node._accessPrev = _accessOrder._accessPrev;
+        node._accessNext = _accessOrder;
+        _accessOrder._accessPrev._accessNext = node;
+        _accessOrder._accessPrev = node;
+    }
+
+    private void unlinkAccessOrder( final Node<K, V> node ) {
+        node._accessPrev._accessNext = node._accessNext;
+        node._accessNext._accessPrev = node._accessPrev;
+        node._accessPrev = node._accessNext = null;
+    }
+
+    /**
+     * A cache entry, linked in access order and insertion order while it's alive.
+     * The links are guarded by the eviction lock.
+     */
+    private static final class Node<K, V> {
+        private final K _key;
+        private final V _value;
+        private final long _insertionTime;
+        private volatile boolean _alive = true;
+        private boolean _linked;
+        private Node<K, V> _accessPrev;
+        private Node<K, V> _accessNext;
+        private Node<K, V> _insertionPrev;
+        private Node<K, V> _insertionNext;
+
+        private Node( final K key, final V value, final long insertionTime ) {
+            _key = key;
+            _value = value;
+            _insertionTime = insertionTime;
+        }
+    }
+
+}
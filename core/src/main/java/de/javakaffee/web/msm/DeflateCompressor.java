@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link Compressor} using the deflate algorithm (see {@link Deflater}), with the
+ * {@link Deflater#BEST_SPEED} compression level by default. A preset dictionary is
+ * supported via {@link Deflater#setDictionary(byte[])}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class DeflateCompressor implements DictionaryCompressor {
+
+    private static final int CHUNK_SIZE = 4 * 1024;
+
+    private final int _level;
+
+    public DeflateCompressor() {
+        this( Deflater.BEST_SPEED );
+    }
+
+    /**
+     * @param level the compression level (0-9), see {@link Deflater#setLevel(int)}.
+     */
+    public DeflateCompressor( final int level ) {
+        _level = level;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void compress( final byte[] data, final int offset, final int length, final OutputStream out ) throws IOException {
+        compress( data, offset, length, null, out );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void compress( final byte[] data, final int offset, final int length, final byte[] dictionary, final OutputStream out ) throws IOException {
+        final Deflater deflater = new Deflater( _level );
+        try {
+            if ( dictionary != null ) {
+                deflater.setDictionary( dictionary );
+            }
+            deflater.setInput( data, offset, length );
+            deflater.finish();
+            final byte[] chunk = new byte[CHUNK_SIZE];
+            while ( !deflater.finished() ) {
+                final int n = deflater.deflate( chunk );
+                out.write( chunk, 0, n );
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void decompress( final byte[] data, final int offset, final int length, final byte[] target ) throws IOException {
+        decompress( data, offset, length, null, target );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void decompress( final byte[] data, final int offset, final int length, final byte[] dictionary, final byte[] target ) throws IOException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput( data, offset, length );
+            int count = 0;
+            while ( count < target.length ) {
+                final int n = inflater.inflate( target, count, target.length - count );
+                if ( n == 0 && inflater.needsDictionary() && dictionary != null ) {
+                    inflater.setDictionary( dictionary );
+                    continue;
+                }
+                if ( n == 0 && ( inflater.finished() || inflater.needsInput() || inflater.needsDictionary() ) ) {
+                    break;
+                }
+                count += n;
+            }
+            if ( count != target.length ) {
+                throw new IOException( "Decompressed " + count + " bytes, expected " + target.length );
+            }
+        } catch ( final DataFormatException e ) {
+            throw new IOException( "Could not decompress data: " + e.getMessage() );
+        } catch ( final IllegalArgumentException e ) {
+            // thrown by setDictionary if the dictionary does not match
+            throw new IOException( "Could not decompress data: " + e.getMessage() );
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
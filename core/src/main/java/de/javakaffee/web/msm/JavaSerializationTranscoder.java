@@ -16,8 +16,6 @@
  */
 package de.javakaffee.web.msm;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.NotSerializableException;
@@ -25,6 +23,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +35,7 @@ import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import de.javakaffee.web.msm.BufferPool.PooledOutputStream;
 import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
 
 
@@ -48,7 +48,7 @@ import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  * @version $Id$
  */
-public class JavaSerializationTranscoder implements SessionAttributesTranscoder {
+public class JavaSerializationTranscoder implements StreamingSessionAttributesTranscoder, BufferPoolAware {
 
     private static final Log LOG = LogFactory.getLog( JavaSerializationTranscoder.class );
 
@@ -61,6 +61,7 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
     protected static final String NOT_SERIALIZED = "___NOT_SERIALIZABLE_EXCEPTION___";
 
     private final SessionManager _manager;
+    private volatile BufferPool _bufferPool = new BufferPool();
 
     /**
      * Constructor.
@@ -82,6 +83,14 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
         _manager = manager;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBufferPool( final BufferPool bufferPool ) {
+        _bufferPool = bufferPool;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -91,24 +100,35 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
             throw new NullPointerException( "Can't serialize null" );
         }
 
-        ByteArrayOutputStream bos = null;
-        ObjectOutputStream oos = null;
+        final PooledOutputStream bos = _bufferPool.acquire();
         try {
-            bos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream( bos );
-
-            writeAttributes( session, attributes, oos );
-
+            serializeAttributes( session, attributes, bos );
             return bos.toByteArray();
         } catch ( final IOException e ) {
             throw new IllegalArgumentException( "Non-serializable object", e );
         } finally {
-            closeSilently( bos );
-            closeSilently( oos );
+            _bufferPool.release( bos );
         }
 
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) throws IOException {
+        if ( attributes == null ) {
+            throw new NullPointerException( "Can't serialize null" );
+        }
+
+        /* the ObjectOutputStream is not closed, as this would close the provided stream
+         */
+        final ObjectOutputStream oos = new ObjectOutputStream( out );
+        writeAttributes( session, attributes, oos );
+        oos.flush();
+    }
+
     private void writeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
             final ObjectOutputStream oos ) throws IOException {
 
@@ -160,10 +180,19 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
      */
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
-        ByteArrayInputStream bis = null;
+        return deserializeAttributes( ByteBuffer.wrap( in ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final ByteBuffer in ) {
+        final int length = in.remaining();
+        InputStream bis = null;
         ObjectInputStream ois = null;
         try {
-            bis = new ByteArrayInputStream( in );
+            bis = new ByteBufferInputStream( in );
             ois = createObjectInputStream( bis );
 
             final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
@@ -182,10 +211,10 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
 
             return attributes;
         } catch ( final ClassNotFoundException e ) {
-            LOG.warn( "Caught CNFE decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught CNFE decoding "+ length +" bytes of data", e );
             throw new RuntimeException( "Caught CNFE decoding data", e );
         } catch ( final IOException e ) {
-            LOG.warn( "Caught IOException decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught IOException decoding "+ length +" bytes of data", e );
             throw new RuntimeException( "Caught IOException decoding data", e );
         } finally {
             closeSilently( bis );
@@ -193,7 +222,7 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
         }
     }
 
-    private ObjectInputStream createObjectInputStream( final ByteArrayInputStream bis ) throws IOException {
+    private ObjectInputStream createObjectInputStream( final InputStream bis ) throws IOException {
         final ObjectInputStream ois;
         Loader loader = null;
         ClassLoader classLoader = null;
@@ -211,16 +240,6 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
         return ois;
     }
 
-    private void closeSilently( final OutputStream os ) {
-        if ( os != null ) {
-            try {
-                os.close();
-            } catch ( final IOException f ) {
-                // fail silently
-            }
-        }
-    }
-
     private void closeSilently( final InputStream is ) {
         if ( is != null ) {
             try {
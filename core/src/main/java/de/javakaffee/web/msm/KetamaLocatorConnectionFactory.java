@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.FailureMode;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.auth.AuthDescriptor;
+import net.spy.memcached.protocol.binary.BinaryMemcachedNodeImpl;
+import net.spy.memcached.protocol.binary.BinaryOperationFactory;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * This {@link net.spy.memcached.ConnectionFactory} uses the {@link WeightedKetamaNodeLocator}
+ * as {@link NodeLocator}, for the binary protocol it overwrites methods as
+ * {@link net.spy.memcached.BinaryConnectionFactory} does it as well.
+ * <p>
+ * The failure mode is {@link FailureMode#Cancel} (as for the suffix based locators): operations for an
+ * inactive node fail instead of being redistributed to the next node on the ring. With redistribution
+ * a session that is accessed while its node is down would be stored on another node, and when the node
+ * comes back the (older) copy on that node would be served again, i.e. the session would be rolled back
+ * to a stale state. The downside of {@link FailureMode#Cancel} is that the sessions of an inactive
+ * node are not available until the node is back (or until the nodes are reconfigured).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public final class KetamaLocatorConnectionFactory extends DefaultConnectionFactory {
+
+    private final Map<? extends SocketAddress, Integer> _weights;
+    private final boolean _binary;
+    private final Statistics _statistics;
+    private final long _operationTimeout;
+    private final AuthDescriptor _authDescriptor;
+
+    /**
+     * Creates a new instance.
+     * @param weights
+     *            the weights of the memcached nodes
+     * @param binary
+     *            specifies if the binary protocol shall be used
+     * @param authDescriptor
+     *            the auth descriptor for the binary protocol, or <code>null</code>
+     */
+    public KetamaLocatorConnectionFactory( @Nonnull final Map<? extends SocketAddress, Integer> weights, final boolean binary,
+            final Statistics statistics, final long operationTimeout, @CheckForNull final AuthDescriptor authDescriptor ) {
+        _weights = weights;
+        _binary = binary;
+        _statistics = statistics;
+        _operationTimeout = operationTimeout;
+        _authDescriptor = authDescriptor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeLocator createLocator( final List<MemcachedNode> nodes ) {
+        return new WeightedKetamaNodeLocator( nodes, _weights );
+    }
+
+    /**
+     * We don't want to try another memcached node, as the node would serve stale sessions once
+     * the failed node becomes available again.
+     */
+    @Override
+    public FailureMode getFailureMode() {
+        return FailureMode.Cancel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Transcoder<Object> getDefaultTranscoder() {
+        final SerializingTranscoder transcoder = new SerializingTranscoder();
+        transcoder.setCompressionThreshold( SerializingTranscoder.DEFAULT_COMPRESSION_THRESHOLD );
+        return new TranscoderWrapperStatisticsSupport( _statistics, transcoder );
+    }
+
+    @Override
+    public MemcachedNode createMemcachedNode( final SocketAddress sa, final SocketChannel c, final int bufSize ) {
+        if ( !_binary ) {
+            return super.createMemcachedNode( sa, c, bufSize );
+        }
+        return new BinaryMemcachedNodeImpl( sa, c, bufSize,
+                createReadOperationQueue(),
+                createWriteOperationQueue(),
+                createOperationQueue(),
+                getOpQueueMaxBlockTime(),
+                _authDescriptor != null, getOperationTimeout() );
+    }
+
+    @Override
+    public OperationFactory getOperationFactory() {
+        return _binary ? new BinaryOperationFactory() : super.getOperationFactory();
+    }
+
+    @Override
+    public long getOperationTimeout() {
+        return _operationTimeout;
+    }
+
+    @Override
+    public AuthDescriptor getAuthDescriptor() {
+        return _authDescriptor;
+    }
+
+}
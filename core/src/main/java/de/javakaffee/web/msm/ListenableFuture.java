@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link Future} that allows to register listeners that are executed when the
+ * future is done, so that follow-up work does not need a thread blocking on {@link #get()}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface ListenableFuture<V> extends Future<V> {
+
+    /**
+     * Registers the given listener to be executed with the given executor when this future is done.
+     * If the future is already done the listener is executed right away.
+     *
+     * @param listener the listener to run, it can access the result via {@link #get()} without blocking.
+     * @param executor the executor the listener is executed with.
+     */
+    void addListener( @Nonnull Runnable listener, @Nonnull Executor executor );
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * A {@link FutureTask} that executes registered listeners when it's done.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ListenableFutureTask<V> extends FutureTask<V> implements ListenableFuture<V> {
+
+    private static final Log _log = LogFactory.getLog( ListenableFutureTask.class );
+
+    /**
+     * Executes listeners in the thread that completes the future.
+     */
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute( final Runnable command ) {
+            command.run();
+        }
+    };
+
+    /*
+     * The listeners to execute when the task is done, null once they're executed
+     */
+    private List<Runnable> _listeners = new ArrayList<Runnable>( 2 );
+
+    public ListenableFutureTask( @Nonnull final Callable<V> callable ) {
+        super( callable );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addListener( @Nonnull final Runnable listener, @Nonnull final Executor executor ) {
+        final Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                execute( listener, executor );
+            }
+        };
+        synchronized ( this ) {
+            if ( _listeners != null ) {
+                _listeners.add( command );
+                return;
+            }
+        }
+        command.run();
+    }
+
+    @Override
+    protected void done() {
+        final List<Runnable> listeners;
+        synchronized ( this ) {
+            listeners = _listeners;
+            _listeners = null;
+        }
+        for ( final Runnable listener : listeners ) {
+            listener.run();
+        }
+    }
+
+    private static void execute( @Nonnull final Runnable listener, @Nonnull final Executor executor ) {
+        try {
+            executor.execute( listener );
+        } catch ( final RuntimeException e ) {
+            _log.warn( "Could not execute listener " + listener, e );
+        }
+    }
+
+    /**
+     * Registers the given listener at the given future if it's a {@link ListenableFuture}. Otherwise
+     * the listener is submitted to the given executor right away, it then has to wait for the result itself.
+     */
+    static void addListener( @Nonnull final Future<?> future, @Nonnull final Runnable listener,
+            @Nonnull final ExecutorService executor ) {
+        if ( future instanceof ListenableFuture ) {
+            ( (ListenableFuture<?>) future ).addListener( listener, executor );
+        }
+        else {
+            execute( listener, executor );
+        }
+    }
+
+}
@@ -43,6 +43,7 @@ import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
 import de.javakaffee.web.msm.MemcachedSessionService.LockStatus;
+import de.javakaffee.web.msm.TouchSupport.TouchResult;
 
 /**
  * Represents the session locking hooks that must be implemented by the various locking strategies.
@@ -61,7 +62,9 @@ public abstract class LockingStrategy {
         /** The application explicitely manages locks */
         APP,
         /** The session is locked for configured request patterns **/
-        URI_PATTERN
+        URI_PATTERN,
+        /** The session is not locked but stored with compare-and-set, see {@link LockingStrategyCas} */
+        CAS
     }
 
     protected static final String LOCK_VALUE = "locked";
@@ -72,9 +75,10 @@ public abstract class LockingStrategy {
 
     protected MemcachedSessionService _manager;
     protected final MemcachedClient _memcached;
-    protected LRUCache<String, Boolean> _missingSessionsCache;
+    protected MissingSessionsCache _missingSessionsCache;
     protected final SessionIdFormat _sessionIdFormat;
     private final ExecutorService _executor;
+    private final TouchSupport _touchSupport;
     private final boolean _storeSecondaryBackup;
     protected final Statistics _stats;
     protected final CurrentRequest _currentRequest;
@@ -82,7 +86,7 @@ public abstract class LockingStrategy {
     protected LockingStrategy( @Nonnull final MemcachedSessionService manager,
             @Nonnull final MemcachedNodesManager memcachedNodesManager,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
+            @Nonnull final MissingSessionsCache missingSessionsCache, final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats,
             @Nonnull final CurrentRequest currentRequest ) {
         _manager = manager;
@@ -92,6 +96,7 @@ public abstract class LockingStrategy {
         _storeSecondaryBackup = storeSecondaryBackup;
         _stats = stats;
         _currentRequest = currentRequest;
+        _touchSupport = new TouchSupport( memcached );
         _executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new NamedThreadFactory("msm-2ndary-backup") );
     }
 
@@ -102,7 +107,7 @@ public abstract class LockingStrategy {
     public static LockingStrategy create( @Nullable final LockingMode lockingMode, @Nullable final Pattern uriPattern,
             @Nonnull final MemcachedClient memcached, @Nonnull final MemcachedSessionService manager,
             @Nonnull final MemcachedNodesManager memcachedNodesManager,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
+            @Nonnull final MissingSessionsCache missingSessionsCache, final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats,
             @Nonnull final CurrentRequest currentRequest ) {
         if ( lockingMode == null ) {
@@ -118,6 +123,8 @@ public abstract class LockingStrategy {
                     stats, currentRequest );
         case NONE:
             return new LockingStrategyNone( manager, memcachedNodesManager, memcached, missingSessionsCache, storeSecondaryBackup, stats, currentRequest );
+        case CAS:
+            return new LockingStrategyCas( manager, memcachedNodesManager, memcached, missingSessionsCache, storeSecondaryBackup, stats, currentRequest );
         default:
             throw new IllegalArgumentException( "LockingMode not yet supported: " + lockingMode );
         }
@@ -189,14 +196,19 @@ public abstract class LockingStrategy {
         sleep( timeToWait );
     }
 
+    /**
+     * Releases the lock of the given session. The result of the delete is not awaited, the lock expires
+     * anyway if the delete fails. The delete is not ordered after previous writes of the session: the lock
+     * and the session may be stored on different nodes, and session writes may still be queued by the
+     * {@link BatchingBackupWriter}. Therefore a pending session write must be awaited before
+     * (as done by {@link BackupSessionTask}).
+     */
     protected void releaseLock( @Nonnull final String sessionId ) {
         try {
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Releasing lock for session " + sessionId );
             }
-            final long start = System.currentTimeMillis();
-            _memcached.delete( _sessionIdFormat.createLockName( sessionId ) ).get();
-            _stats.registerSince( RELEASE_LOCK, start );
+            _memcached.delete( _sessionIdFormat.createLockName( sessionId ) );
         } catch ( final Exception e ) {
             _log.warn( "Caught exception when trying to release lock for session " + sessionId, e );
         }
@@ -237,9 +249,13 @@ public abstract class LockingStrategy {
                     System.currentTimeMillis() );
             // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
             final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
-            final Future<Boolean> validityResult = _memcached.set( validityKey, expiration, validityData );
+            final Future<Boolean> validityResult = backupSessionService.getBackupWriter().set( validityKey, expiration, validityData );
             if ( !_manager.isSessionBackupAsync() ) {
                 validityResult.get( _manager.getSessionBackupTimeout(), TimeUnit.MILLISECONDS );
+                _stats.register( NON_STICKY_ROUND_TRIPS, 2 );
+            }
+            else {
+                _stats.register( NON_STICKY_ROUND_TRIPS, 1 );
             }
 
             /*
@@ -264,41 +280,71 @@ public abstract class LockingStrategy {
     }
 
     /**
-     * Is invoked after the backup of the session is initiated, it's represented by the provided backupResult. The
-     * requestId is identifying the request.
+     * Is invoked before the backup of the session is started, stores the session validity info so that it's
+     * written concurrently with the session data. The returned write must be passed to
+     * {@link #onAfterBackupSession(MemcachedBackupSession, boolean, Future, ValidityInfoWrite, String, BackupSessionService)}.
+     *
+     * @return the write of the validity info, or <code>null</code> if the validity info could not be stored.
      */
-    protected void onAfterBackupSession( @Nonnull final MemcachedBackupSession session, final boolean backupWasForced,
-            @Nonnull final Future<BackupResult> result, @Nonnull final String requestId,
+    @CheckForNull
+    protected ValidityInfoWrite onBeforeBackupSession( @Nonnull final MemcachedBackupSession session,
             @Nonnull final BackupSessionService backupSessionService ) {
 
         if ( !_sessionIdFormat.isValid( session.getIdInternal() ) ) {
-            return;
+            return null;
         }
 
         try {
-
-            final long start = System.currentTimeMillis();
-
             final int maxInactiveInterval = session.getMaxInactiveInterval();
             final byte[] validityData = encode( maxInactiveInterval, session.getLastAccessedTimeInternal(),
                     session.getThisAccessedTimeInternal() );
             final String validityKey = createValidityInfoKeyName( session.getIdInternal() );
             // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
             final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
-            final Future<Boolean> validityResult = _memcached.set( validityKey, expiration, validityData );
+            final long deadline = System.currentTimeMillis() + _manager.getSessionBackupTimeout();
+            final Future<Boolean> validityResult = backupSessionService.getBackupWriter().set( validityKey, expiration, validityData );
+            return new ValidityInfoWrite( validityKey, validityData, validityResult, deadline );
+        } catch( final Throwable e ) {
+            _log.warn( "An error occurred when storing the validity info for session " + session.getIdInternal(), e );
+            return null;
+        }
+
+    }
+
+    /**
+     * Is invoked after the backup of the session is initiated, it's represented by the provided backupResult. The
+     * requestId is identifying the request.
+     *
+     * @param validityInfoWrite the write of the validity info as returned by
+     *  {@link #onBeforeBackupSession(MemcachedBackupSession, BackupSessionService)}.
+     */
+    protected void onAfterBackupSession( @Nonnull final MemcachedBackupSession session, final boolean backupWasForced,
+            @Nonnull final Future<BackupResult> result, @CheckForNull final ValidityInfoWrite validityInfoWrite,
+            @Nonnull final String requestId, @Nonnull final BackupSessionService backupSessionService ) {
+
+        if ( validityInfoWrite == null ) {
+            return;
+        }
+
+        try {
+
+            final long start = System.currentTimeMillis();
+
+            final String validityKey = validityInfoWrite.getKey();
+            final byte[] validityData = validityInfoWrite.getData();
             if ( !_manager.isSessionBackupAsync() ) {
-                // TODO: together with session backup wait not longer than sessionBackupTimeout.
-                // Details: Now/here we're waiting the whole session backup timeout, even if (perhaps) some time
-                // was spent before when waiting for session backup result.
-                // For sync session backup it would be better to set both the session data and
-                // validity info and afterwards wait for both results (but in sum no longer than sessionBackupTimeout)
-                validityResult.get( _manager.getSessionBackupTimeout(), TimeUnit.MILLISECONDS );
+                /* The validity info was written concurrently with the session data (which is already stored
+                 * for sync backup), so that both are awaited in sum no longer than the session backup timeout.
+                 */
+                validityInfoWrite.getResult().get( Math.max( validityInfoWrite.getDeadline() - System.currentTimeMillis(), 0 ),
+                        TimeUnit.MILLISECONDS );
+                session.addRoundTrips( 1 );
             }
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Stored session validity info for session " + session.getIdInternal() );
             }
 
-            /* The following task are performed outside of the request thread (includes waiting for the backup result):
+            /* The following task are performed outside of the request thread when the backup is done:
              * - ping session if the backup was skipped (depends on the backup result)
              * - save secondary session backup if session was modified (backup not skipped)
              * - ping secondary session backup if the backup was skipped
@@ -308,9 +354,10 @@ public abstract class LockingStrategy {
             final boolean performAsyncTasks = pingSessionIfBackupWasSkipped || _storeSecondaryBackup;
 
             if ( performAsyncTasks ) {
-                final Callable<?> backupSessionTask = new OnAfterBackupSessionTask( session, result,
+                // the task is run when the backup is done, so that it does not block a thread waiting for it
+                final Runnable backupSessionTask = new OnAfterBackupSessionTask( session, result,
                         pingSessionIfBackupWasSkipped, backupSessionService, _storeSecondaryBackup, validityKey, validityData );
-                _executor.submit( backupSessionTask );
+                ListenableFutureTask.addListener( result, backupSessionTask, _executor );
             }
 
             _stats.registerSince( NON_STICKY_AFTER_BACKUP, start );
@@ -339,6 +386,14 @@ public abstract class LockingStrategy {
         return loadSessionValidityInfoForValidityKey( backupKey );
     }
 
+    /**
+     * Determines, if sessions shall be loaded with their cas value so that they're stored
+     * with compare-and-set (see {@link LockingStrategyCas}).
+     */
+    protected boolean isCasEnabled() {
+        return false;
+    }
+
     /**
      * Invoked before the session for this sessionId is loaded from memcached.
      */
@@ -355,12 +410,26 @@ public abstract class LockingStrategy {
      */
     protected void onAfterLoadFromMemcached( @Nonnull final MemcachedBackupSession session,
             @Nullable final LockStatus lockStatus ) {
-        session.setLockStatus( lockStatus );
-
         final long start = System.currentTimeMillis();
         final SessionValidityInfo info = loadSessionValidityInfo( session.getIdInternal() );
         if ( info != null ) {
             _stats.registerSince( NON_STICKY_AFTER_LOAD_FROM_MEMCACHED, start );
+        }
+        onAfterLoadFromMemcached( session, lockStatus, info );
+    }
+
+    /**
+     * Invoked after a non-sticky session is loaded, with the session validity info that was
+     * already loaded from memcached (e.g. to check if a locally cached session is still up to date).
+     *
+     * @param lockStatus
+     *            the {@link LockStatus} that was returned from {@link #onBeforeLoadFromMemcached(String)}.
+     * @param info the validity info of the session, <code>null</code> if there's none in memcached.
+     */
+    protected void onAfterLoadFromMemcached( @Nonnull final MemcachedBackupSession session,
+            @Nullable final LockStatus lockStatus, @Nullable final SessionValidityInfo info ) {
+        session.setLockStatus( lockStatus );
+        if ( info != null ) {
             session.setLastAccessedTimeInternal( info.getLastAccessedTime() );
             session.setThisAccessedTimeInternal( info.getThisAccessedTime() );
         }
@@ -370,33 +439,67 @@ public abstract class LockingStrategy {
     }
 
     /**
-     * Invoked after a non-sticky session is removed from memcached.
+     * Invoked after a non-sticky session is removed from memcached. The deletes are sent
+     * through the backup writer, as the validity info and backups are written through it.
      */
-    protected void onAfterDeleteFromMemcached( @Nonnull final String sessionId ) {
+    protected void onAfterDeleteFromMemcached( @Nonnull final String sessionId,
+            @Nonnull final BackupSessionService backupSessionService ) {
         final long start = System.currentTimeMillis();
 
+        final BatchingBackupWriter backupWriter = backupSessionService.getBackupWriter();
         final String validityInfoKey = createValidityInfoKeyName( sessionId );
-        _memcached.delete( validityInfoKey );
+        backupWriter.delete( validityInfoKey );
 
         if (_storeSecondaryBackup) {
-            _memcached.delete( _sessionIdFormat.createBackupKey( sessionId ) );
-            _memcached.delete( _sessionIdFormat.createBackupKey( validityInfoKey ) );
+            backupWriter.delete( _sessionIdFormat.createBackupKey( sessionId ) );
+            backupWriter.delete( _sessionIdFormat.createBackupKey( validityInfoKey ) );
         }
 
         _stats.registerSince( NON_STICKY_AFTER_DELETE_FROM_MEMCACHED, start );
     }
 
-    private boolean pingSession( @Nonnull final String sessionId ) throws InterruptedException {
-        final Future<Boolean> touchResult = _memcached.add( sessionId, 1, 1 );
+    /**
+     * Pings the item with the given key in memcached: if supported (see {@link TouchSupport}) the expiration
+     * of the item is updated with touch, otherwise it's just checked with an add (that does not succeed
+     * for an existing item) if the item still exists.
+     *
+     * @param expiration the expiration to set for an existing item (if touch is supported).
+     * @param addExpiration the expiration used for the add, the added value is just a placeholder for the missing item.
+     * @return <code>true</code> if the item exists in memcached.
+     */
+    private boolean pingItem( @Nonnull final String key, final int expiration, final int addExpiration, final long timeoutMillis )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final TouchResult touchResult = _touchSupport.touch( key, expiration, timeoutMillis );
+        if ( touchResult != TouchResult.UNAVAILABLE ) {
+            _log.debug( "Got touch result " + touchResult + " for " + key );
+            return touchResult == TouchResult.TOUCHED;
+        }
+        final boolean added = _memcached.add( key, addExpiration, 1 ).get( timeoutMillis, TimeUnit.MILLISECONDS );
+        _log.debug( "Got ping result " + added + " for " + key );
+        return !added;
+    }
+
+    /**
+     * The expiration of the session data (and its secondary backup) in memcached for a non-sticky session
+     * with the given maxInactiveInterval, see {@link MemcachedBackupSession#getMemcachedExpirationTimeToSet()}.
+     */
+    private static int getNonStickyExpiration( final int maxInactiveInterval ) {
+        return maxInactiveInterval <= 0 ? 0 : 2 * maxInactiveInterval;
+    }
+
+    private boolean pingSession( @Nonnull final String sessionId, final int maxInactiveInterval ) throws InterruptedException {
         try {
-            _log.debug( "Got ping result " + touchResult.get() );
-            if ( touchResult.get() ) {
+            if ( !pingItem( sessionId, getNonStickyExpiration( maxInactiveInterval ), 1, _manager.getOperationTimeout() ) ) {
                 _stats.nonStickySessionsPingFailed();
                 _log.warn( "The session " + sessionId
                         + " should be touched in memcached, but it does not exist therein." );
                 return false;
             }
             return true;
+        } catch ( final TimeoutException e ) {
+            _log.warn( "The ping for session " + sessionId
+                    + " could not be completed within " + _manager.getOperationTimeout() + " millis." );
+            return false;
         } catch ( final ExecutionException e ) {
             _log.warn( "An exception occurred when trying to ping session " + sessionId, e );
             return false;
@@ -405,16 +508,17 @@ public abstract class LockingStrategy {
 
     private void pingSession( @Nonnull final MemcachedBackupSession session,
             @Nonnull final BackupSessionService backupSessionService ) throws InterruptedException {
-        final Future<Boolean> touchResult = _memcached.add( session.getIdInternal(), 5, 1 );
         try {
-            _log.debug( "Got ping result " + touchResult.get() );
-            if ( touchResult.get() ) {
+            if ( !pingItem( session.getIdInternal(), session.getMemcachedExpirationTimeToSet(), 5, _manager.getOperationTimeout() ) ) {
                 _stats.nonStickySessionsPingFailed();
                 _log.warn( "The session " + session.getIdInternal()
                         + " should be touched in memcached, but it does not exist"
                         + " therein. Will store in memcached again." );
                 updateSession( session, backupSessionService );
             }
+        } catch ( final TimeoutException e ) {
+            _log.warn( "The ping for session " + session.getIdInternal()
+                    + " could not be completed within " + _manager.getOperationTimeout() + " millis." );
         } catch ( final ExecutionException e ) {
             _log.warn( "An exception occurred when trying to ping session " + session.getIdInternal(), e );
         }
@@ -432,7 +536,7 @@ public abstract class LockingStrategy {
         }
     }
 
-    private final class OnAfterBackupSessionTask implements Callable<Void> {
+    private final class OnAfterBackupSessionTask implements Runnable {
 
         private final MemcachedBackupSession _session;
         private final Future<BackupResult> _result;
@@ -458,7 +562,17 @@ public abstract class LockingStrategy {
         }
 
         @Override
-        public Void call() throws Exception {
+        public void run() {
+            try {
+                performTasks();
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } catch ( final ExecutionException e ) {
+                _log.warn( "The backup of session " + _session.getIdInternal() + " failed.", e );
+            }
+        }
+
+        private void performTasks() throws InterruptedException, ExecutionException {
 
             final BackupResult backupResult = _result.get();
 
@@ -490,15 +604,19 @@ public abstract class LockingStrategy {
                 }
 
             }
-
-            return null;
         }
 
-        public void saveSessionBackupFromResult( final BackupResult backupResult ) {
+        public void saveSessionBackupFromResult( final BackupResult backupResult ) throws InterruptedException {
             final byte[] data = backupResult.getData();
             if ( data != null ) {
                 final String key = _sessionIdFormat.createBackupKey( _session.getId() );
-                _memcached.set( key, _session.getMemcachedExpirationTimeToSet(), data );
+                _backupSessionService.getBackupWriter().set( key, _session.getMemcachedExpirationTimeToSet(), data );
+            }
+            else if ( backupResult.isSuccess() ) {
+                /* attributes are stored separately, the secondary backup
+                 * always contains the complete session
+                 */
+                saveSessionBackup( _session, _sessionIdFormat.createBackupKey( _session.getId() ) );
             }
             else {
                 _log.warn( "No data set for backupResultStatus " + backupResult.getStatus() + " for sessionId "
@@ -512,16 +630,13 @@ public abstract class LockingStrategy {
             final int maxInactiveInterval = _session.getMaxInactiveInterval();
             // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
             final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
-            _memcached.set( backupValidityKey, expiration, _validityData );
+            _backupSessionService.getBackupWriter().set( backupValidityKey, expiration, _validityData );
         }
 
         private void pingSessionBackup( @Nonnull final MemcachedBackupSession session ) throws InterruptedException {
             final String key = _sessionIdFormat.createBackupKey( session.getId() );
-            final Future<Boolean> touchResultFuture = _memcached.add( key, 5, 1 );
             try {
-                final boolean touchResult = touchResultFuture.get(_manager.getOperationTimeout(), TimeUnit.MILLISECONDS);
-                _log.debug( "Got backup ping result " + touchResult );
-                if ( touchResult ) {
+                if ( !pingItem( key, session.getMemcachedExpirationTimeToSet(), 5, _manager.getOperationTimeout() ) ) {
                     _log.warn( "The secondary backup for session " + session.getIdInternal()
                             + " should be touched in memcached, but it seemed to be"
                             + " not existing. Will store in memcached again." );
@@ -572,7 +687,7 @@ public abstract class LockingStrategy {
         @Override
         public Void call() throws Exception {
 
-            pingSession( _sessionId );
+            pingSession( _sessionId, _maxInactiveInterval );
 
             /*
              * For non-sticky sessions we store/ping a backup of the session in a secondary memcached node (under a special key
@@ -599,11 +714,8 @@ public abstract class LockingStrategy {
 
         private boolean pingSessionBackup( @Nonnull final String sessionId ) throws InterruptedException {
             final String key = _sessionIdFormat.createBackupKey( sessionId );
-            final Future<Boolean> touchResultFuture = _memcached.add( key, 1, 1 );
             try {
-                final boolean touchResult = touchResultFuture.get(200, TimeUnit.MILLISECONDS);
-                _log.debug( "Got backup ping result " + touchResult );
-                if ( touchResult ) {
+                if ( !pingItem( key, getNonStickyExpiration( _maxInactiveInterval ), 1, 200 ) ) {
                     _log.warn( "The secondary backup for session " + sessionId
                             + " should be touched in memcached, but it seemed to be"
                             + " not existing." );
@@ -621,6 +733,46 @@ public abstract class LockingStrategy {
         }
     }
 
+    /**
+     * The write of the session validity info that's started before the session backup, with the
+     * deadline until that both writes are awaited at most (for sync session backup).
+     */
+    static final class ValidityInfoWrite {
+
+        private final String _key;
+        private final byte[] _data;
+        private final Future<Boolean> _result;
+        private final long _deadline;
+
+        ValidityInfoWrite( @Nonnull final String key, @Nonnull final byte[] data, @Nonnull final Future<Boolean> result,
+                final long deadline ) {
+            _key = key;
+            _data = data;
+            _result = result;
+            _deadline = deadline;
+        }
+
+        @Nonnull
+        String getKey() {
+            return _key;
+        }
+
+        @Nonnull
+        byte[] getData() {
+            return _data;
+        }
+
+        @Nonnull
+        Future<Boolean> getResult() {
+            return _result;
+        }
+
+        long getDeadline() {
+            return _deadline;
+        }
+
+    }
+
     // ---------------- for testing
 
     @Nonnull
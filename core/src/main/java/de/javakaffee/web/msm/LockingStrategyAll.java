@@ -33,7 +33,7 @@ public class LockingStrategyAll extends LockingStrategy {
     public LockingStrategyAll( @Nonnull final MemcachedSessionService manager,
             @Nonnull final MemcachedNodesManager memcachedNodesManager,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
+            @Nonnull final MissingSessionsCache missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats,
             @Nonnull final CurrentRequest currentRequest ) {
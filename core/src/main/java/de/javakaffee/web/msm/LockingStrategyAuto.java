@@ -16,7 +16,6 @@
  */
 package de.javakaffee.web.msm;
 
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -46,7 +45,7 @@ public class LockingStrategyAuto extends LockingStrategy {
     public LockingStrategyAuto( @Nonnull final MemcachedSessionService manager,
             @Nonnull final MemcachedNodesManager memcachedNodesManager,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
+            @Nonnull final MissingSessionsCache missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats,
             @Nonnull final CurrentRequest currentRequest ) {
@@ -76,6 +75,7 @@ public class LockingStrategyAuto extends LockingStrategy {
     @Override
     protected void onAfterBackupSession( final MemcachedBackupSession session, final boolean backupWasForced,
             final Future<BackupResult> result,
+            final ValidityInfoWrite validityInfoWrite,
             final String requestId,
             final BackupSessionService backupSessionService ) {
 
@@ -83,12 +83,12 @@ public class LockingStrategyAuto extends LockingStrategy {
             return;
         }
 
-        super.onAfterBackupSession( session, backupWasForced, result, requestId, backupSessionService );
+        super.onAfterBackupSession( session, backupWasForced, result, validityInfoWrite, requestId, backupSessionService );
 
-        final Callable<Void> task = new Callable<Void>() {
+        final Runnable task = new Runnable() {
 
             @Override
-            public Void call() {
+            public void run() {
                 try {
                     if ( result.get().getStatus() == BackupResultStatus.SKIPPED ) {
                         _readOnlyRequestCache.readOnlyRequest( requestId );
@@ -98,19 +98,17 @@ public class LockingStrategyAuto extends LockingStrategy {
                 } catch ( final Exception e ) {
                     _readOnlyRequestCache.modifyingRequest( requestId );
                 }
-                return null;
             }
 
         };
         /* A simple future does not need to go through the executor, but we can process the result right now.
+         * Otherwise the result is processed when the backup is done.
          */
         if ( result instanceof SimpleFuture ) {
-            try {
-                task.call();
-            } catch ( final Exception e ) { /* caught in the callable */ }
+            task.run();
         }
         else {
-            _requestPatternDetectionExecutor.submit( task );
+            ListenableFutureTask.addListener( result, task, _requestPatternDetectionExecutor );
         }
     }
 
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClient;
+import de.javakaffee.web.msm.MemcachedSessionService.LockStatus;
+
+/**
+ * This locking strategy does not lock the session but uses optimistic concurrency control: the
+ * session is loaded from memcached with its cas value (<code>gets</code>) and stored with compare-and-set
+ * (<code>cas</code>), so that concurrent modifications are detected when the session is stored. A conflict
+ * is handled according to the configured {@link CasConflictPolicy}.
+ * <p>
+ * In contrast to the locking strategies this does not need additional roundtrips to create and delete the lock
+ * and requests for the same session are not serialized.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LockingStrategyCas extends LockingStrategy {
+
+    public LockingStrategyCas( @Nonnull final MemcachedSessionService manager,
+            @Nonnull final MemcachedNodesManager memcachedNodesManager,
+            @Nonnull final MemcachedClient memcached,
+            @Nonnull final MissingSessionsCache missingSessionsCache,
+            final boolean storeSecondaryBackup,
+            @Nonnull final Statistics stats,
+            @Nonnull final CurrentRequest currentRequest ) {
+        super( manager, memcachedNodesManager, memcached, missingSessionsCache, storeSecondaryBackup, stats, currentRequest );
+    }
+
+    @Override
+    protected LockStatus onBeforeLoadFromMemcached( @Nonnull final String sessionId ) throws InterruptedException, ExecutionException {
+        return LockStatus.LOCK_NOT_REQUIRED;
+    }
+
+    @Override
+    protected boolean isCasEnabled() {
+        return true;
+    }
+
+}
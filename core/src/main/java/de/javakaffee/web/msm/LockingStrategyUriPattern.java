@@ -40,7 +40,7 @@ public class LockingStrategyUriPattern extends LockingStrategy {
             @Nonnull final MemcachedNodesManager memcachedNodesManager,
             @Nonnull final Pattern uriPattern,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
+            @Nonnull final MissingSessionsCache missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats,
             @Nonnull final CurrentRequest currentRequest ) {
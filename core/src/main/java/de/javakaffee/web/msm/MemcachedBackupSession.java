@@ -16,18 +16,35 @@
  */
 package de.javakaffee.web.msm;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
 import org.apache.catalina.Manager;
 import org.apache.catalina.SessionListener;
 import org.apache.catalina.authenticator.Constants;
 import org.apache.catalina.session.StandardSession;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.MemcachedSessionService.LockStatus;
 import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
@@ -50,12 +67,40 @@ public class MemcachedBackupSession extends StandardSession {
 
     private static final long serialVersionUID = 1L;
 
+    private static final Log _log = LogFactory.getLog( MemcachedBackupSession.class );
+
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>( Arrays.<Class<?>>asList(
+            String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class,
+            Float.class, Double.class, BigInteger.class, BigDecimal.class ) );
+
     /*
      * The hash code of the serialized byte[] of this session that is
      * used to determine, if the session was modified.
      */
     private transient int _dataHashCode;
 
+    /*
+     * The manifest of the attributes stored separately in memcached, if
+     * session attributes are stored separately.
+     */
+    private transient volatile AttributesManifest _attributesManifest;
+
+    /*
+     * The serialized attributes if the session was loaded with lazy attributes deserialization
+     * and the attributes were not yet accessed, together with the transcoder service to deserialize them.
+     * If the session was stored in the indexed format the attributes that were not yet accessed
+     * are kept by name instead, so that they can be deserialized separately.
+     */
+    private transient volatile ByteBuffer _serializedAttributes;
+    private transient volatile Map<String, ByteBuffer> _serializedAttributeValues;
+    private transient volatile TranscoderService _attributesTranscoderService;
+
+    /*
+     * Stores, if the session was activated while attributes were not yet deserialized, so
+     * that the attributes must be notified when they're deserialized
+     */
+    private transient volatile boolean _activationPending;
+
     /*
      * Used to determine, if the session was #accessed since it was
      * last backup'ed (or checked if it needs to be backup'ed)
@@ -91,16 +136,65 @@ public class MemcachedBackupSession extends StandardSession {
 
     private transient boolean _authenticationChanged;
 
+    /*
+     * The names of attributes that were set or removed since the last backup.
+     */
     @edu.umd.cs.findbugs.annotations.SuppressWarnings( "SE_TRANSIENT_FIELD_NOT_RESTORED" )
-    private transient boolean _attributesAccessed;
+    private transient final Set<String> _modifiedAttributes;
+
+    /*
+     * The names of attributes with a mutable value that were read since the last
+     * backup, so that they might have been modified.
+     */
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings( "SE_TRANSIENT_FIELD_NOT_RESTORED" )
+    private transient final Set<String> _accessedAttributes;
+
+    /*
+     * The hash codes of single serialized attributes, to determine if accessed
+     * attributes were modified without serializing all attributes.
+     */
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings( "SE_TRANSIENT_FIELD_NOT_RESTORED" )
+    private transient final Map<String, Integer> _attributeHashCodes;
 
     private transient boolean _sessionIdChanged;
     protected transient boolean _sticky;
     private transient volatile LockStatus _lockStatus;
 
+    /*
+     * The cas value of the session in memcached if it was loaded with gets, 0 if unknown
+     */
+    private transient volatile long _casId;
+
+    /*
+     * The session id the cas value belongs to, the cas value must not be used for another id
+     */
+    private transient volatile String _casSessionId;
+
+    /*
+     * The number of memcached round trips requests waited for since they were
+     * registered in the statistics the last time (non-sticky sessions only)
+     */
+    private transient int _roundTrips;
+
+    /*
+     * The ids of the threads holding a reference, a concurrent set so that references
+     * can be registered/released without locking the session
+     */
     @edu.umd.cs.findbugs.annotations.SuppressWarnings( "SE_TRANSIENT_FIELD_NOT_RESTORED" )
     private transient final Set<Long> _refCount;
 
+    /*
+     * The number of requests currently accessing this session (between access() and endAccess())
+     */
+    @edu.umd.cs.findbugs.annotations.SuppressWarnings( "SE_TRANSIENT_FIELD_NOT_RESTORED" )
+    private transient final AtomicInteger _accessCount;
+
+    /*
+     * The new id of this session if a copy was already stored under this id (on another node), so that
+     * the session id is changed with the next request
+     */
+    private transient volatile String _relocationId;
+
     /**
      * Creates a new instance without a given manager. This has to be
      * assigned via {@link #setManager(Manager)} before this session is
@@ -119,7 +213,11 @@ public class MemcachedBackupSession extends StandardSession {
      */
     public MemcachedBackupSession( final SessionManager manager ) {
         super( manager );
-        _refCount = new HashSet<Long>();
+        _refCount = Collections.newSetFromMap( new ConcurrentHashMap<Long, Boolean>() );
+        _accessCount = new AtomicInteger();
+        _modifiedAttributes = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+        _accessedAttributes = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+        _attributeHashCodes = new ConcurrentHashMap<String, Integer>();
     }
 
     /**
@@ -127,10 +225,12 @@ public class MemcachedBackupSession extends StandardSession {
      */
     @Override
     public Object getAttribute( final String name ) {
-        if (filterAttribute(name)) {
-            _attributesAccessed = true;
+        deserializeAttributeIfRequired( name );
+        final Object value = super.getAttribute( name );
+        if ( value != null && !isImmutable( value ) && filterAttribute( name ) ) {
+            _accessedAttributes.add( name );
         }
-        return super.getAttribute( name );
+        return value;
     }
 
     /**
@@ -139,7 +239,7 @@ public class MemcachedBackupSession extends StandardSession {
     @Override
     public void setAttribute( final String name, final Object value ) {
         if (filterAttribute(name)) {
-            _attributesAccessed = true;
+            _modifiedAttributes.add( name );
         }
         super.setAttribute( name, value );
     }
@@ -149,8 +249,9 @@ public class MemcachedBackupSession extends StandardSession {
      */
     @Override
     public void setAttribute( final String name, final Object value, final boolean notify ) {
+        deserializeAttributeIfRequired( name );
         if (filterAttribute(name)) {
-            _attributesAccessed = true;
+            _modifiedAttributes.add( name );
         }
         super.setAttribute( name, value, notify );
     }
@@ -158,18 +259,129 @@ public class MemcachedBackupSession extends StandardSession {
     @Override
     public void removeAttribute(final String name) {
         if (filterAttribute(name)) {
-            _attributesAccessed = true;
+            _modifiedAttributes.add( name );
         }
         super.removeAttribute(name);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings( "unchecked" )
+    public Enumeration<String> getAttributeNames() {
+        deserializeAttributesIfRequired();
+        return super.getAttributeNames();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Deprecated
+    public String[] getValueNames() {
+        deserializeAttributesIfRequired();
+        return super.getValueNames();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Attributes that are not yet deserialized are deserialized before, so that
+     * they're notified about their unbinding.
+     * </p>
+     */
+    @Override
+    public void expire( final boolean notify ) {
+        deserializeAttributesIfRequired();
+        super.expire( notify );
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Attributes that are not yet deserialized (lazy attributes deserialization) are not part of the
+     * session attributes yet, the {@link HttpSessionActivationListener}s among them are notified when
+     * they're deserialized.
+     * </p>
+     */
+    @Override
+    public void activate() {
+        if ( hasSerializedAttributes() ) {
+            _activationPending = true;
+        }
+        super.activate();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Attributes that are not yet deserialized were not activated and therefore are not passivated.
+     * </p>
+     */
+    @Override
+    public void passivate() {
+        _activationPending = false;
+        super.passivate();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Counts the requests accessing this session (see {@link #isInUse()}).
+     * </p>
+     */
+    @Override
+    public void access() {
+        _accessCount.incrementAndGet();
+        super.access();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Notifies the {@link MemcachedSessionService} about the access, so that the expiration of
+     * the session in memcached is updated (for sticky sessions).
+     * </p>
+     */
+    @Override
+    public void endAccess() {
+        if ( _accessCount.decrementAndGet() < 0 ) {
+            _accessCount.set( 0 );
+        }
+        super.endAccess();
+        if ( manager != null ) {
+            ((SessionManager)manager).getMemcachedSessionService().sessionAccessed( this );
+        }
+    }
+
+    /**
+     * Determines, if the given attribute value cannot be modified by the application, so that
+     * reading the attribute does not require to check it for modifications.
+     */
+    static boolean isImmutable( @Nonnull final Object value ) {
+        return IMMUTABLE_TYPES.contains( value.getClass() );
+    }
+
     @Override
     public void recycle() {
         super.recycle();
         _dataHashCode = 0;
+        _attributesManifest = null;
+        _serializedAttributes = null;
+        _serializedAttributeValues = null;
+        _attributesTranscoderService = null;
+        _activationPending = false;
+        _modifiedAttributes.clear();
+        _accessedAttributes.clear();
+        _attributeHashCodes.clear();
         _expirationUpdateRunning = false;
         _backupRunning = false;
         _lockStatus = null;
+        _casId = 0;
+        _casSessionId = null;
+        _relocationId = null;
+        _roundTrips = 0;
     }
 
     /**
@@ -334,14 +546,56 @@ public class MemcachedBackupSession extends StandardSession {
     }
 
     /**
-     * Determines, if attributes were accessed via {@link #getAttribute(String)},
-     * {@link #setAttribute(String, Object)} or {@link #setAttribute(String, Object, boolean)}
-     * since the last request.
+     * Determines, if attributes were modified via {@link #setAttribute(String, Object)},
+     * {@link #setAttribute(String, Object, boolean)} or {@link #removeAttribute(String)}, or if attributes
+     * with a mutable value were accessed via {@link #getAttribute(String)} since the last backup.
      *
      * @return <code>true</code> if attributes were accessed.
      */
     boolean attributesAccessedSinceLastBackup() {
-        return _attributesAccessed;
+        return !_modifiedAttributes.isEmpty() || !_accessedAttributes.isEmpty();
+    }
+
+    /**
+     * The names of attributes that were set or removed since the last backup.
+     */
+    @Nonnull
+    Set<String> getModifiedAttributes() {
+        return _modifiedAttributes;
+    }
+
+    /**
+     * The names of attributes with a mutable value that were read since the last backup and that
+     * therefore might have been modified.
+     */
+    @Nonnull
+    Set<String> getAccessedAttributes() {
+        return _accessedAttributes;
+    }
+
+    /**
+     * The hash code of the given serialized attribute, as it was stored with the last backup.
+     *
+     * @return the hash code or <code>null</code> if not known.
+     */
+    @CheckForNull
+    Integer getAttributeHashCode( @Nonnull final String name ) {
+        return _attributeHashCodes.get( name );
+    }
+
+    /**
+     * Set the hash code of the given serialized attribute.
+     */
+    void setAttributeHashCode( @Nonnull final String name, final int hashCode ) {
+        _attributeHashCodes.put( name, hashCode );
+    }
+
+    /**
+     * Removes the hash code of the given serialized attribute, e.g. if it's no longer the hash code
+     * of the attribute as it's stored in memcached.
+     */
+    void removeAttributeHashCode( @Nonnull final String name ) {
+        _attributeHashCodes.remove( name );
     }
 
     /**
@@ -443,6 +697,25 @@ public class MemcachedBackupSession extends StandardSession {
         _dataHashCode = attributesDataHashCode;
     }
 
+    /**
+     * The manifest of the session attributes that were stored separately in memcached
+     * with the last backup (or that were loaded from memcached).
+     * @return the manifest or <code>null</code> if attributes were not stored separately.
+     */
+    @CheckForNull
+    AttributesManifest getAttributesManifest() {
+        return _attributesManifest;
+    }
+
+    /**
+     * Set the manifest of the session attributes stored separately in memcached.
+     *
+     * @param attributesManifest the manifest, must not be modified afterwards.
+     */
+    void setAttributesManifest( @Nullable final AttributesManifest attributesManifest ) {
+        _attributesManifest = attributesManifest;
+    }
+
     public long getCreationTimeInternal() {
         return this.creationTime;
     }
@@ -496,6 +769,7 @@ public class MemcachedBackupSession extends StandardSession {
 
     @SuppressWarnings( "unchecked" )
     public Map<String, Object> getAttributesInternal() {
+        deserializeAttributesIfRequired();
         return this.attributes;
     }
 
@@ -504,11 +778,45 @@ public class MemcachedBackupSession extends StandardSession {
      *
      * @return the filtered attribute map that only includes attributes that shall be stored in memcached.
      */
-    @SuppressWarnings( "unchecked" )
     public Map<String, Object> getAttributesFiltered() {
         if ( this.manager == null ) {
             throw new IllegalStateException( "There's no manager set." );
         }
+        deserializeAttributesIfRequired();
+        return filterAttributes();
+    }
+
+    /**
+     * Filter map of attributes using our name pattern like {@link #getAttributesFiltered()}, but attributes
+     * that are not yet deserialized (if the session was loaded in the indexed format with lazy attributes
+     * deserialization) are not deserialized: they're put into the given map in their serialized form instead.
+     *
+     * @param serializedAttributes the map that's filled with the filtered serialized attributes.
+     * @return the filtered attribute map that includes the deserialized attributes that shall be stored in memcached.
+     */
+    Map<String, Object> getAttributesFiltered( @Nonnull final Map<String, ByteBuffer> serializedAttributes ) {
+        if ( this.manager == null ) {
+            throw new IllegalStateException( "There's no manager set." );
+        }
+        if ( _serializedAttributes != null ) {
+            deserializeAttributesIfRequired();
+        }
+        // synchronized so that no attribute is deserialized concurrently, which then would be missing in both maps
+        synchronized ( this ) {
+            final Map<String, ByteBuffer> serializedValues = _serializedAttributeValues;
+            if ( serializedValues != null ) {
+                for ( final Map.Entry<String, ByteBuffer> entry : serializedValues.entrySet() ) {
+                    if ( filterAttribute( entry.getKey() ) ) {
+                        serializedAttributes.put( entry.getKey(), entry.getValue().duplicate() );
+                    }
+                }
+            }
+            return filterAttributes();
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private Map<String, Object> filterAttributes() {
         final Pattern pattern = ((SessionManager)manager).getMemcachedSessionService().getSessionAttributePattern();
         if ( pattern == null ) {
             return this.attributes;
@@ -522,15 +830,160 @@ public class MemcachedBackupSession extends StandardSession {
         return result;
     }
 
+    /**
+     * Returns the value of the given attribute without further checks (like {@link #getAttribute(String)}
+     * does), if the attribute is not yet deserialized (lazy attributes deserialization) only this attribute is
+     * deserialized if possible.
+     */
+    @CheckForNull
+    Object getAttributeInternal( @Nonnull final String name ) {
+        deserializeAttributeIfRequired( name );
+        return this.attributes.get( name );
+    }
+
     void setAttributesInternal( final Map<String, Object> attributes ) {
+        _serializedAttributes = null;
+        _serializedAttributeValues = null;
+        _attributesTranscoderService = null;
         this.attributes = attributes;
     }
 
+    /**
+     * Sets the serialized attributes that are deserialized (with the given transcoder service) when
+     * the attributes are accessed for the first time. Until then the session has no attributes.
+     *
+     * @param serializedAttributes the serialized attributes.
+     * @param transcoderService the transcoder service to deserialize the attributes.
+     */
+    void setSerializedAttributes( @Nonnull final ByteBuffer serializedAttributes, @Nonnull final TranscoderService transcoderService ) {
+        this.attributes = new ConcurrentHashMap<String, Object>();
+        _attributesTranscoderService = transcoderService;
+        _serializedAttributeValues = null;
+        _serializedAttributes = serializedAttributes;
+    }
+
+    /**
+     * Sets the separately serialized attributes (of the indexed format, see {@link AttributesIndex}), each
+     * attribute is deserialized (with the given transcoder service) when it's accessed for the first time.
+     * Until then the session does not contain the attribute.
+     *
+     * @param serializedAttributes the serialized attributes by attribute name.
+     * @param transcoderService the transcoder service to deserialize the attributes.
+     */
+    void setSerializedAttributes( @Nonnull final Map<String, ByteBuffer> serializedAttributes, @Nonnull final TranscoderService transcoderService ) {
+        this.attributes = new ConcurrentHashMap<String, Object>();
+        _attributesTranscoderService = transcoderService;
+        _serializedAttributes = null;
+        _serializedAttributeValues = new HashMap<String, ByteBuffer>( serializedAttributes );
+    }
+
+    /**
+     * Determines, if the session was loaded with lazy attributes deserialization and
+     * (some of) its attributes are not yet deserialized.
+     */
+    boolean hasSerializedAttributes() {
+        return _serializedAttributes != null || _serializedAttributeValues != null;
+    }
+
+    /**
+     * Deserializes the given attribute if it's not yet deserialized (if the session was loaded in the
+     * indexed format with lazy attributes deserialization), or all attributes if they're serialized
+     * together.
+     */
+    private void deserializeAttributeIfRequired( final String name ) {
+        if ( _serializedAttributeValues == null ) {
+            deserializeAttributesIfRequired();
+            return;
+        }
+        final Map<String, Object> deserialized;
+        final boolean notify;
+        synchronized ( this ) {
+            final Map<String, ByteBuffer> serializedValues = _serializedAttributeValues;
+            final ByteBuffer data = serializedValues != null ? serializedValues.remove( name ) : null;
+            if ( data == null ) {
+                return;
+            }
+            final boolean last = serializedValues.isEmpty();
+            deserialized = _attributesTranscoderService.deserializeDeferredAttributes( data, last );
+            putAttributesInternal( deserialized );
+            notify = _activationPending;
+            if ( last ) {
+                _serializedAttributeValues = null;
+                _attributesTranscoderService = null;
+                _activationPending = false;
+            }
+        }
+        if ( notify ) {
+            notifyActivation( deserialized );
+        }
+    }
+
+    /**
+     * Deserializes the serialized attributes (if the session was loaded with lazy attributes
+     * deserialization) and notifies the {@link HttpSessionActivationListener}s if the session
+     * was activated before.
+     */
+    private void deserializeAttributesIfRequired() {
+        if ( !hasSerializedAttributes() ) {
+            return;
+        }
+        final Map<String, Object> deserialized;
+        synchronized ( this ) {
+            final ByteBuffer serializedAttributes = _serializedAttributes;
+            final Map<String, ByteBuffer> serializedValues = _serializedAttributeValues;
+            if ( serializedAttributes != null ) {
+                deserialized = _attributesTranscoderService.deserializeDeferredAttributes( serializedAttributes.duplicate(), true );
+                this.attributes = deserialized;
+            }
+            else if ( serializedValues != null ) {
+                deserialized = new HashMap<String, Object>();
+                for ( final Iterator<ByteBuffer> iter = serializedValues.values().iterator(); iter.hasNext(); ) {
+                    final ByteBuffer data = iter.next();
+                    deserialized.putAll( _attributesTranscoderService.deserializeDeferredAttributes( data, !iter.hasNext() ) );
+                }
+                putAttributesInternal( deserialized );
+            }
+            else {
+                return;
+            }
+            _serializedAttributes = null;
+            _serializedAttributeValues = null;
+            _attributesTranscoderService = null;
+            if ( !_activationPending ) {
+                return;
+            }
+            _activationPending = false;
+        }
+        notifyActivation( deserialized );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void putAttributesInternal( final Map<String, Object> attributes ) {
+        this.attributes.putAll( attributes );
+    }
+
+    private void notifyActivation( final Map<String, Object> attributes ) {
+        HttpSessionEvent event = null;
+        for ( final Object value : attributes.values() ) {
+            if ( value instanceof HttpSessionActivationListener ) {
+                if ( event == null ) {
+                    event = new HttpSessionEvent( getSession() );
+                }
+                try {
+                    ( (HttpSessionActivationListener) value ).sessionDidActivate( event );
+                } catch ( final Throwable t ) {
+                    _log.error( "Could not notify attribute about the activation of session " + id, t );
+                }
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void removeAttributeInternal( final String name, final boolean notify ) {
+        deserializeAttributeIfRequired( name );
         super.removeAttributeInternal( name, notify );
     }
 
@@ -600,10 +1053,22 @@ public class MemcachedBackupSession extends StandardSession {
      */
     public void backupFinished() {
         _authenticationChanged = false;
-        _attributesAccessed = false;
+        attributesChecked();
         _sessionIdChanged = false;
     }
 
+    /**
+     * Is invoked after the modified and accessed attributes were checked for modifications (and stored
+     * if modified), so that only attributes accessed afterwards have to be checked again.
+     */
+    void attributesChecked() {
+        for ( final String name : _modifiedAttributes ) {
+            _attributeHashCodes.remove( name );
+        }
+        _modifiedAttributes.clear();
+        _accessedAttributes.clear();
+    }
+
     /**
      * Returns the value previously set by {@link #setSessionIdChanged(boolean)}.
      */
@@ -655,6 +1120,43 @@ public class MemcachedBackupSession extends StandardSession {
         _lockStatus = locked;
     }
 
+    /**
+     * Returns the cas value of this session in memcached, if it was loaded with its cas
+     * value (see {@link LockingStrategyCas}), otherwise <code>0</code>. If the session id was changed since
+     * the session was loaded (e.g. on login or on a memcached failover) there's no cas value for the new id
+     * and <code>0</code> is returned as well.
+     */
+    long getCasId() {
+        final String casSessionId = _casSessionId;
+        return casSessionId != null && casSessionId.equals( id ) ? _casId : 0;
+    }
+
+    /**
+     * Stores the cas value of this session in memcached for the current session id, so that the session can be
+     * stored with compare-and-set.
+     */
+    void setCasId( final long casId ) {
+        _casSessionId = id;
+        _casId = casId;
+    }
+
+    /**
+     * Adds the given number of memcached round trips the current request waited for.
+     */
+    synchronized void addRoundTrips( final int roundTrips ) {
+        _roundTrips += roundTrips;
+    }
+
+    /**
+     * Returns the number of memcached round trips that were added since the last invocation
+     * of this method, and resets it.
+     */
+    synchronized int getAndResetRoundTrips() {
+        final int result = _roundTrips;
+        _roundTrips = 0;
+        return result;
+    }
+
     /**
      * Returns if there was a lock created in memcached.
      */
@@ -669,6 +1171,29 @@ public class MemcachedBackupSession extends StandardSession {
         _lockStatus = null;
     }
 
+    /**
+     * Determines if this session is currently accessed by a request.
+     */
+    boolean isInUse() {
+        return _accessCount.get() > 0;
+    }
+
+    /**
+     * The new id of this session if a copy was stored under this id in the background, so that
+     * the session id shall be changed with the next request, otherwise <code>null</code>.
+     */
+    @CheckForNull
+    String getRelocationId() {
+        return _relocationId;
+    }
+
+    /**
+     * Stores the new id of this session that shall be set with the next request.
+     */
+    void setRelocationId( @Nullable final String relocationId ) {
+        _relocationId = relocationId;
+    }
+
     /**
      * Register the current thread to hold a reference on this session.
      * @return <code>true</code> if this thread did not hold already the reference,
@@ -677,7 +1202,7 @@ public class MemcachedBackupSession extends StandardSession {
      * @see #releaseReference()
      * @see #getRefCount()
      */
-    public synchronized boolean registerReference() {
+    public boolean registerReference() {
         return _refCount.add(Thread.currentThread().getId());
     }
 
@@ -697,7 +1222,7 @@ public class MemcachedBackupSession extends StandardSession {
      * @see #registerReference()
      * @see #getRefCount()
      */
-    public synchronized int releaseReference() {
+    public int releaseReference() {
         _refCount.remove(Thread.currentThread().getId());
         return _refCount.size();
     }
@@ -34,6 +34,7 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+import de.javakaffee.web.msm.NodeSelectionStrategy.NodeSelectionMode;
 
 
 /**
@@ -64,21 +65,33 @@ public class MemcachedNodesManager {
     private static final String SINGLE_NODE_REGEX = "([^:]+):([\\d]+)";
     private static final Pattern SINGLE_NODE_PATTERN = Pattern.compile( SINGLE_NODE_REGEX );
 
+    private static final String KETAMA_NODE_REGEX = "([^:\\s,]+):([\\d]+)(?::([\\d]+))?";
+    private static final Pattern KETAMA_NODE_PATTERN = Pattern.compile( KETAMA_NODE_REGEX );
+
+    private static final String KETAMA_NODES_REGEX = KETAMA_NODE_REGEX + "(?:(?:\\s+|,)" + KETAMA_NODE_REGEX + ")+";
+    private static final Pattern KETAMA_NODES_PATTERN = Pattern.compile( KETAMA_NODES_REGEX );
+
     private static final String COUCHBASE_BUCKET_NODE_REGEX = "http://([^:]+):([\\d]+)/[\\w]+";
     private static final Pattern COUCHBASE_BUCKET_NODE_PATTERN = Pattern.compile( COUCHBASE_BUCKET_NODE_REGEX );
 
     private static final String COUCHBASE_BUCKET_NODES_REGEX = COUCHBASE_BUCKET_NODE_REGEX + "(?:(?:\\s+|,)" + COUCHBASE_BUCKET_NODE_REGEX + ")*";
     private static final Pattern COUCHBASE_BUCKET_NODES_PATTERN = Pattern.compile( COUCHBASE_BUCKET_NODES_REGEX );
 
-    private static final int NODE_AVAILABILITY_CACHE_TTL = 50;
+    private static final int NODE_HEALTH_PROBE_INTERVAL = 50;
+    private static final int NODE_HEALTH_OPEN_DURATION = 200;
 
 	private final String _memcachedNodes;
     private final NodeIdList _primaryNodeIds;
     private final List<String> _failoverNodeIds;
     private final LinkedHashMap<InetSocketAddress, String> _address2Ids;
     private final boolean _encodeNodeIdInSessionId;
+    private final LinkedHashMap<InetSocketAddress, Integer> _address2Weights;
+    @Nullable
+    private final WeightedKetamaNodeLocator.Ring<InetSocketAddress> _ring;
     @Nullable
 	private NodeIdService _nodeIdService;
+    @Nullable
+    private NodeHealthMonitor<String> _nodeHealthMonitor;
 	private SessionIdFormat _sessionIdFormat;
 
     /**
@@ -93,20 +106,49 @@ public class MemcachedNodesManager {
 	public MemcachedNodesManager(final String memcachedNodes, @Nonnull final NodeIdList primaryNodeIds, @Nonnull final List<String> failoverNodeIds,
 			@Nonnull final LinkedHashMap<InetSocketAddress, String> address2Ids,
 			@Nullable final MemcachedClientCallback memcachedClientCallback) {
+		this(memcachedNodes, primaryNodeIds, failoverNodeIds, address2Ids, new LinkedHashMap<InetSocketAddress, Integer>(), memcachedClientCallback);
+	}
+
+    /**
+     *
+     * @param memcachedNodes the original memcachedNodes configuration string
+     * @param primaryNodeIds the list of primary node ids (memcachedNodes without failoverNodes).
+     * @param failoverNodeIds the configured failover node ids.
+     * @param address2Ids a mapping of inet addresses from the memcachedNodes configuration to their node ids.
+     * @param address2Weights the weights of the nodes if sessions are distributed with consistent hashing,
+     * 		otherwise empty.
+     * @param memcachedClientCallback a callback to memcached, can only be null if the memcachedNodes config
+     * 		contains a single node without node id.
+     */
+	public MemcachedNodesManager(final String memcachedNodes, @Nonnull final NodeIdList primaryNodeIds, @Nonnull final List<String> failoverNodeIds,
+			@Nonnull final LinkedHashMap<InetSocketAddress, String> address2Ids,
+			@Nonnull final LinkedHashMap<InetSocketAddress, Integer> address2Weights,
+			@Nullable final MemcachedClientCallback memcachedClientCallback) {
 		_memcachedNodes = memcachedNodes;
 		_primaryNodeIds = primaryNodeIds;
 		_failoverNodeIds = failoverNodeIds;
 		_address2Ids = address2Ids;
+		_address2Weights = address2Weights;
+		if ( isConsistentHashing() ) {
+			final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>( address2Weights.keySet() );
+			_ring = new WeightedKetamaNodeLocator.Ring<InetSocketAddress>( addresses, addresses, address2Weights );
+		}
+		else {
+			_ring = null;
+		}
 
-        _encodeNodeIdInSessionId = !((getCountNodes() <= 1 || isCouchbaseConfig(memcachedNodes)) && _primaryNodeIds.isEmpty());
+        _encodeNodeIdInSessionId = !((getCountNodes() <= 1 || isCouchbaseConfig(memcachedNodes) || isConsistentHashing())
+                && _primaryNodeIds.isEmpty());
 
 		if (_encodeNodeIdInSessionId) {
 			if (memcachedClientCallback == null) {
 				throw new IllegalArgumentException("The MemcachedClientCallback must not be null.");
 			}
 			_sessionIdFormat = new SessionIdFormat();
-	        _nodeIdService = new NodeIdService( createNodeAvailabilityCache( getCountNodes(), NODE_AVAILABILITY_CACHE_TTL, memcachedClientCallback ),
-	        				primaryNodeIds, failoverNodeIds );
+			final List<String> nodeIds = new ArrayList<String>( primaryNodeIds );
+			nodeIds.addAll( failoverNodeIds );
+			_nodeHealthMonitor = createNodeHealthMonitor( nodeIds, memcachedClientCallback );
+	        _nodeIdService = new NodeIdService( _nodeHealthMonitor, primaryNodeIds, failoverNodeIds );
 		}
 		else {
 			_sessionIdFormat = new SessionIdFormat() {
@@ -135,9 +177,13 @@ public class MemcachedNodesManager {
         return memcachedNodes.startsWith("http://");
     }
 
-    protected NodeAvailabilityCache<String> createNodeAvailabilityCache( final int size, final long ttlInMillis,
+    /**
+     * Creates the monitor that pings the given nodes in the background, so that request threads
+     * don't have to wait for an unavailable node to answer.
+     */
+    protected NodeHealthMonitor<String> createNodeHealthMonitor( @Nonnull final List<String> nodeIds,
             @Nonnull final MemcachedClientCallback memcachedClientCallback ) {
-        return new NodeAvailabilityCache<String>( size, ttlInMillis, new CacheLoader<String>() {
+        return new NodeHealthMonitor<String>( nodeIds, new CacheLoader<String>() {
 
             @Override
             public boolean isNodeAvailable( final String key ) {
@@ -149,7 +195,38 @@ public class MemcachedNodesManager {
                 }
             }
 
-        } );
+        }, NODE_HEALTH_PROBE_INTERVAL, NODE_HEALTH_OPEN_DURATION );
+    }
+
+    /**
+     * Sets the mode that determines how the node for new and relocated sessions is selected.
+     * This has no effect if node ids are not encoded in session ids.
+     *
+     * @param mode the node selection mode, <code>null</code> for {@link NodeSelectionMode#RANDOM}.
+     */
+    public void setNodeSelectionMode( @Nullable final NodeSelectionMode mode ) {
+        if ( _nodeIdService != null ) {
+            _nodeIdService.setNodeSelectionStrategy( NodeSelectionStrategy.create( mode, _nodeHealthMonitor ) );
+        }
+    }
+
+    /**
+     * Starts monitoring the memcached nodes, this must be invoked when the memcached client
+     * for this configuration is in use (the nodes are pinged via the {@link MemcachedClientCallback}).
+     */
+    public void start() {
+        if ( _nodeHealthMonitor != null ) {
+            _nodeHealthMonitor.start();
+        }
+    }
+
+    /**
+     * Stops the background monitoring of the memcached nodes.
+     */
+    public void shutdown() {
+        if ( _nodeHealthMonitor != null ) {
+            _nodeHealthMonitor.shutdown();
+        }
     }
 
 	/**
@@ -158,6 +235,10 @@ public class MemcachedNodesManager {
 	 * <ul>
 	 * <li><code>&lt;hostOrIPAddress&gt;:&lt;port&gt;</code> - e.g. <code>localhost:11211</code></li>
 	 * <li><code>&lt;http://hostOrIPAddress&gt;:&lt;port&gt;/&lt;path&gt;</code> - e.g. <code>http://localhost:8091/pools</code></li>
+	 * <li><code>&lt;hostOrIPAddress&gt;:&lt;port&gt;[:&lt;weight&gt;]([ ,]&lt;hostOrIPAddress&gt;:&lt;port&gt;[:&lt;weight&gt;])+</code> -
+	 * 	multiple nodes without node ids, sessions are distributed with consistent hashing (see {@link WeightedKetamaNodeLocator}),
+	 * 	a node with weight 2 gets twice as many sessions as a node with weight 1 (default), e.g.
+	 * 	<code>host1:11211,host2:11211:2</code></li>
 	 * <li><code>&lt;nodeId&gt;:&lt;hostOrIPAddress&gt;:&lt;port&gt;</code> - e.g. <code>n1:localhost:11211</code></li>
 	 * <li><code>&lt;nodeId&gt;:&lt;hostOrIPAddress&gt;:&lt;port&gt;([ ,]&lt;nodeId&gt;:&lt;hostOrIPAddress&gt;:&lt;port&gt;)+</code> - e.g.
 	 * 	<ul>
@@ -178,7 +259,8 @@ public class MemcachedNodesManager {
 		}
 
         if ( !NODES_PATTERN.matcher( memcachedNodes ).matches() && !SINGLE_NODE_PATTERN.matcher(memcachedNodes).matches()
-        		&& !COUCHBASE_BUCKET_NODES_PATTERN.matcher(memcachedNodes).matches()) {
+        		&& !COUCHBASE_BUCKET_NODES_PATTERN.matcher(memcachedNodes).matches()
+        		&& !KETAMA_NODES_PATTERN.matcher(memcachedNodes).matches()) {
             throw new IllegalArgumentException( "Configured memcachedNodes attribute has wrong format, must match " + NODES_REGEX );
         }
 
@@ -186,6 +268,7 @@ public class MemcachedNodesManager {
 
         // we have a linked hashmap to have insertion order for addresses
         final LinkedHashMap<InetSocketAddress, String> address2Ids = new LinkedHashMap<InetSocketAddress, String>(1);
+        final LinkedHashMap<InetSocketAddress, Integer> address2Weights = new LinkedHashMap<InetSocketAddress, Integer>(1);
 
         /**
          * If mutliple nodes are configured
@@ -205,6 +288,18 @@ public class MemcachedNodesManager {
                         + " this is a configuration failure. In this case, you probably want to leave out the failoverNodes.");
             }
         }
+        else if (KETAMA_NODES_PATTERN.matcher(memcachedNodes).matches()) {    // for consistent hashing
+            final Matcher matcher = KETAMA_NODE_PATTERN.matcher(memcachedNodes);
+            while (matcher.find()) {
+                final InetSocketAddress address = new InetSocketAddress( matcher.group( 1 ), Integer.parseInt( matcher.group( 2 ) ) );
+                final int weight = matcher.group( 3 ) != null ? Integer.parseInt( matcher.group( 3 ) ) : 1;
+                if ( weight < 1 ) {
+                    throw new IllegalArgumentException( "The weight of node " + address + " must be positive, but was " + weight );
+                }
+                address2Ids.put(address, null);
+                address2Weights.put(address, weight);
+            }
+        }
         else { // If mutliple nodes are configured
             final Matcher matcher = NODE_PATTERN.matcher( memcachedNodes);
             while (matcher.find()) {
@@ -232,7 +327,7 @@ public class MemcachedNodesManager {
 	        }
         }
 
-		return new MemcachedNodesManager(memcachedNodes, primaryNodeIds, failoverNodeIds, address2Ids, memcachedClientCallback);
+		return new MemcachedNodesManager(memcachedNodes, primaryNodeIds, failoverNodeIds, address2Ids, address2Weights, memcachedClientCallback);
 	}
 
     private static InetSocketAddress getSingleShortNodeDefinition(final Matcher singleNodeMatcher) {
@@ -274,6 +369,22 @@ public class MemcachedNodesManager {
 		return _memcachedNodes;
 	}
 
+	/**
+	 * Determines if sessions are distributed across multiple memcached nodes with consistent hashing,
+	 * which is the case if multiple nodes are configured without node ids.
+	 */
+	public boolean isConsistentHashing() {
+		return !_address2Weights.isEmpty();
+	}
+
+	/**
+	 * The weights of the memcached nodes if sessions are distributed with consistent hashing, otherwise empty.
+	 */
+	@Nonnull
+	public Map<InetSocketAddress, Integer> getNodeWeights() {
+		return _address2Weights;
+	}
+
 	/**
 	 * Returns the number of memcached nodes.
 	 */
@@ -487,6 +598,67 @@ public class MemcachedNodesManager {
 		return null;
 	}
 
+	/**
+	 * Determines the session id a session should have after the memcached nodes were changed from the
+	 * given previous configuration to this one, so that sessions are moved to nodes that were added
+	 * (or away from nodes that were removed).
+	 * <p>
+	 * If node ids are encoded in session ids the home node of a session is selected via rendezvous hashing
+	 * across the available primary nodes. A session is only moved if its home node was added with this
+	 * configuration or if its current node is no longer a primary node, so that ~1/n of the sessions are
+	 * moved to each new node and sessions are not shuffled between nodes that were already known.
+	 * If sessions are distributed with consistent hashing the session id stays the same, the session only
+	 * has to be stored again if its node on the ring has changed.
+	 * </p>
+	 *
+	 * @param sessionId the id of the session that is checked.
+	 * @param previous the previous configuration.
+	 * @return the new session id (or the given session id if it only has to be stored again), or <code>null</code>
+	 * 		if the session can stay where it is.
+	 */
+	@CheckForNull
+	public String getRebalancedSessionId( @Nonnull final String sessionId, @Nonnull final MemcachedNodesManager previous ) {
+		if ( _ring != null ) {
+			return previous._ring != null && !_ring.getPrimary( sessionId ).equals( previous._ring.getPrimary( sessionId ) )
+					? sessionId
+					: null;
+		}
+		if ( !isEncodeNodeIdInSessionId() ) {
+			return null;
+		}
+		final String nodeId = _sessionIdFormat.extractMemcachedId( sessionId );
+		final String homeNodeId = getHomeNodeId( sessionId );
+		if ( nodeId == null || homeNodeId == null || homeNodeId.equals( nodeId ) ) {
+			return null;
+		}
+		if ( _primaryNodeIds.contains( nodeId ) && previous._primaryNodeIds.contains( homeNodeId ) ) {
+			return null;
+		}
+		return _sessionIdFormat.createNewSessionId( sessionId, homeNodeId );
+	}
+
+	/**
+	 * The available primary node with the highest hash for the session id (without node id and jvm route).
+	 */
+	@CheckForNull
+	private String getHomeNodeId( @Nonnull final String sessionId ) {
+		final String plainSessionId = _sessionIdFormat.stripJvmRoute( sessionId );
+		final int idxDash = plainSessionId.indexOf( '-' );
+		final String key = idxDash < 0 ? plainSessionId : plainSessionId.substring( 0, idxDash );
+		String result = null;
+		long max = -1;
+		for ( final String nodeId : _primaryNodeIds ) {
+			if ( isNodeAvailable( nodeId ) ) {
+				final long hash = WeightedKetamaNodeLocator.hash( nodeId + "-" + key );
+				if ( hash > max ) {
+					max = hash;
+					result = nodeId;
+				}
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * Determines, if the current memcachedNodes configuration is a couchbase bucket configuration
 	 * (like e.g. http://10.10.0.1:8091/pools).
@@ -17,16 +17,24 @@
 package de.javakaffee.web.msm;
 
 
+import static de.javakaffee.web.msm.SessionValidityInfo.createValidityInfoKeyName;
+import static de.javakaffee.web.msm.SessionValidityInfo.decode;
 import static de.javakaffee.web.msm.Statistics.StatsType.DELETE_FROM_MEMCACHED;
 import static de.javakaffee.web.msm.Statistics.StatsType.LOAD_FROM_MEMCACHED;
+import static de.javakaffee.web.msm.Statistics.StatsType.NON_STICKY_ROUND_TRIPS;
 import static de.javakaffee.web.msm.Statistics.StatsType.SESSION_DESERIALIZATION;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
@@ -38,6 +46,7 @@ import net.spy.memcached.BinaryConnectionFactory;
 import net.spy.memcached.ConnectionFactory;
 import net.spy.memcached.ConnectionFactoryBuilder;
 import net.spy.memcached.DefaultConnectionFactory;
+import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.auth.AuthDescriptor;
 import net.spy.memcached.auth.PlainCallbackHandler;
@@ -61,7 +70,9 @@ import com.couchbase.client.CouchbaseConnectionFactoryBuilder;
 import de.javakaffee.web.msm.BackupSessionService.SimpleFuture;
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
 import de.javakaffee.web.msm.LockingStrategy.LockingMode;
+import de.javakaffee.web.msm.LockingStrategy.ValidityInfoWrite;
 import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+import de.javakaffee.web.msm.NodeSelectionStrategy.NodeSelectionMode;
 import net.spy.memcached.FailureMode;
 
 /**
@@ -129,6 +140,16 @@ public class MemcachedSessionService {
      */
     protected static final String NEW_SESSION_ID = "msm.session.id";
 
+    /**
+     * The number of sessions that are checked per batch when sessions are moved after the memcached nodes were changed.
+     */
+    static final int REBALANCE_BATCH_SIZE = 100;
+
+    /**
+     * The delay in millis between two batches of sessions that are moved after the memcached nodes were changed.
+     */
+    static final long REBALANCE_BATCH_INTERVAL = 250;
+
     protected final Log _log = LogFactory.getLog( getClass() );
 
     // -------------------- configuration properties --------------------
@@ -224,6 +245,28 @@ public class MemcachedSessionService {
 
     private int _backupThreadCount = Runtime.getRuntime().availableProcessors();
 
+    private boolean _storeAttributesSeparately = false;
+
+    private int _backupBatchWindow = 0;
+
+    private int _backupBatchQueueSize = 1000;
+
+    private int _compressionThreshold = 0;
+
+    private String _compressorClassName = DeflateCompressor.class.getName();
+
+    private int _compressionDictionarySamples = 0;
+
+    private boolean _lazyAttributesDeserialization = false;
+
+    private boolean _indexedAttributes = false;
+
+    private int _nonStickyNearCacheSize = 0;
+
+    private CasConflictPolicy _casConflictPolicy = CasConflictPolicy.MERGE;
+
+    private NodeSelectionMode _nodeSelectionMode = NodeSelectionMode.RANDOM;
+
     private String _memcachedProtocol = PROTOCOL_TEXT;
 
     private String _username;
@@ -245,15 +288,42 @@ public class MemcachedSessionService {
      * that we don't have locally stored each findSession invocation would
      * trigger a memcached request - this would open the door for DOS attacks...
      *
-     * this solution: use a LRUCache with a timeout to store, which session had
-     * been requested in the last <n> millis.
+     * this solution: remember the ids of sessions that were not found in memcached
+     * for a short time. The rotating bloom filters hold many ids (e.g. from crawlers
+     * with stale cookies or an attacker) in bounded memory.
+     */
+    private MissingSessionsCache _missingSessionsCache;
+
+    /*
+     * Caches non-sticky sessions locally, null if disabled
      */
-    private LRUCache<String, Boolean> _missingSessionsCache;
+    private SessionNearCache _nearCache;
+
+    /*
+     * Monitors per session id for the refcount handling of non-sticky sessions, striped
+     * so that requests for different sessions don't contend for a single monitor
+     */
+    private final StripedLock _sessionLocks = new StripedLock();
+
+    /*
+     * Sticky sessions by the time their expiration in memcached must be updated
+     */
+    private final SessionExpirationIndex _expirationIndex = new SessionExpirationIndex();
+
+    /*
+     * Coalesces concurrent loads of the same session from memcached
+     */
+    private SingleFlightLoader<MemcachedBackupSession> _sessionLoader;
 
 	private MemcachedNodesManager _memcachedNodesManager;
 
     //private LRUCache<String, String> _relocatedSessions;
 
+    /*
+     * Moves sticky sessions to their new home nodes after the memcached nodes were changed
+     */
+    private SessionRebalancer _sessionRebalancer;
+
     protected TranscoderService _transcoderService;
 
     private TranscoderFactory _transcoderFactory;
@@ -272,9 +342,9 @@ public class MemcachedSessionService {
     private Boolean _contextHasFormBasedSecurityConstraint;
 
     private final SessionManager _manager;
-	private final MemcachedClientCallback _memcachedClientCallback = createMemcachedClientCallback();
+	private MemcachedClientCallback _memcachedClientCallback = createMemcachedClientCallback();
 
-    private final LRUCache<String, Object> _removedSessions = new LRUCache<String, Object>( 2000, 5000 );
+    private final ConcurrentLRUCache<String, Object> _removedSessions = new ConcurrentLRUCache<String, Object>( 2000, 5000 );
 
     public MemcachedSessionService( final SessionManager manager ) {
         _manager = manager;
@@ -401,13 +471,22 @@ public class MemcachedSessionService {
         _manager.getContainer().getParent().getPipeline().removeValve(_trackingHostValve);
         _manager.getContainer().getPipeline().removeValve(_trackingContextValve);
         _backupSessionService.shutdown();
+        if ( _sessionRebalancer != null ) {
+            _sessionRebalancer.shutdown();
+        }
         if ( _lockingStrategy != null ) {
             _lockingStrategy.shutdown();
         }
+        if ( _memcachedNodesManager != null ) {
+            _memcachedNodesManager.shutdown();
+        }
         if ( _memcached != null ) {
             _memcached.shutdown();
             _memcached = null;
         }
+        if ( _transcoderService != null ) {
+            _transcoderService.clearBufferPools();
+        }
         _transcoderFactory = null;
     }
 
@@ -437,10 +516,15 @@ public class MemcachedSessionService {
         if(_memcached == null) {
             _memcached = createMemcachedClient( _memcachedNodesManager, _statistics );
         }
+        _memcachedNodesManager.start();
 
-        /* create the missing sessions cache
+        /* create the missing sessions cache, a false positive makes an existing session
+         * look missing (so that the user gets a new session), which must practically never happen
          */
-        _missingSessionsCache = new LRUCache<String, Boolean>( 200, 500 );
+        _missingSessionsCache = new MissingSessionsCache( 250000, 1e-12, 250 );
+
+        _sessionLoader = new SingleFlightLoader<MemcachedBackupSession>( _statistics );
+        _nearCache = _nonStickyNearCacheSize > 0 ? new SessionNearCache( _nonStickyNearCacheSize ) : null;
 
         final String sessionCookieName = _manager.getSessionCookieName();
         _currentRequest = new CurrentRequest();
@@ -454,7 +538,15 @@ public class MemcachedSessionService {
         _transcoderService = createTranscoderService( _statistics );
 
         _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+                _backupThreadCount, _storeAttributesSeparately, _backupBatchWindow, _backupBatchQueueSize,
+                _memcached, _memcachedNodesManager, _casConflictPolicy, _statistics );
+
+        _sessionRebalancer = new SessionRebalancer( new SessionRebalancer.SessionRelocator() {
+            @Override
+            public boolean relocate( final String sessionId, final MemcachedNodesManager previous ) throws InterruptedException {
+                return relocateSession( sessionId, previous );
+            }
+        }, REBALANCE_BATCH_SIZE, REBALANCE_BATCH_INTERVAL );
 
         _log.info( getClass().getSimpleName() + " finished initialization, sticky "+ _sticky + ", operation timeout " + _operationTimeout +", with node ids " +
         		_memcachedNodesManager.getPrimaryNodeIds() + " and failover node ids " + _memcachedNodesManager.getFailoverNodeIds() );
@@ -471,11 +563,44 @@ public class MemcachedSessionService {
 	}
 
     protected MemcachedNodesManager createMemcachedNodesManager(final String memcachedNodes, final String failoverNodes) {
-		return MemcachedNodesManager.createFor( memcachedNodes, failoverNodes, _memcachedClientCallback );
+		final MemcachedNodesManager result = MemcachedNodesManager.createFor( memcachedNodes, failoverNodes, _memcachedClientCallback );
+		result.setNodeSelectionMode( _nodeSelectionMode );
+		return result;
 	}
 
     private TranscoderService createTranscoderService( final Statistics statistics ) {
-        return new TranscoderService( getTranscoderFactory().createTranscoder( _manager ) );
+        final CompressionDictionaryService dictionaryService = _compressionThreshold > 0 && _compressionDictionarySamples > 0
+            ? new CompressionDictionaryService( new CompressionDictionaryService.MemcachedProvider() {
+                    // the client and the nodes manager are replaced if the memcached nodes are changed at runtime
+                    @Override
+                    public MemcachedClient getMemcached() {
+                        return _memcached;
+                    }
+                    @Override
+                    public MemcachedNodesManager getMemcachedNodesManager() {
+                        return _memcachedNodesManager;
+                    }
+                }, _compressionDictionarySamples, CompressionDictionaryService.DEFAULT_DICTIONARY_SIZE )
+            : null;
+        return new TranscoderService( getTranscoderFactory().createTranscoder( _manager ), new BufferPool(),
+                createCompressor(), _compressionThreshold, dictionaryService, _indexedAttributes, statistics );
+    }
+
+    private Compressor createCompressor() {
+        _log.info( "Creating compressor " + _compressorClassName );
+        final ClassLoader classLoader = _manager.getContainer().getLoader().getClassLoader();
+        try {
+            Class<? extends Compressor> compressorClass;
+            try {
+                compressorClass = Class.forName( _compressorClassName, false, classLoader ).asSubclass( Compressor.class );
+            } catch ( final ClassNotFoundException e ) {
+                _log.info( "Could not load compressor class with classloader "+ classLoader +", trying " + getClass().getClassLoader() );
+                compressorClass = Class.forName( _compressorClassName, false, getClass().getClassLoader() ).asSubclass( Compressor.class );
+            }
+            return compressorClass.newInstance();
+        } catch ( final Exception e ) {
+            throw new RuntimeException( "Could not create compressor.", e );
+        }
     }
 
     protected TranscoderFactory getTranscoderFactory() {
@@ -513,6 +638,14 @@ public class MemcachedSessionService {
 
     protected ConnectionFactory createConnectionFactory(final MemcachedNodesManager memcachedNodesManager,
             final ConnectionType connectionType, final Statistics statistics ) {
+        if (memcachedNodesManager.isConsistentHashing()) {
+            final boolean binary = PROTOCOL_BINARY.equals( _memcachedProtocol );
+            final AuthDescriptor authDescriptor = binary && connectionType.isSASL()
+                    ? new AuthDescriptor(new String[]{"PLAIN"}, new PlainCallbackHandler(_username, _password))
+                    : null;
+            return new KetamaLocatorConnectionFactory( memcachedNodesManager.getNodeWeights(), binary, statistics,
+                    _operationTimeout, authDescriptor );
+        }
         if (PROTOCOL_BINARY.equals( _memcachedProtocol )) {
             if (connectionType.isSASL()) {
                 final AuthDescriptor authDescriptor = new AuthDescriptor(new String[]{"PLAIN"}, new PlainCallbackHandler(_username, _password));
@@ -592,7 +725,7 @@ public class MemcachedSessionService {
                 result.registerReference();
             }
         }
-        else if ( canHitMemcached( id ) && _missingSessionsCache.get( id ) == null ) {
+        else if ( canHitMemcached( id ) && !_missingSessionsCache.contains( id ) ) {
             // when the request comes from the container, it's from CoyoteAdapter.postParseRequest
             // or AuthenticatorBase.invoke (for some kind of security-constraint, where a form-based
             // constraint needs the session to get the authenticated principal)
@@ -610,35 +743,50 @@ public class MemcachedSessionService {
                 return null;
             }
 
-            // else load the session from memcached
-            result = loadFromMemcached( id );
+            // else load the session from memcached, concurrent requests for this session wait for
+            // the same load so that the session is fetched and deserialized only once
+            result = _sessionLoader.load( id, new Callable<MemcachedBackupSession>() {
+                @Override
+                public MemcachedBackupSession call() {
+                    return loadFromMemcachedAndAdd( id );
+                }
+            } );
             // checking valid() would expire() the session if it's not valid!
-            if ( result != null && result.isValid() ) {
-                if(!_sticky) {
-                    // synchronized to have correct refcounts
-                    synchronized (_manager.getSessionsInternal()) {
-                        // in the meantime another request might have loaded and added the session,
-                        // and we must ensure to have a single session instance per id to have
-                        // correct refcounts (otherwise a session might be removed from the map at
-                        // the end of #backupSession
-                        if(_manager.getSessionInternal(id) != null) {
-                            result = _manager.getSessionInternal(id);
-                        }
-                        else {
-                            addValidLoadedSession(result);
-                        }
-                        result.registerReference();
-                        // _log.info("Registering reference, isContainerSessionLookup(): " + isContainerSessionLookup(), new RuntimeException("foo"));
+            if ( result != null && !_sticky && result.isValid() ) {
+                // synchronized to have correct refcounts
+                synchronized (_sessionLocks.getLock(id)) {
+                    // in the meantime another request might have loaded and added the session,
+                    // and we must ensure to have a single session instance per id to have
+                    // correct refcounts (otherwise a session might be removed from the map at
+                    // the end of #backupSession
+                    if(_manager.getSessionInternal(id) != null) {
+                        result = _manager.getSessionInternal(id);
                     }
-                }
-                else {
-                    addValidLoadedSession(result);
+                    else {
+                        addValidLoadedSession(result);
+                    }
+                    result.registerReference();
+                    // _log.info("Registering reference, isContainerSessionLookup(): " + isContainerSessionLookup(), new RuntimeException("foo"));
                 }
             }
         }
         return result;
     }
 
+    /**
+     * Loads the session from memcached, a valid sticky session is also added to the manager. This
+     * is done only once for concurrent requests, non-sticky sessions are added (and referenced)
+     * by each request in {@link #findSession(String)}.
+     */
+    private MemcachedBackupSession loadFromMemcachedAndAdd( final String id ) {
+        final MemcachedBackupSession result = loadFromMemcached( id );
+        // checking valid() would expire() the session if it's not valid!
+        if ( result != null && _sticky && result.isValid() ) {
+            addValidLoadedSession( result );
+        }
+        return result;
+    }
+
     /**
      * Is used to determine if this thread / the current request already hit the application or if this method
      * invocation comes from the container.
@@ -737,12 +885,16 @@ public class MemcachedSessionService {
      * @param session the removed session.
      */
     public void sessionRemoved(final MemcachedBackupSession session) {
+        _expirationIndex.remove( session );
         if(!_sticky) {
             if(session.isLocked()) {
                 _lockingStrategy.releaseLock(session.getIdInternal());
                 session.releaseLock();
             }
             _removedSessions.put(session.getIdInternal(), "unused");
+            if ( _nearCache != null ) {
+                _nearCache.remove( session.getIdInternal() );
+            }
         }
     }
 
@@ -841,10 +993,16 @@ public class MemcachedSessionService {
             }
             try {
                 final long start = System.currentTimeMillis();
-                _memcached.delete( sessionId ).get();
+                // the attributes first, as their keys might have to be read from the session data
+                deleteAttributesFromMemcached( sessionId );
+                // through the backup writer, so that the delete is not overtaken by still queued writes
+                _backupSessionService.getBackupWriter().delete( sessionId ).get();
                 _statistics.registerSince( DELETE_FROM_MEMCACHED, start );
                 if ( !_sticky ) {
-                    _lockingStrategy.onAfterDeleteFromMemcached( sessionId );
+                    _lockingStrategy.onAfterDeleteFromMemcached( sessionId, _backupSessionService );
+                    if ( _nearCache != null ) {
+                        _nearCache.remove( sessionId );
+                    }
                 }
             } catch ( final Throwable e ) {
                 _log.info( "Could not delete session from memcached.", e );
@@ -852,6 +1010,25 @@ public class MemcachedSessionService {
         }
     }
 
+    /**
+     * Deletes the separately stored attributes of the session with the given id. If the session
+     * is not known locally the attribute keys are read from the session data in memcached,
+     * so this must be invoked before the session itself is deleted.
+     */
+    private void deleteAttributesFromMemcached( @Nonnull final String sessionId ) {
+        final MemcachedBackupSession session = _manager.getSessionInternal( sessionId );
+        AttributesManifest manifest = session != null ? session.getAttributesManifest() : null;
+        if ( manifest == null && _storeAttributesSeparately ) {
+            final Object data = _memcached.get( sessionId );
+            manifest = data instanceof byte[] ? TranscoderService.getAttributesManifest( (byte[]) data ) : null;
+        }
+        if ( manifest != null ) {
+            for ( final Integer slot : manifest.getSlots() ) {
+                _backupSessionService.getBackupWriter().delete( getSessionIdFormat().createAttributeKey( sessionId, slot ) );
+            }
+        }
+    }
+
     /**
      * Check if the valid session associated with the provided
      * requested session Id will be relocated with the next {@link #backupSession(Session, boolean)}
@@ -884,10 +1061,12 @@ public class MemcachedSessionService {
                 	final String newSessionId = _memcachedNodesManager.getNewSessionIdIfNodeFromSessionIdUnavailable( session.getId() );
                     if ( newSessionId != null ) {
                         _log.debug( "Session needs to be relocated, setting new id on session..." );
+                        session.setRelocationId( null );
                         session.setIdForRelocate( newSessionId );
                         _statistics.requestWithMemcachedFailover();
                         return newSessionId;
                     }
+                    return changeSessionIdOnRebalancing( session );
                 }
             } else {
 
@@ -914,6 +1093,40 @@ public class MemcachedSessionService {
         return null;
     }
 
+    /**
+     * Changes the id of a sticky session, that was copied to its new home node in the background (see
+     * {@link #relocateSession(String, MemcachedNodesManager)}), to the id the copy was stored with.
+     * The data stored with the former id is kept until now, in case of a tomcat failover before
+     * the client got the new session id.
+     *
+     * @return the new session id or <code>null</code> if the session was not copied.
+     */
+    @CheckForNull
+    private String changeSessionIdOnRebalancing( @Nonnull final MemcachedBackupSession session ) {
+        final String relocationId = session.getRelocationId();
+        if ( relocationId == null ) {
+            return null;
+        }
+        session.setRelocationId( null );
+        final String nodeId = getSessionIdFormat().extractMemcachedId( relocationId );
+        if ( !_memcachedNodesManager.getPrimaryNodeIds().contains( nodeId ) || !_memcachedNodesManager.isNodeAvailable( nodeId ) ) {
+            _log.debug( "Not changing the id of session " + session.getIdInternal() + " to " + relocationId + ", the node is not available." );
+            return null;
+        }
+        final String sessionId = session.getIdInternal();
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Session " + sessionId + " was moved to another node, changing id to " + relocationId );
+        }
+        try {
+            deleteAttributesFromMemcached( sessionId );
+            _backupSessionService.getBackupWriter().delete( sessionId );
+        } catch ( final IllegalArgumentException e ) {
+            _log.debug( "The former node of session " + sessionId + " was removed, nothing to delete." );
+        }
+        session.setIdForRelocate( relocationId );
+        return relocationId;
+    }
+
     @CheckForNull
     private MemcachedBackupSession loadBackupSession( @Nonnull final String requestedSessionId ) {
 
@@ -1002,7 +1215,7 @@ public class MemcachedSessionService {
                 return;
             }
 
-            synchronized (_manager.getSessionsInternal()) {
+            synchronized (_sessionLocks.getLock(sessionId)) {
                 // if another thread in the meantime retrieved the session
                 // we must not remove it as this would case session data loss
                 // for the other request
@@ -1020,6 +1233,7 @@ public class MemcachedSessionService {
                 msmSession.releaseLock();
                 _lockingStrategy.registerReadonlyRequest(requestId);
             }
+            _statistics.register( NON_STICKY_ROUND_TRIPS, msmSession.getAndResetRoundTrips() );
 
         }
     }
@@ -1063,7 +1277,7 @@ public class MemcachedSessionService {
         }
 
         if ( !_sticky ) {
-            synchronized (_manager.getSessionsInternal()) {
+            synchronized (_sessionLocks.getLock(sessionId)) {
                 // if another thread in the meantime retrieved the session
                 // we must not remove it as this would case session data loss
                 // for the other request
@@ -1078,10 +1292,18 @@ public class MemcachedSessionService {
         }
 
         final boolean force = sessionIdChanged || msmSession.isSessionIdChanged() || !_sticky && (msmSession.getSecondsSinceLastBackup() >= msmSession.getMaxInactiveInterval());
+        /* For non-sticky sessions the validity info is written before, so that it's written
+         * concurrently with the session data.
+         */
+        final ValidityInfoWrite validityInfoWrite = !_sticky ? _lockingStrategy.onBeforeBackupSession( msmSession, _backupSessionService ) : null;
         final Future<BackupResult> result = _backupSessionService.backupSession( msmSession, force );
 
         if ( !_sticky ) {
-            _lockingStrategy.onAfterBackupSession( msmSession, force, result, requestId, _backupSessionService );
+            if ( _nearCache != null ) {
+                _nearCache.onBackup( msmSession, result );
+            }
+            _lockingStrategy.onAfterBackupSession( msmSession, force, result, validityInfoWrite, requestId, _backupSessionService );
+            _statistics.register( NON_STICKY_ROUND_TRIPS, msmSession.getAndResetRoundTrips() );
         }
 
         return result;
@@ -1093,7 +1315,7 @@ public class MemcachedSessionService {
     }
 
     protected MemcachedBackupSession loadFromMemcachedWithCheck( final String sessionId ) {
-        if ( !canHitMemcached( sessionId ) || _missingSessionsCache.get( sessionId ) != null ) {
+        if ( !canHitMemcached( sessionId ) || _missingSessionsCache.contains( sessionId ) ) {
             return null;
         }
         return loadFromMemcached( sessionId );
@@ -1116,35 +1338,127 @@ public class MemcachedSessionService {
         }
 
         LockStatus lockStatus = null;
+        int roundTrips = 0;
         try {
 
             if ( !_sticky ) {
                 lockStatus = _lockingStrategy.onBeforeLoadFromMemcached( sessionId );
+                if ( lockStatus == LockStatus.LOCKED ) {
+                    roundTrips++;
+                }
             }
 
             final long start = System.currentTimeMillis();
 
+            /* With the near cache the (small) validity info is loaded first, if it matches
+             * the locally cached session the session data needs not be loaded.
+             */
+            final boolean useCas = !_sticky && _lockingStrategy.isCasEnabled();
+            final boolean useNearCache = !_sticky && _nearCache != null && !useCas;
+            SessionValidityInfo validityInfo = useNearCache ? _lockingStrategy.loadSessionValidityInfo( sessionId ) : null;
+            final byte[] cachedData = useNearCache ? _nearCache.get( sessionId, validityInfo ) : null;
+            if ( useNearCache ) {
+                roundTrips++;
+            }
+
             /* In the previous version (<1.2) the session was completely serialized by
              * custom Transcoder implementations.
              * Such sessions have set the SERIALIZED flag (from SerializingTranscoder) so that
              * they get deserialized by BaseSerializingTranscoder.deserialize or the appropriate
              * specializations.
              */
-            final Object object = _memcached.get( sessionId );
-            _memcachedNodesManager.onLoadFromMemcachedSuccess( sessionId );
+            final Object object;
+            long casId = 0;
+            byte[] touchedValidityData = null;
+            if ( cachedData != null ) {
+                _statistics.nonStickyNearCacheHit();
+                object = cachedData;
+            }
+            else if ( useCas ) {
+                final CASValue<Object> casValue = _memcached.gets( sessionId );
+                _memcachedNodesManager.onLoadFromMemcachedSuccess( sessionId );
+                object = casValue != null ? casValue.getValue() : null;
+                casId = casValue != null ? casValue.getCas() : 0;
+                roundTrips++;
+            }
+            else if ( !_sticky && !useNearCache ) {
+                /* The session and its validity info are independent of each other, so both
+                 * are requested at once and are awaited together.
+                 */
+                final Future<Object> sessionResult = _memcached.asyncGet( sessionId );
+                final Future<Object> validityResult = _memcached.asyncGet( createValidityInfoKeyName( sessionId ) );
+                object = sessionResult.get( _operationTimeout, TimeUnit.MILLISECONDS );
+                _memcachedNodesManager.onLoadFromMemcachedSuccess( sessionId );
+                final byte[] validityData = (byte[]) validityResult.get( _operationTimeout, TimeUnit.MILLISECONDS );
+                validityInfo = validityData != null ? decode( validityData ) : null;
+                roundTrips++;
+            }
+            else {
+                if ( useNearCache ) {
+                    _statistics.nonStickyNearCacheMiss();
+                    roundTrips++;
+                }
+                /* A sticky session might have been touched (binary protocol only), so that its current
+                 * access times are stored as validity info, which is requested together with the session.
+                 */
+                final Future<Object> touchedValidityResult = _sticky && PROTOCOL_BINARY.equals( _memcachedProtocol )
+                    ? _memcached.asyncGet( createValidityInfoKeyName( sessionId ) )
+                    : null;
+                object = _memcached.get( sessionId );
+                _memcachedNodesManager.onLoadFromMemcachedSuccess( sessionId );
+                if ( touchedValidityResult != null && object != null ) {
+                    touchedValidityData = (byte[]) touchedValidityResult.get( _operationTimeout, TimeUnit.MILLISECONDS );
+                }
+            }
 
             if ( object != null ) {
                 if ( !(object instanceof byte[]) ) {
                     throw new RuntimeException( "The loaded object for sessionId " + sessionId + " is not of required type byte[], but " + object.getClass().getName() );
                 }
                 final long startDeserialization = System.currentTimeMillis();
-                final MemcachedBackupSession result = _transcoderService.deserialize( (byte[]) object, _manager );
+                final MemcachedBackupSession result = _transcoderService.deserialize( (byte[]) object, _manager, _lazyAttributesDeserialization );
                 _statistics.registerSince( SESSION_DESERIALIZATION, startDeserialization );
+                if ( result == null ) {
+                    /* the session exists but cannot be read (e.g. its compression dictionary is not available),
+                     * so it's not cached as missing: it might be readable later on
+                     */
+                    _statistics.sessionDeserializationFailed();
+                    if ( lockStatus == LockStatus.LOCKED ) {
+                        _lockingStrategy.releaseLock( sessionId );
+                    }
+                    return null;
+                }
+                if ( TranscoderService.hasAttributesManifest( (byte[]) object ) ) {
+                    if ( !loadAttributesFromMemcached( sessionId, result ) ) {
+                        if ( lockStatus == LockStatus.LOCKED ) {
+                            _lockingStrategy.releaseLock( sessionId );
+                        }
+                        return null;
+                    }
+                    if ( result.getAttributesManifest().size() > 0 ) {
+                        roundTrips++;
+                    }
+                }
                 _statistics.registerSince( LOAD_FROM_MEMCACHED, start );
 
                 result.setSticky( _sticky );
-                if ( !_sticky ) {
+                result.setCasId( casId );
+                if ( touchedValidityData != null ) {
+                    applyTouchedValidityInfo( touchedValidityData, result );
+                }
+                if ( useNearCache ) {
+                    _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus, validityInfo );
+                    _nearCache.put( (byte[]) object, result );
+                }
+                else if ( useCas ) {
                     _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus );
+                    roundTrips++;
+                }
+                else if ( !_sticky ) {
+                    _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus, validityInfo );
+                }
+                if ( !_sticky ) {
+                    result.addRoundTrips( roundTrips );
                 }
 
                 if ( _log.isDebugEnabled() ) {
@@ -1156,7 +1470,7 @@ public class MemcachedSessionService {
                 if ( lockStatus == LockStatus.LOCKED ) {
                     _lockingStrategy.releaseLock( sessionId );
                 }
-                _missingSessionsCache.put( sessionId, Boolean.TRUE );
+                _missingSessionsCache.put( sessionId );
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Session " + sessionId + " not found in memcached." );
                 }
@@ -1172,6 +1486,46 @@ public class MemcachedSessionService {
         return null;
     }
 
+    /**
+     * If the expiration of a sticky session was updated with touch (see {@link BackupSessionService#updateExpiration(MemcachedBackupSession)})
+     * the stored session data has outdated access times, the current ones are then stored as validity info.
+     */
+    private void applyTouchedValidityInfo( @Nonnull final byte[] validityData, @Nonnull final MemcachedBackupSession session ) {
+        final SessionValidityInfo validityInfo = decode( validityData );
+        if ( validityInfo.getThisAccessedTime() > session.getThisAccessedTimeInternal() ) {
+            session.setLastAccessedTimeInternal( validityInfo.getLastAccessedTime() );
+            session.setThisAccessedTimeInternal( validityInfo.getThisAccessedTime() );
+        }
+    }
+
+    /**
+     * Loads the session attributes that are stored separately (as referenced by the
+     * {@link AttributesManifest} of the given session) with a single multi-get.
+     *
+     * @return <code>true</code> if all attributes were found, otherwise <code>false</code>.
+     */
+    private boolean loadAttributesFromMemcached( @Nonnull final String sessionId, @Nonnull final MemcachedBackupSession session ) {
+        final AttributesManifest manifest = session.getAttributesManifest();
+        if ( manifest.size() == 0 ) {
+            return true;
+        }
+        final List<String> keys = new ArrayList<String>( manifest.size() );
+        for ( final Integer slot : manifest.getSlots() ) {
+            keys.add( getSessionIdFormat().createAttributeKey( sessionId, slot ) );
+        }
+        final Map<String, Object> attributesData = _memcached.getBulk( keys );
+        final Map<String, Object> attributes = session.getAttributesInternal();
+        for ( final String key : keys ) {
+            final Object attributeData = attributesData.get( key );
+            if ( !( attributeData instanceof byte[] ) ) {
+                _log.warn( "Session attribute " + key + " of session " + sessionId + " not found in memcached." );
+                return false;
+            }
+            attributes.putAll( _transcoderService.deserializeAttributes( (byte[]) attributeData ) );
+        }
+        return true;
+    }
+
     /**
      * Set the memcached nodes space or comma separated.
      * <p>
@@ -1187,7 +1541,9 @@ public class MemcachedSessionService {
      */
     public void setMemcachedNodes( final String memcachedNodes ) {
         if ( _manager.isInitialized() ) {
+            final MemcachedNodesManager previous = _memcachedNodesManager;
             final MemcachedNodesManager config = reloadMemcachedConfig( memcachedNodes, _failoverNodes );
+            rebalanceSessions( previous );
             _log.info( "Loaded new memcached node configuration." +
                     "\n- Former config: "+ _memcachedNodes +
                     "\n- New config: " + memcachedNodes +
@@ -1208,6 +1564,58 @@ public class MemcachedSessionService {
         return _memcachedNodes;
     }
 
+    /**
+     * Starts moving the local sessions to their new home nodes in the background (only for sticky sessions,
+     * non-sticky sessions are not held locally).
+     */
+    private void rebalanceSessions( @Nonnull final MemcachedNodesManager previous ) {
+        if ( _sticky && _sessionRebalancer != null ) {
+            _sessionRebalancer.rebalance( new ArrayList<String>( _manager.getSessionsInternal().keySet() ), previous );
+        }
+    }
+
+    /**
+     * Moves the given session to its home node with the current memcached nodes, if it's not stored there.
+     * Sessions that are currently accessed by a request are skipped. If the session id changes a copy of the
+     * session is stored under the new id, the session id itself is changed with the next request
+     * (see {@link #changeSessionIdOnMemcachedFailover(String)}), so that requests using the session are not affected.
+     *
+     * @return <code>true</code> if the session was moved.
+     */
+    boolean relocateSession( @Nonnull final String sessionId, @Nonnull final MemcachedNodesManager previous ) throws InterruptedException {
+        if ( !_enabled.get() ) {
+            return false;
+        }
+        final MemcachedBackupSession session = _manager.getSessionInternal( sessionId );
+        if ( session == null || !session.isValidInternal() || session.isInUse() || session.isBackupRunning() ) {
+            return false;
+        }
+        final String newSessionId = _memcachedNodesManager.getRebalancedSessionId( sessionId, previous );
+        if ( newSessionId == null ) {
+            return false;
+        }
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Moving session " + sessionId + " to its new home node as " + newSessionId );
+        }
+        if ( newSessionId.equals( sessionId ) ) {
+            _backupSessionService.backupSession( session, true );
+            return true;
+        }
+        final byte[] data = _transcoderService.serializeWithId( session, newSessionId );
+        try {
+            _backupSessionService.getBackupWriter().set( newSessionId, session.getMemcachedExpirationTimeToSet(), data )
+                .get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
+        } catch ( final ExecutionException e ) {
+            _log.info( "Could not store session " + sessionId + " as " + newSessionId + ", not moving it.", e );
+            return false;
+        } catch ( final TimeoutException e ) {
+            _log.info( "Could not store session " + sessionId + " as " + newSessionId + ", not moving it.", e );
+            return false;
+        }
+        session.setRelocationId( newSessionId );
+        return true;
+    }
+
     private MemcachedNodesManager reloadMemcachedConfig( final String memcachedNodes, final String failoverNodes ) {
 
         /* first create all dependent services
@@ -1215,16 +1623,24 @@ public class MemcachedSessionService {
         final MemcachedNodesManager memcachedNodesManager = createMemcachedNodesManager( memcachedNodes, failoverNodes );
         final MemcachedClient memcachedClient = createMemcachedClient( memcachedNodesManager, _statistics );
         final BackupSessionService backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync,
-                _sessionBackupTimeout, _backupThreadCount, memcachedClient, memcachedNodesManager, _statistics );
+                _sessionBackupTimeout, _backupThreadCount, _storeAttributesSeparately, _backupBatchWindow, _backupBatchQueueSize,
+                memcachedClient, memcachedNodesManager, _casConflictPolicy, _statistics );
 
         /* then assign new services
          */
+        if ( _backupSessionService != null ) {
+            _backupSessionService.shutdown();
+        }
         if ( _memcached != null ) {
             _memcached.shutdown();
         }
+        if ( _memcachedNodesManager != null ) {
+            _memcachedNodesManager.shutdown();
+        }
         _memcached = memcachedClient;
         _memcachedNodesManager = memcachedNodesManager;
         _backupSessionService = backupSessionService;
+        memcachedNodesManager.start();
 
         initNonStickyLockingMode( memcachedNodesManager );
 
@@ -1248,7 +1664,9 @@ public class MemcachedSessionService {
      */
     public void setFailoverNodes( final String failoverNodes ) {
         if ( _manager.isInitialized() ) {
+            final MemcachedNodesManager previous = _memcachedNodesManager;
             final MemcachedNodesManager config = reloadMemcachedConfig( _memcachedNodes, failoverNodes );
+            rebalanceSessions( previous );
             _log.info( "Loaded new memcached failover node configuration." +
                     "\n- Former failover config: "+ _failoverNodes +
                     "\n- New failover config: " + failoverNodes +
@@ -1529,7 +1947,7 @@ public class MemcachedSessionService {
         }
         _lockingMode = lockingMode;
         if ( _manager.isInitialized() ) {
-            initNonStickyLockingMode( createMemcachedNodesManager( _memcachedNodes, _failoverNodes ) );
+            initNonStickyLockingMode( _memcachedNodesManager );
         }
     }
 
@@ -1558,7 +1976,8 @@ public class MemcachedSessionService {
         if ( lockingMode == null ) {
             lockingMode = LockingMode.NONE;
         }
-        final boolean storeSecondaryBackup = config.getCountNodes() > 1 && !config.isCouchbaseBucketConfig();
+        final boolean storeSecondaryBackup = config.getCountNodes() > 1 && !config.isCouchbaseBucketConfig()
+                && config.isEncodeNodeIdInSessionId();
         setLockingMode( lockingMode, uriPattern, storeSecondaryBackup );
     }
 
@@ -1568,12 +1987,18 @@ public class MemcachedSessionService {
                 _missingSessionsCache, storeSecondaryBackup, _statistics, _currentRequest );
     }
 
+    /**
+     * Updates the expiration in memcached of sticky sessions that were accessed since their last backup
+     * and that would expire in memcached before the next run(s) of the background process. Only the
+     * sessions that are due according to the {@link SessionExpirationIndex} are checked, the expiration
+     * updates are sent as a batch (see {@link BackupSessionService#updateExpiration(java.util.Collection)}).
+     */
     protected void updateExpirationInMemcached() {
         if ( _enabled.get() && _sticky ) {
-            final Session[] sessions = _manager.findSessions();
             final int delay = _manager.getContainer().getBackgroundProcessorDelay();
-            for ( final Session s : sessions ) {
-                final MemcachedBackupSession session = (MemcachedBackupSession) s;
+            final long now = System.currentTimeMillis();
+            final List<MemcachedBackupSession> dueSessions = new ArrayList<MemcachedBackupSession>();
+            for ( final MemcachedBackupSession session : _expirationIndex.pollDue( now + 2000L * delay ) ) {
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Checking session " + session.getId() + ": " +
                             "\n- isValid: " + session.isValidInternal() +
@@ -1583,23 +2008,61 @@ public class MemcachedSessionService {
                             "\n- wasAccessedSinceLastBackup: " + session.wasAccessedSinceLastBackup() +
                             "\n- memcachedExpirationTime: " + session.getMemcachedExpirationTime() );
                 }
-                if ( session.isValidInternal()
-                        && !session.isExpiring()
-                        && !session.isBackupRunning()
-                        && !session.isExpirationUpdateRunning()
-                        && session.wasAccessedSinceLastBackup()
-                        && session.getMaxInactiveInterval() > 0 // for <= 0 the session was stored in memcached with expiration 0
-                        && session.getMemcachedExpirationTime() <= 2 * delay ) {
-                    try {
-                        _backupSessionService.updateExpiration( session );
-                    } catch ( final Throwable e ) {
-                        _log.info( "Could not update expiration in memcached for session " + session.getId(), e );
+                if ( !session.isValidInternal()
+                        || session.isExpiring()
+                        || !session.wasAccessedSinceLastBackup()
+                        || session.getMaxInactiveInterval() <= 0 ) { // for <= 0 the session was stored in memcached with expiration 0
+                    // the session is scheduled again when it's accessed
+                    continue;
+                }
+                if ( session.isBackupRunning() || session.isExpirationUpdateRunning() ) {
+                    _expirationIndex.schedule( session, now );
+                }
+                else if ( session.getMemcachedExpirationTime() > 2 * delay ) {
+                    // the session was stored in the meantime
+                    scheduleExpirationUpdate( session );
+                }
+                else {
+                    dueSessions.add( session );
+                }
+            }
+            if ( !dueSessions.isEmpty() ) {
+                try {
+                    for ( final MemcachedBackupSession failed : _backupSessionService.updateExpiration( dueSessions ) ) {
+                        // retry with the next run of the background process
+                        _expirationIndex.schedule( failed, now );
                     }
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
                 }
             }
         }
     }
 
+    /**
+     * Invoked when the given session was accessed (at the end of the request), in sticky mode
+     * the session is scheduled for the update of its expiration in memcached.
+     *
+     * @param session the accessed session.
+     */
+    public void sessionAccessed( @Nonnull final MemcachedBackupSession session ) {
+        if ( _sticky && session.getMaxInactiveInterval() > 0 ) {
+            scheduleExpirationUpdate( session );
+        }
+    }
+
+    /**
+     * Schedules the given session for the update of its expiration, it's due when the session would
+     * expire in memcached (immediately if it was not yet stored in memcached).
+     */
+    private void scheduleExpirationUpdate( @Nonnull final MemcachedBackupSession session ) {
+        final int lastMemcachedExpirationTime = session.getLastMemcachedExpirationTime();
+        final long dueAt = lastMemcachedExpirationTime == 0
+            ? System.currentTimeMillis()
+            : session.getLastBackupTime() + lastMemcachedExpirationTime * 1000L;
+        _expirationIndex.schedule( session, dueAt );
+    }
+
     /**
      * Specifies if the session shall be stored asynchronously in memcached as
      * {@link MemcachedClient#set(String, int, Object)} supports it. If this is
@@ -1619,8 +2082,7 @@ public class MemcachedSessionService {
         _sessionBackupAsync = sessionBackupAsync;
         if ( ( oldSessionBackupAsync != sessionBackupAsync ) && _manager.isInitialized() ) {
             _log.info( "SessionBackupAsync was changed to " + sessionBackupAsync + ", creating new BackupSessionService with new configuration." );
-            _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                    _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+            recreateBackupSessionService();
         }
     }
 
@@ -1634,6 +2096,305 @@ public class MemcachedSessionService {
         return _sessionBackupAsync;
     }
 
+    /**
+     * Specifies if session attributes shall be stored separately in memcached, each attribute
+     * under its own key. The session itself is stored with a manifest referencing the attributes.
+     * With this only modified attributes need to be stored (instead of the whole session), which
+     * is useful for sessions with many/big attributes where only a few of them are modified
+     * per request.
+     * <p>
+     * Sessions stored in memcached are loaded regardless of this setting.
+     * By default this property is set to <code>false</code>.
+     * </p>
+     *
+     * @param storeAttributesSeparately
+     *            <code>true</code> if attributes shall be stored separately.
+     */
+    public void setStoreAttributesSeparately( final boolean storeAttributesSeparately ) {
+        final boolean oldStoreAttributesSeparately = _storeAttributesSeparately;
+        _storeAttributesSeparately = storeAttributesSeparately;
+        if ( ( oldStoreAttributesSeparately != storeAttributesSeparately ) && _manager.isInitialized() ) {
+            _log.info( "StoreAttributesSeparately was changed to " + storeAttributesSeparately + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
+        }
+    }
+
+    /**
+     * Specifies if session attributes are stored separately in memcached.
+     */
+    public boolean isStoreAttributesSeparately() {
+        return _storeAttributesSeparately;
+    }
+
+    /**
+     * Specifies the time in microseconds that writes to memcached (sessions, validity info,
+     * secondary backups) are collected before they're sent to memcached together
+     * (see {@link BatchingBackupWriter}). This reduces the number of network round trips under
+     * high load, at the cost of the additional latency of the window for each write.
+     * <p>
+     * By default this property is set to <code>0</code> - writes are not batched.
+     * </p>
+     *
+     * @param backupBatchWindow
+     *            the batch window in microseconds, <code>0</code> disables batching.
+     */
+    public void setBackupBatchWindow( final int backupBatchWindow ) {
+        final int oldBackupBatchWindow = _backupBatchWindow;
+        _backupBatchWindow = backupBatchWindow;
+        if ( ( oldBackupBatchWindow != backupBatchWindow ) && _manager.isInitialized() ) {
+            _log.info( "BackupBatchWindow was changed to " + backupBatchWindow + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
+        }
+    }
+
+    /**
+     * The time in microseconds that writes to memcached are collected to be sent as a batch,
+     * <code>0</code> if batching is disabled.
+     */
+    public int getBackupBatchWindow() {
+        return _backupBatchWindow;
+    }
+
+    /**
+     * Specifies the max number of writes that are pending for the next batch if backup batching
+     * is enabled (see {@link #setBackupBatchWindow(int)}). If the queue of pending writes is full,
+     * the thread performing the backup blocks until the queue has room again, so that backups are
+     * slowed down to the rate that memcached can handle (writes are not sent directly, as they would
+     * overtake older writes of the same key that are still queued).
+     * <p>
+     * The default value is <code>1000</code>.
+     * </p>
+     *
+     * @param backupBatchQueueSize
+     *            the max number of pending writes.
+     */
+    public void setBackupBatchQueueSize( final int backupBatchQueueSize ) {
+        final int oldBackupBatchQueueSize = _backupBatchQueueSize;
+        _backupBatchQueueSize = backupBatchQueueSize;
+        if ( ( oldBackupBatchQueueSize != backupBatchQueueSize ) && _manager.isInitialized() ) {
+            _log.info( "BackupBatchQueueSize was changed to " + backupBatchQueueSize + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
+        }
+    }
+
+    /**
+     * The max number of writes that are pending for the next batch if backup batching is enabled.
+     */
+    public int getBackupBatchQueueSize() {
+        return _backupBatchQueueSize;
+    }
+
+    /**
+     * Specifies the size in bytes of serialized session attributes above which they're compressed
+     * before they're stored in memcached (using the compressor set via {@link #setCompressorClass(String)}).
+     * Compressed sessions are detected when they're loaded, so compression can be enabled or disabled
+     * without losing sessions.
+     * <p>
+     * The default value is <code>0</code>, which disables compression.
+     * </p>
+     * <p>
+     * <strong>Note:</strong> This is only evaluated when the manager is started.
+     * </p>
+     *
+     * @param compressionThreshold the size in bytes above which session attributes are compressed.
+     */
+    public void setCompressionThreshold( final int compressionThreshold ) {
+        _compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * The size in bytes of serialized session attributes above which they're compressed,
+     * <code>0</code> if compression is disabled.
+     */
+    public int getCompressionThreshold() {
+        return _compressionThreshold;
+    }
+
+    /**
+     * The class of the {@link Compressor} used to compress session data if compression is
+     * enabled (see {@link #setCompressionThreshold(int)}), it requires a default/no-args constructor.
+     * The default value is the {@link DeflateCompressor} class.
+     * <p>
+     * <strong>Note:</strong> Sessions that were stored compressed with a different compressor
+     * cannot be read after the compressor was changed.
+     * </p>
+     *
+     * @param compressorClassName the {@link Compressor} class name.
+     */
+    public void setCompressorClass( final String compressorClassName ) {
+        _compressorClassName = compressorClassName;
+    }
+
+    /**
+     * Specifies the number of serialized sessions a shared compression dictionary is built from
+     * (see {@link CompressionDictionaryService}). With a dictionary built from real session data
+     * small sessions compress much better, as they share a lot of content (class names, attribute names)
+     * with other sessions. The dictionary is stored in memcached so that all tomcats can read sessions
+     * compressed with it. This requires compression to be enabled (see {@link #setCompressionThreshold(int)})
+     * and a compressor that implements {@link DictionaryCompressor} (like the default {@link DeflateCompressor}).
+     * If the dictionary gets evicted from memcached, sessions compressed with it can no longer be read by
+     * tomcats that don't have the dictionary cached, i.e. these sessions are lost.
+     * <p>
+     * The default value is <code>0</code>, which disables dictionary compression.
+     * </p>
+     * <p>
+     * <strong>Note:</strong> This is only evaluated when the manager is started.
+     * </p>
+     *
+     * @param compressionDictionarySamples the number of sessions to build the dictionary from.
+     */
+    public void setCompressionDictionarySamples( final int compressionDictionarySamples ) {
+        _compressionDictionarySamples = compressionDictionarySamples;
+    }
+
+    /**
+     * The number of serialized sessions the compression dictionary is built from,
+     * <code>0</code> if dictionary compression is disabled.
+     */
+    public int getCompressionDictionarySamples() {
+        return _compressionDictionarySamples;
+    }
+
+    /**
+     * Specifies if the attributes of a session loaded from memcached shall only be deserialized
+     * when they're accessed for the first time (via {@link javax.servlet.http.HttpSession#getAttribute(String)},
+     * {@link javax.servlet.http.HttpSession#getAttributeNames()} etc.). Then a request that only needs the session
+     * itself (e.g. to check the authenticated principal) does not have to deserialize the attributes.
+     * Until the attributes are accessed the serialized attributes are kept in memory.
+     * <p>
+     * The default value is <code>false</code>. This has no effect if attributes are stored separately.
+     * </p>
+     *
+     * @param lazyAttributesDeserialization <code>true</code> if attributes shall be deserialized on first access.
+     */
+    public void setLazyAttributesDeserialization( final boolean lazyAttributesDeserialization ) {
+        _lazyAttributesDeserialization = lazyAttributesDeserialization;
+    }
+
+    /**
+     * Determines, if the attributes of a session loaded from memcached are deserialized on first access.
+     */
+    public boolean isLazyAttributesDeserialization() {
+        return _lazyAttributesDeserialization;
+    }
+
+    /**
+     * Specifies if sessions shall be stored with the attributes in the indexed format (see
+     * {@link TranscoderService#VERSION_4}), where each attribute is serialized separately. Together with
+     * {@link #setLazyAttributesDeserialization(boolean)} only the attributes that are accessed by a request
+     * are deserialized (instead of all attributes), and attributes that were not accessed are stored again
+     * without serializing them. This is useful for sessions with a few big attributes that are not needed by most requests.
+     * <p>
+     * The default value is <code>false</code>. Sessions in the indexed format can be read in any case, but not by
+     * older versions of the memcached-session-manager. This has no effect if attributes are stored separately.
+     * </p>
+     * <p>
+     * <strong>Note:</strong> This is only evaluated when the manager is started.
+     * </p>
+     *
+     * @param indexedAttributes <code>true</code> if sessions shall be stored in the indexed format.
+     */
+    public void setIndexedAttributes( final boolean indexedAttributes ) {
+        _indexedAttributes = indexedAttributes;
+    }
+
+    /**
+     * Determines, if sessions are stored with the attributes in the indexed format.
+     */
+    public boolean isIndexedAttributes() {
+        return _indexedAttributes;
+    }
+
+    /**
+     * Specifies the number of non-sticky sessions that are cached locally (see {@link SessionNearCache}),
+     * so that a session that was not accessed by another tomcat in the meantime must not be loaded
+     * from memcached again (only the small session validity info is loaded to check this).
+     * Each cached session takes the memory of the serialized session data.
+     * <p>
+     * The default value is <code>0</code>, which disables the near cache. This is only used in non-sticky mode.
+     * </p>
+     * <p>
+     * <strong>Note:</strong> This is only evaluated when the manager is started.
+     * </p>
+     *
+     * @param nonStickyNearCacheSize the max number of sessions to cache locally.
+     */
+    public void setNonStickyNearCacheSize( final int nonStickyNearCacheSize ) {
+        _nonStickyNearCacheSize = nonStickyNearCacheSize;
+    }
+
+    /**
+     * The max number of non-sticky sessions that are cached locally, <code>0</code> if disabled.
+     */
+    public int getNonStickyNearCacheSize() {
+        return _nonStickyNearCacheSize;
+    }
+
+    /**
+     * Specifies how a conflict is handled if a session is stored with compare-and-set (if the locking mode
+     * is <code>cas</code>, see {@link LockingStrategyCas}) and was modified concurrently.
+     * Possible values (see {@link CasConflictPolicy}):
+     * <ul>
+     * <li><code>merge</code> - the attributes modified by the current request are applied to the current session
+     * in memcached (default)</li>
+     * <li><code>fail</code> - the modifications of the current request are dropped</li>
+     * <li><code>overwrite</code> - the session is stored nevertheless, so that concurrent modifications are lost</li>
+     * </ul>
+     *
+     * @param casConflictPolicy the conflict policy.
+     */
+    public void setCasConflictPolicy( @Nonnull final String casConflictPolicy ) {
+        final CasConflictPolicy oldCasConflictPolicy = _casConflictPolicy;
+        _casConflictPolicy = CasConflictPolicy.valueOf( casConflictPolicy.toUpperCase() );
+        if ( oldCasConflictPolicy != _casConflictPolicy && _manager.isInitialized() ) {
+            _log.info( "CasConflictPolicy was changed to " + _casConflictPolicy + ", creating new BackupSessionService with new configuration." );
+            recreateBackupSessionService();
+        }
+    }
+
+    /**
+     * The policy how a conflict is handled if a session is stored with compare-and-set.
+     */
+    @Nonnull
+    public CasConflictPolicy getCasConflictPolicy() {
+        return _casConflictPolicy;
+    }
+
+    /**
+     * Specifies how the memcached node for new sessions (and for sessions that are relocated
+     * because their node failed) is selected. Possible values (see {@link NodeSelectionMode}):
+     * <ul>
+     * <li><code>random</code> - one of the available nodes is selected randomly (default)</li>
+     * <li><code>latency</code> - of two randomly picked available nodes the one with the lower latency
+     * (as measured by the background node health probes) is selected, so that less sessions are
+     * placed on slow nodes</li>
+     * </ul>
+     *
+     * @param nodeSelectionMode the node selection mode.
+     */
+    public void setNodeSelectionMode( @Nonnull final String nodeSelectionMode ) {
+        _nodeSelectionMode = NodeSelectionMode.valueOf( nodeSelectionMode.toUpperCase() );
+        if ( _manager.isInitialized() ) {
+            _memcachedNodesManager.setNodeSelectionMode( _nodeSelectionMode );
+        }
+    }
+
+    /**
+     * The mode how the memcached node for new sessions is selected.
+     */
+    @Nonnull
+    public NodeSelectionMode getNodeSelectionMode() {
+        return _nodeSelectionMode;
+    }
+
+    private void recreateBackupSessionService() {
+        final BackupSessionService oldBackupSessionService = _backupSessionService;
+        _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
+                _backupThreadCount, _storeAttributesSeparately, _backupBatchWindow, _backupBatchQueueSize,
+                _memcached, _memcachedNodesManager, _casConflictPolicy, _statistics );
+        oldBackupSessionService.shutdown();
+    }
+
     /**
      * The timeout in milliseconds after that a session backup is considered as
      * beeing failed.
@@ -1681,7 +2442,8 @@ public class MemcachedSessionService {
     void setTranscoderService( final TranscoderService transcoderService ) {
         _transcoderService = transcoderService;
         _backupSessionService = new BackupSessionService( transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+                _backupThreadCount, _storeAttributesSeparately, _backupBatchWindow, _backupBatchQueueSize,
+                _memcached, _memcachedNodesManager, _casConflictPolicy, _statistics );
     }
 
     /**
@@ -1692,6 +2454,14 @@ public class MemcachedSessionService {
         return _memcachedNodesManager;
     }
 
+    /**
+     * Set the callback the memcached nodes manager uses to ping memcached nodes, applies to
+     * the nodes manager created with the next start - just for testing.
+     */
+    void setMemcachedClientCallback( @Nonnull final MemcachedClientCallback memcachedClientCallback ) {
+        _memcachedClientCallback = memcachedClientCallback;
+    }
+
     /**
      * Return the currently configured node ids - just for testing.
      * @return the list of node ids.
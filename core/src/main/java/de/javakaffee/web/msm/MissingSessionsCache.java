@@ -0,0 +1,243 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A compact negative cache for session ids that were not found in memcached, so that
+ * repeated requests for unknown session ids (e.g. from crawlers with stale cookies or
+ * an attacker) don't hit memcached each time.
+ * <p>
+ * The ids are stored in two rotating bloom filters (generations): ids are added to the current
+ * generation, lookups check both generations. When the current generation is older than the
+ * generation duration or holds its capacity, it becomes the previous generation and the
+ * former previous generation is cleared and reused as the current one. Thereby an id is
+ * remembered at least one and at most two generation durations (less if more than
+ * the capacity of ids are added per generation duration), while the memory is bounded
+ * by the capacity and the false positive probability.
+ * </p>
+ * <p>
+ * As for any bloom filter {@link #contains(String)} may return <code>true</code> for an id that
+ * was not added, with the configured false positive probability when a generation is full (both
+ * generations are checked, so that a lookup has up to twice this probability). A false positive
+ * means that an existing session is treated as missing and the user gets a new session, i.e. the
+ * session is lost (although the false positive itself is gone after the next rotation). Therefore
+ * the probability must be chosen so low that this practically never happens (e.g. <code>1e-12</code>,
+ * which costs about 58 bits per id).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MissingSessionsCache {
+
+    private final int _capacity;
+    private final long _generationMillis;
+    private final int _numBits;
+    private final int _numHashes;
+    private final long _seed;
+
+    private volatile Generation _current;
+    private volatile Generation _previous;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param capacity
+     *            the number of ids per generation, before the generation is rotated
+     * @param falsePositiveProbability
+     *            the false positive probability of a full generation, e.g. <code>1e-12</code>
+     * @param generationMillis
+     *            the time in millis after that a generation is rotated
+     */
+    public MissingSessionsCache( final int capacity, final double falsePositiveProbability, final long generationMillis ) {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException( "The capacity must be positive, but was " + capacity );
+        }
+        if ( falsePositiveProbability <= 0 || falsePositiveProbability >= 1 ) {
+            throw new IllegalArgumentException( "The false positive probability must be between 0 and 1, but was " + falsePositiveProbability );
+        }
+        _capacity = capacity;
+        _generationMillis = generationMillis;
+        final double bits = -capacity * Math.log( falsePositiveProbability ) / ( Math.log( 2 ) * Math.log( 2 ) );
+        _numBits = (int) Math.min( ( (long) Math.ceil( bits / 64 ) ) * 64, Integer.MAX_VALUE - 63 );
+        _numHashes = Math.max( 1, (int) Math.round( (double) _numBits / capacity * Math.log( 2 ) ) );
+        _seed = new Random().nextLong();
+    }
+
+    /**
+     * Remembers the given session id as missing.
+     *
+     * @param sessionId the id of the session that was not found.
+     */
+    public void put( @Nonnull final String sessionId ) {
+        final long now = System.currentTimeMillis();
+        Generation current = _current;
+        if ( current == null ) {
+            current = init( now );
+        }
+        else if ( isOutdated( current, now ) ) {
+            current = rotate( now );
+        }
+        final long hash = hash( sessionId );
+        final long h1 = mix( hash );
+        final long h2 = mix( hash + 0x9E3779B97F4A7C15L ) | 1;
+        for ( int i = 0; i < _numHashes; i++ ) {
+            current.set( index( h1 + i * h2 ) );
+        }
+        current._count.incrementAndGet();
+    }
+
+    /**
+     * Determines if the given session id was recently remembered as missing via {@link #put(String)}.
+     * This may return <code>true</code> for ids that were not added with the configured
+     * false positive probability.
+     *
+     * @param sessionId the session id to check.
+     * @return <code>true</code> if the session id was probably remembered as missing.
+     */
+    public boolean contains( @Nonnull final String sessionId ) {
+        final Generation current = _current;
+        if ( current == null ) {
+            return false;
+        }
+        final long now = System.currentTimeMillis();
+        final boolean checkCurrent = now - current._start < 2 * _generationMillis;
+        final Generation previous = _previous;
+        final boolean checkPrevious = previous != null && previous != current && now - previous._start < 2 * _generationMillis;
+        if ( !checkCurrent && !checkPrevious ) {
+            return false;
+        }
+        final long hash = hash( sessionId );
+        final long h1 = mix( hash );
+        final long h2 = mix( hash + 0x9E3779B97F4A7C15L ) | 1;
+        return ( checkCurrent && contains( current, h1, h2 ) )
+                || ( checkPrevious && contains( previous, h1, h2 ) );
+    }
+
+    private boolean contains( final Generation generation, final long h1, final long h2 ) {
+        for ( int i = 0; i < _numHashes; i++ ) {
+            if ( !generation.isSet( index( h1 + i * h2 ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isOutdated( final Generation generation, final long now ) {
+        return now - generation._start >= _generationMillis || generation._count.get() >= _capacity;
+    }
+
+    private synchronized Generation init( final long now ) {
+        if ( _current == null ) {
+            _current = new Generation( _numBits, now );
+        }
+        return _current;
+    }
+
+    /**
+     * Makes the current generation the previous one and reuses the previous generation
+     * as the new current one. Concurrent lookups in the generation being cleared might
+     * miss ids, which only means that memcached is asked for them.
+     */
+    private synchronized Generation rotate( final long now ) {
+        final Generation current = _current;
+        if ( !isOutdated( current, now ) ) {
+            return current;
+        }
+        final Generation recycled = _previous;
+        _previous = current;
+        final Generation result;
+        if ( recycled != null ) {
+            recycled.clear( now );
+            result = recycled;
+        }
+        else {
+            result = new Generation( _numBits, now );
+        }
+        _current = result;
+        return result;
+    }
+
+    private int index( final long hash ) {
+        return (int) ( ( hash & Long.MAX_VALUE ) % _numBits );
+    }
+
+    private long hash( final String sessionId ) {
+        // FNV-1a, seeded so that colliding ids cannot be precomputed
+        long result = _seed ^ 0xcbf29ce484222325L;
+        for ( int i = 0; i < sessionId.length(); i++ ) {
+            result = ( result ^ sessionId.charAt( i ) ) * 0x100000001b3L;
+        }
+        return result;
+    }
+
+    /**
+     * The finalization mix of MurmurHash3 to spread the bits of the hash.
+     */
+    private static long mix( final long hash ) {
+        long result = hash;
+        result ^= result >>> 33;
+        result *= 0xff51afd7ed558ccdL;
+        result ^= result >>> 33;
+        result *= 0xc4ceb9fe1a85ec53L;
+        result ^= result >>> 33;
+        return result;
+    }
+
+    /**
+     * The bits of a single bloom filter with the time it was started to be filled.
+     */
+    private static final class Generation {
+
+        private final AtomicLongArray _words;
+        private final AtomicInteger _count = new AtomicInteger();
+        private volatile long _start;
+
+        private Generation( final int numBits, final long start ) {
+            _words = new AtomicLongArray( numBits / 64 );
+            _start = start;
+        }
+
+        private void set( final int bit ) {
+            final int index = bit >>> 6;
+            final long mask = 1L << bit;
+            long word;
+            while ( ( ( word = _words.get( index ) ) & mask ) == 0 && !_words.compareAndSet( index, word, word | mask ) ) {
+                // retry
+            }
+        }
+
+        private boolean isSet( final int bit ) {
+            return ( _words.get( bit >>> 6 ) & ( 1L << bit ) ) != 0;
+        }
+
+        private void clear( final long start ) {
+            for ( int i = 0; i < _words.length(); i++ ) {
+                _words.set( i, 0 );
+            }
+            _count.set( 0 );
+            _start = start;
+        }
+
+    }
+
+}
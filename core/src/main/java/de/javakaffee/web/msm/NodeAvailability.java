@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Provides the availability of memcached nodes.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ * @param <K>
+ *            the type of the key
+ */
+public interface NodeAvailability<K> {
+
+    /**
+     * Determines, if the node is available.
+     *
+     * @param key
+     *            the key to check
+     * @return <code>true</code> if the node is marked as available.
+     */
+    boolean isNodeAvailable( @Nonnull K key );
+
+    /**
+     * Marks the node as available as specified, e.g. after an operation
+     * on this node succeeded or failed.
+     *
+     * @param key
+     *            the node to update
+     * @param available
+     *            specifies if the node was available or not
+     * @return the previous availability of the node, or <code>null</code> if it was not known
+     */
+    @CheckForNull
+    Boolean setNodeAvailable( @Nonnull K key, boolean available );
+
+}
@@ -40,7 +40,7 @@ import edu.umd.cs.findbugs.annotations.SuppressWarnings;
  * @param <K>
  *            the type of the key
  */
-public class NodeAvailabilityCache<K> {
+public class NodeAvailabilityCache<K> implements NodeAvailability<K> {
 
     private static final Log LOG = LogFactory.getLog( NodeAvailabilityCache.class );
 
@@ -88,6 +88,7 @@ public class NodeAvailabilityCache<K> {
      * @return the previous value associated with the specified key, or null if
      *         there was no mapping for the key
      */
+    @Override
     @CheckForNull
     @SuppressWarnings( "NP_BOOLEAN_RETURN_NULL" )
     public Boolean setNodeAvailable( final K key, final boolean available ) {
@@ -112,6 +113,7 @@ public class NodeAvailabilityCache<K> {
      *            the key to check
      * @return <code>true</code> if the node is marked as available.
      */
+    @Override
     public boolean isNodeAvailable( @Nonnull final K key ) {
         final ManagedItem<Boolean> item = _map.get( key );
         if ( item == null ) {
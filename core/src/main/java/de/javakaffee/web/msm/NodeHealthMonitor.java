@@ -0,0 +1,315 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+
+/**
+ * Monitors the health of memcached nodes in the background, so that request threads only
+ * read the availability of a node and never wait for a node to answer a ping.
+ * <p>
+ * Each node is probed periodically (via the {@link CacheLoader}) by a scheduler thread. The probe
+ * latency and the failure rate are tracked as exponentially weighted moving averages. A node works
+ * like a circuit breaker (a node is considered available until the first probe failed):
+ * <ul>
+ * <li>closed (available): probes update latency and failure rate, if the failure rate exceeds
+ * the threshold the circuit is opened.</li>
+ * <li>open (unavailable): the node is not probed until the open duration has passed, then
+ * the circuit is half open.</li>
+ * <li>half open (still unavailable): the next probe decides, if it succeeds the circuit is closed,
+ * otherwise it's opened again.</li>
+ * </ul>
+ * A failure reported via {@link #setNodeAvailable(Object, boolean)} (e.g. a failed backup) opens
+ * the circuit immediately, a reported success closes it.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ * @param <K>
+ *            the type of the key
+ */
+public class NodeHealthMonitor<K> implements NodeAvailability<K> {
+
+    private static final Log LOG = LogFactory.getLog( NodeHealthMonitor.class );
+
+    /**
+     * The weight of a new probe result in the moving averages.
+     */
+    static final double EWMA_WEIGHT = 0.25;
+
+    /**
+     * The failure rate that opens the circuit, starting from 0 it's reached after 3 consecutive failures.
+     */
+    static final double FAILURE_RATE_THRESHOLD = 0.5;
+
+    static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final CacheLoader<K> _probe;
+    private final long _probeIntervalMillis;
+    private final long _openMillis;
+    private final ScheduledExecutorService _scheduler;
+    private final ConcurrentHashMap<K, NodeHealth> _nodes = new ConcurrentHashMap<K, NodeHealth>();
+    private volatile boolean _started;
+
+    /**
+     * Creates a new instance, the given nodes are probed after {@link #start()} was invoked.
+     *
+     * @param nodes
+     *            the nodes to monitor, other nodes are monitored when they're first queried
+     * @param probe
+     *            determines if a node is available
+     * @param probeIntervalMillis
+     *            the delay between two probes of a node
+     * @param openMillis
+     *            the time a node is not probed when it was detected to be unavailable
+     */
+    public NodeHealthMonitor( @Nonnull final Collection<K> nodes, @Nonnull final CacheLoader<K> probe,
+            final long probeIntervalMillis, final long openMillis ) {
+        _probe = probe;
+        _probeIntervalMillis = probeIntervalMillis;
+        _openMillis = openMillis;
+        _scheduler = Executors.newScheduledThreadPool( Math.max( nodes.size(), 1 ), new DaemonThreadFactory( "msm-node-health" ) );
+        for ( final K node : nodes ) {
+            getNodeHealth( node );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isNodeAvailable( @Nonnull final K key ) {
+        return getNodeHealth( key )._available;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Boolean setNodeAvailable( @Nonnull final K key, final boolean available ) {
+        final NodeHealth health = getNodeHealth( key );
+        final boolean previous = health._available;
+        if ( available ) {
+            health.onSuccess( -1 );
+        }
+        else {
+            health.open( System.currentTimeMillis() );
+        }
+        return Boolean.valueOf( previous );
+    }
+
+    /**
+     * The moving average of the probe latency of the given node in millis,
+     * or <code>-1</code> if the node was not probed successfully yet.
+     */
+    public double getLatencyMillis( @Nonnull final K key ) {
+        return getNodeHealth( key ).getLatencyMillis();
+    }
+
+    /**
+     * Starts probing the nodes. This must be invoked when the probe can reach the nodes (e.g. when the
+     * memcached client that knows the nodes is in use), until then all nodes are considered available.
+     */
+    public void start() {
+        _started = true;
+        for ( final Map.Entry<K, NodeHealth> entry : _nodes.entrySet() ) {
+            scheduleProbe( entry.getKey(), entry.getValue() );
+        }
+    }
+
+    /**
+     * Stops probing the nodes.
+     */
+    public void shutdown() {
+        _scheduler.shutdownNow();
+    }
+
+    State getState( @Nonnull final K key ) {
+        return getNodeHealth( key ).getState();
+    }
+
+    @Nonnull
+    private NodeHealth getNodeHealth( @Nonnull final K key ) {
+        NodeHealth result = _nodes.get( key );
+        if ( result == null ) {
+            final NodeHealth health = new NodeHealth();
+            result = _nodes.putIfAbsent( key, health );
+            if ( result == null ) {
+                result = health;
+                if ( _started ) {
+                    scheduleProbe( key, health );
+                }
+            }
+        }
+        return result;
+    }
+
+    private void scheduleProbe( @Nonnull final K key, @Nonnull final NodeHealth health ) {
+        if ( health.markScheduled() && !_scheduler.isShutdown() ) {
+            _scheduler.scheduleWithFixedDelay( new ProbeTask( key, health ), 0, _probeIntervalMillis, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    private final class ProbeTask implements Runnable {
+
+        private final K _key;
+        private final NodeHealth _health;
+
+        private ProbeTask( final K key, final NodeHealth health ) {
+            _key = key;
+            _health = health;
+        }
+
+        @Override
+        public void run() {
+            // exceptions must not escape, they would cancel further probes
+            try {
+                if ( !_health.tryProbe( System.currentTimeMillis(), _openMillis ) ) {
+                    return;
+                }
+                final long start = System.nanoTime();
+                final boolean available = _probe.isNodeAvailable( _key );
+                if ( available ) {
+                    _health.onSuccess( ( System.nanoTime() - start ) / 1000000d );
+                }
+                else {
+                    _health.onFailure( System.currentTimeMillis() );
+                }
+                if ( LOG.isDebugEnabled() ) {
+                    LOG.debug( "Probed node '" + _key + "': available " + available + ", " + _health );
+                }
+            } catch ( final RuntimeException e ) {
+                LOG.warn( "Could not probe node '" + _key + "'.", e );
+            }
+        }
+
+    }
+
+    /**
+     * The health of a single node. The availability is read without locking by request threads.
+     */
+    private static final class NodeHealth {
+
+        private volatile boolean _available = true;
+        private boolean _probed;
+        private State _state = State.CLOSED;
+        private long _openedAt;
+        private double _failureRate;
+        private double _latencyMillis = -1;
+        private boolean _scheduled;
+
+        /**
+         * Marks the probe of this node as scheduled, returns <code>false</code> if it was scheduled already.
+         */
+        synchronized boolean markScheduled() {
+            if ( _scheduled ) {
+                return false;
+            }
+            _scheduled = true;
+            return true;
+        }
+
+        synchronized void onSuccess( final double latencyMillis ) {
+            _probed = true;
+            if ( latencyMillis >= 0 ) {
+                _latencyMillis = _latencyMillis < 0 ? latencyMillis : _latencyMillis + EWMA_WEIGHT * ( latencyMillis - _latencyMillis );
+            }
+            if ( _state == State.CLOSED ) {
+                _failureRate -= EWMA_WEIGHT * _failureRate;
+            }
+            else {
+                _failureRate = 0;
+                _state = State.CLOSED;
+            }
+            _available = true;
+        }
+
+        synchronized void onFailure( final long now ) {
+            _failureRate += EWMA_WEIGHT * ( 1 - _failureRate );
+            // a node that never answered is not assumed to be available any longer
+            if ( _state != State.CLOSED || _failureRate >= FAILURE_RATE_THRESHOLD || !_probed ) {
+                open( now );
+            }
+        }
+
+        synchronized void open( final long now ) {
+            _state = State.OPEN;
+            _openedAt = now;
+            _available = false;
+        }
+
+        /**
+         * Determines if the node shall be probed now, moves an open circuit to half open
+         * when the open duration has passed.
+         */
+        synchronized boolean tryProbe( final long now, final long openMillis ) {
+            if ( _state == State.OPEN ) {
+                if ( now - _openedAt < openMillis ) {
+                    return false;
+                }
+                _state = State.HALF_OPEN;
+            }
+            return true;
+        }
+
+        synchronized State getState() {
+            return _state;
+        }
+
+        synchronized double getLatencyMillis() {
+            return _latencyMillis;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "state " + _state + ", failure rate " + _failureRate + ", latency " + _latencyMillis + "ms";
+        }
+
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory _delegate;
+
+        private DaemonThreadFactory( final String namePrefix ) {
+            _delegate = new NamedThreadFactory( namePrefix );
+        }
+
+        @Override
+        public Thread newThread( final Runnable runnable ) {
+            final Thread result = _delegate.newThread( runnable );
+            result.setDaemon( true );
+            return result;
+        }
+
+    }
+
+}
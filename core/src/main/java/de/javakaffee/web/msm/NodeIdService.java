@@ -19,7 +19,6 @@ package de.javakaffee.web.msm;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
 
 import javax.annotation.CheckForNull;
@@ -39,8 +38,6 @@ public class NodeIdService {
     @SuppressWarnings( "unused" )
     private static final Log LOG = LogFactory.getLog( NodeIdService.class );
 
-    private final Random _random = new Random();
-
     /*
      * Manager.remove(session) may be called with sessionIds that already failed before (probably
      * because the browser makes subsequent requests with the old sessionId -
@@ -54,10 +51,14 @@ public class NodeIdService {
      *
      * Updated: the node status cache holds the status of each node for the
      * configured TTL.
+     *
+     * Updated: the status is provided by the NodeHealthMonitor, which probes the
+     * nodes in the background.
      */
-    private final NodeAvailabilityCache<String> _nodeAvailabilityCache;
+    private final NodeAvailability<String> _nodeAvailabilityCache;
     private final NodeIdList _nodeIds;
     private final List<String> _failoverNodeIds;
+    private volatile NodeSelectionStrategy _nodeSelectionStrategy = NodeSelectionStrategy.create( null, null );
 
     /**
      * Constructs a new {@link NodeIdService}.
@@ -66,7 +67,7 @@ public class NodeIdService {
      * @param nodeIds
      * @param failoverNodeIds
      */
-    public NodeIdService( final NodeAvailabilityCache<String> nodeAvailabilityCache, final NodeIdList nodeIds, final List<String> failoverNodeIds ) {
+    public NodeIdService( final NodeAvailability<String> nodeAvailabilityCache, final NodeIdList nodeIds, final List<String> failoverNodeIds ) {
         _nodeAvailabilityCache = nodeAvailabilityCache;
         _nodeIds = nodeIds;
         _failoverNodeIds = failoverNodeIds;
@@ -102,7 +103,15 @@ public class NodeIdService {
     }
 
     /**
-     * Get an available (randomly selected) memcached node id for session backup.
+     * Sets the strategy that selects the node for new sessions and for relocated sessions.
+     * @param nodeSelectionStrategy the strategy to use.
+     */
+    public void setNodeSelectionStrategy( @Nonnull final NodeSelectionStrategy nodeSelectionStrategy ) {
+        _nodeSelectionStrategy = nodeSelectionStrategy;
+    }
+
+    /**
+     * Get an available memcached node id (selected by the {@link NodeSelectionStrategy}) for session backup.
      * The active node ids are preferred, if no active node id is left to try,
      * a failover node id is picked.
      * If no failover node id is left, this method returns just null.
@@ -147,42 +156,34 @@ public class NodeIdService {
     }
 
     /**
-     * Determines (randomly) an available node id from the provided node ids. The
-     * returned node id will be different from the provided nodeId and will
-     * be available according to the local {@link NodeAvailabilityCache}.
+     * Determines an available node id from the provided node ids, selected by the
+     * {@link NodeSelectionStrategy}. The returned node id will be different from the
+     * provided nodeId and will be available according to the local {@link NodeAvailability}.
      *
      * @param nodeId
-     *            the original id
+     *            the original id, may be <code>null</code>
      * @param nodeIds
      *            the node ids to choose from
      * @return an available node or null
      */
     protected String getRandomNextNodeId( final String nodeId, final Collection<String> nodeIds ) {
-
-        /* create a list of nodeIds to check randomly
-         */
-        final List<String> otherNodeIds = new ArrayList<String>( nodeIds );
-        otherNodeIds.remove( nodeId );
-
-        while ( !otherNodeIds.isEmpty() ) {
-            final String nodeIdToCheck = otherNodeIds.get( _random.nextInt( otherNodeIds.size() ) );
-            if ( isNodeAvailable( nodeIdToCheck ) ) {
-                return nodeIdToCheck;
+        final List<String> availableNodeIds = new ArrayList<String>( nodeIds.size() );
+        for ( final String nodeIdToCheck : nodeIds ) {
+            if ( !nodeIdToCheck.equals( nodeId ) && isNodeAvailable( nodeIdToCheck ) ) {
+                availableNodeIds.add( nodeIdToCheck );
             }
-            otherNodeIds.remove( nodeIdToCheck );
         }
-
-        return null;
+        return availableNodeIds.isEmpty() ? null : _nodeSelectionStrategy.select( availableNodeIds );
     }
 
     /**
-     * Get the next random, available node id. If no node is available, <code>null</code>
-     * is returned.
+     * Get the next available node id, selected by the {@link NodeSelectionStrategy}. If no
+     * regular node is available a failover node is selected, if no node is available,
+     * <code>null</code> is returned.
      * @return a nodeId or <code>null</code>.
      */
     public String getMemcachedNodeId() {
-        final String nodeId = _nodeIds.get( _random.nextInt( _nodeIds.size() ) );
-        return isNodeAvailable( nodeId ) ? nodeId : getAvailableNodeId( nodeId );
+        return getAvailableNodeId( null );
     }
 
     /* Just for testing
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.List;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Selects the memcached node for new sessions and for sessions that are relocated
+ * because their node failed.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public abstract class NodeSelectionStrategy {
+
+    /**
+     * The supported node selection modes.
+     */
+    public static enum NodeSelectionMode {
+        /**
+         * Selects one of the available nodes randomly (default).
+         */
+        RANDOM,
+        /**
+         * Picks two of the available nodes randomly and selects the one with the lower
+         * latency ("power of two choices"), so that new sessions are placed on slow or
+         * busy nodes less often, but not all on the fastest node.
+         */
+        LATENCY
+    }
+
+    protected final Random _random = new Random();
+
+    /**
+     * Creates the strategy for the given mode.
+     *
+     * @param mode the mode, if <code>null</code> {@link NodeSelectionMode#RANDOM} is used.
+     * @param nodeHealthMonitor provides the latency of the nodes, must be provided for {@link NodeSelectionMode#LATENCY}.
+     */
+    @Nonnull
+    public static NodeSelectionStrategy create( @Nullable final NodeSelectionMode mode,
+            @Nullable final NodeHealthMonitor<String> nodeHealthMonitor ) {
+        if ( mode == NodeSelectionMode.LATENCY ) {
+            if ( nodeHealthMonitor == null ) {
+                throw new IllegalArgumentException( "The NodeHealthMonitor must not be null for node selection mode " + mode );
+            }
+            return new LatencyNodeSelectionStrategy( nodeHealthMonitor );
+        }
+        return new RandomNodeSelectionStrategy();
+    }
+
+    /**
+     * Selects one of the given node ids.
+     *
+     * @param nodeIds the available node ids to select from, not empty.
+     * @return one of the given node ids.
+     */
+    @Nonnull
+    public abstract String select( @Nonnull List<String> nodeIds );
+
+    static final class RandomNodeSelectionStrategy extends NodeSelectionStrategy {
+
+        @Override
+        public String select( final List<String> nodeIds ) {
+            return nodeIds.get( _random.nextInt( nodeIds.size() ) );
+        }
+
+    }
+
+    /**
+     * Selects the node with the lower latency of two randomly picked nodes. The latency is the
+     * moving average of the probes of the {@link NodeHealthMonitor}. As probes are queued
+     * behind the other operations of a node, the latency also grows with the outstanding operations.
+     */
+    static final class LatencyNodeSelectionStrategy extends NodeSelectionStrategy {
+
+        private final NodeHealthMonitor<String> _nodeHealthMonitor;
+
+        LatencyNodeSelectionStrategy( @Nonnull final NodeHealthMonitor<String> nodeHealthMonitor ) {
+            _nodeHealthMonitor = nodeHealthMonitor;
+        }
+
+        @Override
+        public String select( final List<String> nodeIds ) {
+            final int size = nodeIds.size();
+            if ( size == 1 ) {
+                return nodeIds.get( 0 );
+            }
+            final int first = _random.nextInt( size );
+            final int second = ( first + 1 + _random.nextInt( size - 1 ) ) % size;
+            final String firstNodeId = nodeIds.get( first );
+            final String secondNodeId = nodeIds.get( second );
+            return getLatency( secondNodeId ) < getLatency( firstNodeId ) ? secondNodeId : firstNodeId;
+        }
+
+        /**
+         * Nodes without latency (not probed yet) are treated as fast so that they receive sessions.
+         */
+        private double getLatency( final String nodeId ) {
+            return Math.max( _nodeHealthMonitor.getLatencyMillis( nodeId ), 0 );
+        }
+
+    }
+
+}
@@ -44,13 +44,13 @@ public class ReadOnlyRequestsCache {
 
     private final Log _log = LogFactory.getLog( getClass() );
 
-    private final LRUCache<String, AtomicLong> _readOnlyRequests;
-    private final LRUCache<String, AtomicLong> _blacklist;
+    private final ConcurrentLRUCache<String, AtomicLong> _readOnlyRequests;
+    private final ConcurrentLRUCache<String, AtomicLong> _blacklist;
 
     public ReadOnlyRequestsCache() {
         final long sixHours = TimeUnit.HOURS.toMillis( 6 );
-        _readOnlyRequests = new LRUCache<String, AtomicLong>( 1000, sixHours );
-        _blacklist = new LRUCache<String, AtomicLong>( 50000, sixHours );
+        _readOnlyRequests = new ConcurrentLRUCache<String, AtomicLong>( 1000, sixHours );
+        _blacklist = new ConcurrentLRUCache<String, AtomicLong>( 50000, sixHours );
     }
 
     /**
@@ -117,7 +117,7 @@ public class ReadOnlyRequestsCache {
         return _readOnlyRequests.getKeysSortedByValue( ATOMLONG_COMP );
     }
 
-    private void incrementOrPut( final LRUCache<String, AtomicLong> cache, final String requestURI ) {
+    private void incrementOrPut( final ConcurrentLRUCache<String, AtomicLong> cache, final String requestURI ) {
         final AtomicLong count = cache.get( requestURI );
         if ( count != null ) {
             count.incrementAndGet();
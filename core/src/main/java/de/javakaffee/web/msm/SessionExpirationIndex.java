@@ -0,0 +1,136 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Indexes sessions by the time they're due for an expiration update in memcached, so that
+ * the background process only has to visit the sessions that are actually due instead of
+ * checking all sessions (see {@link MemcachedSessionService#updateExpirationInMemcached()}).
+ * <p>
+ * Sessions are put into buckets (with a resolution of one second by default), ordered by the
+ * due time. A session is only contained in the bucket it was scheduled for last, a reschedule
+ * does not remove the session from its previous bucket, but such stale entries are skipped
+ * when the bucket is polled.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionExpirationIndex {
+
+    public static final long DEFAULT_RESOLUTION = 1000;
+
+    private final long _resolution;
+    private final ConcurrentSkipListMap<Long, Queue<MemcachedBackupSession>> _buckets =
+            new ConcurrentSkipListMap<Long, Queue<MemcachedBackupSession>>();
+    private final ConcurrentMap<MemcachedBackupSession, Long> _scheduled = new ConcurrentHashMap<MemcachedBackupSession, Long>();
+
+    /**
+     * Creates a new index with the default resolution.
+     */
+    public SessionExpirationIndex() {
+        this( DEFAULT_RESOLUTION );
+    }
+
+    /**
+     * @param resolution the time in millis covered by a single bucket.
+     */
+    public SessionExpirationIndex( final long resolution ) {
+        if ( resolution < 1 ) {
+            throw new IllegalArgumentException( "The resolution must be positive, but was " + resolution );
+        }
+        _resolution = resolution;
+    }
+
+    /**
+     * Schedules the given session, so that it's returned by {@link #pollDue(long)} once
+     * the given time is reached. If the session was already scheduled it's rescheduled.
+     *
+     * @param session the session to schedule.
+     * @param dueAt the time in millis when the session is due.
+     */
+    public void schedule( @Nonnull final MemcachedBackupSession session, final long dueAt ) {
+        final Long tick = Long.valueOf( dueAt / _resolution );
+        if ( tick.equals( _scheduled.put( session, tick ) ) ) {
+            return;
+        }
+        while ( true ) {
+            Queue<MemcachedBackupSession> bucket = _buckets.get( tick );
+            if ( bucket == null ) {
+                bucket = new ConcurrentLinkedQueue<MemcachedBackupSession>();
+                final Queue<MemcachedBackupSession> existing = _buckets.putIfAbsent( tick, bucket );
+                if ( existing != null ) {
+                    bucket = existing;
+                }
+            }
+            bucket.add( session );
+            // if the bucket was polled in the meantime we have to add the session to a new bucket
+            if ( _buckets.get( tick ) == bucket ) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the given session from the index.
+     */
+    public void remove( @Nonnull final MemcachedBackupSession session ) {
+        _scheduled.remove( session );
+    }
+
+    /**
+     * Removes and returns all sessions that are due at the given time.
+     *
+     * @param time the time in millis.
+     * @return the due sessions, ordered by their due time.
+     */
+    @Nonnull
+    public List<MemcachedBackupSession> pollDue( final long time ) {
+        final long maxTick = time / _resolution;
+        final List<MemcachedBackupSession> result = new ArrayList<MemcachedBackupSession>();
+        Map.Entry<Long, Queue<MemcachedBackupSession>> entry;
+        while ( ( entry = _buckets.firstEntry() ) != null && entry.getKey().longValue() <= maxTick ) {
+            if ( _buckets.remove( entry.getKey(), entry.getValue() ) ) {
+                for ( final MemcachedBackupSession session : entry.getValue() ) {
+                    // skip stale entries of rescheduled sessions (and duplicates)
+                    if ( _scheduled.remove( session, entry.getKey() ) ) {
+                        result.add( session );
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of scheduled sessions.
+     */
+    public int size() {
+        return _scheduled.size();
+    }
+
+}
@@ -40,6 +40,7 @@ import org.apache.juli.logging.LogFactory;
 public class SessionIdFormat {
 
     private static final String BACKUP_PREFIX = "bak:";
+    private static final String ATTRIBUTE_PREFIX = "attr";
 
     private static final Log LOG = LogFactory.getLog( SessionIdFormat.class );
 
@@ -202,6 +203,23 @@ public class SessionIdFormat {
         return "lock:" + sessionId;
     }
 
+    /**
+     * Creates the name/key that is used for a session attribute that is stored separately
+     * in memcached (see {@link AttributesManifest}). The key is resolved to the same
+     * memcached node as the session itself.
+     * @param sessionId the session id for that an attribute key shall be created.
+     * @param slot the slot of the attribute (instead of the attribute name, which might contain
+     *  characters not allowed in memcached keys).
+     * @return a String.
+     */
+    @Nonnull
+    public String createAttributeKey( @Nonnull final String sessionId, final int slot ) {
+        if ( sessionId == null ) {
+            throw new IllegalArgumentException( "The sessionId must not be null." );
+        }
+        return ATTRIBUTE_PREFIX + slot + ":" + sessionId;
+    }
+
     /**
      * Creates the name/key that is used for the data (session or validity info)
      * that is additionally stored in a secondary memcached node for non-sticky sessions.
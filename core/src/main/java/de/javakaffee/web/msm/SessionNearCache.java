@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.Future;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+
+/**
+ * A local cache of the serialized data of non-sticky sessions, so that a session that is
+ * requested again on the same tomcat does not need to be fetched from memcached if it was
+ * not changed in the meantime.
+ * <p>
+ * Each entry is stamped with the session validity info (see {@link SessionValidityInfo}) that
+ * was stored in memcached when the session was loaded or backed up by this tomcat. As
+ * the validity info is updated for each request (by any tomcat) it serves as version of the session:
+ * if the validity info loaded from memcached still matches the stamp of the entry the session was not
+ * accessed by another tomcat and the cached data can be used, so that only the small validity info
+ * must be fetched instead of the complete session.
+ * </p>
+ * <p>
+ * The cache is bounded (least recently used entries are evicted), sessions with separately
+ * stored attributes (see {@link AttributesManifest}) are not cached.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionNearCache {
+
+    private static final Log _log = LogFactory.getLog( SessionNearCache.class );
+
+    private final LRUCache<String, Entry> _cache;
+
+    /**
+     * @param size the max number of sessions to cache.
+     */
+    public SessionNearCache( final int size ) {
+        if ( size < 1 ) {
+            throw new IllegalArgumentException( "The size must be positive, but was " + size );
+        }
+        _cache = new LRUCache<String, Entry>( size );
+    }
+
+    /**
+     * Caches the given data of a session that was just loaded from memcached.
+     *
+     * @param data the session data as loaded from memcached.
+     * @param session the deserialized session, with access times set from the session validity info.
+     */
+    public void put( @Nonnull final byte[] data, @Nonnull final MemcachedBackupSession session ) {
+        if ( TranscoderService.hasAttributesManifest( data ) ) {
+            return;
+        }
+        _cache.put( session.getIdInternal(), new Entry( session, data, null ) );
+    }
+
+    /**
+     * Updates the cached session when it's backed up, must be invoked with the values of the session
+     * that are stored in the session validity info.
+     *
+     * @param session the session that is backed up.
+     * @param backupResult the result of the backup: if the session was stored the stored data is cached,
+     *  if the backup was skipped the previously cached data is kept.
+     */
+    public void onBackup( @Nonnull final MemcachedBackupSession session, @Nonnull final Future<BackupResult> backupResult ) {
+        final Entry previous = _cache.get( session.getIdInternal() );
+        final byte[] previousData = previous != null && previous._maxInactiveInterval == session.getMaxInactiveInterval()
+            ? previous.getData()
+            : null;
+        _cache.put( session.getIdInternal(), new Entry( session, previousData, backupResult ) );
+    }
+
+    /**
+     * Returns the cached data of the session, if it matches the given validity info.
+     *
+     * @param sessionId the id of the session.
+     * @param validityInfo the session validity info as currently stored in memcached.
+     * @return the session data or <code>null</code> if the session is not cached or if the
+     *  cached data is outdated.
+     */
+    @CheckForNull
+    public byte[] get( @Nonnull final String sessionId, @CheckForNull final SessionValidityInfo validityInfo ) {
+        final Entry entry = _cache.get( sessionId );
+        if ( entry == null ) {
+            return null;
+        }
+        if ( validityInfo == null || !entry.matches( validityInfo ) ) {
+            _cache.remove( sessionId );
+            return null;
+        }
+        return entry.getData();
+    }
+
+    /**
+     * Removes the given session from the cache, e.g. because it was invalidated.
+     */
+    public void remove( @Nonnull final String sessionId ) {
+        _cache.remove( sessionId );
+    }
+
+    private static final class Entry {
+
+        private final long _lastAccessedTime;
+        private final long _thisAccessedTime;
+        private final int _maxInactiveInterval;
+        private final byte[] _data;
+        private final Future<BackupResult> _backupResult;
+
+        Entry( final MemcachedBackupSession session, final byte[] data, final Future<BackupResult> backupResult ) {
+            _lastAccessedTime = session.getLastAccessedTimeInternal();
+            _thisAccessedTime = session.getThisAccessedTimeInternal();
+            _maxInactiveInterval = session.getMaxInactiveInterval();
+            _data = data;
+            _backupResult = backupResult;
+        }
+
+        boolean matches( final SessionValidityInfo validityInfo ) {
+            return validityInfo.getThisAccessedTime() == _thisAccessedTime
+                    && validityInfo.getLastAccessedTime() == _lastAccessedTime
+                    && validityInfo.getMaxInactiveInterval() == _maxInactiveInterval;
+        }
+
+        /**
+         * The session data, <code>null</code> if the backup is still running or failed.
+         */
+        byte[] getData() {
+            if ( _backupResult == null ) {
+                return _data;
+            }
+            if ( !_backupResult.isDone() ) {
+                return null;
+            }
+            try {
+                final BackupResult result = _backupResult.get();
+                switch ( result.getStatus() ) {
+                    case SUCCESS:
+                        final byte[] data = result.getData();
+                        return data != null && !TranscoderService.hasAttributesManifest( data ) ? data : null;
+                    case SKIPPED:
+                        return _data;
+                    default:
+                        return null;
+                }
+            } catch ( final Exception e ) {
+                if ( _log.isDebugEnabled() ) {
+                    _log.debug( "Could not get backup result", e );
+                }
+                return null;
+            }
+        }
+
+    }
+
+}
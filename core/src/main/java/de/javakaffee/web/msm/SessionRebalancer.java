@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Moves locally known sessions to their new home nodes in the background after the memcached nodes
+ * were changed (see {@link MemcachedNodesManager#getRebalancedSessionId(String, MemcachedNodesManager)}),
+ * so that a new node takes its share of the sessions without waiting for sessions to expire.
+ * <p>
+ * The sessions are processed in batches of <code>batchSize</code> sessions, with a pause of <code>batchIntervalMillis</code>
+ * between two batches, so that moving sessions doesn't produce load peaks on the memcached nodes. The
+ * actual relocation of a session is done by the {@link SessionRelocator}.
+ * </p>
+ * <p>
+ * If the nodes change again while sessions are still being moved the remaining sessions are checked
+ * against the configuration that was active before the first change.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionRebalancer {
+
+    private static final Log LOG = LogFactory.getLog( SessionRebalancer.class );
+
+    /**
+     * Relocates a single session.
+     */
+    public static interface SessionRelocator {
+
+        /**
+         * Moves the session with the given id to its home node with the current configuration, if necessary.
+         *
+         * @param sessionId the id of the session to check.
+         * @param previous the configuration that was active before the memcached nodes were changed.
+         * @return <code>true</code> if the session was moved.
+         * @throws InterruptedException if the thread was interrupted while the session was stored.
+         */
+        boolean relocate( @Nonnull String sessionId, @Nonnull MemcachedNodesManager previous ) throws InterruptedException;
+
+    }
+
+    private final SessionRelocator _relocator;
+    private final int _batchSize;
+    private final long _batchIntervalMillis;
+    private final ScheduledExecutorService _scheduler;
+
+    @CheckForNull
+    private Batches _batches;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param relocator moves a single session
+     * @param batchSize the number of sessions that are checked per batch
+     * @param batchIntervalMillis the delay between two batches
+     */
+    public SessionRebalancer( @Nonnull final SessionRelocator relocator, final int batchSize, final long batchIntervalMillis ) {
+        if ( batchSize < 1 ) {
+            throw new IllegalArgumentException( "The batch size must be positive, but was " + batchSize );
+        }
+        _relocator = relocator;
+        _batchSize = batchSize;
+        _batchIntervalMillis = batchIntervalMillis;
+        _scheduler = Executors.newSingleThreadScheduledExecutor( new NamedThreadFactory( "msm-rebalancer" ) );
+    }
+
+    /**
+     * Starts moving the given sessions in the background, a run that's still in progress is replaced.
+     *
+     * @param sessionIds the ids of the sessions to check.
+     * @param previous the configuration that was active before the memcached nodes were changed.
+     */
+    public synchronized void rebalance( @Nonnull final Collection<String> sessionIds, @Nonnull final MemcachedNodesManager previous ) {
+        MemcachedNodesManager previousConfig = previous;
+        if ( isRunning() ) {
+            _batches._cancelled = true;
+            previousConfig = _batches._previousConfig;
+        }
+        LOG.info( "Starting to rebalance " + sessionIds.size() + " sessions in batches of " + _batchSize + " every " + _batchIntervalMillis + "ms." );
+        _batches = new Batches( new ArrayList<String>( sessionIds ).iterator(), previousConfig );
+        _scheduler.execute( _batches );
+    }
+
+    /**
+     * Determines if sessions are currently being moved.
+     */
+    synchronized boolean isRunning() {
+        return _batches != null && !_batches._done;
+    }
+
+    /**
+     * Stops moving sessions.
+     */
+    public void shutdown() {
+        _scheduler.shutdownNow();
+    }
+
+    private final class Batches implements Runnable {
+
+        private final Iterator<String> _sessionIds;
+        private final MemcachedNodesManager _previousConfig;
+        private volatile boolean _cancelled;
+        private volatile boolean _done;
+        private int _checked;
+        private int _moved;
+
+        private Batches( @Nonnull final Iterator<String> sessionIds, @Nonnull final MemcachedNodesManager previousConfig ) {
+            _sessionIds = sessionIds;
+            _previousConfig = previousConfig;
+        }
+
+        @Override
+        public void run() {
+            if ( _cancelled ) {
+                _done = true;
+                return;
+            }
+            for ( int i = 0; i < _batchSize && _sessionIds.hasNext(); i++ ) {
+                final String sessionId = _sessionIds.next();
+                try {
+                    if ( _relocator.relocate( sessionId, _previousConfig ) ) {
+                        _moved++;
+                    }
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    _done = true;
+                    return;
+                } catch ( final RuntimeException e ) {
+                    LOG.warn( "Could not relocate session " + sessionId, e );
+                }
+                _checked++;
+            }
+            if ( !_sessionIds.hasNext() ) {
+                LOG.info( "Finished rebalancing, moved " + _moved + " of " + _checked + " sessions." );
+                _done = true;
+                return;
+            }
+            try {
+                _scheduler.schedule( this, _batchIntervalMillis, TimeUnit.MILLISECONDS );
+            } catch ( final RejectedExecutionException e ) {
+                // we're shut down
+                _done = true;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Coalesces concurrent loads of the same key: the first thread that loads a key (the leader)
+ * performs the load, threads that request the same key while this load is in progress
+ * don't load it again but wait for the leader and get the same result.
+ * <p>
+ * This is used to load a session only once from memcached if several requests for the same
+ * session arrive at the same time at a tomcat that does not have the session locally, e.g.
+ * after a tomcat failover or with non-sticky sessions.
+ * </p>
+ * <p>
+ * Results are not cached: once the load is finished the next request for the key triggers a new load.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SingleFlightLoader<V> {
+
+    private final ConcurrentMap<String, FutureTask<V>> _inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+    private final Statistics _statistics;
+
+    /**
+     * @param statistics the statistics to register coalesced loads.
+     */
+    public SingleFlightLoader( @Nonnull final Statistics statistics ) {
+        _statistics = statistics;
+    }
+
+    /**
+     * Loads the value for the given key with the given loader, or waits for the result of
+     * a load of the same key that's already in progress.
+     *
+     * @param key the key to load.
+     * @param loader performs the actual load.
+     * @return the loaded value, or <code>null</code> if the loader returned <code>null</code> or the
+     *  current thread was interrupted while waiting for another thread's load.
+     * @throws RuntimeException if the loader threw an exception (for the leader and all waiting threads).
+     */
+    @CheckForNull
+    public V load( @Nonnull final String key, @Nonnull final Callable<V> loader ) {
+        final FutureTask<V> task = new FutureTask<V>( loader );
+        final FutureTask<V> inFlight = _inFlight.putIfAbsent( key, task );
+        if ( inFlight != null ) {
+            _statistics.sessionLoadCoalesced();
+            return getResult( key, inFlight );
+        }
+        try {
+            task.run();
+        } finally {
+            _inFlight.remove( key, task );
+        }
+        return getResult( key, task );
+    }
+
+    /**
+     * The number of loads currently in progress.
+     */
+    int getLoadsInFlight() {
+        return _inFlight.size();
+    }
+
+    @CheckForNull
+    private V getResult( @Nonnull final String key, @Nonnull final FutureTask<V> task ) {
+        try {
+            return task.get();
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch ( final ExecutionException e ) {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException( "Could not load " + key, cause );
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nonnull;
 
@@ -38,6 +39,15 @@ public class Statistics {
     private final AtomicLong _numRequestsWithoutSessionModification = new AtomicLong();
     private final AtomicLong _numNonStickySessionsPingFailed = new AtomicLong();
     private final AtomicLong _numNonStickySessionsReadOnlyRequest = new AtomicLong();
+    private final AtomicLong _numNonStickySessionsCasConflicts = new AtomicLong();
+    private final AtomicLong _numBackupBatchQueueFull = new AtomicLong();
+    private final AtomicLong _numBackupsCoalesced = new AtomicLong();
+    private final AtomicLong _numNonStickyNearCacheHits = new AtomicLong();
+    private final AtomicLong _numNonStickyNearCacheMisses = new AtomicLong();
+    private final AtomicLong _numSessionLoadsCoalesced = new AtomicLong();
+    private final AtomicLong _numSessionDeserializationFailures = new AtomicLong();
+    private final AtomicLong _numAttributesDeserializationsDeferred = new AtomicLong();
+    private final AtomicLong _numDeferredAttributesDeserialized = new AtomicLong();
 
     private final Map<StatsType, MinMaxAvgProbe> _probes;
 
@@ -155,6 +165,77 @@ public class Statistics {
         return _numNonStickySessionsReadOnlyRequest.get();
     }
 
+    public void nonStickySessionsCasConflict() {
+        _numNonStickySessionsCasConflicts.incrementAndGet();
+    }
+    public long getNonStickySessionsCasConflicts() {
+        return _numNonStickySessionsCasConflicts.get();
+    }
+
+    public void backupBatchQueueFull() {
+        _numBackupBatchQueueFull.incrementAndGet();
+    }
+    public long getBackupBatchQueueFull() {
+        return _numBackupBatchQueueFull.get();
+    }
+
+    public void backupCoalesced() {
+        _numBackupsCoalesced.incrementAndGet();
+    }
+    public long getBackupsCoalesced() {
+        return _numBackupsCoalesced.get();
+    }
+
+    public void nonStickyNearCacheHit() {
+        _numNonStickyNearCacheHits.incrementAndGet();
+    }
+    public long getNonStickyNearCacheHits() {
+        return _numNonStickyNearCacheHits.get();
+    }
+
+    public void nonStickyNearCacheMiss() {
+        _numNonStickyNearCacheMisses.incrementAndGet();
+    }
+    public long getNonStickyNearCacheMisses() {
+        return _numNonStickyNearCacheMisses.get();
+    }
+
+    public void sessionLoadCoalesced() {
+        _numSessionLoadsCoalesced.incrementAndGet();
+    }
+    public long getSessionLoadsCoalesced() {
+        return _numSessionLoadsCoalesced.get();
+    }
+
+    public void sessionDeserializationFailed() {
+        _numSessionDeserializationFailures.incrementAndGet();
+    }
+    public long getSessionDeserializationFailures() {
+        return _numSessionDeserializationFailures.get();
+    }
+
+    public void attributesDeserializationDeferred() {
+        _numAttributesDeserializationsDeferred.incrementAndGet();
+    }
+    public long getAttributesDeserializationsDeferred() {
+        return _numAttributesDeserializationsDeferred.get();
+    }
+
+    public void deferredAttributesDeserialized() {
+        _numDeferredAttributesDeserialized.incrementAndGet();
+    }
+    public long getDeferredAttributesDeserialized() {
+        return _numDeferredAttributesDeserialized.get();
+    }
+
+    /**
+     * The number of sessions loaded with lazy attributes deserialization whose
+     * attributes were not (yet) deserialized.
+     */
+    public long getAttributesDeserializationsSkipped() {
+        return _numAttributesDeserializationsDeferred.get() - _numDeferredAttributesDeserialized.get();
+    }
+
     public static enum StatsType {
 
         /**
@@ -190,11 +271,6 @@ public class Statistics {
          */
         ACQUIRE_LOCK_FAILURE,
 
-        /**
-         * Lock release in non-sticky session mode.
-         */
-        RELEASE_LOCK,
-
         /**
          * Time spent (in the request thread) for non-sticky sessions at the end of requests that did not access
          * the session (performs validity load/update, ping session, ping 2nd session backup, update validity backup in secondary memcached).
@@ -215,17 +291,72 @@ public class Statistics {
         /**
          * Tasks executed for non-sticky sessions after a session was deleted from memcached (delete validity info and backup data).
          */
-        NON_STICKY_AFTER_DELETE_FROM_MEMCACHED
+        NON_STICKY_AFTER_DELETE_FROM_MEMCACHED,
+
+        /**
+         * The number of memcached round trips the request thread waited for, per request with a non-sticky session
+         * (operations sent together and awaited together count as one round trip).
+         */
+        NON_STICKY_ROUND_TRIPS,
+
+        /**
+         * The number of writes sent to memcached together as one batch, if backup batching is enabled.
+         */
+        BACKUP_BATCH_SIZE,
+
+        /**
+         * The time in microseconds from the first write of a batch until the batch was sent to memcached,
+         * if backup batching is enabled.
+         */
+        BACKUP_BATCH_FLUSH,
+
+        /**
+         * The time in microseconds spent for compressing session data, if compression is enabled.
+         */
+        COMPRESSION,
+
+        /**
+         * The size of compressed session data in percent of the uncompressed size, if compression is enabled.
+         */
+        COMPRESSION_RATIO,
+
+        /**
+         * The time in microseconds spent for decompressing session data.
+         */
+        DECOMPRESSION
 
     }
 
+    /**
+     * Records the registered values in a histogram with logarithmic buckets, besides the exact
+     * count, min, max and avg: each power of two is divided into 16 linear sub-buckets, so that
+     * percentiles are reported with a relative error below 1/16 (values below 32 are exact).
+     * Values are registered lock-free.
+     * <p>
+     * {@link #getInfo()} also provides the count and percentiles of the interval since the previous
+     * invocation of {@link #getInfo()}, i.e. the interval values are reset when read.
+     * </p>
+     */
     public static class MinMaxAvgProbe {
 
-        private boolean _first = true;
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+        private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS ) * SUB_BUCKETS;
+
+        private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+        private static final String[] PERCENTILE_LABELS = { "P50", "P90", "P99", "P99.9" };
+
+        private final AtomicLongArray _buckets = new AtomicLongArray( BUCKETS );
         private final AtomicInteger _count = new AtomicInteger();
-        private long _min;
-        private long _max;
-        private double _avg;
+        private final AtomicLong _sum = new AtomicLong();
+        private final AtomicLong _min = new AtomicLong( Long.MAX_VALUE );
+        private final AtomicLong _max = new AtomicLong( Long.MIN_VALUE );
+
+        /*
+         * The bucket counts when the interval was read the last time, guarded by this
+         */
+        private long[] _intervalStart = new long[BUCKETS];
 
         /**
          * A utility method that calculates the difference of the time
@@ -242,14 +373,17 @@ public class Statistics {
          * @param value the value to register.
          */
         public void register( final long value ) {
-            if ( value < _min || _first ) {
-                _min = value;
+            _buckets.incrementAndGet( bucketIndex( value ) );
+            _sum.addAndGet( value );
+            long min;
+            while ( value < ( min = _min.get() ) && !_min.compareAndSet( min, value ) ) {
+                // retry
             }
-            if ( value > _max || _first ) {
-                _max = value;
+            long max;
+            while ( value > ( max = _max.get() ) && !_max.compareAndSet( max, value ) ) {
+                // retry
             }
-            _avg = ( _avg * _count.get() + value ) / _count.incrementAndGet();
-            _first = false;
+            _count.incrementAndGet();
         }
 
         /**
@@ -263,34 +397,112 @@ public class Statistics {
          * @return the min
          */
         long getMin() {
-            return _min;
+            return _count.get() == 0 ? 0 : _min.get();
         }
 
         /**
          * @return the max
          */
         long getMax() {
-            return _max;
+            return _count.get() == 0 ? 0 : _max.get();
         }
 
         /**
          * @return the avg
          */
         double getAvg() {
-            return _avg;
+            final int count = _count.get();
+            return count == 0 ? 0 : (double) _sum.get() / count;
+        }
+
+        /**
+         * Returns the value below which the given fraction of the registered values fall.
+         * @param percentile the percentile, e.g. <code>0.99</code>.
+         */
+        long getPercentile( final double percentile ) {
+            return getPercentile( getBucketCounts(), percentile );
         }
 
         /**
-         * Returns a string array with labels and values of count, min, avg and max.
+         * Returns a string array with labels and values of count, min, avg, max and percentiles,
+         * followed by the count and percentiles of the interval since the last invocation.
          * @return a String array.
          */
         public String[] getInfo() {
-            return new String[] {
-                    "Count = " + _count.get(),
-                    "Min = "+ _min,
-                    "Avg = "+ _avg,
-                    "Max = "+ _max
-            };
+            final long[] counts = getBucketCounts();
+            final long[] interval = new long[BUCKETS];
+            synchronized ( this ) {
+                for ( int i = 0; i < BUCKETS; i++ ) {
+                    interval[i] = counts[i] - _intervalStart[i];
+                }
+                _intervalStart = counts;
+            }
+            final String[] result = new String[5 + 2 * PERCENTILES.length];
+            int i = 0;
+            result[i++] = "Count = " + _count.get();
+            result[i++] = "Min = " + getMin();
+            result[i++] = "Avg = " + getAvg();
+            result[i++] = "Max = " + getMax();
+            for ( int p = 0; p < PERCENTILES.length; p++ ) {
+                result[i++] = PERCENTILE_LABELS[p] + " = " + getPercentile( counts, PERCENTILES[p] );
+            }
+            result[i++] = "Interval Count = " + sum( interval );
+            for ( int p = 0; p < PERCENTILES.length; p++ ) {
+                result[i++] = "Interval " + PERCENTILE_LABELS[p] + " = " + getPercentile( interval, PERCENTILES[p] );
+            }
+            return result;
+        }
+
+        private long[] getBucketCounts() {
+            final long[] result = new long[BUCKETS];
+            for ( int i = 0; i < BUCKETS; i++ ) {
+                result[i] = _buckets.get( i );
+            }
+            return result;
+        }
+
+        private long getPercentile( final long[] counts, final double percentile ) {
+            final long total = sum( counts );
+            if ( total == 0 ) {
+                return 0;
+            }
+            final long rank = Math.max( (long) Math.ceil( percentile * total ), 1 );
+            long seen = 0;
+            for ( int i = 0; i < BUCKETS; i++ ) {
+                seen += counts[i];
+                if ( seen >= rank ) {
+                    return Math.min( bucketUpperBound( i ), getMax() );
+                }
+            }
+            return getMax();
+        }
+
+        private static long sum( final long[] counts ) {
+            long result = 0;
+            for ( final long count : counts ) {
+                result += count;
+            }
+            return result;
+        }
+
+        static int bucketIndex( final long value ) {
+            if ( value < LINEAR_LIMIT ) {
+                return value < 0 ? 0 : (int) value;
+            }
+            final int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS;
+            return ( shift + 1 ) * SUB_BUCKETS + (int) ( value >>> shift ) - SUB_BUCKETS;
+        }
+
+        /**
+         * The highest value that's counted in the bucket with the given index.
+         */
+        static long bucketUpperBound( final int index ) {
+            if ( index < LINEAR_LIMIT ) {
+                return index;
+            }
+            final int shift = index / SUB_BUCKETS - 1;
+            final long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ( ( mantissa + 1 ) << shift ) - 1;
         }
 
     }
@@ -364,10 +576,46 @@ public class Statistics {
         public void nonStickySessionsReadOnlyRequest() {
         }
 
+        @Override
+        public void nonStickySessionsCasConflict() {
+        }
+
         @Override
         public void requestWithoutAttributesAccess() {
         }
 
+        @Override
+        public void backupBatchQueueFull() {
+        }
+
+        @Override
+        public void backupCoalesced() {
+        }
+
+        @Override
+        public void nonStickyNearCacheHit() {
+        }
+
+        @Override
+        public void nonStickyNearCacheMiss() {
+        }
+
+        @Override
+        public void sessionLoadCoalesced() {
+        }
+
+        @Override
+        public void sessionDeserializationFailed() {
+        }
+
+        @Override
+        public void attributesDeserializationDeferred() {
+        }
+
+        @Override
+        public void deferredAttributesDeserialized() {
+        }
+
     };
 
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A {@link SessionAttributesTranscoder} that can write the serialized session attributes
+ * directly to a provided {@link OutputStream} and read them from a {@link ByteBuffer},
+ * so that neither the serialized attributes nor the session data they're part of have to be
+ * copied into separate byte arrays.
+ * <p>
+ * Transcoders that only implement {@link SessionAttributesTranscoder} are adapted
+ * by the {@link TranscoderService} (see {@link StreamingTranscoderAdapter}).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface StreamingSessionAttributesTranscoder extends SessionAttributesTranscoder {
+
+    /**
+     * Serialize the given attributes to the given stream. The provided session is the
+     * session the attributes were retrieved from. The written data can be
+     * deserialized using {@link #deserializeAttributes(ByteBuffer)} or
+     * {@link #deserializeAttributes(byte[])}.
+     * <p>
+     * The stream must not be closed by the transcoder, as the session data might
+     * be written to the same stream.
+     * </p>
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @param out the stream to write the serialized attributes to.
+     * @throws IOException if writing to the stream failed.
+     */
+    void serializeAttributes( @Nonnull MemcachedBackupSession session, @Nonnull Map<String, Object> attributes,
+            @Nonnull OutputStream out ) throws IOException;
+
+    /**
+     * Deserialize the remaining bytes of the given buffer to session attributes. The map implementation
+     * should be a {@link ConcurrentHashMap} (see {@link SessionAttributesTranscoder#deserializeAttributes(byte[])}).
+     *
+     * @param data the serialized attributes, from its position to its limit.
+     * @return the deserialized attributes
+     */
+    Map<String, Object> deserializeAttributes( @Nonnull ByteBuffer data );
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Adapts a {@link SessionAttributesTranscoder} that does not support streaming to the
+ * {@link StreamingSessionAttributesTranscoder} interface: serialized attributes are
+ * written to the stream as a whole, buffers are only copied if they don't wrap a complete array.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class StreamingTranscoderAdapter implements StreamingSessionAttributesTranscoder {
+
+    private final SessionAttributesTranscoder _delegate;
+
+    /**
+     * @param delegate the transcoder to adapt.
+     */
+    public StreamingTranscoderAdapter( @Nonnull final SessionAttributesTranscoder delegate ) {
+        _delegate = delegate;
+    }
+
+    /**
+     * Returns the given transcoder if it's already a {@link StreamingSessionAttributesTranscoder},
+     * otherwise it's wrapped by a {@link StreamingTranscoderAdapter}.
+     */
+    @Nonnull
+    public static StreamingSessionAttributesTranscoder adapt( @Nonnull final SessionAttributesTranscoder transcoder ) {
+        return transcoder instanceof StreamingSessionAttributesTranscoder
+            ? (StreamingSessionAttributesTranscoder) transcoder
+            : new StreamingTranscoderAdapter( transcoder );
+    }
+
+    /**
+     * The adapted transcoder.
+     */
+    @Nonnull
+    public SessionAttributesTranscoder getDelegate() {
+        return _delegate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+        return _delegate.serializeAttributes( session, attributes );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) throws IOException {
+        out.write( _delegate.serializeAttributes( session, attributes ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] data ) {
+        return _delegate.deserializeAttributes( data );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final ByteBuffer data ) {
+        if ( data.hasArray() && data.arrayOffset() + data.position() == 0 && data.remaining() == data.array().length ) {
+            return _delegate.deserializeAttributes( data.array() );
+        }
+        final byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get( bytes );
+        return _delegate.deserializeAttributes( bytes );
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Provides monitors for keys (e.g. session ids) from a fixed number of stripes, so that
+ * threads working with different keys usually don't contend for the same monitor, while
+ * threads working with the same key always synchronize on the same monitor:
+ * <pre>
+ * synchronized ( stripedLock.getLock( sessionId ) ) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class StripedLock {
+
+    public static final int DEFAULT_STRIPES = 256;
+
+    private final Object[] _locks;
+    private final int _mask;
+
+    /**
+     * Creates a new instance with {@link #DEFAULT_STRIPES} stripes.
+     */
+    public StripedLock() {
+        this( DEFAULT_STRIPES );
+    }
+
+    /**
+     * @param stripes the number of stripes, it's rounded up to the next power of two.
+     */
+    public StripedLock( final int stripes ) {
+        if ( stripes < 1 ) {
+            throw new IllegalArgumentException( "The number of stripes must be positive, but was " + stripes );
+        }
+        int size = 1;
+        while ( size < stripes ) {
+            size <<= 1;
+        }
+        _locks = new Object[size];
+        for ( int i = 0; i < size; i++ ) {
+            _locks[i] = new Object();
+        }
+        _mask = size - 1;
+    }
+
+    /**
+     * Returns the monitor for the given key.
+     */
+    @Nonnull
+    public Object getLock( @Nonnull final String key ) {
+        int h = key.hashCode();
+        // spread the higher bits, as only the lower bits are used
+        h ^= ( h >>> 20 ) ^ ( h >>> 12 );
+        h ^= ( h >>> 7 ) ^ ( h >>> 4 );
+        return _locks[h & _mask];
+    }
+
+    /**
+     * The number of stripes.
+     */
+    public int getStripes() {
+        return _locks.length;
+    }
+
+}
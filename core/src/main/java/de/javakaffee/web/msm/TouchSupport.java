@@ -0,0 +1,189 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.OperationFactory;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.CASOperationStatus;
+import net.spy.memcached.ops.OperationException;
+import net.spy.memcached.ops.OperationStatus;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Updates the expiration time of items in memcached with the <code>touch</code> command,
+ * so that the expiration of a session can be updated without sending the session data again.
+ * <p>
+ * The touch command is only available with the binary protocol and since memcached 1.4.8.
+ * If the memcached client does not support touch (text protocol, the {@link OperationFactory}
+ * throws an {@link UnsupportedOperationException}) or the server does not know the command,
+ * touch is disabled and {@link TouchResult#UNAVAILABLE} is returned, so that the caller
+ * can fall back to storing/pinging the item as without touch.
+ * </p>
+ * <p>
+ * With the binary protocol the memcached client reports an unknown command just as an
+ * unsuccessful touch (like a missing item), therefore the status of the operation is checked:
+ * only a "not found" status is reported as {@link TouchResult#NOT_FOUND}.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class TouchSupport {
+
+    private static final Log _log = LogFactory.getLog( TouchSupport.class );
+
+    /**
+     * The result of a {@link TouchSupport#touch(String, int, long)}.
+     */
+    public static enum TouchResult {
+        /**
+         * The item exists and its expiration was updated.
+         */
+        TOUCHED,
+        /**
+         * The item does not exist in memcached.
+         */
+        NOT_FOUND,
+        /**
+         * Touch is not supported, the caller has to fall back to another operation.
+         */
+        UNAVAILABLE
+    }
+
+    private final MemcachedClient _memcached;
+    private volatile boolean _supported = true;
+
+    /**
+     * @param memcached the memcached client used to touch items.
+     */
+    public TouchSupport( @Nonnull final MemcachedClient memcached ) {
+        _memcached = memcached;
+    }
+
+    /**
+     * Determines if touch may be used, this is <code>false</code> once it's known that
+     * the memcached client or server does not support touch.
+     */
+    public boolean isSupported() {
+        return _supported;
+    }
+
+    /**
+     * Updates the expiration of the item with the given key.
+     *
+     * @param key the key of the item.
+     * @param expiration the new expiration time in seconds (as expected by memcached).
+     * @param timeoutMillis the time in milliseconds to wait for the result.
+     * @return {@link TouchResult#UNAVAILABLE} if touch is not supported.
+     */
+    @Nonnull
+    public TouchResult touch( @Nonnull final String key, final int expiration, final long timeoutMillis )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final Future<Boolean> future = touchAsync( key, expiration );
+        return future != null ? getResult( future, timeoutMillis ) : TouchResult.UNAVAILABLE;
+    }
+
+    /**
+     * Sends the touch command for the item with the given key without waiting for the result, so
+     * that several items can be touched at once. The result must be read with {@link #getResult(Future, long)}.
+     *
+     * @param key the key of the item.
+     * @param expiration the new expiration time in seconds (as expected by memcached).
+     * @return the future of the touch, or <code>null</code> if touch is not supported.
+     */
+    @CheckForNull
+    public Future<Boolean> touchAsync( @Nonnull final String key, final int expiration ) {
+        if ( !_supported ) {
+            return null;
+        }
+        try {
+            return _memcached.touch( key, expiration );
+        } catch ( final UnsupportedOperationException e ) {
+            disable( e.getMessage() );
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the result of a touch sent with {@link #touchAsync(String, int)}.
+     *
+     * @param future the future of the touch.
+     * @param timeoutMillis the time in milliseconds to wait for the result.
+     * @return {@link TouchResult#UNAVAILABLE} if the server does not support touch.
+     */
+    @Nonnull
+    public TouchResult getResult( @Nonnull final Future<Boolean> future, final long timeoutMillis )
+            throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            if ( future.get( timeoutMillis, TimeUnit.MILLISECONDS ) ) {
+                return TouchResult.TOUCHED;
+            }
+            final OperationStatus status = future instanceof OperationFuture ? ( (OperationFuture<?>) future ).getStatus() : null;
+            if ( status == null || isNotFound( status ) ) {
+                return TouchResult.NOT_FOUND;
+            }
+            if ( isUnknownCommand( status ) ) {
+                disable( status.getMessage() );
+            }
+            else if ( _log.isDebugEnabled() ) {
+                _log.debug( "Touch failed with status " + status + ", the caller falls back to storing/pinging the item." );
+            }
+            return TouchResult.UNAVAILABLE;
+        } catch ( final ExecutionException e ) {
+            // an error response ("Unknown command") is reported as OperationException
+            if ( e.getCause() instanceof OperationException ) {
+                disable( e.getCause().getMessage() );
+                return TouchResult.UNAVAILABLE;
+            }
+            throw e;
+        }
+    }
+
+    private static boolean isNotFound( @Nonnull final OperationStatus status ) {
+        return status instanceof CASOperationStatus
+            && ( (CASOperationStatus) status ).getCASResponse() == CASResponse.NOT_FOUND;
+    }
+
+    /**
+     * Memcached answers an unknown command with status 0x81 ("Unknown command") or, depending
+     * on the version, with 0x83 ("Not supported").
+     */
+    private static boolean isUnknownCommand( @Nonnull final OperationStatus status ) {
+        final String message = status.getMessage() != null ? status.getMessage().toLowerCase() : "";
+        return message.contains( "unknown command" ) || message.contains( "not supported" );
+    }
+
+    private void disable( final String reason ) {
+        if ( _supported ) {
+            _supported = false;
+            _log.info( "The memcached touch command is not supported (" + reason + "), "
+                    + "expiration updates and session pings will store/check the items as without touch." );
+        }
+    }
+
+}
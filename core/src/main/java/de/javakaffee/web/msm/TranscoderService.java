@@ -16,6 +16,10 @@
  */
 package de.javakaffee.web.msm;
 
+import static de.javakaffee.web.msm.Statistics.StatsType.COMPRESSION;
+import static de.javakaffee.web.msm.Statistics.StatsType.COMPRESSION_RATIO;
+import static de.javakaffee.web.msm.Statistics.StatsType.DECOMPRESSION;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -24,6 +28,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -34,6 +39,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.catalina.Manager;
 import org.apache.catalina.Realm;
@@ -46,6 +58,8 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.util.buf.ByteChunk;
 
+import de.javakaffee.web.msm.BufferPool.PooledOutputStream;
+import de.javakaffee.web.msm.CompressionDictionaryService.CompressionDictionary;
 import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
 
 /**
@@ -60,6 +74,30 @@ public class TranscoderService {
 
     public static final short VERSION_1 = 1;
     public static final short VERSION_2 = 2;
+    /**
+     * The session fields are followed by an {@link AttributesManifest} instead of
+     * the serialized attributes, the attributes are stored separately.
+     */
+    public static final short VERSION_3 = 3;
+    /**
+     * The session fields are followed by the attributes in the indexed format (see {@link AttributesIndex}),
+     * where each attribute is serialized separately so that it can be deserialized on its own.
+     */
+    public static final short VERSION_4 = 4;
+
+    /**
+     * Set in the version field if the session attributes are compressed (see {@link Compressor}):
+     * the session fields are followed by the length of the uncompressed attributes (4 bytes)
+     * and the compressed attributes.
+     */
+    static final int FLAG_COMPRESSED = 0x4000;
+
+    /**
+     * Set in the version field (in addition to {@link #FLAG_COMPRESSED}) if the session attributes are
+     * compressed with a shared dictionary (see {@link CompressionDictionaryService}): the length of the
+     * uncompressed attributes is followed by the id of the dictionary (4 bytes).
+     */
+    static final int FLAG_DICTIONARY = 0x2000;
 
     static final int NUM_BYTES = 8 // creationTime: long
             + 8 // lastAccessedTime: long
@@ -69,7 +107,14 @@ public class TranscoderService {
             + 8 // thisAccessedTime
             + 8; // lastBackupTime
 
-    private final SessionAttributesTranscoder _attributesTranscoder;
+    private final StreamingSessionAttributesTranscoder _attributesTranscoder;
+    private final BufferPool _bufferPool;
+    private final BufferPool _compressionBufferPool;
+    private final Compressor _compressor;
+    private final int _compressionThreshold;
+    private final CompressionDictionaryService _dictionaryService;
+    private final boolean _indexedAttributes;
+    private final Statistics _statistics;
 
     /**
      * Creates a new {@link TranscoderService}.
@@ -77,7 +122,107 @@ public class TranscoderService {
      * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use.
      */
     public TranscoderService( final SessionAttributesTranscoder attributesTranscoder ) {
-        _attributesTranscoder = attributesTranscoder;
+        this( attributesTranscoder, new BufferPool() );
+    }
+
+    /**
+     * Creates a new {@link TranscoderService} that does not compress session data
+     * (compressed session data is decompressed with the {@link DeflateCompressor}).
+     *
+     * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use,
+     *  if it implements {@link BufferPoolAware} the given buffer pool is set. If it's not
+     *  a {@link StreamingSessionAttributesTranscoder} it's adapted via {@link StreamingTranscoderAdapter}.
+     * @param bufferPool the pool providing buffers for serialization.
+     */
+    public TranscoderService( final SessionAttributesTranscoder attributesTranscoder, final BufferPool bufferPool ) {
+        this( attributesTranscoder, bufferPool, new DeflateCompressor(), 0, Statistics.create( false ) );
+    }
+
+    /**
+     * Creates a new {@link TranscoderService}.
+     *
+     * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use,
+     *  if it implements {@link BufferPoolAware} the given buffer pool is set. If it's not
+     *  a {@link StreamingSessionAttributesTranscoder} it's adapted via {@link StreamingTranscoderAdapter}.
+     * @param bufferPool the pool providing buffers for serialization.
+     * @param compressor the compressor for session data.
+     * @param compressionThreshold the size in bytes of serialized session attributes above which they're
+     *  compressed, <code>0</code> disables compression.
+     * @param statistics the statistics to register compression ratio and times.
+     */
+    public TranscoderService( final SessionAttributesTranscoder attributesTranscoder, final BufferPool bufferPool,
+            @Nonnull final Compressor compressor, final int compressionThreshold, @Nonnull final Statistics statistics ) {
+        this( attributesTranscoder, bufferPool, compressor, compressionThreshold, null, statistics );
+    }
+
+    /**
+     * Creates a new {@link TranscoderService}.
+     *
+     * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use,
+     *  if it implements {@link BufferPoolAware} the given buffer pool is set. If it's not
+     *  a {@link StreamingSessionAttributesTranscoder} it's adapted via {@link StreamingTranscoderAdapter}.
+     * @param bufferPool the pool providing buffers for serialization.
+     * @param compressor the compressor for session data.
+     * @param compressionThreshold the size in bytes of serialized session attributes above which they're
+     *  compressed, <code>0</code> disables compression.
+     * @param dictionaryService provides the shared dictionary for compression, only used if the compressor
+     *  is a {@link DictionaryCompressor}. Can be <code>null</code>, then dictionary compressed session data
+     *  cannot be read.
+     * @param statistics the statistics to register compression ratio and times.
+     */
+    public TranscoderService( final SessionAttributesTranscoder attributesTranscoder, final BufferPool bufferPool,
+            @Nonnull final Compressor compressor, final int compressionThreshold,
+            @Nullable final CompressionDictionaryService dictionaryService, @Nonnull final Statistics statistics ) {
+        this( attributesTranscoder, bufferPool, compressor, compressionThreshold, dictionaryService, false, statistics );
+    }
+
+    /**
+     * Creates a new {@link TranscoderService}.
+     *
+     * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use,
+     *  if it implements {@link BufferPoolAware} the given buffer pool is set. If it's not
+     *  a {@link StreamingSessionAttributesTranscoder} it's adapted via {@link StreamingTranscoderAdapter}.
+     * @param bufferPool the pool providing buffers for serialization.
+     * @param compressor the compressor for session data.
+     * @param compressionThreshold the size in bytes of serialized session attributes above which they're
+     *  compressed, <code>0</code> disables compression.
+     * @param dictionaryService provides the shared dictionary for compression, only used if the compressor
+     *  is a {@link DictionaryCompressor}. Can be <code>null</code>, then dictionary compressed session data
+     *  cannot be read.
+     * @param indexedAttributes specifies if sessions shall be serialized with the attributes in the indexed
+     *  format (see {@link #VERSION_4}), sessions in this format can be read in any case.
+     * @param statistics the statistics to register compression ratio and times.
+     */
+    public TranscoderService( final SessionAttributesTranscoder attributesTranscoder, final BufferPool bufferPool,
+            @Nonnull final Compressor compressor, final int compressionThreshold,
+            @Nullable final CompressionDictionaryService dictionaryService, final boolean indexedAttributes,
+            @Nonnull final Statistics statistics ) {
+        _attributesTranscoder = StreamingTranscoderAdapter.adapt( attributesTranscoder );
+        _bufferPool = bufferPool;
+        _compressionBufferPool = new BufferPool( BufferPool.DEFAULT_INITIAL_SIZE, bufferPool.getMaxRetainedSize() );
+        _compressor = compressor;
+        _compressionThreshold = compressionThreshold;
+        _dictionaryService = compressor instanceof DictionaryCompressor ? dictionaryService : null;
+        _indexedAttributes = indexedAttributes;
+        _statistics = statistics;
+        if ( attributesTranscoder instanceof BufferPoolAware ) {
+            ( (BufferPoolAware) attributesTranscoder ).setBufferPool( bufferPool );
+        }
+    }
+
+    /**
+     * The pool providing buffers for serialization.
+     */
+    BufferPool getBufferPool() {
+        return _bufferPool;
+    }
+
+    /**
+     * Drops the pooled serialization buffers, e.g. when the manager is stopped.
+     */
+    void clearBufferPools() {
+        _bufferPool.clear();
+        _compressionBufferPool.clear();
     }
 
     /**
@@ -95,8 +240,174 @@ public class TranscoderService {
      * @return the serialized session data.
      */
     public byte[] serialize( final MemcachedBackupSession session ) {
-        final byte[] attributesData = serializeAttributes( session, session.getAttributesInternal() );
-        return serialize( session, attributesData );
+        return serializeSession( session, session.getAttributesInternal() ).getData();
+    }
+
+    /**
+     * Serialize the given session with the given attributes to a byte array, which can be
+     * deserialized using {@link #deserialize(byte[], SessionManager)}. The session fields and the
+     * attributes are written to the same (pooled) buffer, so that the only
+     * array created is the returned session data.
+     * <p>
+     * If compression is enabled and the serialized attributes are bigger than the compression
+     * threshold they're compressed, unless the compressed attributes are not smaller. If a
+     * {@link CompressionDictionaryService} is set the attributes are compressed with its current
+     * dictionary, as long as there's no dictionary they're provided as samples.
+     * </p>
+     *
+     * @param session the session to serialize.
+     * @param attributes the attributes to serialize, e.g. the filtered attributes of the session.
+     * @return the serialized session data and the hash code of the serialized attributes.
+     */
+    public SerializationResult serializeSession( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+        return serializeSession( session, attributes, Collections.<String, ByteBuffer>emptyMap() );
+    }
+
+    /**
+     * Serialize the given session with the given attributes like {@link #serializeSession(MemcachedBackupSession, Map)},
+     * with additional attributes that are still serialized (see {@link MemcachedBackupSession#getAttributesFiltered(Map)}).
+     * If sessions are serialized in the indexed format (see {@link #VERSION_4}) the serialized attributes
+     * are written as they are, otherwise they're deserialized before.
+     *
+     * @param session the session to serialize.
+     * @param attributes the attributes to serialize, e.g. the filtered attributes of the session.
+     * @param serializedAttributes the separately serialized attributes (see {@link AttributesIndex}) by name, an attribute
+     *  contained in <code>attributes</code> as well is serialized from <code>attributes</code>.
+     * @return the serialized session data and the hash code of the serialized attributes.
+     */
+    public SerializationResult serializeSession( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final Map<String, ByteBuffer> serializedAttributes ) {
+        final byte[] sessionFields = serializeSessionFields( session, _indexedAttributes ? VERSION_4 : VERSION_2 );
+        final PooledOutputStream out = _bufferPool.acquire();
+        try {
+            out.write( sessionFields );
+            if ( _indexedAttributes ) {
+                writeIndexedAttributes( session, attributes, serializedAttributes, out );
+            }
+            else if ( serializedAttributes.isEmpty() ) {
+                _attributesTranscoder.serializeAttributes( session, attributes, out );
+            }
+            else {
+                final Map<String, Object> allAttributes = deserializeAttributes( serializedAttributes );
+                allAttributes.putAll( attributes );
+                _attributesTranscoder.serializeAttributes( session, allAttributes, out );
+            }
+            final int attributesLength = out.size() - sessionFields.length;
+            final int attributesHashCode = hashCode( out.getBuffer(), sessionFields.length, attributesLength );
+            if ( _compressionThreshold > 0 && attributesLength > _compressionThreshold ) {
+                final byte[] compressed = compress( sessionFields, out.getBuffer(), attributesLength );
+                if ( compressed != null ) {
+                    return new SerializationResult( compressed, attributesHashCode );
+                }
+            }
+            return new SerializationResult( out.toByteArray(), attributesHashCode );
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "Could not serialize session " + session.getIdInternal(), e );
+        } finally {
+            _bufferPool.release( out );
+        }
+    }
+
+    /**
+     * Writes the given attributes in the indexed format, sorted by name so that the same attributes
+     * always result in the same data (and hash code).
+     */
+    private void writeIndexedAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final Map<String, ByteBuffer> serializedAttributes, final PooledOutputStream out ) throws IOException {
+        final Map<String, ByteBuffer> index = new TreeMap<String, ByteBuffer>( serializedAttributes );
+        for ( final Entry<String, Object> attribute : attributes.entrySet() ) {
+            index.put( attribute.getKey(), ByteBuffer.wrap( serializeAttribute( session, attribute.getKey(), attribute.getValue() ) ) );
+        }
+        AttributesIndex.write( index, out );
+    }
+
+    /**
+     * Compresses the attributes that follow the given session fields in the given data.
+     *
+     * @return the session fields flagged as compressed followed by the compressed attributes or
+     *  <code>null</code> if the compressed data is not smaller than the uncompressed data.
+     */
+    private byte[] compress( final byte[] sessionFields, final byte[] data, final int attributesLength ) throws IOException {
+        final long start = System.nanoTime();
+        final CompressionDictionary dictionary = getCompressionDictionary( data, sessionFields.length, attributesLength );
+        final PooledOutputStream out = _compressionBufferPool.acquire();
+        try {
+            final int flags = dictionary != null ? FLAG_COMPRESSED | FLAG_DICTIONARY : FLAG_COMPRESSED;
+            encodeNum( decodeNum( sessionFields, 0, 2 ) | flags, sessionFields, 0, 2 );
+            out.write( sessionFields );
+            final byte[] header = new byte[dictionary != null ? 8 : 4];
+            encodeNum( attributesLength, header, 0, 4 );
+            if ( dictionary != null ) {
+                encodeNum( dictionary.getId(), header, 4, 4 );
+                out.write( header );
+                ( (DictionaryCompressor) _compressor ).compress( data, sessionFields.length, attributesLength,
+                        dictionary.getData(), out );
+            }
+            else {
+                out.write( header );
+                _compressor.compress( data, sessionFields.length, attributesLength, out );
+            }
+
+            final int compressedLength = out.size() - sessionFields.length - header.length;
+            _statistics.register( COMPRESSION, TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - start ) );
+            _statistics.register( COMPRESSION_RATIO, compressedLength * 100L / attributesLength );
+            return compressedLength < attributesLength ? out.toByteArray() : null;
+        } finally {
+            _compressionBufferPool.release( out );
+        }
+    }
+
+    /**
+     * Returns the dictionary to compress with, if there's no dictionary (yet) the given attributes are
+     * provided as sample for the dictionary.
+     */
+    @CheckForNull
+    private CompressionDictionary getCompressionDictionary( final byte[] data, final int offset, final int length ) {
+        if ( _dictionaryService == null ) {
+            return null;
+        }
+        final CompressionDictionary result = _dictionaryService.getCurrentDictionary();
+        if ( result == null ) {
+            _dictionaryService.addSample( data, offset, length );
+        }
+        return result;
+    }
+
+    /**
+     * Decompresses the attributes of compressed session data (see {@link #isCompressed(byte[])}).
+     *
+     * @param data the session data
+     * @param attributesOffset the index of the session attributes in the session data.
+     * @param sessionId the id of the session, used to load the compression dictionary.
+     * @return the uncompressed session attributes or <code>null</code> if the required
+     *  compression dictionary is not available.
+     */
+    @CheckForNull
+    private byte[] decompress( final byte[] data, final int attributesOffset, final String sessionId ) {
+        final long start = System.nanoTime();
+        final byte[] result = new byte[(int) decodeNum( data, attributesOffset, 4 )];
+        try {
+            if ( usesDictionary( data ) ) {
+                final int dictionaryId = (int) decodeNum( data, attributesOffset + 4, 4 );
+                final CompressionDictionary dictionary = _dictionaryService != null
+                    ? _dictionaryService.getDictionary( dictionaryId, sessionId )
+                    : null;
+                if ( dictionary == null ) {
+                    LOG.warn( "Cannot read session " + sessionId + ", the compression dictionary "
+                            + Integer.toHexString( dictionaryId ) + " is not available." );
+                    return null;
+                }
+                ( (DictionaryCompressor) _compressor ).decompress( data, attributesOffset + 8, data.length - attributesOffset - 8,
+                        dictionary.getData(), result );
+            }
+            else {
+                _compressor.decompress( data, attributesOffset + 4, data.length - attributesOffset - 4, result );
+            }
+        } catch ( final IOException e ) {
+            throw new IllegalArgumentException( "Could not decompress session data", e );
+        }
+        _statistics.register( DECOMPRESSION, TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - start ) );
+        return result;
     }
 
     /**
@@ -108,6 +419,12 @@ public class TranscoderService {
      * {@link MemcachedBackupSession#doAfterDeserialization()} is invoked. Additionally
      * the attributes hash is set (via {@link MemcachedBackupSession#setDataHashCode(int)}).
      * </p>
+     * <p>
+     * If the data was serialized using {@link #serialize(MemcachedBackupSession, AttributesManifest)}
+     * (see {@link #hasAttributesManifest(byte[])}) the attributes are not part of the data: the returned
+     * session has no attributes but the {@link AttributesManifest} set instead, the attributes
+     * have to be loaded separately and can be deserialized using {@link #deserializeAttributes(byte[])}.
+     * </p>
      *
      * @param data the byte array of the serialized session and its session attributes. Can be <code>null</code>.
      * @param realm the realm that is used to reconstruct the principal if there was any stored in the session.
@@ -117,16 +434,69 @@ public class TranscoderService {
      *  or <code>null</code> if the provided <code>byte[] data</code> was <code>null</code>.
      */
     public MemcachedBackupSession deserialize( final byte[] data, final SessionManager manager ) {
+        return deserialize( data, manager, false );
+    }
+
+    /**
+     * Deserialize session data like {@link #deserialize(byte[], SessionManager)}, with
+     * <code>lazyAttributes</code> the session attributes are not deserialized but only when they're
+     * accessed for the first time (see {@link MemcachedBackupSession#setSerializedAttributes(ByteBuffer, TranscoderService)}),
+     * so that a request that does not access session attributes does not have to deserialize them.
+     * If the attributes are serialized in the indexed format (see {@link #VERSION_4}) each attribute is
+     * deserialized on its own when it's accessed for the first time. Attributes stored separately are not
+     * affected by this.
+     *
+     * @param data the byte array of the serialized session and its session attributes. Can be <code>null</code>.
+     * @param manager the manager to set on the deserialized session.
+     * @param lazyAttributes specifies if attributes shall be deserialized on first access.
+     *
+     * @return the deserialized {@link MemcachedBackupSession}
+     *  or <code>null</code> if the provided <code>byte[] data</code> was <code>null</code>.
+     */
+    public MemcachedBackupSession deserialize( final byte[] data, final SessionManager manager, final boolean lazyAttributes ) {
         if ( data == null ) {
             return null;
         }
         try {
             final DeserializationResult deserializationResult = deserializeSessionFields( data, manager );
-            final byte[] attributesData = deserializationResult.getAttributesData();
-            final Map<String, Object> attributes = deserializeAttributes( attributesData );
+            final int attributesOffset = deserializationResult.getAttributesOffset();
             final MemcachedBackupSession session = deserializationResult.getSession();
-            session.setAttributesInternal( attributes );
-            session.setDataHashCode( Arrays.hashCode( attributesData ) );
+            if ( hasAttributesManifest( data ) ) {
+                session.setAttributesManifest( AttributesManifest.decode( data, attributesOffset ) );
+                session.setAttributesInternal( new ConcurrentHashMap<String, Object>() );
+            }
+            else {
+                final ByteBuffer attributesData;
+                if ( isCompressed( data ) ) {
+                    final byte[] decompressed = decompress( data, attributesOffset, session.getIdInternal() );
+                    if ( decompressed == null ) {
+                        return null;
+                    }
+                    attributesData = ByteBuffer.wrap( decompressed );
+                    session.setDataHashCode( Arrays.hashCode( decompressed ) );
+                }
+                else {
+                    attributesData = deserializationResult.getAttributesBuffer();
+                    session.setDataHashCode( hashCode( data, attributesOffset, data.length - attributesOffset ) );
+                }
+                if ( hasAttributesIndex( data ) ) {
+                    final Map<String, ByteBuffer> serializedAttributes = AttributesIndex.read( attributesData );
+                    if ( lazyAttributes && !serializedAttributes.isEmpty() ) {
+                        session.setSerializedAttributes( serializedAttributes, this );
+                        _statistics.attributesDeserializationDeferred();
+                    }
+                    else {
+                        session.setAttributesInternal( deserializeAttributes( serializedAttributes ) );
+                    }
+                }
+                else if ( lazyAttributes ) {
+                    session.setSerializedAttributes( attributesData, this );
+                    _statistics.attributesDeserializationDeferred();
+                }
+                else {
+                    session.setAttributesInternal( deserializeAttributes( attributesData ) );
+                }
+            }
             session.setManager( manager );
             session.doAfterDeserialization();
             return session;
@@ -155,6 +525,38 @@ public class TranscoderService {
 
 
 
+    /**
+     * Deserializes the attributes of a session whose attributes deserialization was deferred
+     * (see {@link #deserialize(byte[], SessionManager, boolean)}).
+     *
+     * @param data the serialized attributes, or a single attribute of the indexed format.
+     * @param last specifies if these are the last attributes of the session that were not yet deserialized.
+     * @return the deserialized attributes
+     */
+    @Nonnull
+    Map<String, Object> deserializeDeferredAttributes( @Nonnull final ByteBuffer data, final boolean last ) {
+        final Map<String, Object> result = deserializeAttributes( data );
+        if ( last ) {
+            _statistics.deferredAttributesDeserialized();
+        }
+        return result;
+    }
+
+    /**
+     * Deserializes the attributes of the indexed format (see {@link AttributesIndex}).
+     *
+     * @param serializedAttributes the serialized attributes by name.
+     * @return the deserialized attributes
+     */
+    @Nonnull
+    Map<String, Object> deserializeAttributes( @Nonnull final Map<String, ByteBuffer> serializedAttributes ) {
+        final Map<String, Object> result = new ConcurrentHashMap<String, Object>( serializedAttributes.size() * 4 / 3 + 1 );
+        for ( final ByteBuffer data : serializedAttributes.values() ) {
+            result.putAll( deserializeAttributes( data.duplicate() ) );
+        }
+        return result;
+    }
+
     /**
      * Deserialize the given byte array to session attributes, this is delegated
      * to {@link SessionAttributesTranscoder#deserializeAttributes(byte[])} (using
@@ -169,6 +571,50 @@ public class TranscoderService {
         return _attributesTranscoder.deserializeAttributes( data );
     }
 
+    /**
+     * Deserialize the remaining bytes of the given buffer to session attributes, this is delegated
+     * to {@link StreamingSessionAttributesTranscoder#deserializeAttributes(ByteBuffer)}.
+     *
+     * @param data the serialized attributes
+     * @return the deserialized attributes
+     */
+    public Map<String, Object> deserializeAttributes( final ByteBuffer data ) {
+        return _attributesTranscoder.deserializeAttributes( data );
+    }
+
+    /**
+     * Deserializes only the attributes of the given session data (serialized using
+     * {@link #serializeSession(MemcachedBackupSession, Map)}), e.g. to merge them with the
+     * attributes of a local session.
+     *
+     * @param data the serialized session data.
+     * @param sessionId the id of the session, used to load the compression dictionary if required.
+     * @return the deserialized attributes or <code>null</code> if the data has an unsupported version, if the
+     *  attributes are stored separately or if the required compression dictionary is not available.
+     */
+    @CheckForNull
+    public Map<String, Object> deserializeSessionAttributes( @Nonnull final byte[] data, @Nonnull final String sessionId ) {
+        final int version = (int) decodeNum( data, 0, 2 ) & ~( FLAG_COMPRESSED | FLAG_DICTIONARY );
+        if ( version != VERSION_1 && version != VERSION_2 && version != VERSION_4 ) {
+            return null;
+        }
+        final int attributesOffset = (int) decodeNum( data, 2, 2 );
+        final ByteBuffer attributesData;
+        if ( isCompressed( data ) ) {
+            final byte[] decompressed = decompress( data, attributesOffset, sessionId );
+            if ( decompressed == null ) {
+                return null;
+            }
+            attributesData = ByteBuffer.wrap( decompressed );
+        }
+        else {
+            attributesData = ByteBuffer.wrap( data, attributesOffset, data.length - attributesOffset ).slice();
+        }
+        return version == VERSION_4
+            ? deserializeAttributes( AttributesIndex.read( attributesData ) )
+            : deserializeAttributes( attributesData );
+    }
+
     /**
      * Serialize session fields to a byte[] and create a byte[] containing both the
      * serialized byte[] of the session fields and the provided byte[] of the serialized
@@ -179,10 +625,127 @@ public class TranscoderService {
      * @return a byte[] containing both the serialized session fields and the provided serialized session attributes
      */
     public byte[] serialize( final MemcachedBackupSession session, final byte[] attributesData ) {
-        final byte[] sessionData = serializeSessionFields( session );
-        final byte[] result = new byte[ sessionData.length + attributesData.length ];
-        System.arraycopy( sessionData, 0, result, 0, sessionData.length );
-        System.arraycopy( attributesData, 0, result, sessionData.length, attributesData.length );
+        final byte[] result = serializeSessionFields( session, VERSION_2, attributesData.length );
+        System.arraycopy( attributesData, 0, result, result.length - attributesData.length, attributesData.length );
+        return result;
+    }
+
+    /**
+     * Serialize the given session (with its filtered attributes) like {@link #serialize(MemcachedBackupSession, byte[])},
+     * but with the given session id instead of the id of the session. This allows to store a copy of a session
+     * under a new id before the id of the session is changed.
+     *
+     * @param session the session to serialize
+     * @param sessionId the id to serialize with the session fields
+     * @return the serialized session data
+     */
+    public byte[] serializeWithId( final MemcachedBackupSession session, final String sessionId ) {
+        final byte[] attributesData = serializeAttributes( session, session.getAttributesFiltered() );
+        final byte[] result = serializeSessionFields( session, sessionId, VERSION_2, attributesData.length );
+        System.arraycopy( attributesData, 0, result, result.length - attributesData.length, attributesData.length );
+        return result;
+    }
+
+    /**
+     * Serialize session fields to a byte[] and create a byte[] containing both the
+     * serialized byte[] of the session fields and the provided {@link AttributesManifest}
+     * that references the attributes that are stored separately.
+     *
+     * @param session its fields will be serialized to a byte[]
+     * @param manifest the manifest of the separately stored session attributes
+     * @return a byte[] containing both the serialized session fields and the serialized manifest
+     */
+    public byte[] serialize( final MemcachedBackupSession session, final AttributesManifest manifest ) {
+        final byte[] manifestData = manifest.encode();
+        final byte[] result = serializeSessionFields( session, VERSION_3, manifestData.length );
+        System.arraycopy( manifestData, 0, result, result.length - manifestData.length, manifestData.length );
+        return result;
+    }
+
+    /**
+     * Serialize a single session attribute so that it can be stored separately, the
+     * result can be deserialized with {@link #deserializeAttributes(byte[])}.
+     *
+     * @param session the session that owns the given attribute.
+     * @param name the attribute name
+     * @param value the attribute value
+     * @return a byte array representing the serialized attribute.
+     */
+    public byte[] serializeAttribute( final MemcachedBackupSession session, final String name, final Object value ) {
+        final Map<String, Object> attribute = new HashMap<String, Object>( 1 );
+        attribute.put( name, value );
+        return _attributesTranscoder.serializeAttributes( session, attribute );
+    }
+
+    /**
+     * Determines, if the given session data was serialized using
+     * {@link #serialize(MemcachedBackupSession, AttributesManifest)}, so that the
+     * session attributes are stored separately.
+     *
+     * @param data the serialized session data
+     * @return <code>true</code> if the data contains an {@link AttributesManifest}.
+     */
+    public static boolean hasAttributesManifest( final byte[] data ) {
+        return data.length >= 2 && decodeNum( data, 0, 2 ) == VERSION_3;
+    }
+
+    /**
+     * Reads the {@link AttributesManifest} from the given session data without deserializing the session.
+     *
+     * @param data the serialized session data
+     * @return the manifest or <code>null</code> if the attributes are not stored separately
+     *  (see {@link #hasAttributesManifest(byte[])}).
+     */
+    @CheckForNull
+    public static AttributesManifest getAttributesManifest( final byte[] data ) {
+        if ( !hasAttributesManifest( data ) ) {
+            return null;
+        }
+        final short sessionFieldsDataLength = (short) decodeNum( data, 2, 2 );
+        return AttributesManifest.decode( data, sessionFieldsDataLength );
+    }
+
+    /**
+     * Determines, if the session attributes of the given session data are serialized in the
+     * indexed format (see {@link #VERSION_4}).
+     *
+     * @param data the serialized session data
+     * @return <code>true</code> if the attributes are stored with an index.
+     */
+    public static boolean hasAttributesIndex( final byte[] data ) {
+        return data.length >= 2 && ( decodeNum( data, 0, 2 ) & ~( FLAG_COMPRESSED | FLAG_DICTIONARY ) ) == VERSION_4;
+    }
+
+    /**
+     * Determines, if the session attributes of the given session data are compressed.
+     *
+     * @param data the serialized session data
+     * @return <code>true</code> if the attributes are compressed.
+     */
+    public static boolean isCompressed( final byte[] data ) {
+        return data.length >= 2 && ( decodeNum( data, 0, 2 ) & FLAG_COMPRESSED ) != 0;
+    }
+
+    /**
+     * Determines, if the session attributes of the given session data are compressed with
+     * a shared dictionary (see {@link CompressionDictionaryService}).
+     *
+     * @param data the serialized session data
+     * @return <code>true</code> if the attributes are compressed with a dictionary.
+     */
+    public static boolean usesDictionary( final byte[] data ) {
+        return data.length >= 2 && ( decodeNum( data, 0, 2 ) & FLAG_DICTIONARY ) != 0;
+    }
+
+    /**
+     * Computes the hash code of the given range of the data, the result is the same as
+     * {@link java.util.Arrays#hashCode(byte[])} for an array containing just this range.
+     */
+    static int hashCode( final byte[] data, final int offset, final int length ) {
+        int result = 1;
+        for ( int i = offset; i < offset + length; i++ ) {
+            result = 31 * result + data[i];
+        }
         return result;
     }
 
@@ -193,8 +756,25 @@ public class TranscoderService {
     }
 
     static byte[] serializeSessionFields( final MemcachedBackupSession session, final int version ) {
+        return serializeSessionFields( session, version, 0 );
+    }
 
-        final byte[] idData = serializeId( session.getIdInternal() );
+    /**
+     * Serializes the session fields into a new byte array that has the given number of additional bytes
+     * at the end, so that the data following the session fields can be written into the same array.
+     */
+    static byte[] serializeSessionFields( final MemcachedBackupSession session, final int version, final int additionalLength ) {
+        return serializeSessionFields( session, session.getIdInternal(), version, additionalLength );
+    }
+
+    /**
+     * Serializes the session fields like {@link #serializeSessionFields(MemcachedBackupSession, int, int)}, with
+     * the given session id instead of the id of the session.
+     */
+    static byte[] serializeSessionFields( final MemcachedBackupSession session, final String sessionId, final int version,
+            final int additionalLength ) {
+
+        final byte[] idData = serializeId( sessionId );
 
         final byte[] principalData = serializePrincipal( session.getPrincipal() );
         final int principalDataLength = principalData != null ? principalData.length : 0;
@@ -223,7 +803,7 @@ public class TranscoderService {
                     + savedPrincipalDataLength; // the number of bytes for the savedPrincipal
         }
 
-        final byte[] data = new byte[sessionFieldsDataLength];
+        final byte[] data = new byte[sessionFieldsDataLength + additionalLength];
 
         int idx = 0;
         idx = encodeNum( version, data, idx, 2 );
@@ -254,10 +834,10 @@ public class TranscoderService {
     static DeserializationResult deserializeSessionFields( final byte[] data, final SessionManager manager ) throws InvalidVersionException {
         final MemcachedBackupSession result = manager.newMemcachedBackupSession();
 
-        final short version = (short) decodeNum( data, 0, 2 );
+        final short version = (short) ( decodeNum( data, 0, 2 ) & ~( FLAG_COMPRESSED | FLAG_DICTIONARY ) );
 
-        if ( version != VERSION_1 && version != VERSION_2 ) {
-            throw new InvalidVersionException( "The version " + version + " does not match the current version " + VERSION_2, version );
+        if ( version != VERSION_1 && version != VERSION_2 && version != VERSION_3 && version != VERSION_4 ) {
+            throw new InvalidVersionException( "The version " + version + " does not match the current version " + VERSION_4, version );
         }
 
         final short sessionFieldsDataLength = (short) decodeNum( data, 2, 2 );
@@ -302,18 +882,41 @@ public class TranscoderService {
             }
         }
 
-        final byte[] attributesData = new byte[ data.length - sessionFieldsDataLength ];
-        System.arraycopy( data, sessionFieldsDataLength, attributesData, 0, data.length - sessionFieldsDataLength );
+        return new DeserializationResult( result, data, sessionFieldsDataLength );
+    }
 
-        return new DeserializationResult( result, attributesData );
+    /**
+     * The result of {@link TranscoderService#serializeSession(MemcachedBackupSession, Map)}.
+     */
+    public static final class SerializationResult {
+        private final byte[] _data;
+        private final int _attributesHashCode;
+        public SerializationResult( final byte[] data, final int attributesHashCode ) {
+            _data = data;
+            _attributesHashCode = attributesHashCode;
+        }
+        /**
+         * The serialized session data (session fields and session attributes).
+         */
+        public byte[] getData() {
+            return _data;
+        }
+        /**
+         * The hash code of the serialized session attributes.
+         */
+        public int getAttributesHashCode() {
+            return _attributesHashCode;
+        }
     }
 
     static class DeserializationResult {
         private final MemcachedBackupSession _session;
-        private final byte[] _attributesData;
-        DeserializationResult( final MemcachedBackupSession session, final byte[] attributesData ) {
+        private final byte[] _data;
+        private final int _attributesOffset;
+        DeserializationResult( final MemcachedBackupSession session, final byte[] data, final int attributesOffset ) {
             _session = session;
-            _attributesData = attributesData;
+            _data = data;
+            _attributesOffset = attributesOffset;
         }
         /**
          * @return the session with fields initialized apart from the attributes.
@@ -326,7 +929,21 @@ public class TranscoderService {
          * @return the byte array representing the serialized session attributes.
          */
         byte[] getAttributesData() {
-            return _attributesData;
+            final byte[] result = new byte[ _data.length - _attributesOffset ];
+            System.arraycopy( _data, _attributesOffset, result, 0, result.length );
+            return result;
+        }
+        /**
+         * The serialized session attributes as a buffer backed by the session data.
+         */
+        ByteBuffer getAttributesBuffer() {
+            return ByteBuffer.wrap( _data, _attributesOffset, _data.length - _attributesOffset ).slice();
+        }
+        /**
+         * The index of the serialized session attributes in the session data.
+         */
+        int getAttributesOffset() {
+            return _attributesOffset;
         }
     }
 
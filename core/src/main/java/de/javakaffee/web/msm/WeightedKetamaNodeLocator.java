@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+
+import de.javakaffee.web.msm.SuffixBasedNodeLocator.MyMemcachedNodeROImpl;
+
+/**
+ * A {@link NodeLocator} that distributes keys with consistent hashing (ketama), so that
+ * sessions can be spread across multiple memcached nodes without encoding the node id in the
+ * session id. When a node is added or removed only the keys of ~1/n of the ring are moved.
+ * <p>
+ * Each node is placed on the hash ring {@value #POINTS_PER_WEIGHT} times per weight unit (virtual nodes),
+ * so that a node with weight 2 receives twice as many keys as a node with weight 1. The points
+ * are calculated like the {@link net.spy.memcached.KetamaNodeLocator} does it (md5 of
+ * <code>&lt;socketAddress&gt;-&lt;n&gt;</code>, 4 points per digest), so that nodes with weight 1 get the same
+ * keys as with spymemcached's ketama locator.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class WeightedKetamaNodeLocator implements NodeLocator {
+
+    static final int POINTS_PER_WEIGHT = 160;
+
+    private final Map<? extends SocketAddress, Integer> _weights;
+    private volatile Collection<MemcachedNode> _all;
+    private volatile Ring<MemcachedNode> _ring;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param nodes
+     *            the memcached nodes
+     * @param weights
+     *            the weights of the nodes by their socket address, nodes without weight get weight 1
+     */
+    public WeightedKetamaNodeLocator( @Nonnull final List<MemcachedNode> nodes, @Nonnull final Map<? extends SocketAddress, Integer> weights ) {
+        _weights = weights;
+        updateLocator( nodes );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MemcachedNode getPrimary( final String key ) {
+        return _ring.getPrimary( key );
+    }
+
+    /**
+     * Returns the other nodes in the order they follow the primary node on the ring. This is only used
+     * with {@link net.spy.memcached.FailureMode#Redistribute}, which the {@link KetamaLocatorConnectionFactory}
+     * does not use.
+     */
+    @Override
+    public Iterator<MemcachedNode> getSequence( final String key ) {
+        final Ring<MemcachedNode> ring = _ring;
+        final int start = ring.indexOf( hash( key ) );
+        final MemcachedNode primary = ring.get( start );
+        return new Iterator<MemcachedNode>() {
+
+            private final Map<MemcachedNode, Boolean> _seen = new IdentityHashMap<MemcachedNode, Boolean>();
+            private int _steps;
+            private MemcachedNode _next = advance();
+
+            private MemcachedNode advance() {
+                _seen.put( primary, Boolean.TRUE );
+                while ( _steps < ring._nodes.length - 1 ) {
+                    _steps++;
+                    final MemcachedNode node = ring.get( ( start + _steps ) % ring._nodes.length );
+                    if ( _seen.put( node, Boolean.TRUE ) == null ) {
+                        return node;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return _next != null;
+            }
+
+            @Override
+            public MemcachedNode next() {
+                if ( _next == null ) {
+                    throw new NoSuchElementException();
+                }
+                final MemcachedNode result = _next;
+                _next = advance();
+                return result;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<MemcachedNode> getAll() {
+        return _all;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeLocator getReadonlyCopy() {
+        final List<MemcachedNode> nodes = new ArrayList<MemcachedNode>();
+        for ( final MemcachedNode node : _all ) {
+            nodes.add( new MyMemcachedNodeROImpl( node ) );
+        }
+        return new WeightedKetamaNodeLocator( nodes, _weights );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void updateLocator( final List<MemcachedNode> nodes ) {
+        if ( nodes.isEmpty() ) {
+            throw new IllegalArgumentException( "No memcached nodes given." );
+        }
+        final List<SocketAddress> addresses = new ArrayList<SocketAddress>( nodes.size() );
+        for ( final MemcachedNode node : nodes ) {
+            addresses.add( node.getSocketAddress() );
+        }
+        _all = Collections.unmodifiableList( new ArrayList<MemcachedNode>( nodes ) );
+        _ring = new Ring<MemcachedNode>( nodes, addresses, _weights );
+    }
+
+    static long hash( @Nonnull final String key ) {
+        final byte[] digest = md5( key );
+        return point( digest, 0 );
+    }
+
+    private static byte[] md5( final String key ) {
+        return DefaultHashAlgorithm.computeMd5( key );
+    }
+
+    private static long point( final byte[] digest, final int offset ) {
+        return ( (long) ( digest[3 + offset * 4] & 0xFF ) << 24 )
+                | ( (long) ( digest[2 + offset * 4] & 0xFF ) << 16 )
+                | ( (long) ( digest[1 + offset * 4] & 0xFF ) << 8 )
+                | ( digest[offset * 4] & 0xFF );
+    }
+
+    /**
+     * The sorted points of the nodes, a node can be anything that's identified by a socket address
+     * (e.g. a {@link MemcachedNode} or just the address).
+     *
+     * @param <T> the type of the nodes
+     */
+    static final class Ring<T> {
+
+        private final long[] _points;
+        private final Object[] _nodes;
+
+        /**
+         * Creates the ring for the given nodes.
+         *
+         * @param nodes the nodes
+         * @param addresses the socket addresses of the nodes, in the same order as the nodes
+         * @param weights the weights of the nodes by their socket address, nodes without weight get weight 1
+         */
+        Ring( @Nonnull final List<T> nodes, @Nonnull final List<? extends SocketAddress> addresses,
+                @Nonnull final Map<? extends SocketAddress, Integer> weights ) {
+            final TreeMap<Long, T> ring = new TreeMap<Long, T>();
+            for ( int n = 0; n < nodes.size(); n++ ) {
+                final T node = nodes.get( n );
+                final Integer weight = weights.get( addresses.get( n ) );
+                final int digests = POINTS_PER_WEIGHT / 4 * ( weight != null ? weight.intValue() : 1 );
+                final String name = getName( addresses.get( n ) );
+                for ( int i = 0; i < digests; i++ ) {
+                    final byte[] digest = md5( name + "-" + i );
+                    for ( int h = 0; h < 4; h++ ) {
+                        ring.put( Long.valueOf( point( digest, h ) ), node );
+                    }
+                }
+            }
+            _points = new long[ring.size()];
+            _nodes = new Object[ring.size()];
+            int i = 0;
+            for ( final Map.Entry<Long, T> entry : ring.entrySet() ) {
+                _points[i] = entry.getKey().longValue();
+                _nodes[i] = entry.getValue();
+                i++;
+            }
+        }
+
+        /**
+         * The node the given key is mapped to.
+         */
+        @Nonnull
+        T getPrimary( @Nonnull final String key ) {
+            return get( indexOf( hash( key ) ) );
+        }
+
+        @SuppressWarnings( "unchecked" )
+        private T get( final int index ) {
+            return (T) _nodes[index];
+        }
+
+        /**
+         * The index of the first point at or after the given hash, wrapping around at the end.
+         */
+        private int indexOf( final long hash ) {
+            final int index = Arrays.binarySearch( _points, hash );
+            if ( index >= 0 ) {
+                return index;
+            }
+            final int insertionPoint = -index - 1;
+            return insertionPoint == _points.length ? 0 : insertionPoint;
+        }
+
+        private static String getName( final SocketAddress address ) {
+            final String result = String.valueOf( address );
+            return result.startsWith( "/" ) ? result.substring( 1 ) : result;
+        }
+
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP_BATCH_SIZE;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link BatchingBackupWriter}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class BatchingBackupWriterTest {
+
+    private MemcachedClient _memcachedMock;
+    private OperationFuture<Boolean> _setResultMock;
+    private Statistics _statistics;
+    private BatchingBackupWriter _cut;
+
+    @SuppressWarnings( "unchecked" )
+    @BeforeMethod
+    public void setUp() throws Exception {
+        _memcachedMock = mock( MemcachedClient.class );
+        _setResultMock = mock( OperationFuture.class );
+        when( _setResultMock.get() ).thenReturn( Boolean.TRUE );
+        when( _setResultMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
+        when( _memcachedMock.set( anyString(), anyInt(), any() ) ).thenReturn( _setResultMock );
+        _statistics = Statistics.create();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if ( _cut != null ) {
+            _cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testWritesDirectlyIfBatchingIsDisabled() throws Exception {
+        _cut = new BatchingBackupWriter( _memcachedMock, 0, 0, _statistics );
+        assertFalse( _cut.isBatching() );
+        assertTrue( _cut.set( "foo", 10, "bar" ).get() );
+        verify( _memcachedMock ).set( "foo", 10, "bar" );
+        assertEquals( _statistics.getProbe( BACKUP_BATCH_SIZE ).getCount(), 0 );
+    }
+
+    @Test
+    public void testWritesAreSentAsBatch() throws Exception {
+        _cut = new BatchingBackupWriter( _memcachedMock, (int) TimeUnit.MILLISECONDS.toMicros( 200 ), 100, _statistics );
+        assertTrue( _cut.isBatching() );
+        final Future<Boolean> f1 = _cut.set( "k1", 10, "v1" );
+        final Future<Boolean> f2 = _cut.set( "k2", 10, "v2" );
+        final Future<Boolean> f3 = _cut.set( "k3", 10, "v3" );
+        verify( _memcachedMock, never() ).set( anyString(), anyInt(), any() );
+
+        assertTrue( f1.get( 1, TimeUnit.SECONDS ) );
+        assertTrue( f2.get( 1, TimeUnit.SECONDS ) );
+        assertTrue( f3.get( 1, TimeUnit.SECONDS ) );
+        verify( _memcachedMock ).set( "k1", 10, "v1" );
+        verify( _memcachedMock ).set( "k2", 10, "v2" );
+        verify( _memcachedMock ).set( "k3", 10, "v3" );
+        assertEquals( _statistics.getProbe( BACKUP_BATCH_SIZE ).getCount(), 1 );
+        assertEquals( _statistics.getProbe( BACKUP_BATCH_SIZE ).getMax(), 3 );
+    }
+
+    @Test
+    public void testWaitsForQueuedWritesIfQueueIsFull() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        when( _memcachedMock.set( eq( "k1" ), anyInt(), any() ) ).thenAnswer( new Answer<OperationFuture<Boolean>>() {
+            @Override
+            public OperationFuture<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                blocked.countDown();
+                release.await();
+                return _setResultMock;
+            }
+        } );
+
+        _cut = new BatchingBackupWriter( _memcachedMock, 1, 1, _statistics );
+        final Future<Boolean> f1 = _cut.set( "k1", 10, "v1" );
+        assertTrue( blocked.await( 1, TimeUnit.SECONDS ) );
+
+        // the flusher is blocked now, so the first k2 is queued and the second one must wait for it
+        final Future<Boolean> f2 = _cut.set( "k2", 10, "v2" );
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Future<Boolean>> f3 = executor.submit( new Callable<Future<Boolean>>() {
+                @Override
+                public Future<Boolean> call() throws Exception {
+                    return _cut.set( "k2", 10, "v3" );
+                }
+            } );
+            Thread.sleep( 50 );
+            assertFalse( f3.isDone() );
+            verify( _memcachedMock, never() ).set( "k2", 10, "v3" );
+            assertEquals( _statistics.getBackupBatchQueueFull(), 1 );
+
+            release.countDown();
+            assertTrue( f1.get( 1, TimeUnit.SECONDS ) );
+            assertTrue( f2.get( 1, TimeUnit.SECONDS ) );
+            assertTrue( f3.get( 1, TimeUnit.SECONDS ).get( 1, TimeUnit.SECONDS ) );
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final InOrder inOrder = inOrder( _memcachedMock );
+        inOrder.verify( _memcachedMock ).set( "k2", 10, "v2" );
+        inOrder.verify( _memcachedMock ).set( "k2", 10, "v3" );
+    }
+
+    @Test
+    public void testDeleteIsNotSentBeforeQueuedWrites() throws Exception {
+        when( _memcachedMock.delete( anyString() ) ).thenReturn( _setResultMock );
+        _cut = new BatchingBackupWriter( _memcachedMock, (int) TimeUnit.MILLISECONDS.toMicros( 200 ), 100, _statistics );
+        final Future<Boolean> f1 = _cut.set( "k1", 10, "v1" );
+        final Future<Boolean> f2 = _cut.delete( "k1" );
+        verify( _memcachedMock, never() ).delete( anyString() );
+
+        assertTrue( f1.get( 1, TimeUnit.SECONDS ) );
+        assertTrue( f2.get( 1, TimeUnit.SECONDS ) );
+        final InOrder inOrder = inOrder( _memcachedMock );
+        inOrder.verify( _memcachedMock ).set( "k1", 10, "v1" );
+        inOrder.verify( _memcachedMock ).delete( "k1" );
+    }
+
+    @Test
+    public void testShutdownFlushesPendingWrites() throws Exception {
+        _cut = new BatchingBackupWriter( _memcachedMock, (int) TimeUnit.SECONDS.toMicros( 10 ), 100, _statistics );
+        final Future<Boolean> f1 = _cut.set( "k1", 10, "v1" );
+        _cut.shutdown();
+        assertTrue( f1.get( 1, TimeUnit.SECONDS ) );
+        verify( _memcachedMock ).set( "k1", 10, "v1" );
+
+        // after shutdown writes are performed directly
+        assertTrue( _cut.set( "k2", 10, "v2" ).get() );
+        verify( _memcachedMock ).set( "k2", 10, "v2" );
+    }
+
+}
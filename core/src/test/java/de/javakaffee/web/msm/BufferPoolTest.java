@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.BufferPool.PooledOutputStream;
+
+/**
+ * Test the {@link BufferPool}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        final BufferPool cut = new BufferPool( 16, 64 );
+        final PooledOutputStream first = cut.acquire();
+        first.write( 42 );
+        cut.release( first );
+
+        final PooledOutputStream second = cut.acquire();
+        assertSame( second, first );
+        assertEquals( second.size(), 0 );
+        cut.release( second );
+    }
+
+    @Test
+    public void testGrownBufferIsNotRetained() {
+        final BufferPool cut = new BufferPool( 16, 64 );
+        final PooledOutputStream first = cut.acquire();
+        first.write( new byte[128], 0, 128 );
+        cut.release( first );
+
+        final PooledOutputStream second = cut.acquire();
+        assertNotSame( second, first );
+        assertEquals( second.capacity(), 16 );
+        cut.release( second );
+    }
+
+    @Test
+    public void testBufferInUseIsNotReturnedAgain() {
+        final BufferPool cut = new BufferPool( 16, 64 );
+        final PooledOutputStream first = cut.acquire();
+        final PooledOutputStream nested = cut.acquire();
+        assertNotSame( nested, first );
+        cut.release( nested );
+        cut.release( first );
+        assertSame( cut.acquire(), first );
+    }
+
+    @Test
+    public void testBufferReleasedByOtherThreadIsReused() throws Exception {
+        final BufferPool cut = new BufferPool( 16, 64 );
+        final PooledOutputStream first = cut.acquire();
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                cut.release( first );
+            }
+        };
+        thread.start();
+        thread.join();
+        assertSame( cut.acquire(), first );
+    }
+
+    @Test
+    public void testNumberOfPooledBuffersIsBounded() {
+        final BufferPool cut = new BufferPool( 16, 64, 1 );
+        final PooledOutputStream first = cut.acquire();
+        final PooledOutputStream second = cut.acquire();
+        cut.release( first );
+        cut.release( second );
+
+        assertSame( cut.acquire(), first );
+        assertNotSame( cut.acquire(), second );
+    }
+
+    @Test
+    public void testClearDropsPooledBuffers() {
+        final BufferPool cut = new BufferPool( 16, 64 );
+        final PooledOutputStream first = cut.acquire();
+        cut.release( first );
+        cut.clear();
+        assertNotSame( cut.acquire(), first );
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+import java.util.Arrays;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.OperationFuture;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.CompressionDictionaryService.CompressionDictionary;
+import de.javakaffee.web.msm.CompressionDictionaryService.MemcachedProvider;
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
+
+/**
+ * Test the {@link CompressionDictionaryService}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CompressionDictionaryServiceTest {
+
+    private MemcachedClient _memcachedMock;
+    private MemcachedNodesManager _nodesManager;
+
+    @SuppressWarnings( "unchecked" )
+    @BeforeMethod
+    public void setUp() throws Exception {
+        _memcachedMock = mock( MemcachedClient.class );
+        final OperationFuture<Boolean> setResultMock = mock( OperationFuture.class );
+        when( _memcachedMock.set( anyString(), anyInt(), any() ) ).thenReturn( setResultMock );
+        _nodesManager = MemcachedNodesManager.createFor( "n1:localhost:11211,n2:localhost:11212", null,
+                mock( MemcachedClientCallback.class ) );
+    }
+
+    @Test
+    public void testDictionaryIsCreatedAndStoredOnAllNodes() {
+        final CompressionDictionaryService cut = new CompressionDictionaryService( _memcachedMock, _nodesManager, 2, 1024 );
+        cut.addSample( new byte[] { 0, 1, 2, 3 }, 1, 2 );
+        assertNull( cut.getCurrentDictionary() );
+        cut.addSample( new byte[] { 4, 5, 6 }, 0, 3 );
+
+        final CompressionDictionary dictionary = cut.getCurrentDictionary();
+        assertNotNull( dictionary );
+        assertTrue( Arrays.equals( dictionary.getData(), new byte[] { 1, 2, 4, 5, 6 } ) );
+        verify( _memcachedMock ).set( CompressionDictionaryService.createKey( dictionary.getId(), "n1" ), 0, dictionary.getData() );
+        verify( _memcachedMock ).set( CompressionDictionaryService.createKey( dictionary.getId(), "n2" ), 0, dictionary.getData() );
+
+        // further samples are ignored
+        cut.addSample( new byte[] { 7 }, 0, 1 );
+        assertSame( cut.getCurrentDictionary(), dictionary );
+    }
+
+    @Test
+    public void testDictionaryIsTrimmedToMaxSizeKeepingRecentSamples() {
+        final CompressionDictionaryService cut = new CompressionDictionaryService( _memcachedMock, _nodesManager, 3, 4 );
+        cut.addSample( new byte[] { 1, 2 }, 0, 2 );
+        cut.addSample( new byte[] { 3, 4 }, 0, 2 );
+        cut.addSample( new byte[] { 5, 6, 7 }, 0, 3 );
+        assertTrue( Arrays.equals( cut.getCurrentDictionary().getData(), new byte[] { 4, 5, 6, 7 } ) );
+    }
+
+    @Test
+    public void testDictionaryIsLoadedFromNodeOfSession() {
+        final CompressionDictionaryService creator = new CompressionDictionaryService( _memcachedMock, _nodesManager, 1, 1024 );
+        creator.addSample( new byte[] { 1, 2, 3 }, 0, 3 );
+        final CompressionDictionary dictionary = creator.getCurrentDictionary();
+
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        final String key = CompressionDictionaryService.createKey( dictionary.getId(), "n2" );
+        when( memcached.get( key ) ).thenReturn( dictionary.getData() );
+        final CompressionDictionaryService cut = new CompressionDictionaryService( memcached, _nodesManager, 1, 1024 );
+
+        final CompressionDictionary loaded = cut.getDictionary( dictionary.getId(), "somesessionid-n2" );
+        assertNotNull( loaded );
+        assertTrue( Arrays.equals( loaded.getData(), dictionary.getData() ) );
+        verify( memcached ).get( key );
+        verifyNoMoreInteractions( memcached );
+
+        // the dictionary is cached
+        assertSame( cut.getDictionary( dictionary.getId(), "somesessionid-n1" ), loaded );
+        verifyNoMoreInteractions( memcached );
+    }
+
+    /**
+     * The memcached client and nodes are replaced if the memcached nodes are changed at runtime,
+     * the dictionary must then be stored/loaded with the new client on the new nodes.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testReplacedMemcachedIsUsed() {
+        final MemcachedProvider provider = mock( MemcachedProvider.class );
+        when( provider.getMemcached() ).thenReturn( _memcachedMock );
+        when( provider.getMemcachedNodesManager() ).thenReturn( _nodesManager );
+        final CompressionDictionaryService cut = new CompressionDictionaryService( provider, 1, 1024 );
+        cut.addSample( new byte[] { 1, 2, 3 }, 0, 3 );
+        final CompressionDictionary dictionary = cut.getCurrentDictionary();
+        verify( _memcachedMock ).set( CompressionDictionaryService.createKey( dictionary.getId(), "n1" ), 0, dictionary.getData() );
+
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        final OperationFuture<Boolean> setResultMock = mock( OperationFuture.class );
+        when( memcached.set( anyString(), anyInt(), any() ) ).thenReturn( setResultMock );
+        final MemcachedNodesManager nodesManager = MemcachedNodesManager.createFor( "n3:localhost:11213", null,
+                mock( MemcachedClientCallback.class ) );
+        when( provider.getMemcached() ).thenReturn( memcached );
+        when( provider.getMemcachedNodesManager() ).thenReturn( nodesManager );
+
+        // the dictionary is stored on the new nodes when it's used the next time
+        assertSame( cut.getCurrentDictionary(), dictionary );
+        verify( memcached ).set( CompressionDictionaryService.createKey( dictionary.getId(), "n3" ), 0, dictionary.getData() );
+        assertSame( cut.getCurrentDictionary(), dictionary );
+        verify( memcached, times( 1 ) ).set( anyString(), anyInt(), any() );
+
+        assertNull( cut.getDictionary( 42, "somesessionid-n3" ) );
+        verify( memcached ).get( CompressionDictionaryService.createKey( 42, "n3" ) );
+        verify( _memcachedMock, never() ).get( anyString() );
+    }
+
+    @Test
+    public void testDictionaryWithInvalidChecksumIsIgnored() {
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        when( memcached.get( anyString() ) ).thenReturn( new byte[] { 1, 2, 3 } );
+        final CompressionDictionaryService cut = new CompressionDictionaryService( memcached, _nodesManager, 1, 1024 );
+        assertNull( cut.getDictionary( 42, "somesessionid-n1" ) );
+        verify( memcached ).get( CompressionDictionaryService.createKey( 42, "n1" ) );
+        verify( memcached ).get( CompressionDictionaryService.createKey( 42, "n2" ) );
+    }
+
+    @Test
+    public void testMissingDictionaryIsNotLookedUpAgain() {
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        final CompressionDictionaryService cut = new CompressionDictionaryService( memcached, _nodesManager, 1, 1024 );
+        assertNull( cut.getDictionary( 42, "somesessionid-n1" ) );
+        verify( memcached, times( 2 ) ).get( anyString() );
+
+        assertNull( cut.getDictionary( 42, "othersessionid-n2" ) );
+        verify( memcached, times( 2 ) ).get( anyString() );
+    }
+
+}
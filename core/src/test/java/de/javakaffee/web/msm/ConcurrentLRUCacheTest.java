@@ -0,0 +1,187 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link ConcurrentLRUCache}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ConcurrentLRUCacheTest {
+
+    @Test
+    public void testLRU() {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 3 );
+        final String f = "foo";
+        final String br = "bar";
+
+        cut.put( f, br );
+        cut.put( br, "baz" );
+        assertEquals( cut.getKeys(), Arrays.asList( f, br ), "initially it should be insertion ordered" );
+
+        cut.get( f );
+        assertEquals( cut.getKeys(), Arrays.asList( br, f ), "accessing foo should move it to the end" );
+
+        cut.get( br );
+        assertEquals( cut.getKeys(), Arrays.asList( f, br ) );
+
+        cut.put( "baz", "foo" );
+        assertEquals( cut.getKeys(), Arrays.asList( f, br, "baz" ), "last inserted item should be at last position" );
+
+        cut.put( "qux", "foo" );
+        assertEquals( cut.getKeys(), Arrays.asList( br, "baz", "qux" ), "least recently used item should be evicted" );
+        assertEquals( cut.getEvictions(), 1 );
+    }
+
+    @Test
+    public void testRemove() {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 3 );
+        cut.put( "foo", "bar" );
+        assertTrue( cut.containsKey( "foo" ) );
+        assertEquals( cut.remove( "foo" ), "bar" );
+        assertFalse( cut.containsKey( "foo" ) );
+        assertTrue( cut.getKeys().isEmpty() );
+    }
+
+    @Test
+    public void testCacheSize() {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 1 );
+        cut.put( "foo", "bar" );
+        assertEquals( cut.get( "foo" ), "bar" );
+        cut.put( "bar", "baz" );
+        assertEquals( cut.get( "bar" ), "baz" );
+        assertNull( cut.get( "foo" ), "old key still existing, unexpected cache size" );
+        assertEquals( cut.size(), 1 );
+    }
+
+    @Test
+    public void testCacheTTL() throws InterruptedException {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 10, 100 );
+        cut.put( "foo", "bar" );
+        assertEquals( cut.get( "foo" ), "bar" );
+        Thread.sleep( 120 );
+        assertFalse( cut.containsKey( "foo" ) );
+        assertNull( cut.get( "foo" ), "expired key still existing" );
+        assertEquals( cut.size(), 0 );
+    }
+
+    @Test
+    public void testExpiredEntriesAreRemovedOnWrite() throws InterruptedException {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 10, 100 );
+        cut.put( "foo", "bar" );
+        cut.put( "bar", "baz" );
+        Thread.sleep( 120 );
+        cut.put( "baz", "foo" );
+        assertEquals( cut.getKeys(), Arrays.asList( "baz" ) );
+        assertEquals( cut.size(), 1 );
+        assertEquals( cut.getEvictions(), 2 );
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 3 );
+        cut.put( "foo", "bar" );
+        cut.get( "foo" );
+        cut.get( "foo" );
+        cut.get( "bar" );
+        assertEquals( cut.getHits(), 2 );
+        assertEquals( cut.getMisses(), 1 );
+    }
+
+    @Test
+    public void testGetKeysSortedByValue() {
+        final ConcurrentLRUCache<String,Integer> cut = new ConcurrentLRUCache<String, Integer>( 3 );
+        cut.put( "foo", 1 );
+        cut.put( "bar", 2 );
+
+        final Comparator<Integer> c = new Comparator<Integer>() {
+
+            @Override
+            public int compare( final Integer o1, final Integer o2 ) {
+                return o1.compareTo( o2 );
+            }
+
+        };
+
+        assertEquals( cut.getKeysSortedByValue( c ), Arrays.asList( "foo", "bar" ) );
+        cut.put( "foo", 3 );
+        assertEquals( cut.getKeysSortedByValue( c ), Arrays.asList( "bar", "foo" ) );
+    }
+
+    /**
+     * Tests that the cache stays bounded and consistent when it's accessed concurrently.
+     */
+    @Test
+    public void testConcurrentAccessKeepsCacheBounded() throws Exception {
+        final int size = 100;
+        final ConcurrentLRUCache<Integer,Integer> cut = new ConcurrentLRUCache<Integer, Integer>( size );
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try {
+            final CountDownLatch start = new CountDownLatch( 1 );
+            final Future<?>[] futures = new Future<?>[threads];
+            for ( int t = 0; t < threads; t++ ) {
+                final int offset = t * 1000;
+                futures[t] = executor.submit( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch ( final InterruptedException e ) {
+                            throw new RuntimeException( e );
+                        }
+                        for ( int i = 0; i < 10000; i++ ) {
+                            final Integer key = offset + i % 1000;
+                            if ( cut.get( key ) == null ) {
+                                cut.put( key, i );
+                            }
+                            if ( i % 7 == 0 ) {
+                                cut.remove( key );
+                            }
+                        }
+                    }
+                } );
+            }
+            start.countDown();
+            for ( final Future<?> future : futures ) {
+                future.get( 10, TimeUnit.SECONDS );
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        final int keys = cut.getKeys().size();
+        assertTrue( keys <= size, "Expected at most " + size + " keys, but was " + keys );
+        assertEquals( cut.size(), keys );
+    }
+
+}
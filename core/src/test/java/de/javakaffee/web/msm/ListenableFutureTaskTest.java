@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link ListenableFutureTask}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ListenableFutureTaskTest {
+
+    @Test
+    public void testListenerIsExecutedWhenTaskIsDone() throws Exception {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final ListenableFutureTask<String> cut = new ListenableFutureTask<String>( new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                return "foo";
+            }
+        } );
+        final CountDownLatch done = new CountDownLatch( 1 );
+        cut.addListener( new Runnable() {
+            @Override
+            public void run() {
+                assertTrue( cut.isDone() );
+                done.countDown();
+            }
+        }, ListenableFutureTask.DIRECT_EXECUTOR );
+
+        new Thread( cut ).start();
+        assertFalse( done.await( 50, TimeUnit.MILLISECONDS ) );
+
+        release.countDown();
+        assertTrue( done.await( 1, TimeUnit.SECONDS ) );
+        assertEquals( cut.get(), "foo" );
+    }
+
+    @Test
+    public void testListenerIsExecutedImmediatelyIfTaskIsDone() throws Exception {
+        final ListenableFutureTask<String> cut = createTask( "foo" );
+        cut.run();
+
+        final AtomicInteger executed = new AtomicInteger();
+        cut.addListener( new Runnable() {
+            @Override
+            public void run() {
+                executed.incrementAndGet();
+            }
+        }, ListenableFutureTask.DIRECT_EXECUTOR );
+        assertEquals( executed.get(), 1 );
+    }
+
+    @Test
+    public void testRejectedListenerDoesNotAffectOtherListeners() throws Exception {
+        final ListenableFutureTask<String> cut = createTask( "foo" );
+        final Executor rejecting = new Executor() {
+            @Override
+            public void execute( final Runnable command ) {
+                throw new RejectedExecutionException();
+            }
+        };
+        final AtomicInteger executed = new AtomicInteger();
+        final Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                executed.incrementAndGet();
+            }
+        };
+        cut.addListener( listener, rejecting );
+        cut.addListener( listener, ListenableFutureTask.DIRECT_EXECUTOR );
+        cut.run();
+
+        assertEquals( executed.get(), 1 );
+        assertEquals( cut.get(), "foo" );
+    }
+
+    private static ListenableFutureTask<String> createTask( final String result ) {
+        return new ListenableFutureTask<String>( new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return result;
+            }
+        } );
+    }
+
+}
@@ -15,7 +15,6 @@
  */
 package de.javakaffee.web.msm;
 
-import static de.javakaffee.web.msm.MemcachedNodesManager.createFor;
 import static java.util.Arrays.asList;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.endsWith;
@@ -29,10 +28,12 @@ import java.net.URISyntaxException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
 
 import net.spy.memcached.OperationTimeoutException;
 
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -47,10 +48,28 @@ import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
 public class MemcachedNodesManagerTest {
 
 	private MemcachedClientCallback _mcc;
+	private List<MemcachedNodesManager> _managers;
 
 	@BeforeMethod
 	public void beforeClass() {
 		_mcc = mock(MemcachedClientCallback.class);
+		_managers = new ArrayList<MemcachedNodesManager>();
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		for (final MemcachedNodesManager manager : _managers) {
+			manager.shutdown();
+		}
+	}
+
+	/**
+	 * Creates the {@link MemcachedNodesManager} and remembers it so that its node monitoring is shut down after the test.
+	 */
+	private MemcachedNodesManager createFor(final String memcachedNodes, final String failoverNodes, final MemcachedClientCallback mcc) {
+		final MemcachedNodesManager result = MemcachedNodesManager.createFor(memcachedNodes, failoverNodes, mcc);
+		_managers.add(result);
+		return result;
 	}
 
 	@Test(expectedExceptions = IllegalArgumentException.class)
@@ -144,7 +163,8 @@ public class MemcachedNodesManagerTest {
                 { "http://localhost:8091/pools", null, false },
                 { "http://10.10.0.1:8091/pools,http://10.10.0.2:8091/pools", null, false },
 				{ "n1:localhost:11211", null, true },
-				{ "n1:localhost:11211,n2:localhost:11212", "n1", true }
+				{ "n1:localhost:11211,n2:localhost:11212", "n1", true },
+				{ "localhost:11211,localhost:11212", null, false }
 		};
 	}
 
@@ -188,16 +208,26 @@ public class MemcachedNodesManagerTest {
 	}
 
     @Test
-    public void testGetNextAvailableNodeId() {
+    public void testGetNextAvailableNodeId() throws InterruptedException {
         assertNull(createFor( "n1:localhost:11211", null, _mcc ).getNextAvailableNodeId("n1"));
         assertEquals(createFor( "n1:localhost:11211,n2:localhost:11212", null, _mcc ).getNextAvailableNodeId("n1"), "n2");
 
         final MemcachedClientCallback mcc = mock(MemcachedClientCallback.class);
         when(mcc.get(anyString())).thenReturn(null);
         when(mcc.get(endsWith("n2"))).thenThrow(new OperationTimeoutException("SimulatedException"));
-        assertNull(createFor( "n1:localhost:11211,n2:localhost:11212", null, mcc).getNextAvailableNodeId("n1"));
+        // the nodes are probed in the background
+        assertNull(waitUntilUnavailable(createFor( "n1:localhost:11211,n2:localhost:11212", null, mcc), "n2").getNextAvailableNodeId("n1"));
 
-        assertEquals(createFor( "n1:localhost:11211,n2:localhost:11212,n3:localhost:11213", null, mcc).getNextAvailableNodeId("n1"), "n3");
+        assertEquals(waitUntilUnavailable(createFor( "n1:localhost:11211,n2:localhost:11212,n3:localhost:11213", null, mcc), "n2").getNextAvailableNodeId("n1"), "n3");
+    }
+
+    private static MemcachedNodesManager waitUntilUnavailable(final MemcachedNodesManager cut, final String nodeId) throws InterruptedException {
+        cut.start();
+        final long start = System.currentTimeMillis();
+        while (cut.isNodeAvailable(nodeId) && System.currentTimeMillis() - start < 1000) {
+            Thread.sleep(5);
+        }
+        return cut;
     }
 
 	@DataProvider
@@ -257,6 +287,68 @@ public class MemcachedNodesManagerTest {
         assertTrue(createFor("http://10.10.0.1:8091/pools,http://10.10.0.2:8091/pools", null, _mcc ).isCouchbaseBucketConfig());
     }
 
+    @Test
+    public void testConsistentHashingConfig() {
+        assertFalse(createFor("n1:localhost:11211,n2:localhost:11212", null, _mcc ).isConsistentHashing());
+        assertFalse(createFor("localhost:11211", null, _mcc ).isConsistentHashing());
+
+        final MemcachedNodesManager cut = createFor("localhost:11211 127.0.0.1:11212:2", null, _mcc );
+        assertTrue(cut.isConsistentHashing());
+        assertEquals(cut.getCountNodes(), 2);
+        assertEquals(cut.getNodeWeights().get(new InetSocketAddress("localhost", 11211)), Integer.valueOf(1));
+        assertEquals(cut.getNodeWeights().get(new InetSocketAddress("127.0.0.1", 11212)), Integer.valueOf(2));
+        assertEquals(cut.getAllMemcachedAddresses(),
+                asList(new InetSocketAddress("localhost", 11211), new InetSocketAddress("127.0.0.1", 11212)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testConsistentHashingConfigWithZeroWeightShouldThrowException() {
+        createFor("localhost:11211,localhost:11212:0", null, _mcc );
+    }
+
+    @Test
+    public void testGetRebalancedSessionIdMovesSessionsOnlyToAddedNode() {
+        final MemcachedNodesManager previous = createFor( "n1:localhost:11211,n2:localhost:11212", null, _mcc );
+        final MemcachedNodesManager cut = createFor( "n1:localhost:11211,n2:localhost:11212,n3:localhost:11213", null, _mcc );
+        int moved = 0;
+        for ( int i = 0; i < 3000; i++ ) {
+            final String sessionId = "foo" + i + "-n" + ( i % 2 + 1 );
+            final String newSessionId = cut.getRebalancedSessionId( sessionId, previous );
+            if ( newSessionId != null ) {
+                assertEquals( newSessionId, "foo" + i + "-n3" );
+                moved++;
+            }
+        }
+        assertTrue( moved > 800 && moved < 1200, "Unexpected number of moved sessions: " + moved );
+    }
+
+    @Test
+    public void testGetRebalancedSessionIdMovesSessionsFromRemovedNode() {
+        final MemcachedNodesManager previous = createFor( "n1:localhost:11211,n2:localhost:11212", null, _mcc );
+        final MemcachedNodesManager cut = createFor( "n2:localhost:11212,n3:localhost:11213", null, _mcc );
+        for ( int i = 0; i < 100; i++ ) {
+            final String newSessionId = cut.getRebalancedSessionId( "foo" + i + "-n1", previous );
+            assertTrue( asList( "foo" + i + "-n2", "foo" + i + "-n3" ).contains( newSessionId ), "Unexpected session id " + newSessionId );
+            final String unchangedOrMoved = cut.getRebalancedSessionId( "foo" + i + "-n2", previous );
+            assertTrue( unchangedOrMoved == null || unchangedOrMoved.equals( "foo" + i + "-n3" ), "Unexpected session id " + unchangedOrMoved );
+        }
+    }
+
+    @Test
+    public void testGetRebalancedSessionIdWithConsistentHashing() {
+        final MemcachedNodesManager previous = createFor( "localhost:11211,localhost:11212", null, _mcc );
+        final MemcachedNodesManager cut = createFor( "localhost:11211,localhost:11212,localhost:11213", null, _mcc );
+        int moved = 0;
+        for ( int i = 0; i < 3000; i++ ) {
+            final String newSessionId = cut.getRebalancedSessionId( "foo" + i, previous );
+            if ( newSessionId != null ) {
+                assertEquals( newSessionId, "foo" + i );
+                moved++;
+            }
+        }
+        assertTrue( moved > 700 && moved < 1300, "Unexpected number of moved sessions: " + moved );
+    }
+
     @Test
     public void testGetCouchbaseBucketURIs() throws URISyntaxException {
         assertEquals(createFor("http://10.10.0.1:8091/pools", null, _mcc ).getCouchbaseBucketURIs(),
@@ -25,9 +25,11 @@ import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -38,13 +40,22 @@ import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
 
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.GetFuture;
 import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.CASOperationStatus;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.transcoders.Transcoder;
 
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.core.StandardContext;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -53,6 +64,7 @@ import org.testng.annotations.Test;
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
 import de.javakaffee.web.msm.LockingStrategy.LockingMode;
 import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
+import de.javakaffee.web.msm.TranscoderService.SerializationResult;
 import de.javakaffee.web.msm.integration.TestUtils;
 import de.javakaffee.web.msm.integration.TestUtils.SessionAffinityMode;
 
@@ -66,6 +78,7 @@ public abstract class MemcachedSessionServiceTest {
 
     private MemcachedSessionService _service;
     private MemcachedClient _memcachedMock;
+    private OperationFuture<Boolean> _deleteResultMock;
     private ExecutorService _executor;
 
     @SuppressWarnings("unchecked")
@@ -89,11 +102,16 @@ public abstract class MemcachedSessionServiceTest {
         when( setResultMock.get( anyInt(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
         when( _memcachedMock.set(  any( String.class ), anyInt(), any() ) ).thenReturn( setResultMock );
 
-        final OperationFuture<Boolean> deleteResultMock = mock( OperationFuture.class );
-        when( deleteResultMock.get() ).thenReturn( Boolean.TRUE );
-        when( _memcachedMock.delete( anyString() ) ).thenReturn( deleteResultMock );
+        _deleteResultMock = mock( OperationFuture.class );
+        when( _deleteResultMock.get() ).thenReturn( Boolean.TRUE );
+        when( _memcachedMock.delete( anyString() ) ).thenReturn( _deleteResultMock );
 
 
+        /* the nodes are pinged in the background, this must not interfere with
+         * stubbing/verifying the memcached mock
+         */
+        _service.setMemcachedClientCallback( mock( MemcachedNodesManager.MemcachedClientCallback.class ) );
+
         startInternal( manager, _memcachedMock );
 
         _executor = Executors.newCachedThreadPool();
@@ -103,6 +121,9 @@ public abstract class MemcachedSessionServiceTest {
     @AfterMethod
     public void afterMethod() {
         _executor.shutdown();
+        if ( _service.getMemcachedNodesManager() != null ) {
+            _service.getMemcachedNodesManager().shutdown();
+        }
     }
 
     protected void startInternal( @Nonnull final SessionManager manager, @Nonnull final MemcachedClient memcachedMock ) throws LifecycleException {
@@ -244,7 +265,7 @@ public abstract class MemcachedSessionServiceTest {
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
         @SuppressWarnings( "unchecked" )
         final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new SerializationResult( new byte[0], 1 ) );
         _service.setTranscoderService( transcoderServiceMock );
 
         final MemcachedBackupSession session = createSession( _service );
@@ -253,12 +274,12 @@ public abstract class MemcachedSessionServiceTest {
         session.endAccess();
         session.setAttribute( "foo", "bar" );
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
 
         session.access();
         session.endAccess();
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
 
     }
 
@@ -275,14 +296,14 @@ public abstract class MemcachedSessionServiceTest {
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
         @SuppressWarnings( "unchecked" )
         final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new SerializationResult( new byte[0], 1 ) );
         _service.setTranscoderService( transcoderServiceMock );
 
         final MemcachedBackupSession session = createSession( _service );
 
-        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "foo", new ArrayList<String>( Arrays.asList( "bar" ) ) );
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
 
         // we need some millis between last backup and next access (due to check in BackupSessionService)
         Thread.sleep(5L);
@@ -290,13 +311,147 @@ public abstract class MemcachedSessionServiceTest {
         session.access();
         session.getAttribute( "foo" );
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 2 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 2 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
+
+        // we need some millis between last backup and next access (due to check in BackupSessionService)
+        Thread.sleep(5L);
+
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( transcoderServiceMock, times( 2 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
+
+    }
+
+    /**
+     * Reading an attribute with an immutable value must not cause serialization of session attributes.
+     */
+    @Test
+    public void testReadingImmutableAttributeDoesNotSerializeAttributes() throws InterruptedException, ExecutionException {
+
+        final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
+        @SuppressWarnings( "unchecked" )
+        final Map<String, Object> anyMap = any( Map.class );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new SerializationResult( new byte[0], 1 ) );
+        _service.setTranscoderService( transcoderServiceMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+
+        session.setAttribute( "foo", "bar" );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( transcoderServiceMock, times( 1 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
 
         // we need some millis between last backup and next access (due to check in BackupSessionService)
         Thread.sleep(5L);
 
+        session.access();
+        assertEquals( session.getAttribute( "foo" ), "bar" );
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 2 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, never() ).serializeAttribute( eq( session ), anyString(), any() );
+
+    }
+
+    /**
+     * A mutable attribute that is read must be checked for modifications on its own, so that
+     * all attributes only have to be serialized if it was actually modified.
+     */
+    @Test
+    public void testReadingUnmodifiedMutableAttributeOnlySerializesThisAttribute() throws InterruptedException, ExecutionException {
+
+        final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
+        @SuppressWarnings( "unchecked" )
+        final Map<String, Object> anyMap = any( Map.class );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new SerializationResult( new byte[0], 1 ) );
+        when( transcoderServiceMock.serializeAttribute( any( MemcachedBackupSession.class ), eq( "foo" ), any() ) )
+            .thenReturn( new byte[] { 1 } );
+        _service.setTranscoderService( transcoderServiceMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+
+        session.setAttribute( "foo", new ArrayList<String>( Arrays.asList( "bar" ) ) );
+        session.setAttribute( "baz", new ArrayList<String>( Arrays.asList( "qux" ) ) );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( transcoderServiceMock, times( 1 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
+
+        // the first read attribute has no known hash yet, so all attributes are serialized
+        Thread.sleep(5L);
+        session.access();
+        session.getAttribute( "foo" );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( transcoderServiceMock, times( 2 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeAttribute( eq( session ), eq( "foo" ), any() );
+
+        // now the hash of the attribute is known and unchanged
+        Thread.sleep(5L);
+        session.access();
+        session.getAttribute( "foo" );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( transcoderServiceMock, times( 2 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 2 ) ).serializeAttribute( eq( session ), eq( "foo" ), any() );
+        verify( transcoderServiceMock, never() ).serializeAttribute( eq( session ), eq( "baz" ), any() );
+
+        // a modification of the attribute is detected
+        when( transcoderServiceMock.serializeAttribute( any( MemcachedBackupSession.class ), eq( "foo" ), any() ) )
+            .thenReturn( new byte[] { 2 } );
+        Thread.sleep(5L);
+        session.access();
+        session.getAttribute( "foo" );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( transcoderServiceMock, times( 3 ) ).serializeSession( eq( session ), eq( session.getAttributesInternal() ) );
+
+    }
+
+    /**
+     * If several read attributes were modified, a full backup must not leave outdated hash codes of
+     * the attributes that were not checked, otherwise a change back to the previous value (A-&gt;B-&gt;A)
+     * is not detected.
+     */
+    @Test
+    public void testRestoredValueOfAttributeReadWithOtherModifiedAttributeIsDetected() throws InterruptedException, ExecutionException {
+
+        final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap() ) ).thenReturn( new SerializationResult( new byte[0], 1 ) );
+        when( transcoderServiceMock.serializeAttribute( any( MemcachedBackupSession.class ), anyString(), any() ) )
+            .thenReturn( new byte[] { 1 } );
+        _service.setTranscoderService( transcoderServiceMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+
+        session.setAttribute( "foo", new ArrayList<String>( Arrays.asList( "a" ) ) );
+        session.setAttribute( "bar", new ArrayList<String>( Arrays.asList( "a" ) ) );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+
+        // let the hash codes of both attributes be known
+        for ( final String name : Arrays.asList( "foo", "bar" ) ) {
+            Thread.sleep(5L);
+            session.access();
+            session.getAttribute( name );
+            _service.backupSession( session.getIdInternal(), false, null ).get();
+        }
+        verify( transcoderServiceMock, times( 3 ) ).serializeSession( eq( session ), anyMap() );
+
+        // both attributes are modified (A->B) and read in the same request
+        when( transcoderServiceMock.serializeAttribute( any( MemcachedBackupSession.class ), anyString(), any() ) )
+            .thenReturn( new byte[] { 2 } );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap() ) ).thenReturn( new SerializationResult( new byte[0], 2 ) );
+        Thread.sleep(5L);
+        session.access();
+        session.getAttribute( "foo" );
+        session.getAttribute( "bar" );
+        assertEquals( _service.backupSession( session.getIdInternal(), false, null ).get().getStatus(), BackupResultStatus.SUCCESS );
+        verify( transcoderServiceMock, times( 4 ) ).serializeSession( eq( session ), anyMap() );
+
+        // both attributes are changed back (B->A), each one must be detected as modified
+        when( transcoderServiceMock.serializeAttribute( any( MemcachedBackupSession.class ), anyString(), any() ) )
+            .thenReturn( new byte[] { 1 } );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap() ) ).thenReturn( new SerializationResult( new byte[0], 3 ) );
+        int expectedSerializations = 4;
+        for ( final String name : Arrays.asList( "foo", "bar" ) ) {
+            Thread.sleep(5L);
+            session.access();
+            session.getAttribute( name );
+            _service.backupSession( session.getIdInternal(), false, null ).get();
+            verify( transcoderServiceMock, times( ++expectedSerializations ) ).serializeSession( eq( session ), anyMap() );
+        }
 
     }
 
@@ -416,7 +571,8 @@ public abstract class MemcachedSessionServiceTest {
         final byte[] validityData = encode( -1, System.currentTimeMillis(), System.currentTimeMillis() );
         when( _memcachedMock.get( eq( validityKey ) ) ).thenReturn( validityData );
 
-        // stub session (backup) ping
+        // stub session (backup) ping, touch is not supported with the text protocol
+        when( _memcachedMock.touch( anyString(), anyInt() ) ).thenThrow( new UnsupportedOperationException( "Touch is not supported for ASCII protocol" ) );
         @SuppressWarnings( "unchecked" )
         final OperationFuture<Boolean> futureMock = mock( OperationFuture.class );
         when( futureMock.get() ).thenReturn( Boolean.FALSE );
@@ -447,6 +603,158 @@ public abstract class MemcachedSessionServiceTest {
         verify( _memcachedMock, times( 1 ) ).set( eq( backupValidityKey ), eq( 0 ), any() );
     }
 
+    /**
+     * Test that the session (and its backup) is touched in memcached if the session was not loaded
+     * and touch is supported.
+     */
+    @Test
+    public void testNonStickySessionNotLoadedIsTouched() throws InterruptedException, ExecutionException, LifecycleException, TimeoutException {
+
+        _service.setStickyInternal( false );
+        _service.setLockingMode( LockingMode.NONE, null, false );
+        _service.setMemcachedNodes( "n1:127.0.0.1:11211 n2:127.0.0.1:11212" ); // for backup support
+        _service.startInternal(_memcachedMock); // we must put in our mock again
+
+        final String sessionId = "someSessionNotLoaded-n1";
+
+        // stub loading of validity info
+        final String validityKey = createValidityInfoKeyName( sessionId );
+        final byte[] validityData = encode( 60, System.currentTimeMillis(), System.currentTimeMillis() );
+        when( _memcachedMock.get( eq( validityKey ) ) ).thenReturn( validityData );
+
+        // stub session (backup) touch
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> futureMock = mock( OperationFuture.class );
+        when( futureMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
+        when( _memcachedMock.touch( anyString(), anyInt() ) ).thenReturn( futureMock );
+
+        _service.backupSession( sessionId, false, null ).get();
+
+        _service.getLockingStrategy().getExecutorService().shutdown();
+        assertTrue( _service.getLockingStrategy().getExecutorService().awaitTermination( 1, TimeUnit.SECONDS ) );
+
+        verify( _memcachedMock, times( 1 ) ).touch( eq( sessionId ), eq( 120 ) );
+        verify( _memcachedMock, times( 1 ) ).touch( eq( new SessionIdFormat().createBackupKey( sessionId ) ), eq( 120 ) );
+        verify( _memcachedMock, never() ).add( anyString(), anyInt(), any() );
+    }
+
+    /**
+     * Test that the expiration of a sticky session is updated with touch (if supported), the
+     * current access times are stored as validity info then.
+     */
+    @Test
+    public void testUpdateExpirationTouchesSession() throws Exception {
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> touchedMock = mock( OperationFuture.class );
+        when( touchedMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
+        when( _memcachedMock.touch( anyString(), anyInt() ) ).thenReturn( touchedMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.access();
+        session.endAccess();
+
+        final BackupSessionService backupSessionService = new BackupSessionService( _service._transcoderService, false, 100, 1,
+                false, 0, 0, _memcachedMock, _service.getMemcachedNodesManager(), CasConflictPolicy.MERGE, _service.getStatistics() );
+        try {
+            backupSessionService.updateExpiration( session );
+
+            verify( _memcachedMock, times( 1 ) ).touch( eq( session.getId() ), anyInt() );
+            verify( _memcachedMock, times( 1 ) ).set( eq( createValidityInfoKeyName( session.getId() ) ), anyInt(), any() );
+            verify( _memcachedMock, never() ).set( eq( session.getId() ), anyInt(), any() );
+            assertEquals( session.getLastMemcachedExpirationTime(), session.getMemcachedExpirationTimeToSet() );
+        } finally {
+            backupSessionService.shutdown();
+        }
+    }
+
+    /**
+     * Test that the session is stored again if it could not be touched as it does not
+     * exist in memcached or touch is not supported.
+     */
+    @Test
+    public void testUpdateExpirationStoresSessionIfNotTouched() throws Exception {
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> notFoundMock = mock( OperationFuture.class );
+        when( notFoundMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.FALSE );
+        when( _memcachedMock.touch( anyString(), anyInt() ) ).thenReturn( notFoundMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.access();
+        session.endAccess();
+
+        final BackupSessionService backupSessionService = new BackupSessionService( _service._transcoderService, false, 100, 1,
+                false, 0, 0, _memcachedMock, _service.getMemcachedNodesManager(), CasConflictPolicy.MERGE, _service.getStatistics() );
+        try {
+            backupSessionService.updateExpiration( session );
+            verify( _memcachedMock, times( 1 ) ).set( eq( session.getId() ), anyInt(), any() );
+
+            // with the text protocol touch is not supported at all
+            reset( _memcachedMock );
+            when( _memcachedMock.touch( anyString(), anyInt() ) ).thenThrow( new UnsupportedOperationException( "Touch is not supported for ASCII protocol" ) );
+            @SuppressWarnings( "unchecked" )
+            final OperationFuture<Boolean> setResultMock = mock( OperationFuture.class );
+            when( setResultMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
+            when( _memcachedMock.set( anyString(), anyInt(), any() ) ).thenReturn( setResultMock );
+
+            backupSessionService.updateExpiration( session );
+            backupSessionService.updateExpiration( session );
+            verify( _memcachedMock, times( 1 ) ).touch( anyString(), anyInt() );
+            verify( _memcachedMock, times( 2 ) ).set( eq( session.getId() ), anyInt(), any() );
+        } finally {
+            backupSessionService.shutdown();
+        }
+    }
+
+    /**
+     * Test that touch is disabled if memcached does not know the touch command (memcached &lt; 1.4.8), which
+     * the memcached client reports just as an unsuccessful touch with the binary protocol.
+     */
+    @Test
+    public void testUpdateExpirationDisablesTouchForUnknownCommand() throws Exception {
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> unknownCommandMock = mock( OperationFuture.class );
+        when( unknownCommandMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.FALSE );
+        when( unknownCommandMock.getStatus() ).thenReturn( new OperationStatus( false, "Unknown command" ) );
+        when( _memcachedMock.touch( anyString(), anyInt() ) ).thenReturn( unknownCommandMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.access();
+        session.endAccess();
+
+        final BackupSessionService backupSessionService = new BackupSessionService( _service._transcoderService, false, 100, 1,
+                false, 0, 0, _memcachedMock, _service.getMemcachedNodesManager(), CasConflictPolicy.MERGE, _service.getStatistics() );
+        try {
+            backupSessionService.updateExpiration( session );
+            backupSessionService.updateExpiration( session );
+            verify( _memcachedMock, times( 1 ) ).touch( anyString(), anyInt() );
+            verify( _memcachedMock, times( 2 ) ).set( eq( session.getId() ), anyInt(), any() );
+
+            // a session that's really not found does not disable touch
+            reset( _memcachedMock );
+            @SuppressWarnings( "unchecked" )
+            final OperationFuture<Boolean> notFoundMock = mock( OperationFuture.class );
+            when( notFoundMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.FALSE );
+            when( notFoundMock.getStatus() ).thenReturn( new CASOperationStatus( false, "Not found", CASResponse.NOT_FOUND ) );
+            when( _memcachedMock.touch( anyString(), anyInt() ) ).thenReturn( notFoundMock );
+            @SuppressWarnings( "unchecked" )
+            final OperationFuture<Boolean> setResultMock = mock( OperationFuture.class );
+            when( setResultMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
+            when( _memcachedMock.set( anyString(), anyInt(), any() ) ).thenReturn( setResultMock );
+
+            final BackupSessionService otherBackupSessionService = new BackupSessionService( _service._transcoderService, false, 100, 1,
+                    false, 0, 0, _memcachedMock, _service.getMemcachedNodesManager(), CasConflictPolicy.MERGE, _service.getStatistics() );
+            try {
+                otherBackupSessionService.updateExpiration( session );
+                otherBackupSessionService.updateExpiration( session );
+                verify( _memcachedMock, times( 2 ) ).touch( anyString(), anyInt() );
+            } finally {
+                otherBackupSessionService.shutdown();
+            }
+        } finally {
+            backupSessionService.shutdown();
+        }
+    }
+
     /**
      * Tests sessionAttributeFilter attribute: when excluded attributes are accessed/put the session should
      * not be marked as touched.
@@ -468,7 +776,7 @@ public abstract class MemcachedSessionServiceTest {
 
         _service.backupSession( session.getIdInternal(), false, null ).get();
 
-        verify( transcoderServiceMock, never() ).serializeAttributes( (MemcachedBackupSession)any(), anyMap() );
+        verify( transcoderServiceMock, never() ).serializeSession( (MemcachedBackupSession)any(), anyMap() );
 
     }
 
@@ -481,7 +789,7 @@ public abstract class MemcachedSessionServiceTest {
 
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
         final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new SerializationResult( new byte[0], 1 ) );
         _service.setTranscoderService( transcoderServiceMock );
 
         final MemcachedBackupSession session = createSession( _service );
@@ -495,7 +803,7 @@ public abstract class MemcachedSessionServiceTest {
 
         // capture the supplied argument, alternatively we could have used some Matcher (but there seems to be no MapMatcher).
         final ArgumentCaptor<Map> model = ArgumentCaptor.forClass( Map.class );
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), model.capture() );
+        verify( transcoderServiceMock, times( 1 ) ).serializeSession( eq( session ), model.capture() );
 
         // the serialized attributes must only contain allowed ones
         assertTrue( model.getValue().containsKey( "foo" ) );
@@ -513,8 +821,10 @@ public abstract class MemcachedSessionServiceTest {
 
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
         final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
+        when( transcoderServiceMock.serializeSession( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new SerializationResult( new byte[0], 1 ) );
         _service.setTranscoderService( transcoderServiceMock );
+        // touch is not supported with the text protocol, so that the session is stored again
+        when( _memcachedMock.touch( anyString(), anyInt() ) ).thenThrow( new UnsupportedOperationException( "Touch is not supported for ASCII protocol" ) );
 
         final MemcachedBackupSession session = createSession( _service );
         _service.setSessionAttributeFilter( "^(foo|bar)$" );
@@ -530,7 +840,7 @@ public abstract class MemcachedSessionServiceTest {
 
         // capture the supplied argument, alternatively we could have used some Matcher (but there seems to be no MapMatcher).
         final ArgumentCaptor<Map> model = ArgumentCaptor.forClass( Map.class );
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), model.capture() );
+        verify( transcoderServiceMock, times( 1 ) ).serializeSession( eq( session ), model.capture() );
 
         // the serialized attributes must only contain allowed ones
         assertTrue( model.getValue().containsKey( "foo" ) );
@@ -539,6 +849,399 @@ public abstract class MemcachedSessionServiceTest {
 
     }
 
+    /**
+     * Test that a failed expiration update is retried with the next run of the background process.
+     */
+    @Test
+    public void testFailedUpdateExpirationIsRetried() throws Exception {
+        // touch is not supported with the text protocol, so that the session is stored again
+        when( _memcachedMock.touch( anyString(), anyInt() ) ).thenThrow( new UnsupportedOperationException( "Touch is not supported for ASCII protocol" ) );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "bar" );
+
+        session.access();
+        session.endAccess();
+
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> failingFuture = mock( OperationFuture.class );
+        when( failingFuture.get( anyLong(), any( TimeUnit.class ) ) ).thenThrow( new ExecutionException( new RuntimeException( "Simulated exception." ) ) );
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> succeedingFuture = mock( OperationFuture.class );
+        when( succeedingFuture.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
+        when( _memcachedMock.set( eq( session.getId() ), anyInt(), any() ) ).thenReturn( failingFuture, succeedingFuture );
+
+        _service.updateExpirationInMemcached();
+        verify( _memcachedMock, times( 1 ) ).set( eq( session.getId() ), anyInt(), any() );
+        assertTrue( session.wasAccessedSinceLastBackup() );
+
+        _service.updateExpirationInMemcached();
+        verify( _memcachedMock, times( 2 ) ).set( eq( session.getId() ), anyInt(), any() );
+        assertFalse( session.wasAccessedSinceLastBackup() );
+    }
+
+    /**
+     * Test that a pending async backup is dropped if a newer backup of the same session is submitted
+     * before the pending backup was started.
+     */
+    @Test
+    public void testPendingBackupIsSupersededByNewerBackup() throws Exception {
+        final MemcachedBackupSession blocking = createSession( _service );
+        blocking.setId( "blocking-n1" );
+        blocking.setAttribute( "foo", "bar" );
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "bar" );
+
+        final CountDownLatch blocked = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> setResultMock = mock( OperationFuture.class );
+        when( _memcachedMock.set( eq( blocking.getId() ), anyInt(), any() ) ).thenAnswer( new Answer<OperationFuture<Boolean>>() {
+            @Override
+            public OperationFuture<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                blocked.countDown();
+                release.await();
+                return setResultMock;
+            }
+        } );
+
+        // a single backup thread, so that backups are queued while the first one is blocked
+        final BackupSessionService backupSessionService = new BackupSessionService( _service._transcoderService, true, 100, 1,
+                false, 0, 0, _memcachedMock, _service.getMemcachedNodesManager(), CasConflictPolicy.MERGE, _service.getStatistics() );
+        try {
+            backupSessionService.backupSession( blocking, false );
+            assertTrue( blocked.await( 1, TimeUnit.SECONDS ) );
+
+            final Future<BackupResult> first = backupSessionService.backupSession( session, false );
+            final Future<BackupResult> second = backupSessionService.backupSession( session, false );
+            assertEquals( _service.getStatistics().getBackupsCoalesced(), 1 );
+
+            // listeners of the superseded backup are notified when the superseding backup is done
+            final CountDownLatch firstDone = new CountDownLatch( 1 );
+            ( (ListenableFuture<BackupResult>) first ).addListener( new Runnable() {
+                @Override
+                public void run() {
+                    assertTrue( second.isDone() );
+                    firstDone.countDown();
+                }
+            }, ListenableFutureTask.DIRECT_EXECUTOR );
+
+            release.countDown();
+            assertEquals( second.get( 1, TimeUnit.SECONDS ).getStatus(), BackupResultStatus.SUCCESS );
+            assertSame( first.get( 1, TimeUnit.SECONDS ), second.get() );
+            assertTrue( firstDone.await( 1, TimeUnit.SECONDS ) );
+            verify( _memcachedMock, times( 1 ) ).set( eq( session.getId() ), anyInt(), any() );
+        } finally {
+            backupSessionService.shutdown();
+        }
+    }
+
+    /**
+     * Test that with attributes stored separately only modified attributes are sent to memcached
+     * and removed attributes are deleted.
+     */
+    @Test
+    public void testStoreAttributesSeparatelyOnlySendsModifiedAttributes() throws InterruptedException, ExecutionException, LifecycleException {
+        _service.setStoreAttributesSeparately( true );
+        _service.startInternal(_memcachedMock); // we must put in our mock again
+
+        final MemcachedBackupSession session = createSession( _service );
+        final SessionIdFormat sessionIdFormat = new SessionIdFormat();
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "foo" );
+        session.setAttribute( "bar", "bar" );
+        assertEquals( _service.backupSession( session.getIdInternal(), false, null ).get().getStatus(), BackupResultStatus.SUCCESS );
+
+        final String fooKey = sessionIdFormat.createAttributeKey( session.getId(), session.getAttributesManifest().get( "foo" ).getSlot() );
+        final String barKey = sessionIdFormat.createAttributeKey( session.getId(), session.getAttributesManifest().get( "bar" ).getSlot() );
+        assertFalse( fooKey.equals( barKey ) );
+        verify( _memcachedMock, times( 1 ) ).set( eq( fooKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( barKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( session.getId() ), anyInt(), any() );
+
+        // we need some millis between last backup and next access (due to check in BackupSessionService)
+        Thread.sleep(5L);
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "foo modified" );
+        session.getAttribute( "bar" );
+        assertEquals( _service.backupSession( session.getIdInternal(), false, null ).get().getStatus(), BackupResultStatus.SUCCESS );
+        verify( _memcachedMock, times( 2 ) ).set( eq( fooKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 1 ) ).set( eq( barKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 2 ) ).set( eq( session.getId() ), anyInt(), any() );
+
+        Thread.sleep(5L);
+
+        session.access();
+        session.endAccess();
+        session.removeAttribute( "bar" );
+        assertEquals( _service.backupSession( session.getIdInternal(), false, null ).get().getStatus(), BackupResultStatus.SUCCESS );
+        verify( _memcachedMock, times( 1 ) ).delete( eq( barKey ) );
+        verify( _memcachedMock, times( 2 ) ).set( eq( fooKey ), anyInt(), any() );
+        verify( _memcachedMock, times( 3 ) ).set( eq( session.getId() ), anyInt(), any() );
+        assertNull( session.getAttributesManifest().get( "bar" ) );
+
+        Thread.sleep(5L);
+
+        session.access();
+        session.endAccess();
+        session.getAttribute( "foo" );
+        assertEquals( _service.backupSession( session.getIdInternal(), false, null ).get().getStatus(), BackupResultStatus.SKIPPED );
+        verify( _memcachedMock, times( 3 ) ).set( eq( session.getId() ), anyInt(), any() );
+    }
+
+    /**
+     * Test that with cas locking a conflicting update of the session in memcached
+     * is merged with the local modifications.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testCasConflictIsMerged() throws Exception {
+        _service.setStickyInternal( false );
+        _service.setLockingMode( LockingMode.CAS, null, false );
+
+        // the session as it was stored by another tomcat in the meantime
+        final MemcachedBackupSession remote = createSession( _service );
+        remote.setAttribute( "bar", "bar" );
+        final byte[] remoteData = _service._transcoderService.serialize( remote );
+
+        final MemcachedBackupSession session = createSession( _service );
+        final String sessionId = session.getId();
+        session.setAttribute( "foo", "foo" );
+        session.setCasId( 42 );
+
+        final OperationFuture<CASResponse> existsMock = mock( OperationFuture.class );
+        when( existsMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( CASResponse.EXISTS );
+        when( _memcachedMock.asyncCAS( eq( sessionId ), eq( 42L ), anyInt(), any(), any( Transcoder.class ) ) ).thenReturn( existsMock );
+        final OperationFuture<CASResponse> okMock = mock( OperationFuture.class );
+        when( okMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( CASResponse.OK );
+        when( _memcachedMock.asyncCAS( eq( sessionId ), eq( 43L ), anyInt(), any(), any( Transcoder.class ) ) ).thenReturn( okMock );
+        when( _memcachedMock.gets( sessionId ) ).thenReturn( new CASValue<Object>( 43, remoteData ) );
+
+        assertEquals( _service.backupSession( sessionId, false, "foo" ).get().getStatus(), BackupResultStatus.SUCCESS );
+
+        final ArgumentCaptor<Object> dataCaptor = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock ).asyncCAS( eq( sessionId ), eq( 43L ), anyInt(), dataCaptor.capture(), any( Transcoder.class ) );
+        verify( _memcachedMock, never() ).set( eq( sessionId ), anyInt(), any() );
+        final Map<String, Object> attributes = _service._transcoderService.deserializeSessionAttributes( (byte[]) dataCaptor.getValue(), sessionId );
+        assertEquals( attributes.get( "foo" ), "foo" );
+        assertEquals( attributes.get( "bar" ), "bar" );
+        assertEquals( _service.getStatistics().getNonStickySessionsCasConflicts(), 1 );
+    }
+
+    /**
+     * Test that with cas locking and the conflict policy <em>fail</em> a conflicting
+     * update of the session in memcached is not overwritten.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testCasConflictFailsWithFailPolicy() throws Exception {
+        _service.setCasConflictPolicy( "fail" );
+        _service.startInternal( _memcachedMock ); // we must put in our mock again
+        _service.setStickyInternal( false );
+        _service.setLockingMode( LockingMode.CAS, null, false );
+
+        final MemcachedBackupSession session = createSession( _service );
+        final String sessionId = session.getId();
+        session.setAttribute( "foo", "foo" );
+        session.setCasId( 42 );
+
+        final OperationFuture<CASResponse> existsMock = mock( OperationFuture.class );
+        when( existsMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( CASResponse.EXISTS );
+        when( _memcachedMock.asyncCAS( eq( sessionId ), anyLong(), anyInt(), any(), any( Transcoder.class ) ) ).thenReturn( existsMock );
+
+        assertEquals( _service.backupSession( sessionId, false, "foo" ).get().getStatus(), BackupResultStatus.FAILURE );
+
+        verify( _memcachedMock, never() ).gets( anyString() );
+        verify( _memcachedMock, never() ).set( eq( sessionId ), anyInt(), any() );
+        assertEquals( _service.getStatistics().getNonStickySessionsCasConflicts(), 1 );
+    }
+
+    /**
+     * Test that with cas locking a session whose id was changed (e.g. on login) is stored with a plain set,
+     * as the cas value of the former id does not apply to the new key.
+     */
+    @Test
+    public void testCasSessionWithChangedIdIsStoredWithSet() throws Exception {
+        _service.setStickyInternal( false );
+        _service.setLockingMode( LockingMode.CAS, null, false );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "foo" );
+        session.setCasId( 42 );
+
+        final String oldSessionId = session.getId();
+        _service.getManager().changeSessionId( session );
+        assertFalse( oldSessionId.equals( session.getId() ) );
+
+        assertEquals( _service.backupSession( session.getIdInternal(), false, "foo" ).get().getStatus(), BackupResultStatus.SUCCESS );
+
+        verify( _memcachedMock, never() ).asyncCAS( anyString(), anyLong(), anyInt(), any(), any( Transcoder.class ) );
+        verify( _memcachedMock ).set( eq( session.getId() ), anyInt(), any() );
+    }
+
+    /**
+     * Test that a session with attributes stored separately is loaded from memcached
+     * with its attributes.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testLoadSessionWithAttributesStoredSeparately() throws Exception {
+        _service.setStoreAttributesSeparately( true );
+        _service.setTranscoderService( new TranscoderService( new JavaSerializationTranscoder() ) );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "foo" );
+        session.setAttribute( "bar", Arrays.asList( "bar", "baz" ) );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+
+        final SessionIdFormat sessionIdFormat = new SessionIdFormat();
+        final Map<String, Object> attributesData = new java.util.HashMap<String, Object>();
+        for ( final String name : session.getAttributesManifest().getNames() ) {
+            final String key = sessionIdFormat.createAttributeKey( session.getId(), session.getAttributesManifest().get( name ).getSlot() );
+            final ArgumentCaptor<Object> attributeData = ArgumentCaptor.forClass( Object.class );
+            verify( _memcachedMock ).set( eq( key ), anyInt(), attributeData.capture() );
+            attributesData.put( key, attributeData.getValue() );
+        }
+        final ArgumentCaptor<Object> sessionData = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock ).set( eq( session.getId() ), anyInt(), sessionData.capture() );
+        assertTrue( TranscoderService.hasAttributesManifest( (byte[]) sessionData.getValue() ) );
+
+        _service.getManager().removeInternal( session, false );
+
+        when( _memcachedMock.get( eq( session.getId() ) ) ).thenReturn( sessionData.getValue() );
+        when( _memcachedMock.getBulk( any( java.util.Collection.class ) ) ).thenReturn( attributesData );
+
+        final MemcachedBackupSession loaded = _service.findSession( session.getId() );
+        assertNotNull( loaded );
+        assertNotSame( loaded, session );
+        assertEquals( loaded.getAttribute( "foo" ), "foo" );
+        assertEquals( loaded.getAttribute( "bar" ), Arrays.asList( "bar", "baz" ) );
+        assertEquals( loaded.getAttributesManifest().getNames(), session.getAttributesManifest().getNames() );
+
+        // if an attribute is missing the session must not be loaded
+        _service.getManager().removeInternal( loaded, false );
+        attributesData.remove( attributesData.keySet().iterator().next() );
+        assertNull( _service.findSession( session.getId() ) );
+    }
+
+    /**
+     * Test that a session that was compressed with a dictionary that's not available is not loaded,
+     * and that it's not cached as missing (so that it's loaded again with the next request).
+     */
+    @Test
+    public void testSessionWithMissingCompressionDictionaryIsNotLoaded() throws Exception {
+        // the session is stored by another tomcat, that created the dictionary
+        final MemcachedClient otherMemcached = mock( MemcachedClient.class );
+        final CompressionDictionaryService otherDictionaryService = new CompressionDictionaryService( otherMemcached,
+                _service.getMemcachedNodesManager(), 1, 1024 );
+        final TranscoderService otherTranscoderService = new TranscoderService( new JavaSerializationTranscoder(),
+                new BufferPool(), new DeflateCompressor(), 100, otherDictionaryService, Statistics.create() );
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "some longer value of the foo attribute that is shared" );
+        session.setLastBackupTime( System.currentTimeMillis() );
+        otherTranscoderService.serializeSession( session, session.getAttributesInternal() );
+        final byte[] data = otherTranscoderService.serializeSession( session, session.getAttributesInternal() ).getData();
+        assertTrue( TranscoderService.usesDictionary( data ) );
+        _service.getManager().removeInternal( session, false );
+
+        _service.setTranscoderService( new TranscoderService( new JavaSerializationTranscoder(), new BufferPool(),
+                new DeflateCompressor(), 100, new CompressionDictionaryService( _memcachedMock, _service.getMemcachedNodesManager(), 1, 1024 ),
+                _service.getStatistics() ) );
+        when( _memcachedMock.get( eq( session.getId() ) ) ).thenReturn( data );
+
+        assertNull( _service.findSession( session.getId() ) );
+        assertEquals( _service.getStatistics().getSessionDeserializationFailures(), 1 );
+
+        assertNull( _service.findSession( session.getId() ) );
+        verify( _memcachedMock, times( 2 ) ).get( eq( session.getId() ) );
+    }
+
+    /**
+     * Test that the separately stored attributes of a session that's not held locally are deleted
+     * with the session, the attribute keys are read from the session data in memcached.
+     */
+    @Test
+    public void testDeleteAttributesStoredSeparatelyOfSessionNotHeldLocally() throws Exception {
+        _service.setStoreAttributesSeparately( true );
+        _service.setTranscoderService( new TranscoderService( new JavaSerializationTranscoder() ) );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "foo" );
+        session.setAttribute( "bar", "bar" );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+
+        final ArgumentCaptor<Object> sessionData = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock ).set( eq( session.getId() ), anyInt(), sessionData.capture() );
+        _service.getManager().removeInternal( session, false );
+        when( _memcachedMock.get( eq( session.getId() ) ) ).thenReturn( sessionData.getValue() );
+
+        _service.deleteFromMemcached( session.getId() );
+
+        final SessionIdFormat sessionIdFormat = new SessionIdFormat();
+        for ( final String name : session.getAttributesManifest().getNames() ) {
+            final int slot = session.getAttributesManifest().get( name ).getSlot();
+            verify( _memcachedMock ).delete( eq( sessionIdFormat.createAttributeKey( session.getId(), slot ) ) );
+        }
+        verify( _memcachedMock ).delete( eq( session.getId() ) );
+    }
+
+    /**
+     * Test that the delete of an invalidated session is not sent to memcached before a backup of
+     * the session that is still queued for the next batch.
+     */
+    @Test
+    public void testInvalidatedSessionIsDeletedAfterQueuedBackup() throws Exception {
+        _service.setSessionBackupAsync( true );
+        _service.setBackupBatchWindow( (int) TimeUnit.MILLISECONDS.toMicros( 10 ) );
+        _service.startInternal(_memcachedMock); // we must put in our mock again
+
+        final MemcachedBackupSession blocking = createSession( _service );
+        blocking.setId( "blocking-n1" );
+        blocking.setAttribute( "foo", "bar" );
+        final MemcachedBackupSession session = createSession( _service );
+        session.setId( "invalidated-n1" );
+        session.setAttribute( "foo", "bar" );
+
+        final CountDownLatch blocked = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> setResultMock = mock( OperationFuture.class );
+        when( _memcachedMock.set( eq( blocking.getId() ), anyInt(), any() ) ).thenAnswer( new Answer<OperationFuture<Boolean>>() {
+            @Override
+            public OperationFuture<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                blocked.countDown();
+                release.await();
+                return setResultMock;
+            }
+        } );
+
+        // the flusher is blocked by the first batch, so that the backup of the session stays queued
+        _service.backupSession( blocking.getIdInternal(), false, null ).get();
+        assertTrue( blocked.await( 1, TimeUnit.SECONDS ) );
+        assertEquals( _service.backupSession( session.getIdInternal(), false, null ).get().getStatus(), BackupResultStatus.SUCCESS );
+        verify( _memcachedMock, never() ).set( eq( session.getId() ), anyInt(), any() );
+
+        final Future<?> invalidation = _executor.submit( new Runnable() {
+            @Override
+            public void run() {
+                session.invalidate();
+            }
+        } );
+        Thread.sleep( 50 );
+        verify( _memcachedMock, never() ).delete( eq( session.getId() ) );
+
+        release.countDown();
+        invalidation.get( 1, TimeUnit.SECONDS );
+
+        final InOrder inOrder = inOrder( _memcachedMock );
+        inOrder.verify( _memcachedMock ).set( eq( session.getId() ), anyInt(), any() );
+        inOrder.verify( _memcachedMock ).delete( eq( session.getId() ) );
+    }
+
     @Test
     public void testSessionsRefCountHandlingIssue111() throws Exception {
         _service.setSticky(false);
@@ -568,7 +1271,8 @@ public abstract class MemcachedSessionServiceTest {
         when(requestMock.getNote(eq(RequestTrackingContextValve.INVOKED))).thenReturn(Boolean.TRUE);
         _service.getTrackingHostValve().storeRequestThreadLocal(requestMock);
 
-        when(_memcachedMock.get(eq(session.getId()))).thenReturn(transcoderService.serialize(session));
+        mockAsyncGet(session.getId(), transcoderService.serialize(session));
+        mockAsyncGet(createValidityInfoKeyName(session.getId()), null);
 
         final MemcachedBackupSession session2 = _service.findSession(session.getId());
         assertTrue(session2.isLocked());
@@ -623,4 +1327,209 @@ public abstract class MemcachedSessionServiceTest {
 
     }
 
+    /**
+     * Test that for a non-sticky session the session and its validity info are requested together
+     * and that the lock is released without waiting for the result of the delete.
+     */
+    @Test
+    public void testNonStickyLoadRequestsSessionAndValidityInfoTogether() throws Exception {
+        _service.setSticky( false );
+        _service.setLockingMode( LockingMode.ALL.name() );
+
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder() );
+        _service.setTranscoderService( transcoderService );
+
+        _service.setMemcachedClient( _memcachedMock );
+        _service.startInternal();
+
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> addResultMock = mock( OperationFuture.class );
+        when( addResultMock.get() ).thenReturn( true );
+        when( _memcachedMock.add( anyString(), anyInt(), any() ) ).thenReturn( addResultMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+        final String sessionId = session.getId();
+        _service.backupSession( sessionId, false, null ).get();
+        final Statistics.MinMaxAvgProbe roundTrips = _service.getStatistics().getProbe( Statistics.StatsType.NON_STICKY_ROUND_TRIPS );
+        final int roundTripsCount = roundTrips.getCount();
+
+        final long accessedTime = System.currentTimeMillis() - 1000;
+        mockAsyncGet( sessionId, transcoderService.serialize( session ) );
+        mockAsyncGet( createValidityInfoKeyName( sessionId ), encode( 60, accessedTime, accessedTime ) );
+
+        final Request requestMock = mock( Request.class );
+        when( requestMock.getNote( eq( RequestTrackingContextValve.INVOKED ) ) ).thenReturn( Boolean.TRUE );
+        _service.getTrackingHostValve().storeRequestThreadLocal( requestMock );
+
+        final MemcachedBackupSession loaded = _service.findSession( sessionId );
+        assertNotNull( loaded );
+        assertTrue( loaded.isLocked() );
+        assertEquals( loaded.getLastAccessedTimeInternal(), accessedTime );
+        verify( _memcachedMock, never() ).get( eq( sessionId ) );
+
+        loaded.setAttribute( "foo", "bar" );
+        assertEquals( _service.backupSession( sessionId, false, null ).get().getStatus(), BackupResultStatus.SUCCESS );
+        _service.getTrackingHostValve().resetRequestThreadLocal();
+        assertFalse( loaded.isLocked() );
+
+        verify( _memcachedMock ).delete( eq( new SessionIdFormat().createLockName( sessionId ) ) );
+        verify( _deleteResultMock, never() ).get();
+
+        // lock, session + validity info, session backup + validity info backup
+        assertEquals( roundTrips.getCount(), roundTripsCount + 1 );
+        assertEquals( roundTrips.getMax(), 3 );
+    }
+
+    /**
+     * Test that for sync backup of a non-sticky session the session and the validity info are awaited
+     * in sum no longer than the session backup timeout.
+     */
+    @Test
+    public void testNonStickySyncBackupAwaitsSessionAndValidityInfoWithinBackupTimeout() throws Exception {
+        _service.setSticky( false );
+        _service.setLockingMode( LockingMode.NONE.name() );
+        _service.setSessionBackupTimeout( 200 );
+        _service.setMemcachedClient( _memcachedMock );
+        _service.startInternal();
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "bar" );
+
+        final OperationFuture<Boolean> sessionResultMock = createTimingOutFuture();
+        when( _memcachedMock.set( eq( session.getId() ), anyInt(), any() ) ).thenReturn( sessionResultMock );
+        final OperationFuture<Boolean> validityResultMock = createTimingOutFuture();
+        when( _memcachedMock.set( eq( createValidityInfoKeyName( session.getId() ) ), anyInt(), any() ) ).thenReturn( validityResultMock );
+
+        final long start = System.currentTimeMillis();
+        _service.backupSession( session.getId(), false, null );
+        final long duration = System.currentTimeMillis() - start;
+
+        verify( validityResultMock ).get( anyLong(), any( TimeUnit.class ) );
+        assertTrue( duration < 350, "The backup took " + duration + " millis." );
+    }
+
+    @Test
+    public void testRelocatedSessionGetsNewIdWithNextRequest() throws Exception {
+        _service.setMemcachedNodes( "n1:127.0.0.1:11211 n2:127.0.0.1:11212" );
+        _service.startInternal(_memcachedMock);
+        final MemcachedNodesManager previous = createPreviousConfig();
+
+        // sessions on n1 are moved to n2 if n2 is their home node
+        MemcachedBackupSession session = null;
+        for ( int i = 0; i < 100 && ( session == null || session.getRelocationId() == null ); i++ ) {
+            session = createSession( _service );
+            if ( session.getId().endsWith( "-n1" ) ) {
+                _service.relocateSession( session.getId(), previous );
+            }
+        }
+        final String oldSessionId = session.getId();
+        final String newSessionId = session.getRelocationId();
+        assertNotNull( newSessionId );
+        assertTrue( newSessionId.endsWith( "-n2" ) );
+
+        // only a copy is stored, the session keeps its id until the next request
+        verify( _memcachedMock, times( 1 ) ).set( eq( newSessionId ), anyInt(), any() );
+        assertSame( _service.getManager().getSessionInternal( oldSessionId ), session );
+        verify( _memcachedMock, never() ).delete( eq( oldSessionId ) );
+
+        assertEquals( _service.changeSessionIdOnMemcachedFailover( oldSessionId ), newSessionId );
+        assertEquals( session.getId(), newSessionId );
+        assertSame( _service.getManager().getSessionInternal( newSessionId ), session );
+        assertNull( _service.getManager().getSessionInternal( oldSessionId ) );
+        verify( _memcachedMock, times( 1 ) ).delete( eq( oldSessionId ) );
+        assertNull( _service.changeSessionIdOnMemcachedFailover( newSessionId ) );
+    }
+
+    @Test
+    public void testSessionInUseIsNotRelocated() throws Exception {
+        _service.setMemcachedNodes( "n1:127.0.0.1:11211 n2:127.0.0.1:11212" );
+        _service.startInternal(_memcachedMock);
+        final MemcachedNodesManager previous = createPreviousConfig();
+
+        for ( int i = 0; i < 20; i++ ) {
+            final MemcachedBackupSession session = createSession( _service );
+            session.access();
+            assertFalse( _service.relocateSession( session.getId(), previous ) );
+            assertNull( session.getRelocationId() );
+            session.endAccess();
+        }
+    }
+
+    private static MemcachedNodesManager createPreviousConfig() {
+        final MemcachedNodesManager result = MemcachedNodesManager.createFor( "n1:127.0.0.1:11211", null,
+                mock( MemcachedNodesManager.MemcachedClientCallback.class ) );
+        result.shutdown();
+        return result;
+    }
+
+    /**
+     * Creates a future that's never done: get waits for the given timeout and throws a {@link TimeoutException}.
+     */
+    @SuppressWarnings( "unchecked" )
+    private static OperationFuture<Boolean> createTimingOutFuture() throws Exception {
+        final OperationFuture<Boolean> result = mock( OperationFuture.class );
+        when( result.get( anyLong(), any( TimeUnit.class ) ) ).thenAnswer( new Answer<Boolean>() {
+            @Override
+            public Boolean answer( final InvocationOnMock invocation ) throws Throwable {
+                final Object[] args = invocation.getArguments();
+                Thread.sleep( ( (TimeUnit) args[1] ).toMillis( (Long) args[0] ) );
+                throw new TimeoutException();
+            }
+        } );
+        return result;
+    }
+
+    /**
+     * Test that the lock of a non-sticky session is released only after the session was written,
+     * also if the session is stored asynchronously.
+     */
+    @Test
+    public void testLockIsReleasedAfterSessionWrite() throws Exception {
+        _service.setSticky( false );
+        _service.setSessionBackupAsync( true );
+        _service.setLockingMode( LockingMode.ALL.name() );
+        _service.setMemcachedClient( _memcachedMock );
+        _service.startInternal();
+
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> addResultMock = mock( OperationFuture.class );
+        when( addResultMock.get() ).thenReturn( true );
+        when( _memcachedMock.add( anyString(), anyInt(), any() ) ).thenReturn( addResultMock );
+
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder() );
+        final MemcachedBackupSession session = createSession( _service );
+        final String sessionId = session.getId();
+        _service.backupSession( sessionId, false, null ).get();
+
+        mockAsyncGet( sessionId, transcoderService.serialize( session ) );
+        mockAsyncGet( createValidityInfoKeyName( sessionId ), null );
+        final Request requestMock = mock( Request.class );
+        when( requestMock.getNote( eq( RequestTrackingContextValve.INVOKED ) ) ).thenReturn( Boolean.TRUE );
+        _service.getTrackingHostValve().storeRequestThreadLocal( requestMock );
+
+        final MemcachedBackupSession loaded = _service.findSession( sessionId );
+        assertTrue( loaded.isLocked() );
+
+        @SuppressWarnings( "unchecked" )
+        final OperationFuture<Boolean> sessionWrite = mock( OperationFuture.class );
+        when( sessionWrite.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( Boolean.TRUE );
+        when( _memcachedMock.set( eq( sessionId ), anyInt(), any() ) ).thenReturn( sessionWrite );
+
+        loaded.setAttribute( "foo", "bar" );
+        _service.backupSession( sessionId, false, null ).get();
+        _service.getTrackingHostValve().resetRequestThreadLocal();
+
+        final InOrder inOrder = inOrder( sessionWrite, _memcachedMock );
+        inOrder.verify( sessionWrite ).get( anyLong(), any( TimeUnit.class ) );
+        inOrder.verify( _memcachedMock ).delete( eq( new SessionIdFormat().createLockName( sessionId ) ) );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private void mockAsyncGet( @Nonnull final String key, final Object value ) throws Exception {
+        final GetFuture<Object> resultMock = mock( GetFuture.class );
+        when( resultMock.get() ).thenReturn( value );
+        when( resultMock.get( anyLong(), any( TimeUnit.class ) ) ).thenReturn( value );
+        when( _memcachedMock.asyncGet( eq( key ) ) ).thenReturn( resultMock );
+    }
+
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link MissingSessionsCache}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class MissingSessionsCacheTest {
+
+    @Test
+    public void testContainsAddedIds() {
+        final MissingSessionsCache cut = new MissingSessionsCache( 1000, 0.001, 10000 );
+        assertFalse( cut.contains( "foo" ) );
+        cut.put( "foo" );
+        assertTrue( cut.contains( "foo" ) );
+        assertFalse( cut.contains( "bar" ) );
+    }
+
+    @Test
+    public void testFalsePositiveProbability() {
+        final int capacity = 10000;
+        final MissingSessionsCache cut = new MissingSessionsCache( capacity, 0.01, 10000 );
+        for ( int i = 0; i < capacity - 1; i++ ) {
+            cut.put( "missing-" + i );
+        }
+        for ( int i = 0; i < capacity - 1; i++ ) {
+            assertTrue( cut.contains( "missing-" + i ) );
+        }
+        int falsePositives = 0;
+        for ( int i = 0; i < 10000; i++ ) {
+            if ( cut.contains( "existing-" + i ) ) {
+                falsePositives++;
+            }
+        }
+        assertTrue( falsePositives < 300, "Too many false positives: " + falsePositives );
+    }
+
+    @Test
+    public void testIdsExpireAfterTwoGenerations() throws InterruptedException {
+        final MissingSessionsCache cut = new MissingSessionsCache( 1000, 0.001, 50 );
+        cut.put( "foo" );
+        Thread.sleep( 60 );
+        cut.put( "bar" );
+        assertTrue( cut.contains( "foo" ), "foo should be kept in the previous generation" );
+        assertTrue( cut.contains( "bar" ) );
+        Thread.sleep( 60 );
+        cut.put( "baz" );
+        assertFalse( cut.contains( "foo" ), "foo should be expired" );
+        assertTrue( cut.contains( "bar" ) );
+        Thread.sleep( 110 );
+        assertFalse( cut.contains( "bar" ), "bar should be expired also without rotation" );
+    }
+
+    @Test
+    public void testGenerationIsRotatedWhenCapacityIsReached() {
+        final MissingSessionsCache cut = new MissingSessionsCache( 10, 0.001, 10000 );
+        for ( int i = 0; i < 10; i++ ) {
+            cut.put( "first-" + i );
+        }
+        for ( int i = 0; i < 10; i++ ) {
+            cut.put( "second-" + i );
+        }
+        assertTrue( cut.contains( "first-0" ), "the previous generation should still be checked" );
+        cut.put( "third" );
+        assertFalse( cut.contains( "first-0" ) );
+        assertTrue( cut.contains( "second-0" ) );
+        assertTrue( cut.contains( "third" ) );
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+import de.javakaffee.web.msm.NodeHealthMonitor.State;
+
+/**
+ * Test the {@link NodeHealthMonitor}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeHealthMonitorTest {
+
+    private static final String NODE = "n1";
+
+    private AtomicBoolean _available;
+    private AtomicInteger _probes;
+    private NodeHealthMonitor<String> _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _available = new AtomicBoolean( true );
+        _probes = new AtomicInteger();
+        _cut = new NodeHealthMonitor<String>( Arrays.asList( NODE ), new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                _probes.incrementAndGet();
+                return _available.get();
+            }
+        }, 10, 200 );
+        _cut.start();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _cut.shutdown();
+    }
+
+    @Test
+    public void testNodeIsProbedInBackground() throws InterruptedException {
+        assertTrue( _cut.isNodeAvailable( NODE ) );
+        waitForProbes( 3 );
+        assertTrue( _cut.isNodeAvailable( NODE ) );
+        assertTrue( _cut.getLatencyMillis( NODE ) >= 0 );
+    }
+
+    @Test
+    public void testNodesAreNotProbedBeforeStart() throws InterruptedException {
+        final AtomicInteger probes = new AtomicInteger();
+        final NodeHealthMonitor<String> cut = new NodeHealthMonitor<String>( Arrays.asList( NODE ), new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                probes.incrementAndGet();
+                return false;
+            }
+        }, 10, 200 );
+        try {
+            Thread.sleep( 50 );
+            assertEquals( probes.get(), 0 );
+            assertTrue( cut.isNodeAvailable( NODE ) );
+            cut.start();
+            final long start = System.currentTimeMillis();
+            while ( probes.get() == 0 && System.currentTimeMillis() - start < 1000 ) {
+                Thread.sleep( 5 );
+            }
+            assertTrue( probes.get() > 0 );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testCircuitIsOpenedAfterConsecutiveProbeFailures() throws InterruptedException {
+        waitForProbes( 1 );
+        _available.set( false );
+        waitForState( State.OPEN );
+        assertFalse( _cut.isNodeAvailable( NODE ) );
+
+        // no probes while the circuit is open
+        final int probes = _probes.get();
+        Thread.sleep( 100 );
+        assertEquals( _probes.get(), probes );
+    }
+
+    @Test
+    public void testReportedFailureOpensCircuitAndHalfOpenProbeClosesIt() throws InterruptedException {
+        _cut.setNodeAvailable( NODE, false );
+        assertFalse( _cut.isNodeAvailable( NODE ) );
+        assertEquals( _cut.getState( NODE ), State.OPEN );
+
+        waitForState( State.CLOSED );
+        assertTrue( _cut.isNodeAvailable( NODE ) );
+    }
+
+    @Test
+    public void testFailedHalfOpenProbeOpensCircuitAgain() throws InterruptedException {
+        _available.set( false );
+        _cut.setNodeAvailable( NODE, false );
+        final int probes = _probes.get();
+        Thread.sleep( 300 );
+        assertTrue( _probes.get() > probes, "the node should have been probed half open" );
+        assertFalse( _cut.isNodeAvailable( NODE ) );
+
+        _cut.setNodeAvailable( NODE, true );
+        assertTrue( _cut.isNodeAvailable( NODE ) );
+        assertEquals( _cut.getState( NODE ), State.CLOSED );
+    }
+
+    @Test
+    public void testUnknownNodeIsMonitoredWhenQueried() throws InterruptedException {
+        assertTrue( _cut.isNodeAvailable( "n2" ) );
+        _available.set( false );
+        final long start = System.currentTimeMillis();
+        while ( _cut.isNodeAvailable( "n2" ) && System.currentTimeMillis() - start < 1000 ) {
+            Thread.sleep( 5 );
+        }
+        assertFalse( _cut.isNodeAvailable( "n2" ) );
+    }
+
+    private void waitForProbes( final int count ) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while ( _probes.get() < count && System.currentTimeMillis() - start < 1000 ) {
+            Thread.sleep( 5 );
+        }
+        assertTrue( _probes.get() >= count, "Expected " + count + " probes, but got " + _probes.get() );
+    }
+
+    private void waitForState( final State state ) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while ( _cut.getState( NODE ) != state && System.currentTimeMillis() - start < 1000 ) {
+            Thread.sleep( 5 );
+        }
+        assertEquals( _cut.getState( NODE ), state );
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+import de.javakaffee.web.msm.NodeSelectionStrategy.NodeSelectionMode;
+
+/**
+ * Test the {@link NodeSelectionStrategy}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeSelectionStrategyTest {
+
+    @Test
+    public void testRandomSelectsAllNodes() {
+        final NodeSelectionStrategy cut = NodeSelectionStrategy.create( NodeSelectionMode.RANDOM, null );
+        final Map<String, Integer> counts = select( cut, Arrays.asList( "n1", "n2", "n3" ), 3000 );
+        for ( final String nodeId : Arrays.asList( "n1", "n2", "n3" ) ) {
+            assertTrue( counts.get( nodeId ) > 800, "Node " + nodeId + " was selected " + counts.get( nodeId ) + " times" );
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testLatencyPrefersFastNodes() {
+        final NodeHealthMonitor<String> monitor = mock( NodeHealthMonitor.class );
+        when( monitor.getLatencyMillis( "n1" ) ).thenReturn( 1d );
+        when( monitor.getLatencyMillis( "n2" ) ).thenReturn( 2d );
+        when( monitor.getLatencyMillis( "n3" ) ).thenReturn( 50d );
+        final NodeSelectionStrategy cut = NodeSelectionStrategy.create( NodeSelectionMode.LATENCY, monitor );
+
+        final Map<String, Integer> counts = select( cut, Arrays.asList( "n1", "n2", "n3" ), 3000 );
+        // with two choices of three nodes the slowest node is never selected, the fastest in 2 of 3 cases
+        assertEquals( counts.get( "n3" ), null );
+        assertTrue( counts.get( "n1" ) > 1800, "n1 was selected " + counts.get( "n1" ) + " times" );
+        assertTrue( counts.get( "n2" ) > 800, "n2 was selected " + counts.get( "n2" ) + " times" );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testLatencySelectsSingleNode() {
+        final NodeSelectionStrategy cut = NodeSelectionStrategy.create( NodeSelectionMode.LATENCY, mock( NodeHealthMonitor.class ) );
+        assertEquals( cut.select( Arrays.asList( "n1" ) ), "n1" );
+    }
+
+    @Test
+    public void testNodeIdServiceUsesStrategyForNewSessions() {
+        final NodeAvailabilityCache<String> nodeAvailability = new NodeAvailabilityCache<String>( 10, 100, new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                return true;
+            }
+        } );
+        final NodeIdService cut = new NodeIdService( nodeAvailability, NodeIdList.create( "n1", "n2" ), Arrays.<String>asList() );
+        cut.setNodeSelectionStrategy( new NodeSelectionStrategy() {
+            @Override
+            public String select( final List<String> nodeIds ) {
+                return nodeIds.get( nodeIds.size() - 1 );
+            }
+        } );
+        assertEquals( cut.getMemcachedNodeId(), "n2" );
+    }
+
+    private Map<String, Integer> select( final NodeSelectionStrategy cut, final List<String> nodeIds, final int count ) {
+        final Map<String, Integer> result = new HashMap<String, Integer>();
+        for ( int i = 0; i < count; i++ ) {
+            final String nodeId = cut.select( nodeIds );
+            final Integer current = result.get( nodeId );
+            result.put( nodeId, current == null ? 1 : current + 1 );
+        }
+        return result;
+    }
+
+}
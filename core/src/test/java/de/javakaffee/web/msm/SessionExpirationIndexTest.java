@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link SessionExpirationIndex}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionExpirationIndexTest {
+
+    private SessionExpirationIndex _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _cut = new SessionExpirationIndex( 1000 );
+    }
+
+    @Test
+    public void testPollDueReturnsOnlyDueSessions() {
+        final MemcachedBackupSession s1 = new MemcachedBackupSession();
+        final MemcachedBackupSession s2 = new MemcachedBackupSession();
+        final MemcachedBackupSession s3 = new MemcachedBackupSession();
+        _cut.schedule( s2, 5000 );
+        _cut.schedule( s1, 1000 );
+        _cut.schedule( s3, 60000 );
+        assertEquals( _cut.size(), 3 );
+
+        assertEquals( _cut.pollDue( 500 ), Collections.emptyList() );
+        assertEquals( _cut.pollDue( 5999 ), Arrays.asList( s1, s2 ) );
+        assertEquals( _cut.pollDue( 5999 ), Collections.emptyList() );
+        assertEquals( _cut.size(), 1 );
+        assertEquals( _cut.pollDue( 60000 ), Arrays.asList( s3 ) );
+        assertEquals( _cut.size(), 0 );
+    }
+
+    @Test
+    public void testRescheduledSessionIsOnlyReturnedWhenDue() {
+        final MemcachedBackupSession session = new MemcachedBackupSession();
+        _cut.schedule( session, 1000 );
+        _cut.schedule( session, 10000 );
+        _cut.schedule( session, 10000 );
+        assertEquals( _cut.size(), 1 );
+
+        assertEquals( _cut.pollDue( 5000 ), Collections.emptyList() );
+        assertEquals( _cut.pollDue( 10000 ), Arrays.asList( session ) );
+
+        // scheduling in the past makes it due with the next poll
+        _cut.schedule( session, 2000 );
+        assertEquals( _cut.pollDue( 10000 ), Arrays.asList( session ) );
+    }
+
+    @Test
+    public void testRemovedSessionIsNotReturned() {
+        final MemcachedBackupSession session = new MemcachedBackupSession();
+        _cut.schedule( session, 1000 );
+        _cut.remove( session );
+        assertEquals( _cut.size(), 0 );
+        assertEquals( _cut.pollDue( 10000 ), Collections.emptyList() );
+    }
+
+}
@@ -74,4 +74,13 @@ public class SessionIdFormatTest {
         assertTrue( cut.isValid( "foo-n.j-v-m1" ) );
     }
 
+    @Test
+    public void testCreateAttributeKey() {
+        final SessionIdFormat cut = new SessionIdFormat();
+
+        assertEquals( cut.createAttributeKey( "foo-n", 0 ), "attr0:foo-n" );
+        assertEquals( cut.extractMemcachedId( cut.createAttributeKey( "foo-n.jvm1", 12 ) ), "n" );
+        assertFalse( cut.createAttributeKey( "foo-n", 1 ).equals( cut.createAttributeKey( "foo-n", 11 ) ) );
+    }
+
 }
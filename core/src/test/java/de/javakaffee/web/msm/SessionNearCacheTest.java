@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Mockito.*;
+import static org.testng.Assert.*;
+
+import java.util.concurrent.Future;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+
+/**
+ * Test the {@link SessionNearCache}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionNearCacheTest {
+
+    private static final String SESSION_ID = "somesessionid-n1";
+
+    private SessionNearCache _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _cut = new SessionNearCache( 10 );
+    }
+
+    @Test
+    public void testLoadedSessionIsReturnedIfValidityInfoMatches() {
+        final byte[] data = new byte[] { 0, 2, 1, 2, 3 };
+        _cut.put( data, createSession( 1000, 2000, 1800 ) );
+
+        assertSame( _cut.get( SESSION_ID, new SessionValidityInfo( 1800, 1000, 2000 ) ), data );
+        // accessed by another tomcat
+        assertNull( _cut.get( SESSION_ID, new SessionValidityInfo( 1800, 2000, 3000 ) ) );
+        // the outdated entry was removed
+        assertNull( _cut.get( SESSION_ID, new SessionValidityInfo( 1800, 1000, 2000 ) ) );
+    }
+
+    @Test
+    public void testSessionIsNotReturnedWithoutValidityInfo() {
+        _cut.put( new byte[] { 0, 2, 1 }, createSession( 1000, 2000, 1800 ) );
+        assertNull( _cut.get( SESSION_ID, null ) );
+    }
+
+    @Test
+    public void testBackupDataIsReturnedAfterSuccessfulBackup() throws Exception {
+        _cut.put( new byte[] { 0, 2, 1 }, createSession( 1000, 2000, 1800 ) );
+
+        final byte[] backupData = new byte[] { 0, 2, 4 };
+        final Future<BackupResult> backupResult = createBackupResult( new BackupResult( BackupResultStatus.SUCCESS, backupData ) );
+        _cut.onBackup( createSession( 2000, 3000, 1800 ), backupResult );
+
+        assertSame( _cut.get( SESSION_ID, new SessionValidityInfo( 1800, 2000, 3000 ) ), backupData );
+    }
+
+    @Test
+    public void testPreviousDataIsReturnedIfBackupWasSkipped() throws Exception {
+        final byte[] data = new byte[] { 0, 2, 1 };
+        _cut.put( data, createSession( 1000, 2000, 1800 ) );
+        _cut.onBackup( createSession( 2000, 3000, 1800 ), createBackupResult( BackupResult.SKIPPED ) );
+        assertSame( _cut.get( SESSION_ID, new SessionValidityInfo( 1800, 2000, 3000 ) ), data );
+
+        // the maxInactiveInterval was changed, so the previous data is outdated
+        _cut.onBackup( createSession( 3000, 4000, 60 ), createBackupResult( BackupResult.SKIPPED ) );
+        assertNull( _cut.get( SESSION_ID, new SessionValidityInfo( 60, 3000, 4000 ) ) );
+    }
+
+    @Test
+    public void testNoDataIsReturnedIfBackupFailedOrIsRunning() throws Exception {
+        _cut.put( new byte[] { 0, 2, 1 }, createSession( 1000, 2000, 1800 ) );
+        _cut.onBackup( createSession( 2000, 3000, 1800 ), createBackupResult( BackupResult.FAILURE ) );
+        assertNull( _cut.get( SESSION_ID, new SessionValidityInfo( 1800, 2000, 3000 ) ) );
+
+        _cut.put( new byte[] { 0, 2, 1 }, createSession( 1000, 2000, 1800 ) );
+        @SuppressWarnings( "unchecked" )
+        final Future<BackupResult> running = mock( Future.class );
+        when( running.isDone() ).thenReturn( false );
+        _cut.onBackup( createSession( 2000, 3000, 1800 ), running );
+        assertNull( _cut.get( SESSION_ID, new SessionValidityInfo( 1800, 2000, 3000 ) ) );
+    }
+
+    @Test
+    public void testSessionsWithAttributesManifestAreNotCached() {
+        final byte[] data = new byte[] { 0, (byte) TranscoderService.VERSION_3, 1 };
+        _cut.put( data, createSession( 1000, 2000, 1800 ) );
+        assertNull( _cut.get( SESSION_ID, new SessionValidityInfo( 1800, 1000, 2000 ) ) );
+    }
+
+    private static MemcachedBackupSession createSession( final long lastAccessedTime, final long thisAccessedTime,
+            final int maxInactiveInterval ) {
+        final MemcachedBackupSession session = mock( MemcachedBackupSession.class );
+        when( session.getIdInternal() ).thenReturn( SESSION_ID );
+        when( session.getLastAccessedTimeInternal() ).thenReturn( lastAccessedTime );
+        when( session.getThisAccessedTimeInternal() ).thenReturn( thisAccessedTime );
+        when( session.getMaxInactiveInterval() ).thenReturn( maxInactiveInterval );
+        return session;
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private static Future<BackupResult> createBackupResult( final BackupResult result ) throws Exception {
+        final Future<BackupResult> future = mock( Future.class );
+        when( future.isDone() ).thenReturn( true );
+        when( future.get() ).thenReturn( result );
+        return future;
+    }
+
+}
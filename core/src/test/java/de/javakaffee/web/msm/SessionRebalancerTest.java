@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static java.util.Arrays.asList;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.SessionRebalancer.SessionRelocator;
+
+/**
+ * Test for {@link SessionRebalancer}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionRebalancerTest {
+
+    private RecordingRelocator _relocator;
+    private SessionRebalancer _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _relocator = new RecordingRelocator();
+        _cut = new SessionRebalancer( _relocator, 2, 100 );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _cut.shutdown();
+    }
+
+    @Test
+    public void testSessionsAreRelocatedInBatches() throws InterruptedException {
+        final MemcachedNodesManager previous = mock( MemcachedNodesManager.class );
+        _cut.rebalance( asList( "s1", "s2", "s3", "s4", "s5" ), previous );
+
+        Thread.sleep( 50 );
+        assertEquals( _relocator.getSessionIds(), asList( "s1", "s2" ) );
+        assertTrue( _cut.isRunning() );
+
+        waitUntilFinished();
+        assertEquals( _relocator.getSessionIds(), asList( "s1", "s2", "s3", "s4", "s5" ) );
+        assertEquals( _relocator.getPreviousConfigs(), Collections.nCopies( 5, previous ) );
+    }
+
+    @Test
+    public void testNewRunKeepsConfigOfUnfinishedRun() throws InterruptedException {
+        final MemcachedNodesManager first = mock( MemcachedNodesManager.class );
+        final MemcachedNodesManager second = mock( MemcachedNodesManager.class );
+        _cut.rebalance( asList( "s1", "s2", "s3", "s4", "s5" ), first );
+        Thread.sleep( 50 );
+        _cut.rebalance( asList( "s3", "s4", "s5" ), second );
+
+        waitUntilFinished();
+        assertEquals( _relocator.getSessionIds(), asList( "s1", "s2", "s3", "s4", "s5" ) );
+        assertEquals( _relocator.getPreviousConfigs(), Collections.nCopies( 5, first ) );
+
+        _cut.rebalance( asList( "s6" ), second );
+        waitUntilFinished();
+        assertEquals( _relocator.getPreviousConfigs().get( 5 ), second );
+    }
+
+    @Test
+    public void testFailingRelocationDoesNotStopRebalancing() throws InterruptedException {
+        _relocator._failingSessionId = "s1";
+        _cut.rebalance( asList( "s1", "s2", "s3" ), mock( MemcachedNodesManager.class ) );
+        waitUntilFinished();
+        assertEquals( _relocator.getSessionIds(), asList( "s1", "s2", "s3" ) );
+    }
+
+    private void waitUntilFinished() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 2000;
+        while ( _cut.isRunning() && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        assertFalse( _cut.isRunning() );
+    }
+
+    private static class RecordingRelocator implements SessionRelocator {
+
+        private final List<String> _sessionIds = new ArrayList<String>();
+        private final List<MemcachedNodesManager> _previousConfigs = new ArrayList<MemcachedNodesManager>();
+        private volatile String _failingSessionId;
+
+        @Override
+        public synchronized boolean relocate( final String sessionId, final MemcachedNodesManager previous ) {
+            _sessionIds.add( sessionId );
+            _previousConfigs.add( previous );
+            if ( sessionId.equals( _failingSessionId ) ) {
+                throw new IllegalStateException( "Simulated failure" );
+            }
+            return true;
+        }
+
+        synchronized List<String> getSessionIds() {
+            return new ArrayList<String>( _sessionIds );
+        }
+
+        synchronized List<MemcachedNodesManager> getPreviousConfigs() {
+            return new ArrayList<MemcachedNodesManager>( _previousConfigs );
+        }
+
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link SingleFlightLoader}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SingleFlightLoaderTest {
+
+    private Statistics _statistics;
+    private SingleFlightLoader<String> _cut;
+    private ExecutorService _executor;
+
+    @BeforeMethod
+    public void setUp() {
+        _statistics = Statistics.create();
+        _cut = new SingleFlightLoader<String>( _statistics );
+        _executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced() throws Exception {
+        final CountDownLatch loading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final AtomicInteger loads = new AtomicInteger();
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return "bar";
+            }
+        };
+
+        final Future<String> leader = _executor.submit( load( "foo", loader ) );
+        assertTrue( loading.await( 1, TimeUnit.SECONDS ) );
+        final Future<String> follower = _executor.submit( load( "foo", loader ) );
+        waitForCoalescedLoads( 1 );
+
+        release.countDown();
+        assertEquals( leader.get( 1, TimeUnit.SECONDS ), "bar" );
+        assertEquals( follower.get( 1, TimeUnit.SECONDS ), "bar" );
+        assertEquals( loads.get(), 1 );
+        assertEquals( _cut.getLoadsInFlight(), 0 );
+
+        // the result is not cached
+        assertEquals( _cut.load( "foo", loader ), "bar" );
+        assertEquals( loads.get(), 2 );
+    }
+
+    @Test
+    public void testDifferentKeysAreNotCoalesced() throws Exception {
+        final CountDownLatch loading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Future<String> first = _executor.submit( load( "foo", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loading.countDown();
+                release.await();
+                return "foo";
+            }
+        } ) );
+        assertTrue( loading.await( 1, TimeUnit.SECONDS ) );
+
+        assertEquals( _cut.load( "bar", new Callable<String>() {
+            @Override
+            public String call() {
+                return "bar";
+            }
+        } ), "bar" );
+        release.countDown();
+        assertEquals( first.get( 1, TimeUnit.SECONDS ), "foo" );
+        assertEquals( _statistics.getSessionLoadsCoalesced(), 0 );
+    }
+
+    @Test
+    public void testFailureIsPropagatedToWaitingThreads() throws Exception {
+        final CountDownLatch loading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loading.countDown();
+                release.await();
+                throw new IllegalStateException( "expected" );
+            }
+        };
+
+        final Future<String> leader = _executor.submit( load( "foo", loader ) );
+        assertTrue( loading.await( 1, TimeUnit.SECONDS ) );
+        final Future<String> follower = _executor.submit( load( "foo", loader ) );
+        waitForCoalescedLoads( 1 );
+        release.countDown();
+
+        assertLoadFailed( leader );
+        assertLoadFailed( follower );
+        assertEquals( _cut.getLoadsInFlight(), 0 );
+    }
+
+    private void assertLoadFailed( final Future<String> future ) throws Exception {
+        try {
+            future.get( 1, TimeUnit.SECONDS );
+            fail( "Expected an ExecutionException" );
+        } catch ( final ExecutionException e ) {
+            assertTrue( e.getCause() instanceof IllegalStateException );
+        }
+    }
+
+    private void waitForCoalescedLoads( final long expected ) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 1000;
+        while ( _statistics.getSessionLoadsCoalesced() < expected && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 5 );
+        }
+        assertEquals( _statistics.getSessionLoadsCoalesced(), expected );
+    }
+
+    private Callable<String> load( final String key, final Callable<String> loader ) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return _cut.load( key, loader );
+            }
+        };
+    }
+
+}
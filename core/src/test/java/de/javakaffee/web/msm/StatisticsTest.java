@@ -17,8 +17,11 @@
 package de.javakaffee.web.msm;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
 
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
@@ -92,6 +95,55 @@ public class StatisticsTest {
         assertValues( cut, 4, 0, 4, 1.5 );
     }
 
+    @Test
+    public void testMinMaxAvgProbePercentiles() {
+        final MinMaxAvgProbe cut = new MinMaxAvgProbe();
+        assertEquals( cut.getPercentile( 0.5 ), 0 );
+
+        for ( int i = 1; i <= 1000; i++ ) {
+            cut.register( i );
+        }
+        assertWithinRelativeError( cut.getPercentile( 0.5 ), 500 );
+        assertWithinRelativeError( cut.getPercentile( 0.9 ), 900 );
+        assertWithinRelativeError( cut.getPercentile( 0.99 ), 990 );
+        assertEquals( cut.getPercentile( 1 ), 1000 );
+    }
+
+    @Test
+    public void testMinMaxAvgProbeBucketsAreContiguous() {
+        for ( int i = 0; i < 959; i++ ) {
+            final long upperBound = MinMaxAvgProbe.bucketUpperBound( i );
+            assertEquals( MinMaxAvgProbe.bucketIndex( upperBound ), i );
+            assertEquals( MinMaxAvgProbe.bucketIndex( upperBound + 1 ), i + 1 );
+        }
+        assertEquals( MinMaxAvgProbe.bucketIndex( Long.MAX_VALUE ), 959 );
+    }
+
+    @Test
+    public void testMinMaxAvgProbeIntervalIsResetOnRead() {
+        final MinMaxAvgProbe cut = new MinMaxAvgProbe();
+        for ( int i = 0; i < 10; i++ ) {
+            cut.register( 5 );
+        }
+        List<String> info = Arrays.asList( cut.getInfo() );
+        assertTrue( info.contains( "Count = 10" ), info.toString() );
+        assertTrue( info.contains( "Interval Count = 10" ), info.toString() );
+        assertTrue( info.contains( "Interval P99 = 5" ), info.toString() );
+
+        cut.register( 20 );
+        info = Arrays.asList( cut.getInfo() );
+        assertTrue( info.contains( "Count = 11" ), info.toString() );
+        assertTrue( info.contains( "Interval Count = 1" ), info.toString() );
+        assertTrue( info.contains( "Interval P50 = 20" ), info.toString() );
+
+        info = Arrays.asList( cut.getInfo() );
+        assertTrue( info.contains( "Interval Count = 0" ), info.toString() );
+    }
+
+    private void assertWithinRelativeError( final long actual, final long expected ) {
+        assertTrue( Math.abs( actual - expected ) <= expected / 16, "Expected " + expected + " but was " + actual );
+    }
+
     private void assertValues( final MinMaxAvgProbe cut, final int count, final int min, final int max, final double avg ) {
         assertEquals( cut.getCount(), count );
         assertEquals( cut.getMin(), min );
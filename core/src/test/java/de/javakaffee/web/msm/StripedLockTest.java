@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.*;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link StripedLock}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class StripedLockTest {
+
+    @Test
+    public void testStripesAreRoundedToPowerOfTwo() {
+        assertEquals( new StripedLock( 1 ).getStripes(), 1 );
+        assertEquals( new StripedLock( 100 ).getStripes(), 128 );
+        assertEquals( new StripedLock( 256 ).getStripes(), 256 );
+    }
+
+    @Test
+    public void testSameKeyGetsSameLock() {
+        final StripedLock cut = new StripedLock( 16 );
+        assertSame( cut.getLock( "foo-n1" ), cut.getLock( new String( "foo-n1" ) ) );
+    }
+
+    @Test
+    public void testKeysAreDistributedOverStripes() {
+        final StripedLock cut = new StripedLock( 16 );
+        final Map<Object, Integer> counts = new IdentityHashMap<Object, Integer>();
+        for ( int i = 0; i < 1600; i++ ) {
+            final Object lock = cut.getLock( "session" + i + "-n1" );
+            final Integer count = counts.get( lock );
+            counts.put( lock, count == null ? 1 : count + 1 );
+        }
+        assertEquals( counts.size(), 16 );
+        for ( final Integer count : counts.values() ) {
+            assertTrue( count > 50, "Expected an even distribution, but got " + counts.values() );
+        }
+    }
+
+}
@@ -27,10 +27,20 @@ import static org.testng.Assert.assertNotNull;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.security.Principal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import net.spy.memcached.MemcachedClient;
 
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.authenticator.Constants;
@@ -43,7 +53,11 @@ import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import de.javakaffee.web.msm.CompressionDictionaryService.CompressionDictionary;
+import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
 import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
+import de.javakaffee.web.msm.Statistics.StatsType;
+import de.javakaffee.web.msm.TranscoderService.SerializationResult;
 
 
 /**
@@ -188,6 +202,256 @@ public abstract class TranscoderServiceTest {
         Assert.assertEquals( value, deserialized.getAttribute( "foo" ) );
     }
 
+    @Test
+    public void testDeserializeSessionWithLazyAttributes() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final Statistics statistics = Statistics.create();
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                new BufferPool(), new DeflateCompressor(), 0, statistics );
+
+        final ActivationListener listener = new ActivationListener();
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "listener", listener );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final byte[] data = transcoderService.serialize( session );
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager, true );
+        assertSessionFields( session, deserialized );
+        Assert.assertTrue( deserialized.hasSerializedAttributes() );
+        Assert.assertEquals( statistics.getAttributesDeserializationsSkipped(), 1 );
+
+        // activation listeners are notified when the attributes are deserialized
+        deserialized.activate();
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+        Assert.assertFalse( deserialized.hasSerializedAttributes() );
+        Assert.assertEquals( ( (ActivationListener) deserialized.getAttribute( "listener" ) ).activations, 1 );
+        Assert.assertEquals( statistics.getAttributesDeserializationsDeferred(), 1 );
+        Assert.assertEquals( statistics.getAttributesDeserializationsSkipped(), 0 );
+    }
+
+    @Test
+    public void testSerializeSessionWithIndexedAttributes() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final Statistics statistics = Statistics.create();
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                new BufferPool(), new DeflateCompressor(), 0, null, true, statistics );
+
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "big", new int[1000] );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final SerializationResult result = transcoderService.serializeSession( session, session.getAttributesInternal() );
+        Assert.assertTrue( TranscoderService.hasAttributesIndex( result.getData() ) );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( result.getData(), _manager );
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+        Assert.assertEquals( ( (int[]) deserialized.getAttribute( "big" ) ).length, 1000 );
+        Assert.assertEquals( deserialized.getDataHashCode(), result.getAttributesHashCode() );
+        Assert.assertEquals( transcoderService.deserializeSessionAttributes( result.getData(), session.getId() ).keySet(),
+                session.getAttributesInternal().keySet() );
+    }
+
+    @Test
+    public void testIndexedAttributesAreDeserializedSeparately() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final Statistics statistics = Statistics.create();
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                new BufferPool(), new DeflateCompressor(), 0, null, true, statistics );
+
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "big", new int[1000] );
+        session.setLastBackupTime( System.currentTimeMillis() );
+        final SerializationResult result = transcoderService.serializeSession( session, session.getAttributesInternal() );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( result.getData(), _manager, true );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+        Assert.assertTrue( deserialized.hasSerializedAttributes() );
+        Assert.assertEquals( statistics.getAttributesDeserializationsSkipped(), 1 );
+
+        // the attribute that was not accessed is stored again as it was loaded
+        final Map<String, ByteBuffer> serializedAttributes = new HashMap<String, ByteBuffer>();
+        final Map<String, Object> attributes = deserialized.getAttributesFiltered( serializedAttributes );
+        Assert.assertEquals( attributes.keySet(), Collections.singleton( "foo" ) );
+        Assert.assertEquals( serializedAttributes.keySet(), Collections.singleton( "big" ) );
+        final SerializationResult reserialized = transcoderService.serializeSession( deserialized, attributes, serializedAttributes );
+        Assert.assertEquals( reserialized.getAttributesHashCode(), result.getAttributesHashCode() );
+        Assert.assertTrue( deserialized.hasSerializedAttributes() );
+
+        Assert.assertEquals( ( (int[]) deserialized.getAttribute( "big" ) ).length, 1000 );
+        Assert.assertFalse( deserialized.hasSerializedAttributes() );
+        Assert.assertEquals( statistics.getAttributesDeserializationsSkipped(), 0 );
+    }
+
+    @Test
+    public void testSerializeSessionWithAttributesManifest() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        final AttributesManifest manifest = new AttributesManifest();
+        manifest.put( "foo", 0, -42, 0 );
+        manifest.put( "b\u00e4r", 3, Integer.MAX_VALUE, System.currentTimeMillis() );
+
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final byte[] data = transcoderService.serialize( session, manifest );
+        Assert.assertTrue( TranscoderService.hasAttributesManifest( data ) );
+        Assert.assertFalse( TranscoderService.hasAttributesManifest( transcoderService.serialize( session ) ) );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager );
+
+        assertSessionFields( session, deserialized );
+        Assert.assertTrue( deserialized.getAttributesInternal().isEmpty() );
+        final AttributesManifest actual = deserialized.getAttributesManifest();
+        Assert.assertEquals( actual.getNames(), manifest.getNames() );
+        for ( final String name : manifest.getNames() ) {
+            Assert.assertEquals( actual.get( name ).getSlot(), manifest.get( name ).getSlot() );
+            Assert.assertEquals( actual.get( name ).getHashCode(), manifest.get( name ).getHashCode() );
+            Assert.assertEquals( actual.get( name ).getExpiresAt(), manifest.get( name ).getExpiresAt() );
+        }
+    }
+
+    @Test
+    public void testSerializeAttribute() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        final byte[] data = transcoderService.serializeAttribute( session, "foo", "bar" );
+        final Map<String, Object> attributes = transcoderService.deserializeAttributes( data );
+        Assert.assertEquals( attributes.size(), 1 );
+        Assert.assertEquals( attributes.get( "foo" ), "bar" );
+    }
+
+    @Test
+    public void testSerializeSessionStreamsAttributesWithSessionFields() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        session.setAttribute( "foo", "bar" );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final byte[] attributesData = transcoderService.serializeAttributes( session, session.getAttributesInternal() );
+        final SerializationResult result = transcoderService.serializeSession( session, session.getAttributesInternal() );
+        Assert.assertEquals( result.getData(), transcoderService.serialize( session, attributesData ) );
+        Assert.assertEquals( result.getAttributesHashCode(), Arrays.hashCode( attributesData ) );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( result.getData(), _manager );
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+        Assert.assertEquals( deserialized.getDataHashCode(), result.getAttributesHashCode() );
+    }
+
+    @Test
+    public void testSerializeSessionCompressesAttributesWithDictionary() {
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        final MemcachedNodesManager nodesManager = MemcachedNodesManager.createFor( "localhost:11211", null,
+                mock( MemcachedClientCallback.class ) );
+        final CompressionDictionaryService dictionaryService = new CompressionDictionaryService( memcached, nodesManager, 1, 1024 );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                new BufferPool(), new DeflateCompressor(), 100, dictionaryService, Statistics.create() );
+
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        session.setAttribute( "foo", "some longer value of the foo attribute that is shared" );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        // the first session is used as sample for the dictionary
+        final byte[] sample = transcoderService.serializeSession( session, session.getAttributesInternal() ).getData();
+        Assert.assertFalse( TranscoderService.usesDictionary( sample ) );
+        final CompressionDictionary dictionary = dictionaryService.getCurrentDictionary();
+        assertNotNull( dictionary );
+
+        final byte[] data = transcoderService.serializeSession( session, session.getAttributesInternal() ).getData();
+        Assert.assertTrue( TranscoderService.isCompressed( data ) );
+        Assert.assertTrue( TranscoderService.usesDictionary( data ) );
+        Assert.assertTrue( data.length < sample.length );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager );
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), session.getAttribute( "foo" ) );
+
+        // another tomcat loads the dictionary from memcached
+        final MemcachedClient otherMemcached = mock( MemcachedClient.class );
+        when( otherMemcached.get( CompressionDictionaryService.createKey( dictionary.getId(), null ) ) ).thenReturn( dictionary.getData() );
+        final TranscoderService other = new TranscoderService( new JavaSerializationTranscoder( _manager ), new BufferPool(),
+                new DeflateCompressor(), 100, new CompressionDictionaryService( otherMemcached, nodesManager, 1, 1024 ),
+                Statistics.create() );
+        Assert.assertEquals( other.deserialize( data, _manager ).getAttribute( "foo" ), session.getAttribute( "foo" ) );
+
+        // without the dictionary the session cannot be read
+        final TranscoderService withoutDictionary = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+        Assert.assertNull( withoutDictionary.deserialize( data, _manager ) );
+    }
+
+    @Test
+    public void testSerializeSessionCompressesAttributesAboveThreshold() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final Statistics statistics = Statistics.create();
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                new BufferPool(), new DeflateCompressor(), 1024, statistics );
+
+        final StringBuilder value = new StringBuilder();
+        for ( int i = 0; i < 1000; i++ ) {
+            value.append( "foo" );
+        }
+        session.setAttribute( "foo", value.toString() );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final byte[] attributesData = transcoderService.serializeAttributes( session, session.getAttributesInternal() );
+        final SerializationResult result = transcoderService.serializeSession( session, session.getAttributesInternal() );
+        Assert.assertTrue( TranscoderService.isCompressed( result.getData() ) );
+        Assert.assertTrue( result.getData().length < attributesData.length );
+        Assert.assertEquals( result.getAttributesHashCode(), Arrays.hashCode( attributesData ) );
+        Assert.assertEquals( statistics.getProbe( StatsType.COMPRESSION_RATIO ).getCount(), 1 );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( result.getData(), _manager );
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), value.toString() );
+        Assert.assertEquals( deserialized.getDataHashCode(), result.getAttributesHashCode() );
+        Assert.assertEquals( statistics.getProbe( StatsType.DECOMPRESSION ).getCount(), 1 );
+
+        // compressed sessions must also be readable if compression is disabled
+        final TranscoderService uncompressing = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+        Assert.assertEquals( uncompressing.deserialize( result.getData(), _manager ).getAttribute( "foo" ), value.toString() );
+    }
+
+    @Test
+    public void testSerializeSessionDoesNotCompressAttributesBelowThreshold() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ),
+                new BufferPool(), new DeflateCompressor(), 1024, Statistics.create() );
+
+        session.setAttribute( "foo", "bar" );
+
+        final SerializationResult result = transcoderService.serializeSession( session, session.getAttributesInternal() );
+        Assert.assertFalse( TranscoderService.isCompressed( result.getData() ) );
+        Assert.assertEquals( transcoderService.deserialize( result.getData(), _manager ).getAttribute( "foo" ), "bar" );
+    }
+
+    @Test
+    public void testNonStreamingTranscoderIsAdapted() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final JavaSerializationTranscoder delegate = new JavaSerializationTranscoder( _manager );
+        final SessionAttributesTranscoder transcoder = new SessionAttributesTranscoder() {
+            @Override
+            public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+                return delegate.serializeAttributes( session, attributes );
+            }
+            @Override
+            public Map<String, Object> deserializeAttributes( final byte[] data ) {
+                return delegate.deserializeAttributes( data );
+            }
+        };
+        final TranscoderService transcoderService = new TranscoderService( transcoder );
+
+        session.setAttribute( "foo", "bar" );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final byte[] data = transcoderService.serialize( session );
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager );
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+    }
+
     private void assertSessionFields( final MemcachedBackupSession session, final MemcachedBackupSession deserialized ) {
         Assert.assertEquals( session.getCreationTimeInternal(), deserialized.getCreationTimeInternal() );
         Assert.assertEquals( session.getLastAccessedTimeInternal(), deserialized.getLastAccessedTimeInternal() );
@@ -201,4 +465,21 @@ public abstract class TranscoderServiceTest {
         assertDeepEquals( session.getPrincipal(), deserialized.getPrincipal() );
     }
 
+    static class ActivationListener implements HttpSessionActivationListener, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        transient int activations;
+
+        @Override
+        public void sessionDidActivate( final HttpSessionEvent se ) {
+            activations++;
+        }
+
+        @Override
+        public void sessionWillPassivate( final HttpSessionEvent se ) {
+        }
+
+    }
+
 }
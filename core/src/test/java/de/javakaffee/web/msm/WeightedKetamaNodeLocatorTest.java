@@ -0,0 +1,135 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedNode;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test for {@link WeightedKetamaNodeLocator}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class WeightedKetamaNodeLocatorTest {
+
+    private static final int KEYS = 20000;
+
+    @Test
+    public void testKeysAreDistributedEvenly() {
+        final List<MemcachedNode> nodes = createNodes( 4 );
+        final WeightedKetamaNodeLocator cut = new WeightedKetamaNodeLocator( nodes, Collections.<InetSocketAddress, Integer>emptyMap() );
+        final Map<MemcachedNode, Integer> counts = countKeys( cut );
+        for ( final MemcachedNode node : nodes ) {
+            final int count = counts.get( node );
+            assertTrue( count > KEYS / 4 * 0.8 && count < KEYS / 4 * 1.2, "Unexpected number of keys for " + node.getSocketAddress() + ": " + count );
+        }
+    }
+
+    @Test
+    public void testWeightedNodeGetsMoreKeys() {
+        final List<MemcachedNode> nodes = createNodes( 2 );
+        final Map<InetSocketAddress, Integer> weights = new HashMap<InetSocketAddress, Integer>();
+        weights.put( (InetSocketAddress) nodes.get( 1 ).getSocketAddress(), 2 );
+        final Map<MemcachedNode, Integer> counts = countKeys( new WeightedKetamaNodeLocator( nodes, weights ) );
+        final double ratio = counts.get( nodes.get( 1 ) ).doubleValue() / counts.get( nodes.get( 0 ) ).doubleValue();
+        assertTrue( ratio > 1.6 && ratio < 2.4, "Unexpected ratio " + ratio );
+    }
+
+    @Test
+    public void testAddingNodeOnlyMovesKeysToTheNewNode() {
+        final List<MemcachedNode> nodes = createNodes( 5 );
+        final WeightedKetamaNodeLocator cut = new WeightedKetamaNodeLocator( nodes.subList( 0, 4 ), Collections.<InetSocketAddress, Integer>emptyMap() );
+        final Map<String, MemcachedNode> before = new HashMap<String, MemcachedNode>();
+        for ( int i = 0; i < KEYS; i++ ) {
+            before.put( "key" + i, cut.getPrimary( "key" + i ) );
+        }
+
+        cut.updateLocator( nodes );
+
+        int moved = 0;
+        for ( int i = 0; i < KEYS; i++ ) {
+            final MemcachedNode node = cut.getPrimary( "key" + i );
+            if ( node != before.get( "key" + i ) ) {
+                assertSame( node, nodes.get( 4 ) );
+                moved++;
+            }
+        }
+        assertTrue( moved > KEYS / 5 * 0.7 && moved < KEYS / 5 * 1.3, "Unexpected number of moved keys: " + moved );
+    }
+
+    @Test
+    public void testSameNodesAsSpymemcachedKetamaWithoutWeights() {
+        final List<MemcachedNode> nodes = createNodes( 3 );
+        final WeightedKetamaNodeLocator cut = new WeightedKetamaNodeLocator( nodes, Collections.<InetSocketAddress, Integer>emptyMap() );
+        final KetamaNodeLocator ketama = new KetamaNodeLocator( nodes, DefaultHashAlgorithm.KETAMA_HASH );
+        for ( int i = 0; i < 1000; i++ ) {
+            assertSame( cut.getPrimary( "key" + i ), ketama.getPrimary( "key" + i ) );
+        }
+    }
+
+    @Test
+    public void testGetSequenceReturnsOtherNodes() {
+        final List<MemcachedNode> nodes = createNodes( 3 );
+        final WeightedKetamaNodeLocator cut = new WeightedKetamaNodeLocator( nodes, Collections.<InetSocketAddress, Integer>emptyMap() );
+        final MemcachedNode primary = cut.getPrimary( "foo" );
+        final Set<MemcachedNode> others = new HashSet<MemcachedNode>();
+        for ( final Iterator<MemcachedNode> iter = cut.getSequence( "foo" ); iter.hasNext(); ) {
+            final MemcachedNode node = iter.next();
+            assertNotSame( node, primary );
+            assertTrue( others.add( node ) );
+        }
+        assertEquals( others.size(), 2 );
+    }
+
+    private static Map<MemcachedNode, Integer> countKeys( final WeightedKetamaNodeLocator cut ) {
+        final Map<MemcachedNode, Integer> result = new HashMap<MemcachedNode, Integer>();
+        for ( int i = 0; i < KEYS; i++ ) {
+            final MemcachedNode node = cut.getPrimary( "key" + i );
+            final Integer count = result.get( node );
+            result.put( node, count == null ? 1 : count + 1 );
+        }
+        return result;
+    }
+
+    private static List<MemcachedNode> createNodes( final int count ) {
+        final List<MemcachedNode> result = new ArrayList<MemcachedNode>( count );
+        for ( int i = 0; i < count; i++ ) {
+            final MemcachedNode node = mock( MemcachedNode.class );
+            when( node.getSocketAddress() ).thenReturn( new InetSocketAddress( "127.0.0.1", 11211 + i ) );
+            result.add( node );
+        }
+        return result;
+    }
+
+}
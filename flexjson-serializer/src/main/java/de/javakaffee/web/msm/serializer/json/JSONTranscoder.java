@@ -13,11 +13,10 @@
  */
 package de.javakaffee.web.msm.serializer.json;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import org.apache.catalina.Manager;
@@ -25,8 +24,9 @@ import org.apache.catalina.session.StandardSession;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import de.javakaffee.web.msm.ByteBufferInputStream;
 import de.javakaffee.web.msm.MemcachedBackupSession;
-import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 import flexjson.JSONDeserializer;
 import flexjson.JSONSerializer;
 
@@ -37,7 +37,7 @@ import flexjson.JSONSerializer;
  *
  * @author <a href="mailto:moresandeep@gmail.com">Sandeep More</a>
  */
-public class JSONTranscoder implements SessionAttributesTranscoder {
+public class JSONTranscoder implements StreamingSessionAttributesTranscoder {
 
     private static final Log LOG = LogFactory.getLog(JSONTranscoder.class);
 
@@ -62,7 +62,15 @@ public class JSONTranscoder implements SessionAttributesTranscoder {
 	 */
 	@Override
 	public Map<String, Object> deserializeAttributes(final byte[] in) {
-		final InputStreamReader inputStream = new InputStreamReader( new ByteArrayInputStream( in ) );
+		return deserializeAttributes(ByteBuffer.wrap(in));
+	}
+
+	/* (non-Javadoc)
+	 * @see de.javakaffee.web.msm.StreamingSessionAttributesTranscoder#deserializeAttributes(java.nio.ByteBuffer)
+	 */
+	@Override
+	public Map<String, Object> deserializeAttributes(final ByteBuffer in) {
+		final InputStreamReader inputStream = new InputStreamReader( new ByteBufferInputStream( in ) );
 		if (LOG.isDebugEnabled()) {
 		    LOG.debug("deserialize the stream");
 		}
@@ -84,7 +92,6 @@ public class JSONTranscoder implements SessionAttributesTranscoder {
         	throw new NullPointerException();
         }
 
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
         	// This performs a deep serialization of the target instance.
             // It's serialized to a string as flexjson doesn't like writing to
@@ -98,19 +105,17 @@ public class JSONTranscoder implements SessionAttributesTranscoder {
         } catch (final Exception e) {
         	LOG.warn("Caught Exception deserializing JSON " + e);
         	throw new IllegalArgumentException();
-        } finally {
-        	close(bos);
         }
 	}
 
-	private void close(final Closeable stream) {
-		if(stream != null) {
-			try {
-				stream.close();
-			} catch( final IOException e) {
-				LOG.warn("JSON Transcoder Failed to close the stream: " + e);
-			}
-		}
+	/* (non-Javadoc)
+	 * @see de.javakaffee.web.msm.StreamingSessionAttributesTranscoder#serializeAttributes(de.javakaffee.web.msm.MemcachedBackupSession, java.util.Map, java.io.OutputStream)
+	 */
+	@Override
+	public void serializeAttributes(final MemcachedBackupSession session, final Map<String, Object> attributes,
+			final OutputStream out) throws IOException {
+		// flexjson cannot write to an OutputStreamWriter (see above), so the serialized string is written as a whole
+		out.write(serializeAttributes(session, attributes));
 	}
 
 }
\ No newline at end of file
@@ -16,8 +16,10 @@
  */
 package de.javakaffee.web.msm.serializer.javolution;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import javolution.xml.XMLObjectReader;
@@ -30,8 +32,12 @@ import org.apache.catalina.Manager;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import de.javakaffee.web.msm.BufferPool;
+import de.javakaffee.web.msm.BufferPool.PooledOutputStream;
+import de.javakaffee.web.msm.BufferPoolAware;
+import de.javakaffee.web.msm.ByteBufferInputStream;
 import de.javakaffee.web.msm.MemcachedBackupSession;
-import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link net.spy.memcached.transcoders.Transcoder} that serializes catalina
@@ -49,7 +55,7 @@ import de.javakaffee.web.msm.SessionAttributesTranscoder;
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class JavolutionTranscoder implements SessionAttributesTranscoder {
+public class JavolutionTranscoder implements StreamingSessionAttributesTranscoder, BufferPoolAware {
 
     static final String REFERENCE_ATTRIBUTE_ID = "__id";
     static final String REFERENCE_ATTRIBUTE_REF_ID = "__ref";
@@ -58,6 +64,7 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
 
     private final Manager _manager;
     private final ReflectionBinding _xmlBinding;
+    private volatile BufferPool _bufferPool = new BufferPool();
 
     /**
      * Constructor.
@@ -102,23 +109,51 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
         _xmlBinding = new ReflectionBinding( classLoader, copyCollectionsForSerialization, customFormats );
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBufferPool( final BufferPool bufferPool ) {
+        _bufferPool = bufferPool;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
-        return doSerialize( attributes, "attributes" );
+        final PooledOutputStream bos = _bufferPool.acquire();
+        try {
+            doSerialize( attributes, "attributes", bos );
+
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "Returning serialized data:\n" + new String( bos.toByteArray() ) );
+            }
+
+            return bos.toByteArray();
+        } finally {
+            _bufferPool.release( bos );
+        }
     }
 
-    private byte[] doSerialize( final Object object, final String name ) {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) {
+        doSerialize( attributes, "attributes", out );
+    }
+
+    private void doSerialize( final Object object, final String name, final OutputStream out ) {
         if ( object == null ) {
             throw new NullPointerException( "Can't serialize null" );
         }
 
         XMLObjectWriter writer = null;
         try {
-            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            writer = XMLObjectWriter.newInstance( bos );
+            // closing the writer closes its output stream, which must stay open
+            writer = XMLObjectWriter.newInstance( new UncloseableOutputStream( out ) );
             final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
             xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
             xmlReferenceResolver.setReferenceAttribute( REFERENCE_ATTRIBUTE_REF_ID );
@@ -126,12 +161,6 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
             writer.setBinding( _xmlBinding );
             writer.write( object, name );
             writer.flush();
-
-            if ( LOG.isDebugEnabled() ) {
-                LOG.debug( "Returning serialized data:\n" + new String( bos.toByteArray() ) );
-            }
-
-            return bos.toByteArray();
         } catch ( final Exception e ) {
             LOG.error( "caught exception", e );
             throw new IllegalArgumentException( "Could not serialize object", e );
@@ -154,15 +183,22 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
             LOG.debug( "Reading serialized data:\n" + new String( in ) );
         }
 
+        return doDeserialize( ByteBuffer.wrap( in ), "attributes" );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final ByteBuffer in ) {
         return doDeserialize( in, "attributes" );
     }
 
-    private <T> T doDeserialize( final byte[] in, final String name ) {
-        // getLogger().info( "Loading serialized:\n" + new String( in ) );
+    private <T> T doDeserialize( final ByteBuffer in, final String name ) {
+        final int length = in.remaining();
         XMLObjectReader reader = null;
         try {
-            final ByteArrayInputStream bis = new ByteArrayInputStream( in );
-            reader = XMLObjectReader.newInstance( bis );
+            reader = XMLObjectReader.newInstance( new ByteBufferInputStream( in ) );
             final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
             xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
             xmlReferenceResolver.setReferenceAttribute( REFERENCE_ATTRIBUTE_REF_ID );
@@ -173,10 +209,10 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
             }
             return reader.<T> read( name );
         } catch ( final RuntimeException e ) {
-            LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught Exception decoding "+ length +" bytes of data", e );
             throw e;
         } catch ( final XMLStreamException e ) {
-            LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught Exception decoding "+ length +" bytes of data", e );
             throw new RuntimeException( e );
         } finally {
             closeSilently( reader );
@@ -193,6 +229,27 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
         }
     }
 
+    /**
+     * Protects the wrapped stream from being closed, writes are passed through as a whole.
+     */
+    private static final class UncloseableOutputStream extends FilterOutputStream {
+
+        UncloseableOutputStream( final OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            out.write( b, off, len );
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
     private void closeSilently( final XMLObjectReader stream ) {
         if ( stream != null ) {
             try {
@@ -16,11 +16,15 @@
  */
 package de.javakaffee.web.msm.serializer.kryo;
 
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -35,7 +39,9 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -68,15 +74,18 @@ import de.javakaffee.kryoserializers.StringBuilderSerializer;
 import de.javakaffee.kryoserializers.SubListSerializer;
 import de.javakaffee.kryoserializers.SynchronizedCollectionsSerializer;
 import de.javakaffee.kryoserializers.UnmodifiableCollectionsSerializer;
+import de.javakaffee.web.msm.BufferPool;
+import de.javakaffee.web.msm.BufferPoolAware;
 import de.javakaffee.web.msm.MemcachedBackupSession;
 import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link SessionAttributesTranscoder} that uses {@link Kryo} for serialization.
  * 
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class KryoTranscoder implements SessionAttributesTranscoder {
+public class KryoTranscoder implements StreamingSessionAttributesTranscoder, BufferPoolAware {
 
     private static final Log LOG = LogFactory.getLog( KryoTranscoder.class );
     
@@ -90,6 +99,12 @@ public class KryoTranscoder implements SessionAttributesTranscoder {
     private final int _initialBufferSize;
     private final int _maxBufferSize;
 
+    /* The buffers are pooled by the transcoder (and not per thread) so that the container threads
+     * don't keep references to the webapp after it was stopped.
+     */
+    private final BlockingDeque<ObjectBuffer> _buffers = new LinkedBlockingDeque<ObjectBuffer>( BufferPool.DEFAULT_MAX_POOLED_BUFFERS );
+    private volatile int _maxRetainedBufferSize = BufferPool.DEFAULT_MAX_RETAINED_SIZE;
+
     /**
      * 
      */
@@ -261,15 +276,88 @@ public class KryoTranscoder implements SessionAttributesTranscoder {
         return new ObjectBuffer( _kryo ).readObject( data, ConcurrentHashMap.class );
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings( "unchecked" )
+    @Override
+    public Map<String, Object> deserializeAttributes( final ByteBuffer data ) {
+        return _kryo.readObject( data.slice(), ConcurrentHashMap.class );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBufferPool( final BufferPool bufferPool ) {
+        _maxRetainedBufferSize = bufferPool.getMaxRetainedSize();
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
-        /**
-         * Creates an ObjectStream with an initial buffer size of 50KB and a maximum size of 1000KB.
+        /* The ObjectBuffer is reused, if it had to grow for a big
+         * session it's dropped so that the pool does not keep the big buffer.
          */
-        return new ObjectBuffer( _kryo, _initialBufferSize, _maxBufferSize  ).writeObject( attributes );
+        final ObjectBuffer buffer = acquireObjectBuffer();
+        final byte[] result = buffer.writeObject( attributes );
+        releaseObjectBuffer( buffer, result.length );
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) throws IOException {
+        final CountingOutputStream countingOut = new CountingOutputStream( out );
+        final ObjectBuffer buffer = acquireObjectBuffer();
+        buffer.writeObject( countingOut, attributes );
+        releaseObjectBuffer( buffer, countingOut.getCount() );
+    }
+
+    private ObjectBuffer acquireObjectBuffer() {
+        final ObjectBuffer result = _buffers.pollFirst();
+        return result != null ? result : new ObjectBuffer( _kryo, _initialBufferSize, _maxBufferSize );
+    }
+
+    private void releaseObjectBuffer( final ObjectBuffer buffer, final int writtenBytes ) {
+        if ( writtenBytes <= Math.max( _maxRetainedBufferSize, _initialBufferSize ) ) {
+            _buffers.offerFirst( buffer );
+        }
+    }
+
+    /**
+     * Counts the bytes written to the wrapped stream, so that the size of the
+     * {@link ObjectBuffer} can be estimated.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private int _count;
+
+        CountingOutputStream( final OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( final int b ) throws IOException {
+            out.write( b );
+            _count++;
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            out.write( b, off, len );
+            _count += len;
+        }
+
+        int getCount() {
+            return _count;
+        }
+
     }
 
     private Triple<KryoCustomization[], SerializerFactory[], UnregisteredClassHandler[]> loadCustomConverter( final String[] customConverterClassNames, final ClassLoader classLoader,
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import de.javakaffee.web.msm.MemcachedBackupSession;
+import de.javakaffee.web.msm.StripedLock;
+
+/**
+ * A contention benchmark for the refcount handling of non-sticky sessions: each simulated request
+ * looks up (or adds) its session in the session map and registers a reference, and at the end of
+ * the request releases the reference and removes the session from the map if it's no longer referenced.
+ * This is done while holding a single global monitor (the session map, as before) and with
+ * the {@link StripedLock} per session id.
+ * <p>
+ * Usage: <code>SessionLockBenchmark [threads] [sessions]</code>, the number of threads
+ * defaults to twice the number of available processors.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionLockBenchmark {
+
+    private static final int REQUESTS_PER_THREAD = 1000000;
+
+    public static void main( final String[] args ) throws InterruptedException {
+        final int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 2 * Runtime.getRuntime().availableProcessors();
+        final int sessions = args.length > 1 ? Integer.parseInt( args[1] ) : 10000;
+
+        System.out.println( "Running benchmark with " + threads + " threads and " + sessions + " sessions..." );
+
+        // some warmup
+        run( new GlobalLock(), threads, sessions );
+        run( new StripedLocks(), threads, sessions );
+
+        for ( int i = 0; i < 3; i++ ) {
+            System.out.println( "Global monitor: " + run( new GlobalLock(), threads, sessions ) + " requests/ms" );
+            System.out.println( "Striped locks:  " + run( new StripedLocks(), threads, sessions ) + " requests/ms" );
+        }
+    }
+
+    private static long run( final Locks locks, final int threads, final int countSessions ) throws InterruptedException {
+        final String[] ids = new String[countSessions];
+        for ( int i = 0; i < countSessions; i++ ) {
+            ids[i] = "session" + i + "-n1";
+        }
+        final ConcurrentMap<String, MemcachedBackupSession> sessions = new ConcurrentHashMap<String, MemcachedBackupSession>();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( threads );
+        for ( int t = 0; t < threads; t++ ) {
+            final Random random = new Random( t );
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for ( int i = 0; i < REQUESTS_PER_THREAD; i++ ) {
+                            final String id = ids[random.nextInt( ids.length )];
+                            MemcachedBackupSession session;
+                            synchronized ( locks.getLock( sessions, id ) ) {
+                                session = sessions.get( id );
+                                if ( session == null ) {
+                                    session = new MemcachedBackupSession();
+                                    sessions.put( id, session );
+                                }
+                                session.registerReference();
+                            }
+                            synchronized ( locks.getLock( sessions, id ) ) {
+                                if ( session.releaseReference() == 0 ) {
+                                    sessions.remove( id );
+                                }
+                            }
+                        }
+                    } catch ( final InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        final long startTime = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        final long duration = Math.max( System.currentTimeMillis() - startTime, 1 );
+        return (long) threads * REQUESTS_PER_THREAD / duration;
+    }
+
+    private static interface Locks {
+        Object getLock( ConcurrentMap<String, MemcachedBackupSession> sessions, String id );
+    }
+
+    private static class GlobalLock implements Locks {
+        @Override
+        public Object getLock( final ConcurrentMap<String, MemcachedBackupSession> sessions, final String id ) {
+            return sessions;
+        }
+    }
+
+    private static class StripedLocks implements Locks {
+        private final StripedLock _lock = new StripedLock();
+        @Override
+        public Object getLock( final ConcurrentMap<String, MemcachedBackupSession> sessions, final String id ) {
+            return _lock.getLock( id );
+        }
+    }
+
+}
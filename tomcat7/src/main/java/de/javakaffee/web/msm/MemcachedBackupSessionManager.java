@@ -478,6 +478,8 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      * <li><code>auto</code> - locks the session for each request except for those the were detected to access the session only readonly.</li>
      * <li><code>uriPattern:&lt;regexp&gt;</code> - locks the session for each request with a request uri (with appended querystring) matching
      * the provided regular expression.</li>
+     * <li><code>cas</code> - does not lock the session but stores it with compare-and-set, so that concurrent modifications
+     * are detected and handled according to the cas conflict policy (see {@link #setCasConflictPolicy(String)}).</li>
      * </ul>
      */
     @Override
@@ -576,6 +578,198 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.isSessionBackupAsync();
     }
 
+    /**
+     * Specifies if session attributes shall be stored separately in memcached, each attribute
+     * under its own key. With this only modified attributes need to be stored (instead of the
+     * whole session). By default this property is set to <code>false</code>.
+     *
+     * @param storeAttributesSeparately
+     *            <code>true</code> if attributes shall be stored separately.
+     */
+    public void setStoreAttributesSeparately( final boolean storeAttributesSeparately ) {
+        _msm.setStoreAttributesSeparately( storeAttributesSeparately );
+    }
+
+    /**
+     * Specifies if session attributes are stored separately in memcached.
+     */
+    public boolean isStoreAttributesSeparately() {
+        return _msm.isStoreAttributesSeparately();
+    }
+
+    /**
+     * Specifies the time in microseconds that writes to memcached (sessions, validity info,
+     * secondary backups) are collected before they're sent to memcached together.
+     * <p>
+     * By default this property is set to <code>0</code> - writes are not batched.
+     * </p>
+     *
+     * @param backupBatchWindow
+     *            the batch window in microseconds, <code>0</code> disables batching.
+     */
+    public void setBackupBatchWindow( final int backupBatchWindow ) {
+        _msm.setBackupBatchWindow( backupBatchWindow );
+    }
+
+    /**
+     * The time in microseconds that writes to memcached are collected to be sent as a batch.
+     */
+    public int getBackupBatchWindow() {
+        return _msm.getBackupBatchWindow();
+    }
+
+    /**
+     * Specifies the max number of writes that are pending for the next batch if backup batching
+     * is enabled (see {@link #setBackupBatchWindow(int)}).
+     * <p>
+     * The default value is <code>1000</code>.
+     * </p>
+     *
+     * @param backupBatchQueueSize
+     *            the max number of pending writes.
+     */
+    public void setBackupBatchQueueSize( final int backupBatchQueueSize ) {
+        _msm.setBackupBatchQueueSize( backupBatchQueueSize );
+    }
+
+    /**
+     * The max number of writes that are pending for the next batch if backup batching is enabled.
+     */
+    public int getBackupBatchQueueSize() {
+        return _msm.getBackupBatchQueueSize();
+    }
+
+    /**
+     * Specifies the size in bytes of serialized session attributes above which they're compressed
+     * before they're stored in memcached. The default value is <code>0</code>, which disables compression.
+     *
+     * @param compressionThreshold the size in bytes above which session attributes are compressed.
+     */
+    public void setCompressionThreshold( final int compressionThreshold ) {
+        _msm.setCompressionThreshold( compressionThreshold );
+    }
+
+    /**
+     * The size in bytes of serialized session attributes above which they're compressed,
+     * <code>0</code> if compression is disabled.
+     */
+    public int getCompressionThreshold() {
+        return _msm.getCompressionThreshold();
+    }
+
+    /**
+     * The class of the {@link Compressor} used to compress session data if compression is
+     * enabled (see {@link #setCompressionThreshold(int)}). The default value is the
+     * {@link DeflateCompressor} class.
+     *
+     * @param compressorClassName the {@link Compressor} class name.
+     */
+    public void setCompressorClass( final String compressorClassName ) {
+        _msm.setCompressorClass( compressorClassName );
+    }
+
+    /**
+     * Specifies the number of serialized sessions a shared compression dictionary is built from,
+     * this requires compression to be enabled (see {@link #setCompressionThreshold(int)}).
+     * The default value is <code>0</code>, which disables dictionary compression.
+     *
+     * @param compressionDictionarySamples the number of sessions to build the dictionary from.
+     */
+    public void setCompressionDictionarySamples( final int compressionDictionarySamples ) {
+        _msm.setCompressionDictionarySamples( compressionDictionarySamples );
+    }
+
+    /**
+     * The number of serialized sessions the compression dictionary is built from,
+     * <code>0</code> if dictionary compression is disabled.
+     */
+    public int getCompressionDictionarySamples() {
+        return _msm.getCompressionDictionarySamples();
+    }
+
+    /**
+     * Specifies if the attributes of a session loaded from memcached shall only be deserialized
+     * when they're accessed for the first time, so that requests that don't access session attributes
+     * don't have to deserialize them. The default value is <code>false</code>.
+     *
+     * @param lazyAttributesDeserialization <code>true</code> if attributes shall be deserialized on first access.
+     */
+    public void setLazyAttributesDeserialization( final boolean lazyAttributesDeserialization ) {
+        _msm.setLazyAttributesDeserialization( lazyAttributesDeserialization );
+    }
+
+    /**
+     * Determines, if the attributes of a session loaded from memcached are deserialized on first access.
+     */
+    public boolean isLazyAttributesDeserialization() {
+        return _msm.isLazyAttributesDeserialization();
+    }
+
+    /**
+     * Specifies if sessions shall be stored with the attributes in the indexed format, where each attribute
+     * is serialized separately so that with lazy attributes deserialization (see {@link #setLazyAttributesDeserialization(boolean)})
+     * only the accessed attributes are deserialized. The default value is <code>false</code>.
+     *
+     * @param indexedAttributes <code>true</code> if sessions shall be stored in the indexed format.
+     */
+    public void setIndexedAttributes( final boolean indexedAttributes ) {
+        _msm.setIndexedAttributes( indexedAttributes );
+    }
+
+    /**
+     * Determines, if sessions are stored with the attributes in the indexed format.
+     */
+    public boolean isIndexedAttributes() {
+        return _msm.isIndexedAttributes();
+    }
+
+    /**
+     * Specifies the number of non-sticky sessions that are cached locally, so that a session
+     * that was not accessed by another tomcat in the meantime must not be loaded from memcached again.
+     * The default value is <code>0</code>, which disables the near cache.
+     *
+     * @param nonStickyNearCacheSize the max number of sessions to cache locally.
+     */
+    public void setNonStickyNearCacheSize( final int nonStickyNearCacheSize ) {
+        _msm.setNonStickyNearCacheSize( nonStickyNearCacheSize );
+    }
+
+    /**
+     * The max number of non-sticky sessions that are cached locally, <code>0</code> if disabled.
+     */
+    public int getNonStickyNearCacheSize() {
+        return _msm.getNonStickyNearCacheSize();
+    }
+
+    /**
+     * Specifies how a conflict is handled if the locking mode is <code>cas</code> and a session
+     * was modified concurrently. Possible values:
+     * <ul>
+     * <li><code>merge</code> - the attributes modified by the current request are applied to the current session
+     * in memcached (default)</li>
+     * <li><code>fail</code> - the modifications of the current request are dropped</li>
+     * <li><code>overwrite</code> - the session is stored nevertheless, so that concurrent modifications are lost</li>
+     * </ul>
+     *
+     * @param casConflictPolicy the conflict policy.
+     */
+    public void setCasConflictPolicy( final String casConflictPolicy ) {
+        _msm.setCasConflictPolicy( casConflictPolicy );
+    }
+
+    /**
+     * Specifies how the memcached node for new sessions is selected. Possible values:
+     * <ul>
+     * <li><code>random</code> - one of the available nodes is selected randomly (default)</li>
+     * <li><code>latency</code> - of two randomly picked available nodes the one with the lower latency is selected</li>
+     * </ul>
+     *
+     * @param nodeSelectionMode the node selection mode.
+     */
+    public void setNodeSelectionMode( final String nodeSelectionMode ) {
+        _msm.setNodeSelectionMode( nodeSelectionMode );
+    }
+
     /**
      * The timeout in milliseconds after that a session backup is considered as
      * beeing failed.
@@ -674,6 +868,69 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.getStatistics().getNonStickySessionsReadOnlyRequest();
     }
 
+    /**
+     * Returns the number of conflicts when non-sticky sessions were stored with compare-and-set.
+     */
+    public long getMsmStatNumNonStickySessionsCasConflicts() {
+        return _msm.getStatistics().getNonStickySessionsCasConflicts();
+    }
+
+    /**
+     * Returns the number of writes that were sent to memcached directly because the
+     * queue of pending writes was full (if backup batching is enabled).
+     */
+    public long getMsmStatNumBackupBatchQueueFull() {
+        return _msm.getStatistics().getBackupBatchQueueFull();
+    }
+
+    /**
+     * Returns the number of session backups that were dropped because they were
+     * superseded by a newer backup of the same session before they were started.
+     */
+    public long getMsmStatNumBackupsCoalesced() {
+        return _msm.getStatistics().getBackupsCoalesced();
+    }
+
+    /**
+     * Returns the number of non-sticky sessions that were taken from the near cache
+     * instead of loading them from memcached.
+     */
+    public long getMsmStatNumNonStickyNearCacheHits() {
+        return _msm.getStatistics().getNonStickyNearCacheHits();
+    }
+
+    /**
+     * Returns the number of non-sticky sessions that had to be loaded from memcached
+     * as they were not cached locally or the cached session was outdated.
+     */
+    public long getMsmStatNumNonStickyNearCacheMisses() {
+        return _msm.getStatistics().getNonStickyNearCacheMisses();
+    }
+
+    /**
+     * Returns the number of session loads that were not performed as the same session
+     * was already being loaded from memcached by a concurrent request.
+     */
+    public long getMsmStatNumSessionLoadsCoalesced() {
+        return _msm.getStatistics().getSessionLoadsCoalesced();
+    }
+
+    /**
+     * Returns the number of sessions found in memcached that could not be deserialized
+     * (e.g. because the compression dictionary is not available).
+     */
+    public long getMsmStatNumSessionDeserializationFailures() {
+        return _msm.getStatistics().getSessionDeserializationFailures();
+    }
+
+    /**
+     * Returns the number of sessions loaded with lazy attributes deserialization whose
+     * attributes did not have to be deserialized (yet), as they were not accessed.
+     */
+    public long getMsmStatNumAttributesDeserializationsSkipped() {
+        return _msm.getStatistics().getAttributesDeserializationsSkipped();
+    }
+
     /**
      * Returns a string array with labels and values of count, min, avg and max
      * of the time that took the attributes serialization.
@@ -770,13 +1027,6 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.getStatistics().getProbe( ACQUIRE_LOCK_FAILURE ).getInfo();
     }
 
-    /**
-     * Lock release in non-sticky session mode.
-     */
-    public String[] getMsmStatNonStickyReleaseLockInfo() {
-        return _msm.getStatistics().getProbe( RELEASE_LOCK ).getInfo();
-    }
-
     /**
      * Tasks executed (in the request thread) for non-sticky sessions at the end of requests that did not access
      * the session (validity load/update, ping session, ping 2nd session backup, update validity backup).
@@ -807,6 +1057,54 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.getStatistics().getProbe( NON_STICKY_AFTER_DELETE_FROM_MEMCACHED ).getInfo();
     }
 
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the number of memcached round trips the request thread waited for, per request with a non-sticky session.
+     */
+    public String[] getMsmStatNonStickyRoundTripsInfo() {
+        return _msm.getStatistics().getProbe( NON_STICKY_ROUND_TRIPS ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the number of writes sent to memcached as one batch (if backup batching is enabled).
+     */
+    public String[] getMsmStatBackupBatchSizeInfo() {
+        return _msm.getStatistics().getProbe( BACKUP_BATCH_SIZE ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time in microseconds from the first write of a batch until the batch was sent to memcached.
+     */
+    public String[] getMsmStatBackupBatchFlushInfo() {
+        return _msm.getStatistics().getProbe( BACKUP_BATCH_FLUSH ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time in microseconds spent for compressing session data.
+     */
+    public String[] getMsmStatCompressionInfo() {
+        return _msm.getStatistics().getProbe( COMPRESSION ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the size of compressed session data in percent of the uncompressed size.
+     */
+    public String[] getMsmStatCompressionRatioInfo() {
+        return _msm.getStatistics().getProbe( COMPRESSION_RATIO ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time in microseconds spent for decompressing session data.
+     */
+    public String[] getMsmStatDecompressionInfo() {
+        return _msm.getStatistics().getProbe( DECOMPRESSION ).getInfo();
+    }
+
     // ---------------------------------------------------------------------------
 
     @Override
@@ -16,10 +16,11 @@
  */
 package de.javakaffee.web.msm.serializer.xstream;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 import org.apache.catalina.Manager;
@@ -29,8 +30,12 @@ import org.apache.juli.logging.LogFactory;
 
 import com.thoughtworks.xstream.XStream;
 
+import de.javakaffee.web.msm.BufferPool;
+import de.javakaffee.web.msm.BufferPool.PooledOutputStream;
+import de.javakaffee.web.msm.BufferPoolAware;
+import de.javakaffee.web.msm.ByteBufferInputStream;
 import de.javakaffee.web.msm.MemcachedBackupSession;
-import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link net.spy.memcached.transcoders.Transcoder} that serializes catalina
@@ -38,11 +43,12 @@ import de.javakaffee.web.msm.SessionAttributesTranscoder;
  * 
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class XStreamTranscoder implements SessionAttributesTranscoder {
+public class XStreamTranscoder implements StreamingSessionAttributesTranscoder, BufferPoolAware {
 
     private static final Log LOG = LogFactory.getLog( XStreamTranscoder.class );
 
     private final XStream _xstream;
+    private volatile BufferPool _bufferPool = new BufferPool();
 
     /**
      * Constructor.
@@ -54,28 +60,47 @@ public class XStreamTranscoder implements SessionAttributesTranscoder {
         _xstream = new XStream();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBufferPool( final BufferPool bufferPool ) {
+        _bufferPool = bufferPool;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
-        return doSerialize( attributes );
+        final PooledOutputStream bos = _bufferPool.acquire();
+        try {
+            doSerialize( attributes, bos );
+            return bos.toByteArray();
+        } finally {
+            _bufferPool.release( bos );
+        }
+
+    }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) {
+        doSerialize( attributes, out );
     }
 
-    private byte[] doSerialize( final Object object ) {
+    private void doSerialize( final Object object, final OutputStream out ) {
         if ( object == null ) {
             throw new NullPointerException( "Can't serialize null" );
         }
 
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            _xstream.toXML( object, bos );
-            return bos.toByteArray();
+            _xstream.toXML( object, out );
         } catch ( final Exception e ) {
             throw new IllegalArgumentException( "Non-serializable object", e );
-        } finally {
-            closeSilently( bos );
         }
     }
 
@@ -88,13 +113,22 @@ public class XStreamTranscoder implements SessionAttributesTranscoder {
      */
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
-        final ByteArrayInputStream bis = new ByteArrayInputStream( in );
+        return deserializeAttributes( ByteBuffer.wrap( in ) );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final ByteBuffer in ) {
+        final int length = in.remaining();
+        final InputStream bis = new ByteBufferInputStream( in );
         try {
             @SuppressWarnings( "unchecked" )
             final Map<String, Object> result = (Map<String, Object>) _xstream.fromXML( bis );
             return result;
         } catch ( final RuntimeException e ) {
-            LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught Exception decoding "+ length +" bytes of data", e );
             throw e ;
         } finally {
             closeSilently( bis );